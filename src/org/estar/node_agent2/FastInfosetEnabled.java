@@ -0,0 +1,30 @@
+package org.estar.node_agent2;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import javax.xml.ws.spi.WebServiceFeatureAnnotation;
+
+import com.sun.xml.ws.api.fastinfoset.FastInfosetFeature;
+
+/**
+ * Annotation enabling the JAX-WS RI FastInfosetFeature on an endpoint implementation. The RI builds the feature
+ * from this annotation (using the feature's @FeatureConstructor), so the endpoint negotiates Fast Infoset with
+ * clients that ask for it, and exchanges textual SOAP with clients that do not.
+ * @author cjm
+ * @see com.sun.xml.ws.api.fastinfoset.FastInfosetFeature
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+@WebServiceFeatureAnnotation(id = FastInfosetFeature.ID, bean = FastInfosetFeature.class)
+public @interface FastInfosetEnabled 
+{
+	/**
+	 * Whether Fast Infoset is enabled.
+	 */
+	boolean enabled() default true;
+}
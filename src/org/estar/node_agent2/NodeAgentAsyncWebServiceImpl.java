@@ -0,0 +1,166 @@
+package org.estar.node_agent2;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.xml.transform.Source;
+import javax.xml.ws.Service;
+import javax.xml.ws.ServiceMode;
+import javax.xml.ws.WebServiceContext;
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.WebServiceProvider;
+
+import com.sun.xml.ws.api.server.AsyncProvider;
+import com.sun.xml.ws.api.server.AsyncProviderCallback;
+
+import org.estar.node_agent2.util.RTMLAsyncExecutor;
+import org.estar.node_agent2.util.RTMLDeadline;
+
+import org.estar.rtml.RTMLDocument;
+
+/**
+ * Asynchronous implementation of the Node Agent web-service, deployed at /node_agent_async.
+ * It accepts the same RPC SOAP messages as NodeAgentWebServiceImpl for ping and handle_rtml, and returns the same
+ * responses. It is deployed at a different address, so clients must be pointed at /node_agent_async to use it:
+ * requests to /node_agent are still handled synchronously. The /node_agent endpoint is not replaced by this one,
+ * as it also serves the other operations (handle_rtml_batch, login, submit_rtml etc) that this endpoint does not.
+ * <p>
+ * The JAX-WS RI only runs AsyncProvider endpoints asynchronously; SEI endpoints such as NodeAgentWebServiceImpl
+ * always hold the request thread for the whole call. This endpoint reads the request payload and checks the
+ * username/password on the container's request thread, then hands the document (parse, TEA call and serialization)
+ * to the RTMLAsyncExecutor and returns. When WSServlet is async-supported (web.xml) the container's request thread
+ * is released, and the response is sent from the executor thread through the AsyncProviderCallback.
+ * The number of documents in flight is then limited by rtml.async.parallelism rather than the connector's thread count.
+ * When rtml.async.queue.size documents are already waiting for an executor thread, further handle_rtml requests are
+ * returned a "Node agent busy" SOAP fault at once, without the document being parsed.
+ * <p>
+ * The request payload is handled as in NodeAgentStreamingWebServiceImpl, so the document is parsed as a stream.
+ * @author cjm
+ * @see org.estar.node_agent2.NodeAgentStreamingWebServiceImpl
+ * @see org.estar.node_agent2.util.RTMLAsyncExecutor
+ */
+@WebServiceProvider(serviceName = "NodeAgentWebServiceImplService", portName = "NodeAgentWebServiceImplPort",
+		    targetNamespace = NodeAgentStreamingWebServiceImpl.NAMESPACE)
+@ServiceMode(value = Service.Mode.PAYLOAD)
+public class NodeAgentAsyncWebServiceImpl extends NodeAgentWebServiceImpl implements AsyncProvider<Source>
+{
+	/**
+	 * AsyncProvider entry point. The payload's root element determines the operation. Ping is answered at once,
+	 * handle_rtml documents are processed on the RTMLAsyncExecutor.
+	 * Any failure is returned to the client as a SOAP fault through the callback.
+	 * @param request The SOAP body payload.
+	 * @param callback The callback used to send the response.
+	 * @param context The request's context, used to check the username and password.
+	 * @see NodeAgentStreamingWebServiceImpl#extractPayload
+	 * @see #checkUsernamePassword(javax.xml.ws.handler.MessageContext)
+	 * @see #createDeadline(javax.xml.ws.handler.MessageContext)
+	 * @see #getPingReply
+	 * @see #handleRTMLAsync
+	 */
+	@Override
+	public void invoke(Source request,AsyncProviderCallback<Source> callback,WebServiceContext context)
+	{
+		NodeAgentStreamingWebServiceImpl.RequestPayload payload = null;
+		String headerUsername = null;
+
+		traceLogger.log(1, this.getClass().getName(), "invoke invoked.");
+		try
+		{
+			payload = NodeAgentStreamingWebServiceImpl.extractPayload(request);
+			headerUsername = checkUsernamePassword(context.getMessageContext());
+			if (NodeAgentStreamingWebServiceImpl.OPERATION_PING.equals(payload.operation))
+			{
+				callback.send(NodeAgentStreamingWebServiceImpl.createResponse(
+						NodeAgentStreamingWebServiceImpl.OPERATION_PING,getPingReply()));
+			}
+			else if (NodeAgentStreamingWebServiceImpl.OPERATION_HANDLE_RTML.equals(payload.operation))
+			{
+				handleRTMLAsync(headerUsername,createDeadline(context.getMessageContext()),payload,callback);
+			}
+			else
+			{
+				errorLogger.log(1, this.getClass().getName(), "invoke:Unknown operation:"+payload.operation);
+				throw new WebServiceException(this.getClass().getName()+":invoke:Unknown operation:"+
+							      payload.operation);
+			}
+		}
+		catch (RuntimeException e)
+		{
+			callback.sendError(e);
+		}
+	}
+
+	/**
+	 * Submit the handle_rtml document to the RTMLAsyncExecutor. The executor thread processes the document
+	 * using handleRTMLDocument, serializes the reply using createReplyString, and sends the response.
+	 * Documents still queued on the executor when their deadline passes are rejected without being processed.
+	 * If the executor's queue is full the document is not processed, and the client is sent a SOAP fault.
+	 * @param headerUsername The (already checked) header username.
+	 * @param deadline The request's deadline.
+	 * @param payload The extracted request payload.
+	 * @param callback The callback used to send the response.
+	 * @exception WebServiceException Thrown if the executor's queue is full.
+	 * @see #handleRTMLDocument(java.lang.String,java.io.InputStream,org.estar.node_agent2.util.RTMLDeadline)
+	 * @see #createReplyString
+	 * @see org.estar.node_agent2.util.RTMLAsyncExecutor#submit
+	 */
+	protected void handleRTMLAsync(final String headerUsername,final RTMLDeadline deadline,
+				       final NodeAgentStreamingWebServiceImpl.RequestPayload payload,
+				       final AsyncProviderCallback<Source> callback) throws WebServiceException
+	{
+		try
+		{
+			submitRTMLAsync(headerUsername,deadline,payload,callback);
+		}
+		catch (RejectedExecutionException e)
+		{
+			throw new WebServiceException(e.getMessage(),e);
+		}
+	}
+
+	/**
+	 * Submit the task processing the handle_rtml document to the RTMLAsyncExecutor.
+	 * @param headerUsername The (already checked) header username.
+	 * @param deadline The request's deadline.
+	 * @param payload The extracted request payload.
+	 * @param callback The callback used to send the response.
+	 * @exception RejectedExecutionException Thrown if the executor's queue is full.
+	 * @see #handleRTMLAsync
+	 */
+	protected void submitRTMLAsync(final String headerUsername,final RTMLDeadline deadline,
+				       final NodeAgentStreamingWebServiceImpl.RequestPayload payload,
+				       final AsyncProviderCallback<Source> callback) throws RejectedExecutionException
+	{
+		RTMLAsyncExecutor.getInstance().submit(new Runnable()
+		{
+			public void run()
+			{
+				RTMLDocument rtmlDocument = null;
+
+				try
+				{
+					try
+					{
+						rtmlDocument = handleRTMLDocument(headerUsername,payload.getDocumentInputStream(),deadline);
+					}
+					catch (Exception e)
+					{
+						e.printStackTrace();
+						errorLogger.log(1, NodeAgentAsyncWebServiceImpl.class.getName(),
+								"handleRTMLAsync:handleRTMLDocument failed with exception:"+e);
+					}
+					traceLogger.log(2, NodeAgentAsyncWebServiceImpl.class.getName(),
+							"... ... returning ASYNCHRONOUS endpoint response to IA");
+					callback.send(NodeAgentStreamingWebServiceImpl.createResponse(
+							NodeAgentStreamingWebServiceImpl.OPERATION_HANDLE_RTML,
+							createReplyString(rtmlDocument)));
+				}
+				catch (RuntimeException e)
+				{
+					errorLogger.log(1, NodeAgentAsyncWebServiceImpl.class.getName(),
+							"handleRTMLAsync:Failed to send response:"+e);
+					callback.sendError(e);
+				}
+			}
+		});
+	}
+}
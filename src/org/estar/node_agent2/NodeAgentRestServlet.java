@@ -0,0 +1,212 @@
+package org.estar.node_agent2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.util.LoggerUtil;
+import org.estar.node_agent2.util.RTMLDeadlinePolicy;
+import org.estar.node_agent2.util.ReplayGuard;
+
+import org.estar.rtml.RTMLDocument;
+
+/**
+ * Plain HTTP endpoint for the Node Agent, deployed at /rtml alongside the SOAP endpoints.
+ * <ul>
+ * <li>POST: The request body is the raw RTML document. The reply RTML document is returned as the response body.
+ * <li>GET: Returns the ping reply, as text.
+ * </ul>
+ * The Username and Password request headers are checked exactly as for the SOAP endpoints; a missing or
+ * incorrect username/password returns 401 (Unauthorized). The optional Deadline and Timeout request headers
+ * set the request's deadline, as for the SOAP endpoints.
+ * The request body is passed as a stream to the same handleRTMLDocument pipeline used by the SOAP endpoints,
+ * so a chunked request body is parsed as it arrives, without being buffered.
+ * The reply has a Content-Length, so the connection is kept alive for the client's next request (unless the
+ * GzipFilter compresses the reply, in which case it is sent chunked).
+ * <p>
+ * This avoids the SOAP envelope construction, JAX-WS dispatch and marshalling needed to move one string.
+ * e.g. curl -H "Username: eng" -H "Password: none" --data-binary @request.rtml http://ltproxy:8080/node_agent2/rtml
+ * @author cjm
+ * @see org.estar.node_agent2.NodeAgentWebServiceImpl#handleRTMLDocument(java.lang.String,java.io.InputStream,org.estar.node_agent2.util.RTMLDeadline)
+ * @see org.estar.node_agent2.NodeAgentWebServiceImpl#checkUsernamePassword(java.lang.String,java.lang.String,java.lang.String,java.lang.String,java.lang.String)
+ * @see org.estar.node_agent2.util.RTMLDeadlinePolicy
+ */
+public class NodeAgentRestServlet extends HttpServlet
+{
+	/**
+	 * The request header containing the username.
+	 */
+	public static final String HEADER_USERNAME = "Username";
+	/**
+	 * The request header containing the password.
+	 */
+	public static final String HEADER_PASSWORD = "Password";
+	/**
+	 * The request header containing the session token (used instead of the password).
+	 * @see org.estar.node_agent2.util.SessionToken
+	 */
+	public static final String HEADER_TOKEN = "Token";
+	/**
+	 * The content type of the returned RTML document.
+	 */
+	public static final String RTML_CONTENT_TYPE = "application/xml";
+	/**
+	 * The character encoding used for replies that do not declare one.
+	 */
+	public static final String DEFAULT_ENCODING = "UTF-8";
+	/**
+	 * Pattern matching the encoding declaration in a reply document's XML declaration.
+	 */
+	private static final Pattern ENCODING_PATTERN = Pattern.compile(
+		"^\\s*<\\?xml[^>]*encoding\\s*=\\s*[\"']([A-Za-z0-9._\\-]+)[\"']");
+	/**
+	 * The trace logger.
+	 */
+	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+	/**
+	 * The error logger.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+	/**
+	 * The web-service implementation, used to check usernames and passwords, and process documents.
+	 */
+	private NodeAgentWebServiceImpl nodeAgent = new NodeAgentWebServiceImpl();
+
+	/**
+	 * Handle a POSTed RTML document. The username and password are checked, the request's deadline created from
+	 * the Deadline and Timeout headers, the document is processed using handleRTMLDocument, and the reply 
+	 * serialized using createReplyString and returned.
+	 * @param request The request, the body of which is the RTML document.
+	 * @param response The response, the body of which is set to the reply RTML document.
+	 * @see #checkUsernamePassword
+	 * @see NodeAgentWebServiceImpl#handleRTMLDocument(java.lang.String,java.io.InputStream,org.estar.node_agent2.util.RTMLDeadline)
+	 * @see NodeAgentWebServiceImpl#createReplyString
+	 * @see org.estar.node_agent2.util.RTMLDeadlinePolicy#createDeadline
+	 * @see #sendReply
+	 */
+	@Override
+	protected void doPost(HttpServletRequest request,HttpServletResponse response) throws ServletException, IOException
+	{
+		RTMLDocument rtmlDocument = null;
+		String headerUsername = null;
+
+		traceLogger.log(1, this.getClass().getName(), "doPost invoked.");
+		headerUsername = checkUsernamePassword(request,response);
+		if (headerUsername == null)
+			return;
+		try
+		{
+			traceLogger.log(2, this.getClass().getName(), "doPost: Calling handleRTMLDocument.");
+			rtmlDocument = nodeAgent.handleRTMLDocument(headerUsername,request.getInputStream(),
+				RTMLDeadlinePolicy.getInstance().createDeadline(request.getHeader(RTMLDeadlinePolicy.HEADER_DEADLINE),
+										request.getHeader(RTMLDeadlinePolicy.HEADER_TIMEOUT)));
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			errorLogger.log(1, this.getClass().getName(), "doPost:handleRTMLDocument failed with exception:"+e);
+		}
+		traceLogger.log(2, this.getClass().getName(), "... ... returning REST response to IA");
+		sendReply(response,RTML_CONTENT_TYPE,nodeAgent.createReplyString(rtmlDocument));
+	}
+
+	/**
+	 * Return the ping reply, once the username and password have been checked.
+	 * @param request The request.
+	 * @param response The response, the body of which is set to the ping reply.
+	 * @see #checkUsernamePassword
+	 * @see NodeAgentWebServiceImpl#getPingReply
+	 */
+	@Override
+	protected void doGet(HttpServletRequest request,HttpServletResponse response) throws ServletException, IOException
+	{
+		traceLogger.log(5, this.getClass().getName(), "doGet invoked.");
+		if (checkUsernamePassword(request,response) == null)
+			return;
+		sendReply(response,"text/plain",nodeAgent.getPingReply());
+	}
+
+	/**
+	 * Check the Token, or Username and Password, request headers, and the Timestamp and Nonce headers.
+	 * If they are not legal, a 401 (Unauthorized) error is sent.
+	 * @param request The request.
+	 * @param response The response, used to send the error.
+	 * @return The username, or null if the username/password were not legal and the error has been sent.
+	 * @exception IOException Thrown if sending the error fails.
+	 * @see NodeAgentWebServiceImpl#checkUsernamePassword(java.lang.String,java.lang.String,java.lang.String,java.lang.String,java.lang.String)
+	 */
+	protected String checkUsernamePassword(HttpServletRequest request,HttpServletResponse response) throws IOException
+	{
+		try
+		{
+			return nodeAgent.checkUsernamePassword(request.getHeader(HEADER_USERNAME),
+							       request.getHeader(HEADER_PASSWORD),request.getHeader(HEADER_TOKEN),
+							       request.getHeader(ReplayGuard.HEADER_TIMESTAMP),
+							       request.getHeader(ReplayGuard.HEADER_NONCE));
+		}
+		catch (RuntimeException e)
+		{
+			response.sendError(HttpServletResponse.SC_UNAUTHORIZED,e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Send the reply string as the response body, encoded with the encoding declared in it's XML declaration
+	 * (or UTF-8), with a Content-Length.
+	 * @param response The response.
+	 * @param contentType The content type of the reply.
+	 * @param replyString The reply.
+	 * @exception IOException Thrown if writing the response fails.
+	 * @see #getEncoding
+	 */
+	protected void sendReply(HttpServletResponse response,String contentType,String replyString) throws IOException
+	{
+		String encoding = getEncoding(replyString);
+		byte replyBytes[] = replyString.getBytes(encoding);
+		OutputStream outputStream = null;
+
+		response.setContentType(contentType+"; charset="+encoding);
+		response.setContentLength(replyBytes.length);
+		outputStream = response.getOutputStream();
+		outputStream.write(replyBytes);
+		outputStream.close();
+	}
+
+	/**
+	 * Get the character encoding declared in the specified document's XML declaration, if it is supported.
+	 * @param documentString The document.
+	 * @return The declared encoding, or DEFAULT_ENCODING.
+	 * @see #ENCODING_PATTERN
+	 * @see #DEFAULT_ENCODING
+	 */
+	protected static String getEncoding(String documentString)
+	{
+		Matcher matcher = ENCODING_PATTERN.matcher(documentString);
+
+		if (matcher.find())
+		{
+			try
+			{
+				if (Charset.isSupported(matcher.group(1)))
+					return matcher.group(1);
+			}
+			catch (IllegalArgumentException e)
+			{
+				errorLogger.log(1, NodeAgentRestServlet.class.getName(),
+						"getEncoding:Illegal encoding "+matcher.group(1)+":"+e);
+			}
+		}
+		return DEFAULT_ENCODING;
+	}
+}
@@ -0,0 +1,453 @@
+package org.estar.node_agent2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.ws.Provider;
+import javax.xml.ws.Service;
+import javax.xml.ws.ServiceMode;
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.WebServiceProvider;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import org.estar.rtml.RTMLDocument;
+
+/**
+ * Streaming implementation of the Node Agent web-service, deployed at /node_agent_stream.
+ * It accepts the same RPC SOAP messages as NodeAgentWebServiceImpl (ping and handle_rtml), so existing clients
+ * only need to change the endpoint URL, but handles the message payload itself rather than having JAX-WS
+ * bind it to Strings:
+ * <ul>
+ * <li>The handle_rtml argument is streamed out of the payload (via SAX) into a single UTF-8 byte buffer,
+ *     which is then parsed as a stream by handleRTMLDocument(String,InputStream,RTMLDeadline). The document is never
+ *     held as a String, and is not copied by trim().
+ * <li>The reply document is serialized once, and XML escaped into the SOAP response as it is written,
+ *     rather than being copied into an escaped String first.
+ * </ul>
+ * The RPC endpoint (NodeAgentWebServiceImpl at /node_agent) is unchanged.
+ * @author cjm
+ * @see org.estar.node_agent2.NodeAgentWebServiceImpl
+ */
+@WebServiceProvider(serviceName = "NodeAgentWebServiceImplService", portName = "NodeAgentWebServiceImplPort",
+		    targetNamespace = NodeAgentStreamingWebServiceImpl.NAMESPACE)
+@ServiceMode(value = Service.Mode.PAYLOAD)
+public class NodeAgentStreamingWebServiceImpl extends NodeAgentWebServiceImpl implements Provider<Source>
+{
+	/**
+	 * The namespace of the Node Agent web-service operations.
+	 */
+	public static final String NAMESPACE = "http://node_agent2.estar.org/";
+	/**
+	 * The ping operation name.
+	 */
+	public static final String OPERATION_PING = "ping";
+	/**
+	 * The handle_rtml operation name.
+	 */
+	public static final String OPERATION_HANDLE_RTML = "handle_rtml";
+	/**
+	 * The name of the handle_rtml operation's (only) argument element.
+	 */
+	public static final String ARGUMENT_NAME = "arg0";
+	/**
+	 * The default size of the request document buffer.
+	 */
+	private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	/**
+	 * Provider entry point. The payload's root element determines the operation, ping or handle_rtml.
+	 * @param request The SOAP body payload.
+	 * @return The response payload.
+	 * @exception WebServiceException Thrown if the payload cannot be read, or is not a recognised operation.
+	 * @see #extractPayload
+	 * @see #ping
+	 * @see #handleRTMLStream
+	 */
+	@Override
+	public Source invoke(Source request)
+	{
+		RequestPayload payload = null;
+
+		traceLogger.log(1, this.getClass().getName(), "invoke invoked.");
+		payload = extractPayload(request);
+		if (OPERATION_PING.equals(payload.operation))
+			return createResponse(OPERATION_PING,ping());
+		if (OPERATION_HANDLE_RTML.equals(payload.operation))
+			return handleRTMLStream(payload);
+		errorLogger.log(1, this.getClass().getName(), "invoke:Unknown operation:"+payload.operation);
+		throw new WebServiceException(this.getClass().getName()+":invoke:Unknown operation:"+payload.operation);
+	}
+
+	/**
+	 * Handle a handle_rtml request whose RTML document has been extracted into the payload's buffer.
+	 * The username and password are checked, the request's deadline created from it's headers, the document is 
+	 * handled as a stream by handleRTMLDocument, and the reply document serialized once into the response.
+	 * @param payload The extracted request payload.
+	 * @return The response payload, a handle_rtmlResponse containing the reply document.
+	 * @see #checkUsernamePassword
+	 * @see #createDeadline
+	 * @see #handleRTMLDocument(java.lang.String,java.io.InputStream,org.estar.node_agent2.util.RTMLDeadline)
+	 * @see #createReplyString
+	 * @see #createResponse
+	 */
+	protected Source handleRTMLStream(RequestPayload payload)
+	{
+		RTMLDocument rtmlDocument = null;
+		String headerUsername = null;
+		String rtmlReturnString = null;
+
+		traceLogger.log(1, this.getClass().getName(), "handleRTMLStream: Received document of "+
+				payload.buffer.size()+" bytes.");
+		headerUsername = checkUsernamePassword();
+		try
+		{
+			rtmlDocument = handleRTMLDocument(headerUsername,payload.getDocumentInputStream(),createDeadline());
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			errorLogger.log(1, this.getClass().getName(), "handleRTMLStream:handleRTMLDocument failed with exception:"+e);
+		}
+		// the request document is no longer needed
+		payload.buffer = null;
+		rtmlReturnString = createReplyString(rtmlDocument);
+		traceLogger.log(2, this.getClass().getName(), "... ... returning SYNCHRONOUS response to IA");
+		return createResponse(OPERATION_HANDLE_RTML,rtmlReturnString);
+	}
+
+	/**
+	 * Stream the request payload through a SAX handler, to find the operation name and to copy the text of the
+	 * handle_rtml argument into a UTF-8 byte buffer.
+	 * @param request The SOAP body payload.
+	 * @return The extracted payload.
+	 * @exception WebServiceException Thrown if the payload cannot be read.
+	 * @see RequestPayloadHandler
+	 */
+	protected static RequestPayload extractPayload(Source request) throws WebServiceException
+	{
+		RequestPayloadHandler handler = new RequestPayloadHandler();
+
+		try
+		{
+			Transformer transformer = TransformerFactory.newInstance().newTransformer();
+
+			transformer.transform(request,new SAXResult(handler));
+		}
+		catch (Exception e)
+		{
+			errorLogger.log(1, NodeAgentStreamingWebServiceImpl.class.getName(), 
+					"extractPayload:Failed to read request payload:"+e);
+			throw new WebServiceException(NodeAgentStreamingWebServiceImpl.class.getName()+
+						      ":extractPayload:Failed to read request payload.",e);
+		}
+		return handler.payload;
+	}
+
+	/**
+	 * Create an RPC response payload, of the form
+	 * &lt;ns2:&lt;operation&gt;Response&gt;&lt;return&gt;...&lt;/return&gt;&lt;/ns2:&lt;operation&gt;Response&gt;,
+	 * as returned by the RPC endpoint. The return value is XML escaped as the payload is read.
+	 * @param operation The operation name.
+	 * @param returnValue The string to return.
+	 * @return A StreamSource reading the response payload.
+	 * @see EscapingReader
+	 */
+	protected static Source createResponse(String operation,String returnValue)
+	{
+		String prefix = "<ns2:"+operation+"Response xmlns:ns2=\""+NAMESPACE+"\"><return>";
+		String suffix = "</return></ns2:"+operation+"Response>";
+
+		return new StreamSource(new EscapingReader(prefix,returnValue,suffix));
+	}
+
+	/**
+	 * The data extracted from a request payload.
+	 */
+	protected static class RequestPayload
+	{
+		/**
+		 * The operation name, the local name of the payload's root element.
+		 */
+		protected String operation = null;
+		/**
+		 * The text of the operation's argument, UTF-8 encoded.
+		 */
+		protected DocumentBuffer buffer = new DocumentBuffer(DEFAULT_BUFFER_SIZE);
+
+		/**
+		 * Get an input stream over the extracted document. Any leading whitespace and XML declaration
+		 * is skipped, as the declared encoding no longer applies to the (UTF-8) buffer.
+		 * @return An input stream over the buffer.
+		 * @see DocumentBuffer#getDocumentOffset
+		 */
+		protected ByteArrayInputStream getDocumentInputStream()
+		{
+			int offset = buffer.getDocumentOffset();
+
+			return new ByteArrayInputStream(buffer.getBuffer(),offset,buffer.size()-offset);
+		}
+	}
+
+	/**
+	 * A byte array output stream, which allows the extracted document to be read without copying it.
+	 */
+	protected static class DocumentBuffer extends ByteArrayOutputStream
+	{
+		/**
+		 * Constructor.
+		 * @param size The initial buffer size.
+		 */
+		public DocumentBuffer(int size)
+		{
+			super(size);
+		}
+
+		/**
+		 * Get the underlying buffer. Only the first size() bytes are valid.
+		 * @return The buffer.
+		 */
+		public byte[] getBuffer()
+		{
+			return buf;
+		}
+
+		/**
+		 * Get the offset of the start of the document's root element (or DOCTYPE/comment), skipping
+		 * leading whitespace and the XML declaration.
+		 * @return The offset.
+		 */
+		public int getDocumentOffset()
+		{
+			int offset = skipWhitespace(0);
+
+			if ((count-offset > 5) && (buf[offset] == '<') && (buf[offset+1] == '?') && (buf[offset+2] == 'x') &&
+			    (buf[offset+3] == 'm') && (buf[offset+4] == 'l'))
+			{
+				for (int i = offset+5; i < count-1; i++)
+				{
+					if ((buf[i] == '?') && (buf[i+1] == '>'))
+						return skipWhitespace(i+2);
+				}
+			}
+			return offset;
+		}
+
+		/**
+		 * Skip whitespace in the buffer.
+		 * @param offset The offset to start from.
+		 * @return The offset of the first non-whitespace byte, or size().
+		 */
+		private int skipWhitespace(int offset)
+		{
+			while ((offset < count) && ((buf[offset] == ' ') || (buf[offset] == '\t') || (buf[offset] == '\r') ||
+						    (buf[offset] == '\n')))
+				offset++;
+			return offset;
+		}
+	}
+
+	/**
+	 * SAX handler, which records the payload's root element name, and writes the text of the
+	 * root element's argument child into the payload's UTF-8 buffer.
+	 */
+	protected static class RequestPayloadHandler extends DefaultHandler
+	{
+		/**
+		 * The payload being extracted.
+		 */
+		protected RequestPayload payload = new RequestPayload();
+		/**
+		 * The writer encoding the argument text into the payload buffer.
+		 */
+		private Writer writer = null;
+		/**
+		 * The current element depth.
+		 */
+		private int depth = 0;
+
+		@Override
+		public void startElement(String uri,String localName,String qName,Attributes attributes) throws SAXException
+		{
+			String name = getName(localName,qName);
+
+			depth++;
+			if (depth == 1)
+				payload.operation = name;
+			else if ((depth == 2) && name.equals(ARGUMENT_NAME))
+			{
+				try
+				{
+					writer = new OutputStreamWriter(payload.buffer,"UTF-8");
+				}
+				catch (IOException e)
+				{
+					throw new SAXException(e);
+				}
+			}
+		}
+
+		@Override
+		public void characters(char ch[],int start,int length) throws SAXException
+		{
+			if ((writer != null) && (depth == 2))
+			{
+				try
+				{
+					writer.write(ch,start,length);
+				}
+				catch (IOException e)
+				{
+					throw new SAXException(e);
+				}
+			}
+		}
+
+		@Override
+		public void endElement(String uri,String localName,String qName) throws SAXException
+		{
+			if ((writer != null) && (depth == 2))
+			{
+				try
+				{
+					writer.close();
+				}
+				catch (IOException e)
+				{
+					throw new SAXException(e);
+				}
+				writer = null;
+			}
+			depth--;
+		}
+
+		/**
+		 * Get the local name of an element, from the qualified name if the local name was not reported.
+		 * @param localName The local name.
+		 * @param qName The qualified name.
+		 * @return The local name.
+		 */
+		private String getName(String localName,String qName)
+		{
+			int index;
+
+			if ((localName != null) && (localName.length() > 0))
+				return localName;
+			index = qName.indexOf(':');
+			if (index > -1)
+				return qName.substring(index+1);
+			return qName;
+		}
+	}
+
+	/**
+	 * A reader returning a prefix, an XML escaped value, and a suffix, so the response payload
+	 * can be written without building an escaped copy of the value.
+	 */
+	protected static class EscapingReader extends Reader
+	{
+		/**
+		 * The prefix reader.
+		 */
+		private Reader prefix = null;
+		/**
+		 * The value to escape.
+		 */
+		private String value = null;
+		/**
+		 * The suffix reader.
+		 */
+		private Reader suffix = null;
+		/**
+		 * The index of the next character of value to escape.
+		 */
+		private int valueIndex = 0;
+		/**
+		 * The escape sequence currently being returned, or null.
+		 */
+		private String pendingEscape = null;
+		/**
+		 * The index of the next character of pendingEscape to return.
+		 */
+		private int pendingIndex = 0;
+
+		/**
+		 * Constructor.
+		 * @param prefix The (unescaped) prefix.
+		 * @param value The value to escape.
+		 * @param suffix The (unescaped) suffix.
+		 */
+		public EscapingReader(String prefix,String value,String suffix)
+		{
+			super();
+			this.prefix = new StringReader(prefix);
+			this.value = value;
+			this.suffix = new StringReader(suffix);
+		}
+
+		@Override
+		public int read(char cbuf[],int off,int len) throws IOException
+		{
+			int readCount = 0;
+
+			if (len == 0)
+				return 0;
+			if (prefix != null)
+			{
+				readCount = prefix.read(cbuf,off,len);
+				if (readCount > 0)
+					return readCount;
+				prefix = null;
+				readCount = 0;
+			}
+			while ((readCount < len) && ((pendingEscape != null) || (valueIndex < value.length())))
+			{
+				if (pendingEscape != null)
+				{
+					cbuf[off+readCount] = pendingEscape.charAt(pendingIndex++);
+					readCount++;
+					if (pendingIndex == pendingEscape.length())
+						pendingEscape = null;
+				}
+				else
+				{
+					char ch = value.charAt(valueIndex++);
+
+					if (ch == '<')
+						pendingEscape = "&lt;";
+					else if (ch == '>')
+						pendingEscape = "&gt;";
+					else if (ch == '&')
+						pendingEscape = "&amp;";
+					else
+					{
+						cbuf[off+readCount] = ch;
+						readCount++;
+					}
+					pendingIndex = 0;
+				}
+			}
+			if (readCount > 0)
+				return readCount;
+			return suffix.read(cbuf,off,len);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			value = null;
+		}
+	}
+}
@@ -1,10 +1,16 @@
 package org.estar.node_agent2;
 
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import javax.annotation.Resource;
 import javax.jws.WebService;
+import javax.servlet.ServletRequest;
 import javax.xml.ws.WebServiceContext;
 import javax.xml.ws.handler.MessageContext;
 
@@ -12,22 +18,45 @@ import ngat.util.logging.LogManager;
 import ngat.util.logging.Logger;
 
 import org.estar.node_agent2.configuration.NodeAgentProperties;
+import org.estar.node_agent2.filter.AuthenticationFilter;
+import org.estar.node_agent2.filter.GzipFilter;
+import org.estar.node_agent2.initialisation.NodeAgentWarmUp;
 import org.estar.node_agent2.messaging.RMITeaConnectionHandler;
+import org.estar.node_agent2.storage.AuthorizationContext;
 import org.estar.node_agent2.storage.PersistenceController;
-import org.estar.node_agent2.storage.PersistentMap;
+import org.estar.node_agent2.storage.PersistentMapWatcher;
 import org.estar.node_agent2.util.LoggerUtil;
+import org.estar.node_agent2.util.NodeAgentAuthenticator;
+import org.estar.node_agent2.util.RTMLAsyncExecutor;
+import org.estar.node_agent2.util.RTMLBatchExecutor;
+import org.estar.node_agent2.util.RTMLDeadline;
+import org.estar.node_agent2.util.RTMLDeadlineException;
+import org.estar.node_agent2.util.RTMLDeadlinePolicy;
+import org.estar.node_agent2.util.RTMLDocumentLimits;
+import org.estar.node_agent2.util.RTMLLimitException;
+import org.estar.node_agent2.util.RTMLParserPool;
+import org.estar.node_agent2.util.RTMLPreClassification;
+import org.estar.node_agent2.util.RTMLPreClassifier;
+import org.estar.node_agent2.util.RTMLReplySerializer;
+import org.estar.node_agent2.util.RTMLTicketStore;
 import org.estar.node_agent2.util.RTMLUtil;
+import org.estar.node_agent2.util.RTMLValidationPolicy;
+import org.estar.node_agent2.util.ReplayGuard;
+import org.estar.node_agent2.util.SessionToken;
 
 import org.estar.rtml.RTMLDocument;
 import org.estar.rtml.RTMLContact;
-import org.estar.rtml.RTMLParser;
 
 /**
  * Implementation of the Node Agent WebService interface.
+ * Fast Infoset is enabled, so clients that request it (NodeAgentClient -fastinfoset) exchange binary XML,
+ * and other clients exchange textual SOAP.
  * @author cjm
  * @see org.estar.node_agent2.NodeAgentWebServiceInterface
+ * @see org.estar.node_agent2.FastInfosetEnabled
  */
 @WebService(endpointInterface = "org.estar.node_agent2.NodeAgentWebServiceInterface")
+@FastInfosetEnabled
 public class NodeAgentWebServiceImpl implements NodeAgentWebServiceInterface 
 {
 	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
@@ -39,24 +68,84 @@ public class NodeAgentWebServiceImpl implements NodeAgentWebServiceInterface
 	/**
 	 * Ping web-service entry point. We check the username and password are legal.
 	 * If the NodeAgent is configured to be connected we return "ACK", otherwise we return
-	 * "NAK (not live)".
+	 * "NAK (not live)". The parser pool, validation policy, reply serializer, ticket store, document limits,
+	 * deadline and compression statistics are logged to the trace logger.
 	 * @see #traceLogger
 	 * @see #checkUsernamePassword
+	 * @see #getPingReply
 	 * @see org.estar.node_agent2.configuration.NodeAgentProperties
 	 * @see org.estar.node_agent2.configuration.NodeAgentProperties#IS_TEA_CONNECTED
+	 * @see org.estar.node_agent2.util.RTMLParserPool
+	 * @see org.estar.node_agent2.util.RTMLValidationPolicy
+	 * @see org.estar.node_agent2.util.RTMLReplySerializer
+	 * @see org.estar.node_agent2.util.RTMLTicketStore
+	 * @see org.estar.node_agent2.util.RTMLDeadlinePolicy
+	 * @see org.estar.node_agent2.filter.GzipFilter#getStatistics
+	 * @see org.estar.node_agent2.filter.AuthenticationFilter#getStatistics
 	 */
 	@Override
 	public String ping()
 	{
 		traceLogger.log(5, this.getClass().getName(), ".ping() invoked");
+		// check username and password in the SOAP headers are legal
+		checkUsernamePassword();
+		return getPingReply();
+	}
+	
+	/**
+	 * Login web-service entry point. The request is authenticated as usual (including replay protection), which
+	 * checks the username and password in the SOAP headers when no Token header is supplied. Requests with a Token
+	 * header are rejected (a session token is not enough, so a token cannot be used to renew itself indefinitely).
+	 * A signed session token is returned for the authenticated username.
+	 * The client can then send the token (in the Token header) with it's following requests instead of the password,
+	 * until it expires, when it should login again.
+	 * @return The session token.
+	 * @exception RuntimeException Thrown if a session token was supplied, the username is not known, or the
+	 *            password is incorrect.
+	 * @see #checkUsernamePassword(javax.xml.ws.handler.MessageContext)
+	 * @see #getHeader
+	 * @see org.estar.node_agent2.util.SessionToken#createToken
+	 */
+	@Override
+	public String login()
+	{
+		MessageContext mctx = null;
+		String headerUsername = null;
+
+		traceLogger.log(5, this.getClass().getName(), ".login() invoked");
+		mctx = wsctx.getMessageContext();
+		if (getHeader(mctx,AuthenticationFilter.HEADER_TOKEN) != null)
+		{
+			errorLogger.log(1, this.getClass().getName(),"login:Session token supplied instead of a password.");
+			throw new RuntimeException(this.getClass().getName()+
+						   ":login:Login requires a Username and Password, not a Token.");
+		}
+		headerUsername = checkUsernamePassword(mctx);
+		traceLogger.log(2, this.getClass().getName(), "login:Issuing token for username "+headerUsername+".");
+		return SessionToken.getInstance().createToken(headerUsername);
+	}
+
+	/**
+	 * Get the reply to a ping, once the username and password have been checked.
+	 * If the NodeAgent is still warming up we return "NAK (warming up)". Otherwise, 
+	 * if the NodeAgent is configured to be connected we return "ACK", otherwise we return
+	 * "NAK (not live)". The statistics (including the TEA calls in flight, if connected) are logged to the trace
+	 * logger.
+	 * @return The ping reply.
+	 * @see #ping
+	 */
+	protected String getPingReply()
+	{
 		boolean isLive;
 		String returnString;
 		
-		// check username and password in the SOAP headers are legal
-		checkUsernamePassword();
 		// Is the TEA connected
 		isLive = NodeAgentProperties.getInstance().getProperty(NodeAgentProperties.IS_TEA_CONNECTED).equalsIgnoreCase(NodeAgentProperties.TRUE);
-		if (isLive) 
+		if (NodeAgentWarmUp.getInstance().isReady() == false)
+		{
+			returnString = "NAK (warming up)";
+		}
+		else if (isLive) 
 		{
 			returnString = "ACK";
 		} 
@@ -65,136 +154,563 @@ public class NodeAgentWebServiceImpl implements NodeAgentWebServiceInterface
 			returnString = "NAK (not live)";
 		}
 		traceLogger.log(5, this.getClass().getName(), "... returned '" + returnString + "'");
+		traceLogger.log(5, this.getClass().getName(), "... parser pool statistics:" + RTMLParserPool.getInstance(true));
+		traceLogger.log(5, this.getClass().getName(), "... parser pool statistics:" + RTMLParserPool.getInstance(false));
+		traceLogger.log(5, this.getClass().getName(), "... validation policy statistics:" + 
+				RTMLValidationPolicy.getInstance());
+		traceLogger.log(5, this.getClass().getName(), "... reply serializer statistics:" + 
+				RTMLReplySerializer.getInstance());
+		traceLogger.log(5, this.getClass().getName(), "... ticket store statistics:" + 
+				RTMLTicketStore.getInstance());
+		traceLogger.log(5, this.getClass().getName(), "... async executor statistics:" + 
+				RTMLAsyncExecutor.getInstance());
+		traceLogger.log(5, this.getClass().getName(), "... document limits statistics:" + 
+				RTMLDocumentLimits.getInstance());
+		traceLogger.log(5, this.getClass().getName(), "... deadline statistics:" + 
+				RTMLDeadlinePolicy.getInstance());
+		traceLogger.log(5, this.getClass().getName(), "... map reload statistics:" + 
+				PersistentMapWatcher.getInstance());
+		traceLogger.log(5, this.getClass().getName(), "... compression statistics:" + GzipFilter.getStatistics());
+		traceLogger.log(5, this.getClass().getName(), "... authentication statistics:" + 
+				AuthenticationFilter.getStatistics());
+		traceLogger.log(5, this.getClass().getName(), "... credential cache statistics:" + 
+				NodeAgentAuthenticator.getInstance());
+		traceLogger.log(5, this.getClass().getName(), "... session token statistics:" + 
+				SessionToken.getInstance());
+		traceLogger.log(5, this.getClass().getName(), "... replay protection statistics:" + 
+				ReplayGuard.getInstance());
+		if (isLive)
+		{
+			traceLogger.log(5, this.getClass().getName(), "... TEA call statistics:" + 
+					RMITeaConnectionHandler.getInstance());
+		}
 		return returnString;
 	}
 	
 	/**
-	 * Method to handle the handle_rtml web-service entry-point.
+	 * Method to handle the handle_rtml web-service entry-point. The request's deadline is taken from it's 
+	 * Deadline or Timeout header (if any).
 	 * @param rtmlDocumentString The RTML document to process, as a string.
 	 * @return A string representation of the reply RTML document.
 	 * @see #traceLogger
 	 * @see #checkUsernamePassword
+	 * @see #createDeadline
 	 * @see #handleRTMLDocument
+	 * @see #createReplyString
 	 * @see org.estar.rtml.RTMLDocument
-	 * @see org.estar.node_agent2.util.RTMLUtil
-	 * @see org.estar.node_agent2.util.RTMLUtil#getRTMLAsString
-	 * @see org.estar.node_agent2.util.RTMLUtil#getLastResortErrorDocumentString
 	 */
 	@Override
 	public String handle_rtml(String rtmlDocumentString)
 	{
 		RTMLDocument rtmlDocument = null;
+		RTMLDeadline deadline = null;
 		String headerUsername = null;
 
 		traceLogger.log(1, this.getClass().getName(), "invoked handle_rtml: " +rtmlDocumentString );
 		// check username and password in the SOAP headers are legal
 		traceLogger.log(2, this.getClass().getName(), "handle_rtml: Checking username and passsword.");
 		headerUsername = checkUsernamePassword();
+		deadline = createDeadline();
 		// handle the RTML document
 		try 
 		{
 			traceLogger.log(2, this.getClass().getName(), "handle_rtml: Calling handleRTMLDocument.");
-			rtmlDocument = handleRTMLDocument(headerUsername,rtmlDocumentString);
+			rtmlDocument = handleRTMLDocument(headerUsername,rtmlDocumentString,deadline);
 		} 
 		catch (Exception e) 
 		{
 			e.printStackTrace();
 			errorLogger.log(1, this.getClass().getName(), "handle_rtml:handleRTMLDocument failed with exception:"+e);
 		}
+		traceLogger.log(2, this.getClass().getName(), "... ... returning SYNCHRONOUS response to IA");
+		return createReplyString(rtmlDocument);
+	}
+	
+	/**
+	 * Method to handle the handle_rtml_batch web-service entry-point. The username and password are checked once
+	 * for the whole batch. Each document is then processed by handleRTMLDocument, and it's reply serialized, as a
+	 * separate task on the RTMLBatchExecutor's shared thread pool, which caps how many documents are processed in
+	 * parallel across all batches. The replies are returned in the same order as the documents. A document that fails
+	 * only affects it's own reply, which is an error document. The request's deadline (if any) applies to every
+	 * document in the batch, so documents still queued when it passes are rejected without being processed.
+	 * @param rtmlDocumentStrings The RTML documents to process, as strings.
+	 * @return An array of string representations of the reply RTML documents, one per input document, in the same order.
+	 * @see #checkUsernamePassword
+	 * @see #createDeadline
+	 * @see #handleRTMLDocument
+	 * @see #createReplyString
+	 * @see org.estar.node_agent2.util.RTMLBatchExecutor
+	 */
+	@Override
+	public String[] handle_rtml_batch(String[] rtmlDocumentStrings)
+	{
+		List<Future<String>> futureList = null;
+		String replyStrings[] = null;
+		String headerUsername = null;
+		final String nodeAgentName = NodeAgentProperties.getInstance().getProperty(NodeAgentProperties.NODE_AGENT_NAME);
+
+		if (rtmlDocumentStrings == null)
+			rtmlDocumentStrings = new String[0];
+		traceLogger.log(1, this.getClass().getName(), "invoked handle_rtml_batch with "+rtmlDocumentStrings.length+
+				" documents.");
+		// check username and password in the SOAP headers are legal, once for the whole batch
+		headerUsername = checkUsernamePassword();
+		final RTMLDeadline deadline = createDeadline();
+		// submit each document to the batch executor
+		futureList = new ArrayList<Future<String>>(rtmlDocumentStrings.length);
+		for (int i = 0; i < rtmlDocumentStrings.length; i++)
+		{
+			final String batchUsername = headerUsername;
+			final String rtmlDocumentString = rtmlDocumentStrings[i];
+			final int index = i;
+
+			rtmlDocumentStrings[i] = null;
+			futureList.add(RTMLBatchExecutor.getInstance().submit(new Callable<String>()
+			{
+				public String call()
+				{
+					RTMLDocument rtmlDocument = null;
+
+					traceLogger.log(2, NodeAgentWebServiceImpl.this.getClass().getName(), 
+							"handle_rtml_batch: Handling document "+index+".");
+					if (rtmlDocumentString == null)
+					{
+						rtmlDocument = RTMLUtil.createErrorDocument(new NullPointerException("Document "+index+
+								" of batch is null."), nodeAgentName);
+					}
+					else
+					{
+						try
+						{
+							rtmlDocument = handleRTMLDocument(batchUsername,rtmlDocumentString,deadline);
+						}
+						catch (Exception e)
+						{
+							e.printStackTrace();
+							errorLogger.log(1, NodeAgentWebServiceImpl.this.getClass().getName(), 
+									"handle_rtml_batch:handleRTMLDocument failed for document "+index+
+									" with exception:"+e);
+						}
+					}
+					return createReplyString(rtmlDocument);
+				}
+			}));
+		}
+		// collect the replies, in order
+		replyStrings = new String[futureList.size()];
+		for (int i = 0; i < replyStrings.length; i++)
+		{
+			try
+			{
+				replyStrings[i] = futureList.get(i).get();
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+				errorLogger.log(1, this.getClass().getName(), "handle_rtml_batch:Document "+i+
+						" failed with exception:"+e);
+				replyStrings[i] = RTMLUtil.getLastResortErrorDocumentString(
+						"handle_rtml_batch failed with exception:"+e.toString());
+			}
+		}
+		traceLogger.log(2, this.getClass().getName(), "... ... returning SYNCHRONOUS batch response to IA");
+		return replyStrings;
+	}
+	
+	/**
+	 * Method to handle the submit_rtml web-service entry-point. The username and password are checked, and the document
+	 * is submitted to the RTMLTicketStore, which processes it (using handleRTMLDocument and createReplyString) on
+	 * it's own thread pool. A ticket is returned at once, which is used to retrieve the reply with poll_rtml or await_rtml.
+	 * The request's deadline (if any) is applied when the document is processed.
+	 * @param rtmlDocumentString The RTML document to process, as a string.
+	 * @return The ticket.
+	 * @exception RuntimeException Thrown if the username/password is not legal, or the ticket store is full.
+	 * @see #checkUsernamePassword
+	 * @see #handleRTMLDocument
+	 * @see #createReplyString
+	 * @see #poll_rtml
+	 * @see #await_rtml
+	 * @see org.estar.node_agent2.util.RTMLTicketStore#submit
+	 */
+	@Override
+	public String submit_rtml(final String rtmlDocumentString)
+	{
+		final String headerUsername;
+		final RTMLDeadline deadline;
+		String ticket = null;
+
+		traceLogger.log(1, this.getClass().getName(), "invoked submit_rtml.");
+		headerUsername = checkUsernamePassword();
+		deadline = createDeadline();
+		ticket = RTMLTicketStore.getInstance().submit(headerUsername,new Callable<String>()
+		{
+			public String call()
+			{
+				RTMLDocument rtmlDocument = null;
+
+				try
+				{
+					rtmlDocument = handleRTMLDocument(headerUsername,rtmlDocumentString,deadline);
+				}
+				catch (Exception e)
+				{
+					e.printStackTrace();
+					errorLogger.log(1, NodeAgentWebServiceImpl.this.getClass().getName(), 
+							"submit_rtml:handleRTMLDocument failed with exception:"+e);
+				}
+				return createReplyString(rtmlDocument);
+			}
+		});
+		traceLogger.log(2, this.getClass().getName(), "... returning ticket "+ticket+" to IA");
+		return ticket;
+	}
+	
+	/**
+	 * Method to handle the poll_rtml web-service entry-point. The username and password are checked, and
+	 * the reply for the ticket returned if the document has been processed.
+	 * @param ticket A ticket returned by submit_rtml, for the same username.
+	 * @return A string representation of the reply RTML document, or an empty string if the 
+	 *         document is still being processed.
+	 * @exception RuntimeException Thrown if the username/password is not legal, or the ticket is unknown or has expired.
+	 * @see #checkUsernamePassword
+	 * @see org.estar.node_agent2.util.RTMLTicketStore#poll
+	 */
+	@Override
+	public String poll_rtml(String ticket)
+	{
+		String headerUsername = null;
+		String replyString = null;
+
+		traceLogger.log(1, this.getClass().getName(), "invoked poll_rtml:"+ticket);
+		headerUsername = checkUsernamePassword();
+		replyString = RTMLTicketStore.getInstance().poll(headerUsername,ticket);
+		if (replyString == null)
+			return "";
+		return replyString;
+	}
+	
+	/**
+	 * Method to handle the await_rtml web-service entry-point. The username and password are checked, and
+	 * we wait up to timeout milliseconds (capped by the rtml.ticket.await.max property) for the reply for the ticket.
+	 * @param ticket A ticket returned by submit_rtml, for the same username.
+	 * @param timeout The time to wait, in milliseconds.
+	 * @return A string representation of the reply RTML document, or an empty string if the 
+	 *         document is still being processed when the timeout expires.
+	 * @exception RuntimeException Thrown if the username/password is not legal, or the ticket is unknown or has expired.
+	 * @see #checkUsernamePassword
+	 * @see org.estar.node_agent2.util.RTMLTicketStore#await
+	 */
+	@Override
+	public String await_rtml(String ticket,long timeout)
+	{
+		String headerUsername = null;
+		String replyString = null;
+
+		traceLogger.log(1, this.getClass().getName(), "invoked await_rtml:"+ticket+" with timeout "+timeout);
+		headerUsername = checkUsernamePassword();
+		replyString = RTMLTicketStore.getInstance().await(headerUsername,ticket,timeout);
+		if (replyString == null)
+			return "";
+		return replyString;
+	}
+	
+	/**
+	 * Serialize a reply document into the string returned to the client.
+	 * The reply document is serialized once, and if it is a reject document created by this node agent
+	 * the serialized string is also logged to the error logger (rejects returned by the TEA are not logged).
+	 * If the document cannot be serialized (or is null), a last resort error document is returned.
+	 * @param rtmlDocument The reply document.
+	 * @return A string representation of the reply RTML document.
+	 * @see #logRTMLDocument
+	 * @see org.estar.node_agent2.util.RTMLUtil#isNodeAgentReject
+	 * @see org.estar.node_agent2.util.RTMLUtil#getRTMLAsString
+	 * @see org.estar.node_agent2.util.RTMLUtil#getLastResortErrorDocumentString
+	 */
+	protected String createReplyString(RTMLDocument rtmlDocument)
+	{
 		// turn returned RTMLDocument into a string
 		try 
 		{
 			String rtmlReturnString = RTMLUtil.getRTMLAsString(rtmlDocument);
-			traceLogger.log(2, this.getClass().getName(), "... ... returning SYNCHRONOUS response to IA");
+			// log our own reject documents to the error logger, using the string we are about to return
+			if (RTMLUtil.isNodeAgentReject(rtmlDocument,
+				NodeAgentProperties.getInstance().getProperty(NodeAgentProperties.NODE_AGENT_NAME)))
+				logRTMLDocument(rtmlReturnString);
 			traceLogger.log(2, this.getClass().getName(), "payload= " + rtmlReturnString);
 			return rtmlReturnString;
 		} 
 		catch (Exception e) 
 		{
 			e.printStackTrace();
-			errorLogger.log(1, this.getClass().getName(), "handle_rtml:Failed to create return document with exception:"+e);
+			errorLogger.log(1, this.getClass().getName(), "createReplyString:Failed to create return document with exception:"+e);
 			return RTMLUtil.getLastResortErrorDocumentString("handle_rtml failed with exception:"+e.toString());
 		}
 	}
 	
 	/**
-	 * Method to process the RTML document.
+	 * Method to process the RTML document, supplied as a string.
 	 * <ul>
-	 * <li>A parser is created, initialised, and the input rtmlDocumentString parsed. If an error occurs
-	 *     an error document is returned.
-	 * <li>If the TEA is not connected, the document cannot be sent to it, so an error document is returned.
-	 * <li>We rewrite the eSTAR project and user alias's to LT project and user ID's, using rewriteDocumentIfAliased.
-	 *     If an error occurs an error document is returned.
-	 * <li>We check whether the headerUsername from the SOAP request headers, matches the RTML's Contact Username,
-	 *     (after both have been unaliased), by calling  checkUsernamesMatch.
-	 * <li>If the document is a score request(isScoreRequest), we call the TEA's RMI method handleScore.
-	 * <li>If the document is a request document (isRequest), we call the TEA's RMI method handleRequest.
-	 * <li>If the document is an abort document (isAbort), we call the TEA's RMI method handleAbort.
-	 * <li>If the document was not one of the above three types, we throw an exception.
+	 * <li>The start of the document is pre-classified (without a full parse) using RTMLPreClassifier, to
+	 *     extract the document's version, type and Contact user. preClassifiedRejection decides from this whether
+	 *     the document is going to be rejected (TEA not connected, or a Contact user mismatch). Such documents
+	 *     are only checked for well-formedness (not validated), and the reject is built from the parsed document,
+	 *     so the client gets it's own document back, as before pre-classification. They are never sent to the TEA.
+	 * <li>If the client did not supply a deadline, the default deadline for the document's type is applied.
+	 *     The deadline is checked (by deadlineRejection) before each following stage, and if it has passed
+	 *     the document is rejected without doing the rest of the work.
+	 * <li>The document is checked against the size and complexity limits, and it's size is reserved from the
+	 *     in-flight bytes budget until processing is complete. Documents exceeding the limits (or that cannot be
+	 *     admitted within the budget) are rejected without parsing.
+	 * <li>The validation policy for headerUsername decides whether the document is fully validated,
+	 *     or just checked for well-formedness.
+	 * <li>A parser is borrowed from the appropriate parser pool, and the input rtmlDocumentString parsed. If an error occurs
+	 *     an error document is created from scratch and returned. Once the document has been parsed,
+	 *     we no longer hold a reference to the input string.
+	 * <li>The parsed document is processed by handleParsedDocument.
 	 * </ul>
 	 * @param headerUsername A string containing the username extracted from the SOAP request headers,
 	 *        we use this to compare with the (alias converted) username in the RTML document to ensure
 	 *        the usernames match.
 	 * @param rtmlDocumentString A string representation of the document to process.
+	 * @param deadline The request's deadline, from createDeadline, or null if there is none.
 	 * @return An instance of RTMLDocument containing the document object model of the 
 	 *         reply document after processing.
 	 * @see #traceLogger
 	 * @see #errorLogger
-	 * @see #logRTMLDocument
-	 * @see #checkUsernamesMatch
-	 * @see org.estar.node_agent2.util.RTMLUtil#createErrorDocument
-	 * @see org.estar.node_agent2.util.RTMLUtil#rewriteDocumentIfAliased
+	 * @see #preClassifiedRejection
+	 * @see #deadlineRejection
+	 * @see #handleParsedDocument
+	 * @see org.estar.node_agent2.storage.PersistenceController#getAuthorizationContext
+	 * @see org.estar.node_agent2.util.RTMLPreClassifier#classify
+	 * @see org.estar.node_agent2.util.RTMLUtil#createErrorDocument(java.lang.Exception,java.lang.String,org.estar.rtml.RTMLDocument)
 	 * @see org.estar.node_agent2.configuration.NodeAgentProperties#getInstance
 	 * @see org.estar.node_agent2.configuration.NodeAgentProperties#getProperty
 	 * @see org.estar.node_agent2.configuration.NodeAgentProperties#NODE_AGENT_NAME
-	 * @see org.estar.node_agent2.messaging.RMITeaConnectionHandler
-	 * @see org.estar.node_agent2.messaging.RMITeaConnectionHandler#getInstance
-	 * @see org.estar.node_agent2.messaging.RMITeaConnectionHandler#handleScore
-	 * @see org.estar.node_agent2.messaging.RMITeaConnectionHandler#handleRequest
-	 * @see org.estar.node_agent2.messaging.RMITeaConnectionHandler#handleAbort
-	 * @see org.estar.rtml.RTMLDocument
-	 * @see org.estar.rtml.RTMLDocument#isScoreRequest
-	 * @see org.estar.rtml.RTMLDocument#isRequest
-	 * @see org.estar.rtml.RTMLDocument#isAbort
-	 * @see org.estar.rtml.RTMLParser
-	 * @see org.estar.rtml.RTMLParser#init
-	 * @see org.estar.rtml.RTMLParser#parse
+	 * @see org.estar.node_agent2.util.RTMLParserPool
+	 * @see org.estar.node_agent2.util.RTMLParserPool#parse
+	 * @see org.estar.node_agent2.util.RTMLValidationPolicy#shouldValidate
+	 * @see org.estar.node_agent2.util.RTMLValidationPolicy#reportFailure
+	 * @see org.estar.node_agent2.util.RTMLDocumentLimits#check(java.lang.String,org.estar.node_agent2.util.RTMLDocumentLimits.Reservation)
+	 * @see org.estar.node_agent2.util.RTMLDeadlinePolicy#applyDefault
 	 */
-	protected RTMLDocument handleRTMLDocument(String headerUsername,String rtmlDocumentString) 
+	protected RTMLDocument handleRTMLDocument(String headerUsername,String rtmlDocumentString,RTMLDeadline deadline) 
 	{
-		boolean isTeaConnected;
-		String loggerMessage;
+		AuthorizationContext authorizationContext = null;
 		String nodeAgentName = null;
-		RTMLDocument rtmlDocument = null;
+		RTMLDocument parsedDocument = null;
+		RTMLDocument rejectDocument = null;
+		RTMLPreClassification classification = null;
+		RTMLDocumentLimits.Reservation reservation = null;
+		Exception rejection = null;
+		boolean validate;
 	
 		traceLogger.log(1, this.getClass().getName(), "handleRTMLDocument(String) invoked");
+		// the user's precomputed authorization context, used for the rest of the processing
+		authorizationContext = PersistenceController.getInstance().getAuthorizationContext(headerUsername);
 		traceLogger.log(2, this.getClass().getName(), "looking up node_agent name");
 		nodeAgentName = NodeAgentProperties.getInstance().getProperty(NodeAgentProperties.NODE_AGENT_NAME);
 		traceLogger.log(3, this.getClass().getName(), "... found, name is :" +nodeAgentName );
-		//parse the String to extract the RTMLDocument
-		try 
+		// pre-classify the document, so documents we are going to reject do not pay for a full parse
+		traceLogger.log(2, this.getClass().getName(), "... pre-classifying document String");
+		classification = RTMLPreClassifier.classify(rtmlDocumentString);
+		rejection = preClassifiedRejection(authorizationContext,classification);
+		// has the client already given up on this document
+		deadline = RTMLDeadlinePolicy.getInstance().applyDefault(deadline,classification.getDocumentType());
+		rejectDocument = deadlineRejection(deadline,RTMLDeadlinePolicy.STAGE_RECEIVED,nodeAgentName,classification);
+		if (rejectDocument != null)
+			return rejectDocument;
+		// check the document against the size/complexity limits, and reserve it's size from the in-flight budget
+		reservation = RTMLDocumentLimits.getInstance().createReservation();
+		try
 		{
-			traceLogger.log(2, this.getClass().getName(), "... testing errorLogger, the word 'TESTED' should follow this line");
-			errorLogger.log(1, this.getClass().getName(), "... 'TESTED'");
-			traceLogger.log(2, this.getClass().getName(), "... instantiating Parser");
-			RTMLParser parser = new RTMLParser();
-			traceLogger.log(2, this.getClass().getName(), "... successful");
-			traceLogger.log(2, this.getClass().getName(), "... initialising Parser");
-			parser.init(true);
-			traceLogger.log(2, this.getClass().getName(), "... successful");
-			traceLogger.log(2, this.getClass().getName(), "... parsing document String");
-			rtmlDocument = parser.parse(rtmlDocumentString.trim());
-			traceLogger.log(2, this.getClass().getName(), "... parse successful");
-		} 
+			try
+			{
+				RTMLDocumentLimits.getInstance().check(rtmlDocumentString,reservation);
+			}
+			catch (RTMLLimitException e)
+			{
+				errorLogger.log(1, this.getClass().getName(), "... received RTML document exceeds limits:"+e);
+				return RTMLUtil.createRejectDocument(e, nodeAgentName, classification.getRTMLDocumentVersion(), 
+								     "document exceeds limits");
+			}
+			rejectDocument = deadlineRejection(deadline,RTMLDeadlinePolicy.STAGE_ADMITTED,nodeAgentName,
+							   classification);
+			if (rejectDocument != null)
+				return rejectDocument;
+			//parse the String to extract the RTMLDocument
+			try 
+			{
+				traceLogger.log(2, this.getClass().getName(), "... testing errorLogger, the word 'TESTED' should follow this line");
+				errorLogger.log(1, this.getClass().getName(), "... 'TESTED'");
+				// documents we are going to reject are only parsed to echo them back, so are not validated
+				validate = (rejection == null) && RTMLValidationPolicy.getInstance().shouldValidate(headerUsername);
+				traceLogger.log(2, this.getClass().getName(), "... parsing document String using pooled parser (validate = "+
+						validate+")");
+				parsedDocument = RTMLParserPool.getInstance(validate).parse(rtmlDocumentString);
+				traceLogger.log(2, this.getClass().getName(), "... parse successful");
+			} 
+			catch (Exception e) 
+			{
+				e.printStackTrace();
+				//create an RTML error document from scratch and return it
+				errorLogger.log(1, this.getClass().getName(), "... unable to parse received RTML document, returning RTML error document to client:");
+				RTMLValidationPolicy.getInstance().reportFailure(headerUsername);
+				return RTMLUtil.createErrorDocument(e, nodeAgentName);
+			}
+			// we don't need the input string any more, the parsed document is used for any error documents
+			rtmlDocumentString = null;
+			if (rejection != null)
+				return RTMLUtil.createErrorDocument(rejection, nodeAgentName, parsedDocument);
+			rejectDocument = deadlineRejection(deadline,RTMLDeadlinePolicy.STAGE_PARSED,nodeAgentName,
+							   classification);
+			if (rejectDocument != null)
+				return rejectDocument;
+			return handleParsedDocument(authorizationContext,nodeAgentName,parsedDocument,deadline);
+		}
+		finally
+		{
+			reservation.release();
+		}
+	}
+	
+	/**
+	 * Method to process the RTML document, read from an input stream. This is used by the streaming endpoints,
+	 * so the document is never held in memory as a string. The steps are the same as for 
+	 * handleRTMLDocument(String,String), except the pre-classification is done on the start of the stream,
+	 * which is then reset. The document's size is reserved from the in-flight budget, and it is checked against
+	 * the limits before it is parsed. A document already in memory (a stream supporting mark/reset, such as the
+	 * streaming endpoints' payload buffer) is classified and checked in place, without being copied; other
+	 * streams are read into a buffer, no further than the maximum document size.
+	 * @param headerUsername A string containing the username extracted from the request headers,
+	 *        we use this to compare with the (alias converted) username in the RTML document to ensure
+	 *        the usernames match.
+	 * @param rtmlInputStream An input stream containing the document to process. The stream is not closed.
+	 * @param deadline The request's deadline, from createDeadline, or null if there is none.
+	 * @return An instance of RTMLDocument containing the document object model of the 
+	 *         reply document after processing.
+	 * @see #handleRTMLDocument(String,String,RTMLDeadline)
+	 * @see #preClassifiedRejection
+	 * @see #deadlineRejection
+	 * @see #handleParsedDocument
+	 * @see org.estar.node_agent2.storage.PersistenceController#getAuthorizationContext
+	 * @see org.estar.node_agent2.util.RTMLPreClassifier#classify(java.io.InputStream)
+	 * @see org.estar.node_agent2.util.RTMLParserPool#parse(java.io.InputStream)
+	 * @see org.estar.node_agent2.util.RTMLDocumentLimits#check(java.io.InputStream,org.estar.node_agent2.util.RTMLDocumentLimits.Reservation)
+	 */
+	protected RTMLDocument handleRTMLDocument(String headerUsername,InputStream rtmlInputStream,RTMLDeadline deadline) 
+	{
+		AuthorizationContext authorizationContext = null;
+		String nodeAgentName = null;
+		RTMLDocument parsedDocument = null;
+		RTMLDocument rejectDocument = null;
+		RTMLPreClassification classification = null;
+		InputStream markableInputStream = null;
+		InputStream documentInputStream = null;
+		RTMLDocumentLimits.Reservation reservation = null;
+		Exception rejection = null;
+		boolean validate;
+	
+		traceLogger.log(1, this.getClass().getName(), "handleRTMLDocument(InputStream) invoked");
+		// the user's precomputed authorization context, used for the rest of the processing
+		authorizationContext = PersistenceController.getInstance().getAuthorizationContext(headerUsername);
+		nodeAgentName = NodeAgentProperties.getInstance().getProperty(NodeAgentProperties.NODE_AGENT_NAME);
+		// pre-classify the start of the stream, documents already in memory are not copied into a buffer
+		if (rtmlInputStream.markSupported())
+			markableInputStream = rtmlInputStream;
+		else
+			markableInputStream = new BufferedInputStream(rtmlInputStream,RTMLPreClassifier.getPrefixLength());
+		try
+		{
+			classification = RTMLPreClassifier.classify(markableInputStream);
+		}
 		catch (Exception e) 
 		{
-			e.printStackTrace();
-			//create an RTML error document from scratch and return it
-			errorLogger.log(1, this.getClass().getName(), "... unable to parse received RTML document, returning RTML error document to client:");
-			RTMLDocument errorDocument = RTMLUtil.createErrorDocument(e, nodeAgentName, rtmlDocumentString);
-			logRTMLDocument(errorDocument);
-			return  errorDocument;
+			errorLogger.log(1, this.getClass().getName(), "... unable to read received RTML document:"+e);
+			return RTMLUtil.createErrorDocument(e, nodeAgentName);
 		}
+		rejection = preClassifiedRejection(authorizationContext,classification);
+		// has the client already given up on this document
+		deadline = RTMLDeadlinePolicy.getInstance().applyDefault(deadline,classification.getDocumentType());
+		rejectDocument = deadlineRejection(deadline,RTMLDeadlinePolicy.STAGE_RECEIVED,nodeAgentName,classification);
+		if (rejectDocument != null)
+			return rejectDocument;
+		// read the stream (up to the size limit) reserving it's size from the in-flight budget, and check the limits
+		reservation = RTMLDocumentLimits.getInstance().createReservation();
+		try
+		{
+			try
+			{
+				documentInputStream = RTMLDocumentLimits.getInstance().check(markableInputStream,reservation);
+			}
+			catch (RTMLLimitException e)
+			{
+				errorLogger.log(1, this.getClass().getName(), "... received RTML document exceeds limits:"+e);
+				return RTMLUtil.createRejectDocument(e, nodeAgentName, classification.getRTMLDocumentVersion(), 
+								     "document exceeds limits");
+			}
+			catch (Exception e) 
+			{
+				errorLogger.log(1, this.getClass().getName(), "... unable to read received RTML document:"+e);
+				return RTMLUtil.createErrorDocument(e, nodeAgentName);
+			}
+			rejectDocument = deadlineRejection(deadline,RTMLDeadlinePolicy.STAGE_ADMITTED,nodeAgentName,
+							   classification);
+			if (rejectDocument != null)
+				return rejectDocument;
+			// parse the stream
+			try 
+			{
+				// documents we are going to reject are only parsed to echo them back, so are not validated
+				validate = (rejection == null) && RTMLValidationPolicy.getInstance().shouldValidate(headerUsername);
+				traceLogger.log(2, this.getClass().getName(), "... parsing document stream using pooled parser (validate = "+
+						validate+")");
+				parsedDocument = RTMLParserPool.getInstance(validate).parse(documentInputStream);
+				traceLogger.log(2, this.getClass().getName(), "... parse successful");
+			} 
+			catch (Exception e) 
+			{
+				e.printStackTrace();
+				errorLogger.log(1, this.getClass().getName(), "... unable to parse received RTML document, returning RTML error document to client:");
+				RTMLValidationPolicy.getInstance().reportFailure(headerUsername);
+				return RTMLUtil.createErrorDocument(e, nodeAgentName);
+			}
+			documentInputStream = null;
+			if (rejection != null)
+				return RTMLUtil.createErrorDocument(rejection, nodeAgentName, parsedDocument);
+			rejectDocument = deadlineRejection(deadline,RTMLDeadlinePolicy.STAGE_PARSED,nodeAgentName,
+							   classification);
+			if (rejectDocument != null)
+				return rejectDocument;
+			return handleParsedDocument(authorizationContext,nodeAgentName,parsedDocument,deadline);
+		}
+		finally
+		{
+			reservation.release();
+		}
+	}
+	
+	/**
+	 * Decide, from the document's pre-classification, whether the document is going to be rejected.
+	 * The caller still parses (without validating) a document that is going to be rejected, and builds the reject
+	 * from it, so the client's own document (IntelligentAgent, Contact, observations) is echoed back in the reject.
+	 * <ul>
+	 * <li>If the TEA is not connected, the document cannot be sent to it.
+	 * <li>If the pre-classifier found the Contact user, we check it matches the header username (after both 
+	 *     have been unaliased) by calling checkUsernamesMatch.
+	 * </ul>
+	 * @param authorizationContext The authorization context of the username extracted from the request headers.
+	 * @param classification The document's pre-classification.
+	 * @return The reason the document is going to be rejected, or null if the document should be processed.
+	 * @see #checkUsernamesMatch
+	 * @see org.estar.node_agent2.storage.AuthorizationContext#unaliasUsername
+	 * @see org.estar.node_agent2.configuration.NodeAgentProperties#IS_TEA_CONNECTED
+	 */
+	protected Exception preClassifiedRejection(AuthorizationContext authorizationContext,
+						   RTMLPreClassification classification)
+	{
+		boolean isTeaConnected;
+		String loggerMessage;
+
 		// if the TEA is not connected log and return an error document to the client
 		isTeaConnected = NodeAgentProperties.getInstance().getProperty(NodeAgentProperties.IS_TEA_CONNECTED).equalsIgnoreCase(NodeAgentProperties.TRUE);
 		if(!isTeaConnected) 
@@ -202,43 +718,139 @@ public class NodeAgentWebServiceImpl implements NodeAgentWebServiceInterface
 			loggerMessage = NodeAgentProperties.IS_TEA_CONNECTED  + " = false, not sending rtml onwards";
 			traceLogger.log(2, this.getClass().getName(), "... " +loggerMessage);
 			traceLogger.log(2, this.getClass().getName(), "... returning RTML error document");
-			Exception e = new Exception(loggerMessage);
-			RTMLDocument errorDocument = RTMLUtil.createErrorDocument(e, nodeAgentName, rtmlDocumentString);
-			logRTMLDocument(errorDocument);
-			return  errorDocument;
+			return new Exception(loggerMessage);
 		} 
 		else 
 		{
 			loggerMessage = NodeAgentProperties.IS_TEA_CONNECTED  + " = true, sending rtml onwards";
 			traceLogger.log(2, this.getClass().getName(), "... " +loggerMessage);
 		}
-		
+		// if the pre-classifier found the Contact user, check it against the header username before parsing
+		if (classification.getContactUser() != null)
+		{
+			try
+			{
+				checkUsernamesMatch(authorizationContext,
+						    authorizationContext.unaliasUsername(classification.getContactUser()));
+			}
+			catch (Exception e)
+			{
+				return e;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Check whether the document's deadline has passed before the specified stage of processing. If it has, the
+	 * client has given up waiting for the reply, so a reject document is created from scratch and returned,
+	 * rather than doing the rest of the work.
+	 * @param deadline The document's deadline, or null if there is none.
+	 * @param stage The stage the document has reached, one of the RTMLDeadlinePolicy STAGE_ constants.
+	 * @param nodeAgentName The name of this node agent.
+	 * @param classification The document's pre-classification.
+	 * @return A reject document, or null if processing should continue.
+	 * @see org.estar.node_agent2.util.RTMLDeadlinePolicy#check
+	 * @see org.estar.node_agent2.util.RTMLUtil#createRejectDocument
+	 */
+	protected RTMLDocument deadlineRejection(RTMLDeadline deadline,String stage,String nodeAgentName,
+						 RTMLPreClassification classification)
+	{
+		try
+		{
+			RTMLDeadlinePolicy.getInstance().check(deadline,stage);
+		}
+		catch (RTMLDeadlineException e)
+		{
+			errorLogger.log(1, this.getClass().getName(), "... received RTML document expired:"+e);
+			return RTMLUtil.createRejectDocument(e, nodeAgentName, classification.getRTMLDocumentVersion(), 
+							     "deadline expired");
+		}
+		return null;
+	}
+	
+	/**
+	 * Method to process an RTML document after it has been parsed.
+	 * <ul>
+	 * <li>We rewrite the eSTAR project and user alias's to LT project and user ID's, using rewriteDocumentIfAliased.
+	 *     If an error occurs an error document is returned.
+	 * <li>We check whether the headerUsername from the SOAP request headers, matches the RTML's Contact Username,
+	 *     (after both have been unaliased), by calling  checkUsernamesMatch.
+	 * <li>If the document's deadline has passed, we return an error document without calling the TEA. 
+	 *     The deadline is passed to the RMITeaConnectionHandler, which checks it again once it is this 
+	 *     document's turn to call the TEA.
+	 * <li>If the document is a score request(isScoreRequest), we call the TEA's RMI method handleScore.
+	 * <li>If the document is a request document (isRequest), we call the TEA's RMI method handleRequest.
+	 * <li>If the document is an abort document (isAbort), we call the TEA's RMI method handleAbort.
+	 * <li>If the document was not one of the above three types, we throw an exception.
+	 * </ul>
+	 * If an error occurs, the error document is built from the parsed document (before alias rewriting), 
+	 * rather than re-parsing the input. Failures are reported to the validation policy, so the user's next 
+	 * document is fully validated.
+	 * @param authorizationContext The authorization context of the username extracted from the request headers.
+	 *        It's alias index snapshots are used to rewrite the document.
+	 * @param nodeAgentName The name of this node agent.
+	 * @param parsedDocument The parsed document.
+	 * @param deadline The document's deadline, or null if there is none.
+	 * @return An instance of RTMLDocument containing the document object model of the 
+	 *         reply document after processing.
+	 * @see #traceLogger
+	 * @see #errorLogger
+	 * @see #checkUsernamesMatch
+	 * @see org.estar.node_agent2.util.RTMLDeadlinePolicy#check
+	 * @see org.estar.node_agent2.util.RTMLDeadlinePolicy#reportReply
+	 * @see org.estar.node_agent2.util.RTMLUtil#createErrorDocument
+	 * @see org.estar.node_agent2.util.RTMLUtil#rewriteDocumentIfAliased
+	 * @see org.estar.node_agent2.util.RTMLValidationPolicy#reportFailure
+	 * @see org.estar.node_agent2.messaging.RMITeaConnectionHandler
+	 * @see org.estar.node_agent2.messaging.RMITeaConnectionHandler#getInstance
+	 * @see org.estar.node_agent2.messaging.RMITeaConnectionHandler#handleScore
+	 * @see org.estar.node_agent2.messaging.RMITeaConnectionHandler#handleRequest
+	 * @see org.estar.node_agent2.messaging.RMITeaConnectionHandler#handleAbort
+	 * @see org.estar.rtml.RTMLDocument
+	 * @see org.estar.rtml.RTMLDocument#isScoreRequest
+	 * @see org.estar.rtml.RTMLDocument#isRequest
+	 * @see org.estar.rtml.RTMLDocument#isAbort
+	 */
+	protected RTMLDocument handleParsedDocument(AuthorizationContext authorizationContext,String nodeAgentName,
+						    RTMLDocument parsedDocument,RTMLDeadline deadline)
+	{
+		String headerUsername = authorizationContext.getUsername();
+		RTMLDocument rtmlDocument = null;
+
 		//rewrite the estar project and user alias's to ngat project and user ID's
 		try
 		{
 			traceLogger.log(2, this.getClass().getName(), "... rewriting document if aliased");
-			rtmlDocument = RTMLUtil.rewriteDocumentIfAliased(rtmlDocument, RTMLUtil.RTML_IDENT_SOURCE_ESTAR);
+			if ((PersistenceController.getInstance().getUserAliasMapStore() == null) ||
+			    (PersistenceController.getInstance().getProjectAliasMapStore() == null))
+			{
+				throw new Exception("Serverside error: alias map store is null");
+			}
+			rtmlDocument = RTMLUtil.rewriteDocumentIfAliased(parsedDocument, RTMLUtil.RTML_IDENT_SOURCE_ESTAR,
+									 authorizationContext.getUserAliasIndex(),
+									 authorizationContext.getProjectAliasIndex());
 			traceLogger.log(2, this.getClass().getName(), "... completed rewrite");
 		} 
 		catch (Exception e)
 		{
-			RTMLDocument errorDocument = RTMLUtil.createErrorDocument(e, nodeAgentName, rtmlDocumentString);
-			logRTMLDocument(errorDocument);
-			return errorDocument;
+			RTMLValidationPolicy.getInstance().reportFailure(headerUsername);
+			return RTMLUtil.createErrorDocument(e, nodeAgentName, parsedDocument);
 		}
 		// extract the unaliased username and compare it to the SOAP headers username, are they the same user?
 		try
 		{
-			checkUsernamesMatch(headerUsername,rtmlDocument);
+			checkUsernamesMatch(authorizationContext,rtmlDocument);
 		}
 		catch (Exception e)
 		{
-			RTMLDocument errorDocument = RTMLUtil.createErrorDocument(e, nodeAgentName, rtmlDocumentString);
-			logRTMLDocument(errorDocument);
-			return errorDocument;
+			RTMLValidationPolicy.getInstance().reportFailure(headerUsername);
+			return RTMLUtil.createErrorDocument(e, nodeAgentName, parsedDocument);
 		}
 		try 
 		{
+			// has the client given up waiting, before we use the TEA's time
+			RTMLDeadlinePolicy.getInstance().check(deadline,RTMLDeadlinePolicy.STAGE_DISPATCH);
 			//send the document onwards and get the response
 			traceLogger.log(2, this.getClass().getName(), "... ... sending document onwards to TEA (and awaiting response)");
 			
@@ -248,59 +860,51 @@ public class NodeAgentWebServiceImpl implements NodeAgentWebServiceInterface
 			if (rtmlDocument.isScoreRequest()) 
 			{
 				traceLogger.log(2, this.getClass().getName(), "... document type is score request");
-				teaRTMLResponse = RMITeaConnectionHandler.getInstance().handleScore(rtmlDocument);
+				teaRTMLResponse = RMITeaConnectionHandler.getInstance().handleScore(rtmlDocument,deadline);
 			}
 			else if (rtmlDocument.isRequest())
 			{
 				traceLogger.log(2, this.getClass().getName(), "... document type is request");
-				teaRTMLResponse = RMITeaConnectionHandler.getInstance().handleRequest(rtmlDocument);
+				teaRTMLResponse = RMITeaConnectionHandler.getInstance().handleRequest(rtmlDocument,deadline);
 			}
 			else if (rtmlDocument.isAbort())
 			{
 				traceLogger.log(2, this.getClass().getName(), "... document type is abort");
-				teaRTMLResponse = RMITeaConnectionHandler.getInstance().handleAbort(rtmlDocument);
+				teaRTMLResponse = RMITeaConnectionHandler.getInstance().handleAbort(rtmlDocument,deadline);
 			}
 			else if (rtmlDocument.isUpdate())
 			{
 				traceLogger.log(2, this.getClass().getName(), "... document type is update");
-				teaRTMLResponse = RMITeaConnectionHandler.getInstance().handleUpdate(rtmlDocument);
+				teaRTMLResponse = RMITeaConnectionHandler.getInstance().handleUpdate(rtmlDocument,deadline);
 			}
 			else
 			{
 				errorLogger.log(1, this.getClass().getName(),"Unknown document request type.");
 				throw new Exception("Unknown document request type.");
 			}
+			RTMLDeadlinePolicy.getInstance().reportReply(deadline);
 			//return the rtml document
 			return teaRTMLResponse;
 		} 
+		catch (RTMLDeadlineException e)
+		{
+			errorLogger.log(1, this.getClass().getName(), "... received RTML document expired:"+e);
+			return RTMLUtil.createErrorDocument(e, nodeAgentName, parsedDocument);
+		}
 		catch (Exception e) 
 		{
-			RTMLDocument errorDocument = RTMLUtil.createErrorDocument(e, nodeAgentName, rtmlDocumentString);
-			logRTMLDocument(errorDocument);
-			return  errorDocument;
+			RTMLValidationPolicy.getInstance().reportFailure(headerUsername);
+			return RTMLUtil.createErrorDocument(e, nodeAgentName, parsedDocument);
 		}
 	}
 	
 	/**
-	 * Method to log and RTML document to the errorLogger.
-	 * @param errorDocument The error document to log.
-	 * @see org.estar.node_agent2.util.RTMLUtil#getRTMLAsString
-	 * @see #traceLogger
+	 * Method to log an (already serialized) RTML document to the errorLogger.
+	 * @param rtmlString The string version of the error document to log.
 	 * @see #errorLogger
 	 */
-	protected void logRTMLDocument(RTMLDocument errorDocument) 
+	protected void logRTMLDocument(String rtmlString) 
 	{
-		String rtmlString = "";
-
-		try 
-		{
-			rtmlString = RTMLUtil.getRTMLAsString(errorDocument);
-		} 
-		catch (Exception e) 
-		{
-			traceLogger.log(5, this.getClass().getName(), "failed to log String version of RTMLDocument!");
-			e.printStackTrace();
-		}
 		errorLogger.log(1, this.getClass().getName(), rtmlString);
 	}
 
@@ -308,81 +912,136 @@ public class NodeAgentWebServiceImpl implements NodeAgentWebServiceInterface
 	 * Check the Username and Password supplied in the SOAP headers are legal.
 	 * @return The extracted username from the request header.
 	 * @see #wsctx
+	 * @see #checkUsernamePassword(javax.xml.ws.handler.MessageContext)
 	 * @exception RuntimeException Thrown if the username is not known, or the password is incorrect.
 	 */
 	protected String checkUsernamePassword() throws RuntimeException
 	{
-		MessageContext mctx = wsctx.getMessageContext();
-		PersistentMap passwordMapStore = null;
+		return checkUsernamePassword(wsctx.getMessageContext());
+	}
+
+	/**
+	 * Get the value of the specified HTTP request header from the specified message context.
+	 * @param mctx The message context of the request.
+	 * @param name The header name.
+	 * @return The (first) value of the header, or null if the request did not have the header.
+	 */
+	protected String getHeader(MessageContext mctx,String name)
+	{
+		Map http_headers = (Map) mctx.get(MessageContext.HTTP_REQUEST_HEADERS);
+		List valueList = null;
+
+		if (http_headers == null)
+			return null;
+		valueList = (List) http_headers.get(name);
+		if ((valueList == null) || valueList.isEmpty())
+			return null;
+		return valueList.get(0).toString();
+	}
+
+	/**
+	 * Check the Token, or Username and Password, supplied in the SOAP headers of the specified message context 
+	 * are legal.
+	 * This is used directly by endpoints (AsyncProvider) that are passed their context, rather than having it injected.
+	 * If the AuthenticationFilter has already authenticated the request (before it's body was read), the username
+	 * it stored as a request attribute is returned without checking again.
+	 * @param mctx The message context of the request.
+	 * @return The extracted username from the request header.
+	 * @exception RuntimeException Thrown if the username is not known, or the password is incorrect.
+	 * @see #checkUsernamePassword(java.lang.String,java.lang.String,java.lang.String,java.lang.String,java.lang.String)
+	 * @see org.estar.node_agent2.filter.AuthenticationFilter#USERNAME_ATTRIBUTE
+	 */
+	protected String checkUsernamePassword(MessageContext mctx) throws RuntimeException
+	{
+		Object servletRequest = null;
 	    String headerUsername = null;
-	    String headerPassword = null;
-	    String savedPassword = null;
-	    
-		//get detail from request headers
-	    Map http_headers = (Map) mctx.get(MessageContext.HTTP_REQUEST_HEADERS);
-	    List userList = (List) http_headers.get("Username");
-	    List passList = (List) http_headers.get("Password");
 	    
-        //get username and password from SOAP headers
-	    if(userList!=null)
-	    {
-	      	headerUsername = userList.get(0).toString();
-	    }
-	    if(passList!=null)
-	    {
-	        headerPassword = passList.get(0).toString();
-	    }
-	    if(headerUsername ==null)
-	    {
-     		errorLogger.log(1, this.getClass().getName(),"checkUsernamePassword:Failed to find username in headers.");
-			throw new RuntimeException(this.getClass().getName()+
-					":checkUsernamePassword:Failed to find username in headers.");
-	    }	    	
-	    if(headerPassword ==null)
+	    // has the request already been authenticated by the AuthenticationFilter
+	    servletRequest = mctx.get(MessageContext.SERVLET_REQUEST);
+	    if(servletRequest instanceof ServletRequest)
 	    {
-     		errorLogger.log(1, this.getClass().getName(),"checkUsernamePassword:Failed to find password in headers for username:"+headerUsername);
-			throw new RuntimeException(this.getClass().getName()+
-					":checkUsernamePassword:Failed to find password in headers for username:"+headerUsername);
-	    }	    	
-	    // get password for the supplied username from the persistent store
-		passwordMapStore = PersistenceController.getInstance().getPasswordMapStore();
-		savedPassword = passwordMapStore.getProperty(headerUsername);
-	    if(savedPassword ==null)
-	    {
-     		errorLogger.log(1, this.getClass().getName(),
-     				"checkUsernamePassword:Failed to find password for username:"+headerUsername+
-     				" in persistent store.");
-			throw new RuntimeException(this.getClass().getName()+
-					":checkUsernamePassword:Failed to find password for username:"+headerUsername+
-					" in persistent store.");
+	    	headerUsername = (String)((ServletRequest)servletRequest).getAttribute(AuthenticationFilter.USERNAME_ATTRIBUTE);
+	    	if(headerUsername != null)
+	    		return headerUsername;
 	    }
-	    if(headerPassword.equals(savedPassword))
-	    {
-           		traceLogger.log(2, this.getClass().getName(),"checkUsernamePassword:Password for username "+headerUsername+" is correct.");
-       	}
-        else
-        {
-      		traceLogger.log(1, this.getClass().getName(),"checkUsernamePassword:Password for username "+headerUsername+" is NOT correct ("+headerPassword+" vs "+savedPassword+").");
-     		errorLogger.log(1, this.getClass().getName(),"checkUsernamePassword:Password for username "+headerUsername+" is NOT correct ("+headerPassword+" vs "+savedPassword+").");
-        	throw new RuntimeException(this.getClass().getName()+
-        			":checkUsernamePassword:Incorrect Password for User:"+headerUsername);
-        }
-	    return headerUsername;
+		//get username, password and token from SOAP headers
+	    return checkUsernamePassword(getHeader(mctx,AuthenticationFilter.HEADER_USERNAME),
+	    			     getHeader(mctx,AuthenticationFilter.HEADER_PASSWORD),
+	    			     getHeader(mctx,AuthenticationFilter.HEADER_TOKEN),
+	    			     getHeader(mctx,ReplayGuard.HEADER_TIMESTAMP),
+	    			     getHeader(mctx,ReplayGuard.HEADER_NONCE));
+	}
+
+	/**
+	 * Check the specified Token, or Username and Password, and the Timestamp and Nonce (extracted from the request
+	 * headers) are legal. This is used directly by the plain HTTP endpoint (NodeAgentRestServlet), which has no 
+	 * message context.
+	 * @param headerUsername The username from the request header, or null if none was supplied.
+	 * @param headerPassword The password from the request header, or null if none was supplied.
+	 * @param headerToken The session token from the request header, or null if none was supplied.
+	 * @param headerTimestamp The request timestamp from the request header, or null if none was supplied.
+	 * @param headerNonce The request nonce from the request header, or null if none was supplied.
+	 * @return The username.
+	 * @exception RuntimeException Thrown if the token is not legal, the username is not known or the 
+	 *            password is incorrect, or the request is a replay.
+	 * @see org.estar.node_agent2.NodeAgentRestServlet
+	 * @see org.estar.node_agent2.util.NodeAgentAuthenticator#checkCredentials
+	 */
+	protected String checkUsernamePassword(String headerUsername,String headerPassword,String headerToken,
+					       String headerTimestamp,String headerNonce) throws RuntimeException
+	{
+		return NodeAgentAuthenticator.getInstance().checkCredentials(headerUsername,headerPassword,headerToken,
+									     headerTimestamp,headerNonce);
+	}
+
+	/**
+	 * Create the request's deadline, from the Deadline and Timeout headers of the injected message context.
+	 * @return The request's deadline.
+	 * @see #wsctx
+	 * @see #createDeadline(javax.xml.ws.handler.MessageContext)
+	 */
+	protected RTMLDeadline createDeadline()
+	{
+		return createDeadline(wsctx.getMessageContext());
+	}
+
+	/**
+	 * Create the request's deadline, from the Deadline and Timeout headers of the specified message context.
+	 * @param mctx The message context of the request.
+	 * @return The request's deadline, which has no deadline if neither header was supplied.
+	 * @see org.estar.node_agent2.util.RTMLDeadlinePolicy#createDeadline
+	 * @see org.estar.node_agent2.util.RTMLDeadlinePolicy#HEADER_DEADLINE
+	 * @see org.estar.node_agent2.util.RTMLDeadlinePolicy#HEADER_TIMEOUT
+	 */
+	protected RTMLDeadline createDeadline(MessageContext mctx)
+	{
+		String deadlineHeader = null;
+		String timeoutHeader = null;
+
+		Map http_headers = (Map) mctx.get(MessageContext.HTTP_REQUEST_HEADERS);
+		if(http_headers != null)
+		{
+			List deadlineList = (List) http_headers.get(RTMLDeadlinePolicy.HEADER_DEADLINE);
+			List timeoutList = (List) http_headers.get(RTMLDeadlinePolicy.HEADER_TIMEOUT);
+
+			if((deadlineList != null) && (deadlineList.size() > 0))
+				deadlineHeader = deadlineList.get(0).toString();
+			if((timeoutList != null) && (timeoutList.size() > 0))
+				timeoutHeader = timeoutList.get(0).toString();
+		}
+		return RTMLDeadlinePolicy.getInstance().createDeadline(deadlineHeader,timeoutHeader);
 	}
 	
 	/**
 	 * Check the username in the SOAP request headers (after unaliasing) match the username in the RTML document 
 	 * (after unaliasing). 
-	 * @param headerUsername The SOAP request header username.
+	 * @param authorizationContext The authorization context of the SOAP request header username.
 	 * @param rtmlDocument The RTML document, after aliases have been rewritten.
 	 * @throws Exception Thrown if the usernames do not match.
 	 */
-	protected void checkUsernamesMatch(String headerUsername,RTMLDocument rtmlDocument) throws Exception
+	protected void checkUsernamesMatch(AuthorizationContext authorizationContext,RTMLDocument rtmlDocument) throws Exception
 	{
 		RTMLContact contact = null;
-		PersistentMap userAliasMapStore = null;
-		String rtmlUsername = null;
-		String unaliasedHeaderUsername = null;
 		
 		// get the RTML Contact User(name)
 		contact = rtmlDocument.getContact();
@@ -390,22 +1049,25 @@ public class NodeAgentWebServiceImpl implements NodeAgentWebServiceInterface
 		{
 			throw new Exception("checkUsernamesMatch:No Contact in received document");
 		}
-		rtmlUsername = contact.getUser();
-		// get the user alias information
-		userAliasMapStore = PersistenceController.getInstance().getUserAliasMapStore();
-		if (userAliasMapStore == null) 
-		{
-			throw new Exception("checkUsernamesMatch:Serverside error: user alias map store is null");
-		}
-		// unalias the header username, if required
-		unaliasedHeaderUsername = headerUsername;
-		if (userAliasMapStore.containsKey(headerUsername)) 
-			unaliasedHeaderUsername = userAliasMapStore.getProperty(headerUsername);
+		checkUsernamesMatch(authorizationContext,contact.getUser());
+	}
+	
+	/**
+	 * Check the username in the SOAP request headers (after unaliasing) match the specified RTML username 
+	 * (which should already have been unaliased). The unaliased header username is precomputed in the
+	 * header username's authorization context.
+	 * @param authorizationContext The authorization context of the SOAP request header username.
+	 * @param rtmlUsername The RTML Contact username, after aliases have been rewritten.
+	 * @throws Exception Thrown if the usernames do not match.
+	 * @see org.estar.node_agent2.storage.AuthorizationContext#getLTUsername
+	 */
+	protected void checkUsernamesMatch(AuthorizationContext authorizationContext,String rtmlUsername) throws Exception
+	{
+		String unaliasedHeaderUsername = null;
+		
+		// the unaliased header username
+		unaliasedHeaderUsername = authorizationContext.getLTUsername();
 		// Compare rtmlUsername and unaliasedHeaderUsername
- 		traceLogger.log(1, this.getClass().getName(),
- 				"checkUsernamesMatch:Unaliased Header Username "+unaliasedHeaderUsername+".");
-		traceLogger.log(1, this.getClass().getName(),
-				"checkUsernamesMatch:Unaliased RTML Username "+rtmlUsername+".");
 		if(rtmlUsername == null)
 		{
 			throw new Exception("checkUsernamesMatch:RTML username was null.");
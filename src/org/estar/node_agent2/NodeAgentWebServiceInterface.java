@@ -9,7 +9,12 @@ import javax.jws.soap.SOAPBinding.Style;
  * 	Class to define the Node Agent web-service interface. Implemented web-service methods are:
  * <ul>
  * <li>String ping();
+ * <li>String login();
  * <li>String handle_rtml(String rtmlDocumentString);
+ * <li>String[] handle_rtml_batch(String[] rtmlDocumentStrings);
+ * <li>String submit_rtml(String rtmlDocumentString);
+ * <li>String poll_rtml(String ticket);
+ * <li>String await_rtml(String ticket,long timeout);
  * </ul>
  * @author cjm
  */
@@ -20,6 +25,21 @@ public interface NodeAgentWebServiceInterface
 	@WebMethod
 	String ping();
 	
+	@WebMethod
+	String login();
+	
 	@WebMethod
 	String handle_rtml(String rtmlDocumentString);
+	
+	@WebMethod
+	String[] handle_rtml_batch(String[] rtmlDocumentStrings);
+	
+	@WebMethod
+	String submit_rtml(String rtmlDocumentString);
+	
+	@WebMethod
+	String poll_rtml(String ticket);
+	
+	@WebMethod
+	String await_rtml(String ticket,long timeout);
 }
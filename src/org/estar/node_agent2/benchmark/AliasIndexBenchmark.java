@@ -0,0 +1,180 @@
+package org.estar.node_agent2.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.estar.node_agent2.storage.AliasIndex;
+import org.estar.node_agent2.storage.PersistentMap;
+
+/**
+ * Compares the reverse alias lookup done when rewriting NGAT documents back to eSTAR names (RTMLUtil
+ * .rewriteDocumentIfAliased), by many reader threads at once, using the AliasIndex and the PersistentMap it
+ * replaced (containsValue then getKey, both walking every entry). Alias stores of 10, 1000 and 100000 aliases are
+ * measured. Before timing, the reverse lookups of up to CHECK_COUNT aliases, spread through the store, are checked
+ * to return the same key from both.
+ * The PersistentMap lookups walk the whole store, so their number of iterations is reduced for large stores.
+ * @author cjm
+ * @see org.estar.node_agent2.storage.AliasIndex#getKey
+ * @see org.estar.node_agent2.storage.PersistentMap#getKey
+ */
+public class AliasIndexBenchmark extends Benchmark
+{
+	/**
+	 * The default numbers of aliases in the alias stores.
+	 */
+	public static final int DEFAULT_ALIAS_COUNTS[] = {10,1000,100000};
+	/**
+	 * The default number of reader threads.
+	 */
+	public static final int DEFAULT_ALIAS_THREAD_COUNT = 8;
+	/**
+	 * The maximum number of entries walked by each PersistentMap reader thread, used to limit it's iterations.
+	 */
+	public static final long MAX_MAP_ENTRIES = 10000000L;
+	/**
+	 * The maximum number of aliases whose reverse lookups are checked, as each PersistentMap lookup walks the store.
+	 */
+	public static final int CHECK_COUNT = 100;
+	/**
+	 * The numbers of aliases in the alias stores.
+	 */
+	protected List<Integer> aliasCountList = new ArrayList<Integer>();
+
+	/**
+	 * Constructor. Sets the default number of reader threads.
+	 * @see #DEFAULT_ALIAS_THREAD_COUNT
+	 */
+	public AliasIndexBenchmark()
+	{
+		super();
+		threadCount = DEFAULT_ALIAS_THREAD_COUNT;
+	}
+
+	/**
+	 * Parse the -aliases argument.
+	 */
+	protected int parseArgument(String args[],int index) throws IllegalArgumentException
+	{
+		if(args[index].equals("-aliases"))
+		{
+			aliasCountList.add(Integer.valueOf(parseInt(args,index)));
+			return index+1;
+		}
+		return super.parseArgument(args,index);
+	}
+
+	/**
+	 * For each alias store size, check the AliasIndex and PersistentMap reverse lookups agree, then time both
+	 * with threadCount concurrent readers.
+	 * @return true if the reverse lookups agreed for every alias store.
+	 */
+	public boolean run() throws Exception
+	{
+		int indexIterations = iterations;
+		int indexWarmUpIterations = warmUpIterations;
+		boolean passed = true;
+
+		if(aliasCountList.size() == 0)
+		{
+			for(int i = 0; i < DEFAULT_ALIAS_COUNTS.length; i++)
+				aliasCountList.add(Integer.valueOf(DEFAULT_ALIAS_COUNTS[i]));
+		}
+		for(int i = 0; i < aliasCountList.size(); i++)
+		{
+			final int aliasCount = aliasCountList.get(i).intValue();
+			final PersistentMap aliasMap = createAliasMap(aliasCount);
+			final AliasIndex aliasIndex = new AliasIndex(aliasMap);
+
+			passed &= check(aliasCount,aliasMap,aliasIndex);
+			iterations = indexIterations;
+			warmUpIterations = indexWarmUpIterations;
+			timeConcurrent("alias.index aliases="+aliasCount,new Task()
+			{
+				public void run(int iteration) throws Exception
+				{
+					String alias = getAlias(iteration%aliasCount);
+
+					if(aliasIndex.containsAlias(alias))
+						aliasIndex.getKey(alias);
+				}
+			});
+			iterations = (int)Math.max(1,Math.min(indexIterations,MAX_MAP_ENTRIES/aliasCount));
+			warmUpIterations = Math.min(indexWarmUpIterations,iterations);
+			timeConcurrent("alias.map aliases="+aliasCount,new Task()
+			{
+				public void run(int iteration) throws Exception
+				{
+					String alias = getAlias(iteration%aliasCount);
+
+					if(aliasMap.containsValue(alias))
+						aliasMap.getKey(alias);
+				}
+			});
+		}
+		iterations = indexIterations;
+		warmUpIterations = indexWarmUpIterations;
+		return passed;
+	}
+
+	/**
+	 * Check the reverse lookups of up to CHECK_COUNT aliases, spread through the store, return the same key from
+	 * the AliasIndex and the PersistentMap.
+	 * @param aliasCount The number of aliases.
+	 * @param aliasMap The alias store.
+	 * @param aliasIndex The index of the alias store.
+	 * @return true if every checked lookup agreed.
+	 */
+	protected boolean check(int aliasCount,PersistentMap aliasMap,AliasIndex aliasIndex)
+	{
+		int step = Math.max(1,aliasCount/CHECK_COUNT);
+		String failure = null;
+
+		for(int i = 0; (failure == null) && (i < aliasCount); i += step)
+		{
+			String alias = getAlias(i);
+			String key = aliasIndex.getKey(alias);
+
+			if((key == null) || (key.equals(aliasMap.getKey(alias)) == false))
+				failure = "alias "+alias+" has key "+key+" in the index, "+aliasMap.getKey(alias)+" in the map";
+		}
+		if(failure != null)
+			System.out.println("alias.check aliases="+aliasCount+": FAILED "+failure);
+		else
+			System.out.println("alias.check aliases="+aliasCount+": passed "+aliasIndex);
+		return (failure == null);
+	}
+
+	/**
+	 * Create an alias store, mapping eSTAR usernames to LT usernames.
+	 * @param aliasCount The number of aliases.
+	 * @return The alias store.
+	 */
+	protected static PersistentMap createAliasMap(int aliasCount)
+	{
+		PersistentMap aliasMap = new PersistentMap();
+
+		for(int i = 0; i < aliasCount; i++)
+			aliasMap.setProperty("estar_user_"+i,getAlias(i));
+		return aliasMap;
+	}
+
+	/**
+	 * Get the alias (LT username) of the specified user.
+	 * @param index The user's index.
+	 * @return The alias.
+	 */
+	protected static String getAlias(int index)
+	{
+		return "LT_user_"+index;
+	}
+
+	/**
+	 * Print the benchmark specific arguments.
+	 */
+	public void help()
+	{
+		System.err.println("\t[-aliases <n> ...]");
+		System.err.println("\tTimes reverse alias lookups by -threads readers (default 8) using the AliasIndex and "+
+				   "the PersistentMap, for alias stores of n aliases (default 10, 1000 and 100000).");
+	}
+}
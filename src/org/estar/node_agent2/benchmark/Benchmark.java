@@ -0,0 +1,357 @@
+package org.estar.node_agent2.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The base class of the Node Agent benchmarks, run from the command line by NodeAgentBenchmark.
+ * It parses the arguments common to all benchmarks (the number of warm-up and measured iterations, and the
+ * number of threads), and provides methods to time a task, and measure the bytes it allocates. The JVM's
+ * JIT is warmed up by running each task warmUpIterations times before it is measured.
+ * Results are printed to System.out, one line per measurement, so runs can be compared with diff or a spreadsheet.
+ * @author cjm
+ * @see NodeAgentBenchmark
+ */
+public abstract class Benchmark
+{
+	/**
+	 * The default number of measured iterations.
+	 */
+	public static final int DEFAULT_ITERATIONS = 10000;
+	/**
+	 * The default number of warm-up iterations.
+	 */
+	public static final int DEFAULT_WARM_UP_ITERATIONS = 2000;
+	/**
+	 * The number of measured iterations.
+	 */
+	protected int iterations = DEFAULT_ITERATIONS;
+	/**
+	 * The number of warm-up iterations.
+	 */
+	protected int warmUpIterations = DEFAULT_WARM_UP_ITERATIONS;
+	/**
+	 * The number of threads, used by benchmarks that measure concurrent throughput.
+	 */
+	protected int threadCount = 1;
+	/**
+	 * The number of bytes allocated per iteration by the last task timed by time, or 0 if the JVM
+	 * cannot measure it.
+	 */
+	protected long allocatedBytesPerIteration = 0;
+
+	/**
+	 * A piece of work to be timed.
+	 */
+	public interface Task
+	{
+		/**
+		 * Do one iteration of the work.
+		 * @param iteration The iteration number (counted separately for the warm-up and the measurement).
+		 * @exception Exception Thrown if the work fails, which stops the benchmark.
+		 */
+		public void run(int iteration) throws Exception;
+	}
+
+	/**
+	 * Parse the benchmark's arguments. The common arguments are handled here, others are passed to parseArgument.
+	 * @param args The arguments (not including the benchmark name).
+	 * @exception IllegalArgumentException Thrown if an argument is not recognised, or it's value is illegal.
+	 * @see #parseArgument
+	 */
+	public void parseArguments(String args[]) throws IllegalArgumentException
+	{
+		for(int i = 0; i < args.length; i++)
+		{
+			if(args[i].equals("-iterations"))
+			{
+				iterations = parseInt(args,i);
+				i+= 1;
+			}
+			else if(args[i].equals("-warm_up"))
+			{
+				warmUpIterations = parseInt(args,i);
+				i+= 1;
+			}
+			else if(args[i].equals("-threads"))
+			{
+				threadCount = parseInt(args,i);
+				i+= 1;
+			}
+			else
+			{
+				i = parseArgument(args,i);
+			}
+		}
+	}
+
+	/**
+	 * Parse a benchmark specific argument.
+	 * @param args The arguments.
+	 * @param index The index of the argument to parse.
+	 * @return The index of the last argument used (index, or index+1 if the argument takes a value).
+	 * @exception IllegalArgumentException Thrown if the argument is not recognised, or it's value is illegal.
+	 */
+	protected int parseArgument(String args[],int index) throws IllegalArgumentException
+	{
+		throw new IllegalArgumentException("Unknown argument:"+args[index]);
+	}
+
+	/**
+	 * Parse the integer value following the argument at index.
+	 * @param args The arguments.
+	 * @param index The index of the argument whose value is parsed.
+	 * @return The value.
+	 * @exception IllegalArgumentException Thrown if there is no value, or it is not an integer.
+	 */
+	protected static int parseInt(String args[],int index) throws IllegalArgumentException
+	{
+		return Integer.parseInt(getValue(args,index));
+	}
+
+	/**
+	 * Parse the floating point value following the argument at index.
+	 * @param args The arguments.
+	 * @param index The index of the argument whose value is parsed.
+	 * @return The value.
+	 * @exception IllegalArgumentException Thrown if there is no value, or it is not a number.
+	 */
+	protected static double parseDouble(String args[],int index) throws IllegalArgumentException
+	{
+		return Double.parseDouble(getValue(args,index));
+	}
+
+	/**
+	 * Get the value following the argument at index.
+	 * @param args The arguments.
+	 * @param index The index of the argument whose value is returned.
+	 * @return The value.
+	 * @exception IllegalArgumentException Thrown if there is no value.
+	 */
+	protected static String getValue(String args[],int index) throws IllegalArgumentException
+	{
+		if((index+1) >= args.length)
+			throw new IllegalArgumentException(args[index]+" requires a value.");
+		return args[index+1];
+	}
+
+	/**
+	 * Run the benchmark.
+	 * @return true if the benchmark ran and any checks it makes passed, false otherwise.
+	 * @exception Exception Thrown if the benchmark fails.
+	 */
+	public abstract boolean run() throws Exception;
+
+	/**
+	 * Print the benchmark specific arguments.
+	 */
+	public abstract void help();
+
+	/**
+	 * Time a task, on the calling thread. The task is run warmUpIterations times, then iterations times
+	 * whilst being timed. The time per iteration, the iterations per second, and the bytes allocated per iteration
+	 * are printed.
+	 * @param name The name of the measurement, printed with the results.
+	 * @param task The task.
+	 * @return The average time per iteration, in nanoseconds.
+	 * @exception Exception Thrown if the task fails.
+	 * @see #allocatedBytesPerIteration
+	 */
+	protected double time(String name,Task task) throws Exception
+	{
+		long startTime,elapsedTime,allocatedBytes;
+		double nsPerIteration;
+
+		for(int i = 0; i < warmUpIterations; i++)
+			task.run(i);
+		allocatedBytes = getAllocatedBytes();
+		startTime = System.nanoTime();
+		for(int i = 0; i < iterations; i++)
+			task.run(i);
+		elapsedTime = System.nanoTime()-startTime;
+		allocatedBytes = getAllocatedBytes()-allocatedBytes;
+		allocatedBytesPerIteration = allocatedBytes/iterations;
+		nsPerIteration = ((double)elapsedTime)/((double)iterations);
+		System.out.println(name+": iterations="+iterations+" time="+format(nsPerIteration/1000.0)+" us/op rate="+
+				   format(1.0e9/nsPerIteration)+" op/s allocated="+allocatedBytesPerIteration+" bytes/op");
+		return nsPerIteration;
+	}
+
+	/**
+	 * Time a task run by threadCount threads at once, each running the task iterations times (after
+	 * warmUpIterations warm-up iterations). The overall throughput and the average latency are printed.
+	 * @param name The name of the measurement, printed with the results.
+	 * @param task The task, which must be thread safe.
+	 * @return The overall throughput, in iterations per second.
+	 * @exception Exception Thrown if the task fails on any thread.
+	 */
+	protected double timeConcurrent(String name,final Task task) throws Exception
+	{
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final CountDownLatch doneLatch = new CountDownLatch(threadCount);
+		final AtomicLong totalLatency = new AtomicLong(0);
+		final List<Exception> failureList = new ArrayList<Exception>();
+		long startTime,elapsedTime;
+		double rate;
+
+		for(int t = 0; t < threadCount; t++)
+		{
+			Thread thread = new Thread(name+"-"+t)
+			{
+				public void run()
+				{
+					try
+					{
+						for(int i = 0; i < warmUpIterations; i++)
+							task.run(i);
+						startLatch.await();
+						for(int i = 0; i < iterations; i++)
+						{
+							long taskStartTime = System.nanoTime();
+
+							task.run(i);
+							totalLatency.addAndGet(System.nanoTime()-taskStartTime);
+						}
+					}
+					catch(Exception e)
+					{
+						synchronized(failureList)
+						{
+							failureList.add(e);
+						}
+					}
+					finally
+					{
+						doneLatch.countDown();
+					}
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+		startTime = System.nanoTime();
+		startLatch.countDown();
+		doneLatch.await();
+		elapsedTime = System.nanoTime()-startTime;
+		if(failureList.size() > 0)
+			throw failureList.get(0);
+		rate = ((double)threadCount*iterations)/(((double)elapsedTime)/1.0e9);
+		System.out.println(name+": threads="+threadCount+" iterations="+iterations+" rate="+format(rate)+
+				   " op/s latency="+format(((double)totalLatency.get())/(threadCount*iterations*1000.0))+" us/op");
+		return rate;
+	}
+
+	/**
+	 * Get the number of bytes allocated by the calling thread so far, if the JVM supports measuring it.
+	 * @return The number of bytes, or 0 if it cannot be measured.
+	 */
+	protected static long getAllocatedBytes()
+	{
+		java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+		if(threadMXBean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+
+	/**
+	 * Format a number to two decimal places.
+	 * @param value The number.
+	 * @return The formatted number.
+	 */
+	protected static String format(double value)
+	{
+		return String.format("%.2f",value);
+	}
+
+	/**
+	 * XML escape a value into a string builder, as it is escaped in a SOAP message.
+	 * @param value The value to escape.
+	 * @param sb The string builder to append the escaped value to.
+	 */
+	protected static void escape(String value,StringBuilder sb)
+	{
+		for(int i = 0; i < value.length(); i++)
+		{
+			char ch = value.charAt(i);
+
+			if(ch == '<')
+				sb.append("&lt;");
+			else if(ch == '>')
+				sb.append("&gt;");
+			else if(ch == '&')
+				sb.append("&amp;");
+			else
+				sb.append(ch);
+		}
+	}
+
+	/**
+	 * Load the contents of a file.
+	 * @param fileName The name of the file to load.
+	 * @return The contents of the file.
+	 * @exception IOException Thrown if reading the file fails.
+	 */
+	protected static byte[] loadFile(String fileName) throws IOException
+	{
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		InputStream inputStream = new FileInputStream(new File(fileName));
+		byte buffer[] = new byte[8192];
+		int readCount;
+
+		try
+		{
+			while((readCount = inputStream.read(buffer)) > -1)
+				outputStream.write(buffer,0,readCount);
+		}
+		finally
+		{
+			inputStream.close();
+		}
+		return outputStream.toByteArray();
+	}
+
+	/**
+	 * Create an RTML 2.2 score document with the specified number of observations, used by benchmarks that
+	 * need large multi-observation documents.
+	 * @param username The Contact User.
+	 * @param observationCount The number of observations.
+	 * @return The document.
+	 */
+	protected static String createScoreDocument(String username,int observationCount)
+	{
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n");
+		sb.append("<!DOCTYPE RTML SYSTEM \"http://www.estar.org.uk/documents/rtml2.2.dtd\">\n");
+		sb.append("<RTML version=\"2.2\" type=\"score\">\n");
+		sb.append("  <Contact PI=\"true\">\n    <Name>benchmark</Name>\n    <User>"+username+"</User>\n");
+		sb.append("    <Institution>benchmark</Institution>\n    <Email>benchmark@localhost</Email>\n  </Contact>\n");
+		sb.append("  <Project>benchmark</Project>\n");
+		sb.append("  <Telescope/>\n");
+		sb.append("  <IntelligentAgent host=\"localhost\" port=\"1234\">benchmark</IntelligentAgent>\n");
+		for(int i = 0; i < observationCount; i++)
+		{
+			sb.append("  <Observation status=\"ok\">\n");
+			sb.append("    <Target type=\"normal\" ident=\"ExoPlanetMonitor\">\n");
+			sb.append("      <TargetName>target"+i+"</TargetName>\n");
+			sb.append("      <Coordinates>\n        <RightAscension format=\"hh mm ss.ss\" units=\"hms\">");
+			sb.append(String.format("%02d 00 00.00",i%24)+"</RightAscension>\n");
+			sb.append("        <Declination format=\"sdd mm ss.ss\" units=\"dms\">+10 00 00.00</Declination>\n");
+			sb.append("        <Equinox>J2000</Equinox>\n      </Coordinates>\n    </Target>\n");
+			sb.append("    <Schedule priority=\"3\">\n");
+			sb.append("      <Exposure type=\"time\" units=\"ms\"><Count>1</Count>10000.0</Exposure>\n");
+			sb.append("    </Schedule>\n  </Observation>\n");
+		}
+		sb.append("</RTML>\n");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,159 @@
+package org.estar.node_agent2.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.estar.node_agent2.util.RTMLEntityCatalog;
+import org.estar.node_agent2.util.RTMLParserPool;
+
+import org.estar.rtml.RTMLParser;
+
+/**
+ * Compares the per-parse latency of validating parses with and without the RTML entity catalog. Each document is
+ * parsed by a validating RTMLParser as it was received (so the DTD/schema is resolved remotely, and compiled on
+ * every parse), and by the validating RTMLParserPool (so it is validated against the grammars cached by the catalog,
+ * then parsed by a non-validating parser). Failed remote parses (e.g. when the remote site cannot be reached) are
+ * counted rather than stopping the benchmark, and are printed with the timings, as they are the other cost of
+ * resolving remotely. The benchmark fails if any cached parse fails.
+ * Remote parses are slow, so the default number of iterations is lower than the other benchmarks.
+ * @author cjm
+ * @see org.estar.node_agent2.util.RTMLEntityCatalog#validate
+ * @see org.estar.node_agent2.util.RTMLParserPool#parse(java.lang.String)
+ */
+public class CatalogBenchmark extends Benchmark
+{
+	/**
+	 * The default number of measured iterations, per document and mode.
+	 */
+	public static final int DEFAULT_CATALOG_ITERATIONS = 200;
+	/**
+	 * The default number of warm-up iterations, per document and mode.
+	 */
+	public static final int DEFAULT_CATALOG_WARM_UP_ITERATIONS = 20;
+	/**
+	 * The directory to load the catalog from, or null to use the configured catalog.
+	 */
+	protected String catalogDirectoryName = null;
+	/**
+	 * The filenames of the RTML documents to parse.
+	 */
+	protected List<String> documentFileNameList = new ArrayList<String>();
+
+	/**
+	 * Constructor. Sets the default number of iterations.
+	 * @see #DEFAULT_CATALOG_ITERATIONS
+	 * @see #DEFAULT_CATALOG_WARM_UP_ITERATIONS
+	 */
+	public CatalogBenchmark()
+	{
+		super();
+		iterations = DEFAULT_CATALOG_ITERATIONS;
+		warmUpIterations = DEFAULT_CATALOG_WARM_UP_ITERATIONS;
+	}
+
+	/**
+	 * Parse the -catalog_dir and -document arguments.
+	 */
+	protected int parseArgument(String args[],int index) throws IllegalArgumentException
+	{
+		if(args[index].equals("-catalog_dir"))
+		{
+			catalogDirectoryName = getValue(args,index);
+			return index+1;
+		}
+		else if(args[index].equals("-document"))
+		{
+			documentFileNameList.add(getValue(args,index));
+			return index+1;
+		}
+		return super.parseArgument(args,index);
+	}
+
+	/**
+	 * Time validating parses of each document, without and with the catalog.
+	 * @return true if at least one document was specified, the catalog is not empty, and no cached parse failed.
+	 */
+	public boolean run() throws Exception
+	{
+		RTMLEntityCatalog catalog = RTMLEntityCatalog.getInstance();
+		final RTMLParserPool parserPool = RTMLParserPool.getInstance(true);
+		final RTMLParser remoteParser = new RTMLParser();
+		boolean passed = true;
+
+		if(documentFileNameList.size() == 0)
+		{
+			System.out.println("catalog: No -document specified.");
+			return false;
+		}
+		if(catalogDirectoryName != null)
+			catalog.load(new File(catalogDirectoryName));
+		remoteParser.init(true);
+		for(int i = 0; i < documentFileNameList.size(); i++)
+		{
+			String fileName = documentFileNameList.get(i);
+			final String documentString = new String(loadFile(fileName),"UTF-8");
+
+			timeParse("catalog.remote "+fileName,new Task()
+			{
+				public void run(int iteration) throws Exception
+				{
+					remoteParser.parse(documentString);
+				}
+			});
+			passed &= (timeParse("catalog.cached "+fileName,new Task()
+			{
+				public void run(int iteration) throws Exception
+				{
+					parserPool.parse(documentString);
+				}
+			}) == 0);
+		}
+		System.out.println(catalog);
+		System.out.println(parserPool);
+		return passed && (catalog.getCatalogDirectory() != null);
+	}
+
+	/**
+	 * Time the specified parse, counting (rather than throwing) the failed parses.
+	 * @param name The name of the measurement.
+	 * @param parseTask The parse.
+	 * @return The number of failed parses.
+	 * @exception Exception Thrown if the timing fails.
+	 */
+	protected long timeParse(String name,final Task parseTask) throws Exception
+	{
+		final AtomicLong failureCount = new AtomicLong(0);
+		final List<String> failureList = new ArrayList<String>();
+
+		time(name,new Task()
+		{
+			public void run(int iteration) throws Exception
+			{
+				try
+				{
+					parseTask.run(iteration);
+				}
+				catch(Exception e)
+				{
+					if(failureCount.incrementAndGet() == 1)
+						failureList.add(e.toString());
+				}
+			}
+		});
+		System.out.println(name+": failures="+failureCount.get()+
+				   ((failureList.size() > 0) ? " first failure="+failureList.get(0) : ""));
+		return failureCount.get();
+	}
+
+	/**
+	 * Print the benchmark specific arguments.
+	 */
+	public void help()
+	{
+		System.err.println("\t[-catalog_dir <directory>] -document <filename> [-document <filename> ...]");
+		System.err.println("\tTimes validating parses of each document with remote DTD/schema resolution, and "+
+				   "with the grammars cached by the entity catalog.");
+	}
+}
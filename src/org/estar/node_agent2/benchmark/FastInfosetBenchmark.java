@@ -0,0 +1,308 @@
+package org.estar.node_agent2.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import com.sun.xml.fastinfoset.stax.StAXDocumentParser;
+import com.sun.xml.fastinfoset.stax.StAXDocumentSerializer;
+
+/**
+ * Compares the payload size, and the serialize and parse times, of textual XML and Fast Infoset, for score documents
+ * with increasing numbers of observations. Two forms of each document are measured:
+ * <ul>
+ * <li>envelope: the handle_rtml SOAP request, as exchanged with /node_agent. The document is the (escaped) character
+ *     content of the String argument, so Fast Infoset only encodes the envelope's few elements in binary.
+ * <li>document: the RTML document itself, as if it's elements were sent as XML rather than as a String.
+ * </ul>
+ * Serializing is timed by copying the form's StAX events, read from the text, to a textual or Fast Infoset writer
+ * (so both times include reading the text). Parsing is timed by reading all the StAX events of the textual or Fast
+ * Infoset bytes. Before timing, the Fast Infoset bytes are checked to read back as the same events as the text.
+ * FastInfoset.jar (from the jaxws-ri) must be in the CLASSPATH.
+ * @author cjm
+ * @see org.estar.node_agent2.FastInfosetEnabled
+ * @see org.estar.node_agent2.client.NodeAgentClient
+ */
+public class FastInfosetBenchmark extends Benchmark
+{
+	/**
+	 * The default numbers of observations in the benchmark documents.
+	 */
+	public static final int DEFAULT_OBSERVATION_COUNTS[] = {1,100,1000};
+	/**
+	 * The default number of measured iterations, per document, form and encoding.
+	 */
+	public static final int DEFAULT_FASTINFOSET_ITERATIONS = 1000;
+	/**
+	 * The default number of warm-up iterations, per document, form and encoding.
+	 */
+	public static final int DEFAULT_FASTINFOSET_WARM_UP_ITERATIONS = 200;
+	/**
+	 * The name of a class in FastInfoset.jar, used to check it is in the CLASSPATH.
+	 */
+	public static final String FASTINFOSET_CLASS_NAME = "com.sun.xml.fastinfoset.stax.StAXDocumentSerializer";
+	/**
+	 * The numbers of observations in the benchmark documents.
+	 */
+	protected List<Integer> observationCountList = new ArrayList<Integer>();
+	/**
+	 * The factory used to read textual XML. DTDs are not read.
+	 */
+	protected XMLInputFactory inputFactory = null;
+	/**
+	 * The factory used to write textual XML.
+	 */
+	protected XMLOutputFactory outputFactory = null;
+
+	/**
+	 * Constructor. Sets the default number of iterations, and creates the StAX factories.
+	 * @see #DEFAULT_FASTINFOSET_ITERATIONS
+	 * @see #DEFAULT_FASTINFOSET_WARM_UP_ITERATIONS
+	 */
+	public FastInfosetBenchmark()
+	{
+		super();
+		iterations = DEFAULT_FASTINFOSET_ITERATIONS;
+		warmUpIterations = DEFAULT_FASTINFOSET_WARM_UP_ITERATIONS;
+		inputFactory = XMLInputFactory.newInstance();
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD,Boolean.FALSE);
+		inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,Boolean.FALSE);
+		outputFactory = XMLOutputFactory.newInstance();
+	}
+
+	/**
+	 * Parse the -observations argument.
+	 */
+	protected int parseArgument(String args[],int index) throws IllegalArgumentException
+	{
+		if(args[index].equals("-observations"))
+		{
+			observationCountList.add(Integer.valueOf(parseInt(args,index)));
+			return index+1;
+		}
+		return super.parseArgument(args,index);
+	}
+
+	/**
+	 * For each document size and form, print the textual and Fast Infoset sizes, check the Fast Infoset bytes
+	 * read back as the text does, and time serializing and parsing both encodings.
+	 * @return true if FastInfoset.jar is in the CLASSPATH, and every form read back correctly.
+	 */
+	public boolean run() throws Exception
+	{
+		boolean passed = true;
+
+		try
+		{
+			Class.forName(FASTINFOSET_CLASS_NAME);
+		}
+		catch(ClassNotFoundException e)
+		{
+			System.out.println("fastinfoset: "+FASTINFOSET_CLASS_NAME+
+					   " not found, add FastInfoset.jar (from the jaxws-ri) to the CLASSPATH.");
+			return false;
+		}
+		if(observationCountList.size() == 0)
+		{
+			for(int i = 0; i < DEFAULT_OBSERVATION_COUNTS.length; i++)
+				observationCountList.add(Integer.valueOf(DEFAULT_OBSERVATION_COUNTS[i]));
+		}
+		for(int i = 0; i < observationCountList.size(); i++)
+		{
+			int observationCount = observationCountList.get(i).intValue();
+			String documentString = createScoreDocument("benchmark_user",observationCount);
+			StringBuilder sb = new StringBuilder();
+
+			sb.append(HttpLoadBenchmark.SOAP_PREFIX);
+			sb.append("<ns2:handle_rtml xmlns:ns2=\"http://node_agent2.estar.org/\"><arg0>");
+			escape(documentString,sb);
+			sb.append("</arg0></ns2:handle_rtml>");
+			sb.append(HttpLoadBenchmark.SOAP_SUFFIX);
+			passed &= run("fastinfoset.envelope observations="+observationCount,sb.toString().getBytes("UTF-8"));
+			passed &= run("fastinfoset.document observations="+observationCount,documentString.getBytes("UTF-8"));
+		}
+		return passed;
+	}
+
+	/**
+	 * Print the sizes of one form in both encodings, check it reads back, and time serializing and parsing it.
+	 * @param name The name of the form, printed with the results.
+	 * @param text The form as textual XML.
+	 * @return true if the Fast Infoset bytes read back as the same events as the text.
+	 * @exception Exception Thrown if the text cannot be read, or either encoding written.
+	 */
+	protected boolean run(String name,final byte text[]) throws Exception
+	{
+		final byte fastInfoset[] = serialize(text,true);
+		byte expected[] = serialize(text,false);
+		byte actual[] = null;
+		boolean passed;
+
+		System.out.println(name+": text="+text.length+" bytes fastinfoset="+fastInfoset.length+" bytes ("+
+				   format((100.0*fastInfoset.length)/text.length)+"% of text)");
+		actual = copy(new StAXDocumentParser(new ByteArrayInputStream(fastInfoset)),false);
+		passed = Arrays.equals(expected,actual);
+		if(passed)
+			System.out.println(name+".check: passed");
+		else
+		{
+			System.out.println(name+".check: FAILED Fast Infoset read back as "+actual.length+
+					   " bytes of text, expected "+expected.length);
+		}
+		time(name+" serialize.text",new Task()
+		{
+			public void run(int iteration) throws Exception
+			{
+				serialize(text,false);
+			}
+		});
+		time(name+" serialize.fastinfoset",new Task()
+		{
+			public void run(int iteration) throws Exception
+			{
+				serialize(text,true);
+			}
+		});
+		time(name+" parse.text",new Task()
+		{
+			public void run(int iteration) throws Exception
+			{
+				parse(inputFactory.createXMLStreamReader(new ByteArrayInputStream(text)));
+			}
+		});
+		time(name+" parse.fastinfoset",new Task()
+		{
+			public void run(int iteration) throws Exception
+			{
+				parse(new StAXDocumentParser(new ByteArrayInputStream(fastInfoset)));
+			}
+		});
+		return passed;
+	}
+
+	/**
+	 * Read textual XML, and write it's events in the specified encoding.
+	 * @param text The textual XML.
+	 * @param fastInfoset true to write Fast Infoset, false to write textual XML.
+	 * @return The written bytes.
+	 * @exception XMLStreamException Thrown if the text cannot be read, or the events written.
+	 */
+	protected byte[] serialize(byte text[],boolean fastInfoset) throws XMLStreamException
+	{
+		return copy(inputFactory.createXMLStreamReader(new ByteArrayInputStream(text)),fastInfoset);
+	}
+
+	/**
+	 * Copy the events of a reader to a new writer in the specified encoding.
+	 * @param reader The reader, which is closed.
+	 * @param fastInfoset true to write Fast Infoset, false to write textual XML.
+	 * @return The written bytes.
+	 * @exception XMLStreamException Thrown if the events cannot be read or written.
+	 */
+	protected byte[] copy(XMLStreamReader reader,boolean fastInfoset) throws XMLStreamException
+	{
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		XMLStreamWriter writer = null;
+
+		if(fastInfoset)
+			writer = new StAXDocumentSerializer(outputStream);
+		else
+			writer = outputFactory.createXMLStreamWriter(outputStream,"UTF-8");
+		writer.writeStartDocument("UTF-8","1.0");
+		while(reader.hasNext())
+		{
+			switch(reader.next())
+			{
+				case XMLStreamConstants.START_ELEMENT:
+					writer.writeStartElement(nullToEmpty(reader.getPrefix()),reader.getLocalName(),
+								 nullToEmpty(reader.getNamespaceURI()));
+					for(int i = 0; i < reader.getNamespaceCount(); i++)
+					{
+						if(reader.getNamespacePrefix(i) == null)
+							writer.writeDefaultNamespace(reader.getNamespaceURI(i));
+						else
+							writer.writeNamespace(reader.getNamespacePrefix(i),reader.getNamespaceURI(i));
+					}
+					for(int i = 0; i < reader.getAttributeCount(); i++)
+					{
+						writer.writeAttribute(nullToEmpty(reader.getAttributePrefix(i)),
+								      nullToEmpty(reader.getAttributeNamespace(i)),
+								      reader.getAttributeLocalName(i),reader.getAttributeValue(i));
+					}
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					writer.writeEndElement();
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					writer.writeCharacters(reader.getTextCharacters(),reader.getTextStart(),
+							       reader.getTextLength());
+					break;
+				case XMLStreamConstants.COMMENT:
+					writer.writeComment(reader.getText());
+					break;
+				case XMLStreamConstants.PROCESSING_INSTRUCTION:
+					writer.writeProcessingInstruction(reader.getPITarget(),reader.getPIData());
+					break;
+				default:
+					break;
+			}
+		}
+		reader.close();
+		writer.writeEndDocument();
+		writer.close();
+		return outputStream.toByteArray();
+	}
+
+	/**
+	 * Read all the events of a reader.
+	 * @param reader The reader, which is closed.
+	 * @return The number of characters of text content read, so the work is not optimised away.
+	 * @exception XMLStreamException Thrown if the events cannot be read.
+	 */
+	protected static int parse(XMLStreamReader reader) throws XMLStreamException
+	{
+		int count = 0;
+
+		while(reader.hasNext())
+		{
+			if(reader.next() == XMLStreamConstants.CHARACTERS)
+				count += reader.getTextLength();
+		}
+		reader.close();
+		return count;
+	}
+
+	/**
+	 * Return an empty string instead of null, as the StAX writers need for prefixes and namespace URIs.
+	 * @param value The value.
+	 * @return The value, or an empty string if it is null.
+	 */
+	protected static String nullToEmpty(String value)
+	{
+		if(value == null)
+			return "";
+		return value;
+	}
+
+	/**
+	 * Print the benchmark specific arguments.
+	 */
+	public void help()
+	{
+		System.err.println("\t[-observations <n> ...]");
+		System.err.println("\tPrints the size of the handle_rtml request and the RTML document, and times "+
+				   "serializing and parsing them, as text and Fast Infoset, for score documents with n "+
+				   "observations (default 1, 100 and 1000).");
+	}
+}
@@ -0,0 +1,495 @@
+package org.estar.node_agent2.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.rmi.Remote;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.ExportException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.estar.node_agent2.NodeAgentRestServlet;
+
+import org.estar.tea.EmbeddedAgentRequestHandler;
+
+/**
+ * A load test of a running Node Agent over HTTP. -threads client threads each send requests to the -url endpoint
+ * as fast as the replies come back (over keep-alive connections), so the number of requests in flight is the
+ * number of threads. The request is a handle_rtml SOAP message containing the -document (a ping if no document is
+ * specified), or with -rest the raw document POSTed to the /rtml endpoint.
+ * <p>
+ * With -tea_name, the benchmark stands in for the TEA: it binds an EmbeddedAgentRequestHandler under that name in the
+ * RMI registry on this machine (creating the registry if there is none), which takes -tea_delay milliseconds
+ * (default 1000) to reply to each document, returning the document itself. The node agent's tea.hostname and
+ * tea.request.handler.rmi.name must point at it. The peak number of TEA calls in flight at once is printed, as well
+ * as the peak number of requests in flight. With more threads than tomcat's connector maxThreads, the TEA calls in
+ * flight through /node_agent stop rising at the connector thread count, whilst through /node_agent_async they keep
+ * rising up to rtml.async.parallelism (the cap on TEA calls in flight), with further requests queued (up to
+ * rtml.async.queue.size) or rejected as busy (5xx).
+ * <p>
+ * Running the same document and -threads against /node_agent, and with -rest against /rtml, on the same machine
+ * compares the requests per second of the SOAP and plain HTTP endpoints.
+ * <p>
+ * -bad_password_percent sends that percentage of the requests with a wrong password, as a malicious load mix. Each
+ * wrong password is different, as in a brute-force or credential stuffing attack, so none can be rejected as a repeat
+ * of an earlier one. They are sent for -bad_username (default -username), and come at the end of each 100 requests,
+ * so the good requests' credentials are verified (and cached) first; otherwise the lockout after a failed password
+ * would reject the good requests for the same username too. The mean latency of the bad requests is printed
+ * separately, showing how cheaply they are rejected (the authentication filter rejects them before the SOAP body is
+ * read, without hashing whilst the username is locked out), and any that were accepted are counted as failures.
+ * <p>
+ * The rate and mean latency of all requests, and the number of replies with each HTTP status class, are printed.
+ * @author cjm
+ * @see org.estar.node_agent2.NodeAgentAsyncWebServiceImpl
+ * @see org.estar.node_agent2.messaging.RMITeaConnectionHandler
+ * @see org.estar.node_agent2.NodeAgentRestServlet
+ * @see org.estar.node_agent2.filter.AuthenticationFilter
+ */
+public class HttpLoadBenchmark extends Benchmark
+{
+	/**
+	 * The default number of requests per thread.
+	 */
+	public static final int DEFAULT_LOAD_ITERATIONS = 200;
+	/**
+	 * The default number of warm-up requests per thread.
+	 */
+	public static final int DEFAULT_LOAD_WARM_UP_ITERATIONS = 10;
+	/**
+	 * The connect and read timeout, in milliseconds.
+	 */
+	public static final int TIMEOUT = 60000;
+	/**
+	 * The start of a SOAP request.
+	 */
+	public static final String SOAP_PREFIX = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"+
+		"<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\"><S:Body>";
+	/**
+	 * The end of a SOAP request.
+	 */
+	public static final String SOAP_SUFFIX = "</S:Body></S:Envelope>";
+	/**
+	 * The default time the stand-in TEA takes to reply to each document, in milliseconds.
+	 */
+	public static final int DEFAULT_TEA_DELAY = 1000;
+	/**
+	 * The URL of the endpoint under test.
+	 */
+	protected String urlString = null;
+	/**
+	 * The username sent in the Username header.
+	 */
+	protected String username = null;
+	/**
+	 * The password sent in the Password header.
+	 */
+	protected String password = null;
+	/**
+	 * The filename of the RTML document to send, or null to send pings.
+	 */
+	protected String documentFileName = null;
+	/**
+	 * Whether to POST the raw document (the /rtml endpoint), rather than a SOAP message.
+	 */
+	protected boolean rest = false;
+	/**
+	 * The percentage of requests sent with a wrong password.
+	 */
+	protected int badPasswordPercent = 0;
+	/**
+	 * The username the wrong passwords are sent for, or null to use the username.
+	 */
+	protected String badUsername = null;
+	/**
+	 * The name the stand-in TEA is bound under in the RMI registry, or null to not stand in for the TEA.
+	 */
+	protected String teaName = null;
+	/**
+	 * The time the stand-in TEA takes to reply to each document, in milliseconds.
+	 */
+	protected int teaDelay = DEFAULT_TEA_DELAY;
+	/**
+	 * The number of calls to the stand-in TEA currently in flight.
+	 */
+	protected AtomicInteger teaInFlightCount = new AtomicInteger(0);
+	/**
+	 * The largest number of calls to the stand-in TEA in flight at once.
+	 */
+	protected AtomicInteger maxTeaInFlightCount = new AtomicInteger(0);
+	/**
+	 * The number of calls to the stand-in TEA.
+	 */
+	protected AtomicLong teaCallCount = new AtomicLong(0);
+	/**
+	 * The request body.
+	 */
+	protected byte requestBody[] = null;
+	/**
+	 * The number of requests currently in flight.
+	 */
+	protected AtomicInteger inFlightCount = new AtomicInteger(0);
+	/**
+	 * The largest number of requests in flight at once.
+	 */
+	protected AtomicInteger maxInFlightCount = new AtomicInteger(0);
+	/**
+	 * The number of replies in each HTTP status class (index 1 to 5), index 0 counts I/O failures.
+	 */
+	protected AtomicLongArray statusCounts = new AtomicLongArray(6);
+	/**
+	 * The number of requests sent with a wrong password.
+	 */
+	protected AtomicLong badRequestCount = new AtomicLong(0);
+	/**
+	 * The total time taken by the requests sent with a wrong password, in nanoseconds.
+	 */
+	protected AtomicLong badRequestTime = new AtomicLong(0);
+	/**
+	 * The number of requests sent with a wrong password that were accepted (a 2xx status).
+	 */
+	protected AtomicLong badRequestAcceptedCount = new AtomicLong(0);
+	/**
+	 * The number of wrong passwords generated, used to make each one different.
+	 */
+	protected AtomicLong badPasswordSequence = new AtomicLong(0);
+
+	/**
+	 * Constructor. Sets the default number of iterations.
+	 * @see #DEFAULT_LOAD_ITERATIONS
+	 * @see #DEFAULT_LOAD_WARM_UP_ITERATIONS
+	 */
+	public HttpLoadBenchmark()
+	{
+		super();
+		iterations = DEFAULT_LOAD_ITERATIONS;
+		warmUpIterations = DEFAULT_LOAD_WARM_UP_ITERATIONS;
+	}
+
+	/**
+	 * Parse the load test arguments.
+	 */
+	protected int parseArgument(String args[],int index) throws IllegalArgumentException
+	{
+		if(args[index].equals("-url"))
+		{
+			urlString = getValue(args,index);
+			return index+1;
+		}
+		else if(args[index].equals("-username"))
+		{
+			username = getValue(args,index);
+			return index+1;
+		}
+		else if(args[index].equals("-password"))
+		{
+			password = getValue(args,index);
+			return index+1;
+		}
+		else if(args[index].equals("-document"))
+		{
+			documentFileName = getValue(args,index);
+			return index+1;
+		}
+		else if(args[index].equals("-rest"))
+		{
+			rest = true;
+			return index;
+		}
+		else if(args[index].equals("-bad_password_percent"))
+		{
+			badPasswordPercent = parseInt(args,index);
+			return index+1;
+		}
+		else if(args[index].equals("-bad_username"))
+		{
+			badUsername = getValue(args,index);
+			return index+1;
+		}
+		else if(args[index].equals("-tea_name"))
+		{
+			teaName = getValue(args,index);
+			return index+1;
+		}
+		else if(args[index].equals("-tea_delay"))
+		{
+			teaDelay = parseInt(args,index);
+			return index+1;
+		}
+		return super.parseArgument(args,index);
+	}
+
+	/**
+	 * Create the request body, start the stand-in TEA (if -tea_name was specified), run the load test, and print
+	 * the results.
+	 * @return true if the test ran, no requests failed with an I/O error, and no request with a wrong password
+	 *         was accepted.
+	 */
+	public boolean run() throws Exception
+	{
+		StringBuilder sb = new StringBuilder();
+		String documentString = null;
+		Registry registry[] = new Registry[1];
+		Remote tea = null;
+
+		if((urlString == null) || (username == null) || (password == null))
+		{
+			System.out.println("load: -url, -username and -password must be specified.");
+			return false;
+		}
+		if(documentFileName != null)
+			documentString = new String(loadFile(documentFileName),"UTF-8");
+		if(rest)
+		{
+			if(documentString == null)
+			{
+				System.out.println("load: -rest needs a -document.");
+				return false;
+			}
+			requestBody = documentString.getBytes("UTF-8");
+		}
+		else
+		{
+			sb.append(SOAP_PREFIX);
+			if(documentString != null)
+			{
+				sb.append("<ns2:handle_rtml xmlns:ns2=\"http://node_agent2.estar.org/\"><arg0>");
+				escape(documentString,sb);
+				sb.append("</arg0></ns2:handle_rtml>");
+			}
+			else
+				sb.append("<ns2:ping xmlns:ns2=\"http://node_agent2.estar.org/\"/>");
+			sb.append(SOAP_SUFFIX);
+			requestBody = sb.toString().getBytes("UTF-8");
+		}
+		if(teaName != null)
+			tea = startTea(registry);
+		try
+		{
+			timeConcurrent("load "+urlString+(rest ? " rest" : " soap")+" bytes="+requestBody.length,new Task()
+			{
+				public void run(int iteration) throws Exception
+				{
+					sendRequest(iteration);
+				}
+			});
+		}
+		finally
+		{
+			if(tea != null)
+				stopTea(registry[0],tea);
+		}
+		System.out.println("load: maxInFlight="+maxInFlightCount.get()+" ioFailures="+statusCounts.get(0)+
+				   " 2xx="+statusCounts.get(2)+" 3xx="+statusCounts.get(3)+" 4xx="+statusCounts.get(4)+
+				   " 5xx="+statusCounts.get(5));
+		if(tea != null)
+		{
+			System.out.println("load: teaCalls="+teaCallCount.get()+" maxTeaInFlight="+maxTeaInFlightCount.get()+
+					   " teaDelay="+teaDelay+" ms");
+		}
+		if(badRequestCount.get() > 0)
+		{
+			System.out.println("load: badPasswordRequests="+badRequestCount.get()+" accepted="+
+					   badRequestAcceptedCount.get()+" latency="+
+					   format(((double)badRequestTime.get())/(badRequestCount.get()*1000.0))+" us/op");
+		}
+		return (statusCounts.get(0) == 0) && (badRequestAcceptedCount.get() == 0);
+	}
+
+	/**
+	 * Send one request, and read the whole reply, so the connection can be re-used.
+	 * @param iteration The iteration number, used to decide whether to send a wrong password.
+	 * @exception Exception Thrown if the URL is illegal.
+	 */
+	protected void sendRequest(int iteration) throws Exception
+	{
+		HttpURLConnection connection = null;
+		OutputStream outputStream = null;
+		boolean badPassword = (iteration % 100) >= (100-badPasswordPercent);
+		long startTime;
+		int status = 0;
+
+		startTime = System.nanoTime();
+		updateInFlightCount(inFlightCount.incrementAndGet());
+		try
+		{
+			connection = (HttpURLConnection)(new URL(urlString).openConnection());
+			connection.setConnectTimeout(TIMEOUT);
+			connection.setReadTimeout(TIMEOUT);
+			connection.setDoOutput(true);
+			connection.setRequestMethod("POST");
+			if(rest)
+				connection.setRequestProperty("Content-Type",NodeAgentRestServlet.RTML_CONTENT_TYPE);
+			else
+			{
+				connection.setRequestProperty("Content-Type","text/xml; charset=utf-8");
+				connection.setRequestProperty("SOAPAction","\"\"");
+			}
+			if(badPassword)
+			{
+				connection.setRequestProperty("Username",(badUsername != null) ? badUsername : username);
+				connection.setRequestProperty("Password",password+"-wrong"+badPasswordSequence.incrementAndGet());
+			}
+			else
+			{
+				connection.setRequestProperty("Username",username);
+				connection.setRequestProperty("Password",password);
+			}
+			connection.setFixedLengthStreamingMode(requestBody.length);
+			outputStream = connection.getOutputStream();
+			outputStream.write(requestBody);
+			outputStream.close();
+			status = connection.getResponseCode();
+			drain((status < 400) ? connection.getInputStream() : connection.getErrorStream());
+			statusCounts.incrementAndGet(Math.min(5,Math.max(1,status/100)));
+		}
+		catch(IOException e)
+		{
+			statusCounts.incrementAndGet(0);
+		}
+		finally
+		{
+			inFlightCount.decrementAndGet();
+		}
+		if(badPassword)
+		{
+			badRequestCount.incrementAndGet();
+			badRequestTime.addAndGet(System.nanoTime()-startTime);
+			if((status >= 200) && (status < 300))
+				badRequestAcceptedCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Update the largest number of requests in flight at once.
+	 * @param count The current number of requests in flight.
+	 * @see #maxInFlightCount
+	 */
+	protected void updateInFlightCount(int count)
+	{
+		updateMax(maxInFlightCount,count);
+	}
+
+	/**
+	 * Update a largest count.
+	 * @param maxCount The largest count so far.
+	 * @param count The current count.
+	 */
+	protected static void updateMax(AtomicInteger maxCount,int count)
+	{
+		int max = maxCount.get();
+
+		while((count > max) && (maxCount.compareAndSet(max,count) == false))
+			max = maxCount.get();
+	}
+
+	/**
+	 * Start the stand-in TEA. An EmbeddedAgentRequestHandler (a dynamic proxy, so it implements whatever methods
+	 * the interface has) is exported and bound under teaName, in the RMI registry on this machine, which is created
+	 * if there is none. Each call sleeps for teaDelay milliseconds, counting the calls in flight, and returns the
+	 * document it was passed.
+	 * @param registry An array, the first element of which is set to the registry.
+	 * @return The exported stand-in TEA.
+	 * @exception Exception Thrown if the registry cannot be created or found, or the TEA bound.
+	 */
+	protected Remote startTea(Registry registry[]) throws Exception
+	{
+		Remote tea = null;
+
+		tea = (Remote)Proxy.newProxyInstance(EmbeddedAgentRequestHandler.class.getClassLoader(),
+						     new Class<?>[] {EmbeddedAgentRequestHandler.class},new InvocationHandler()
+		{
+			public Object invoke(Object proxy,Method method,Object args[]) throws Throwable
+			{
+				if(method.getDeclaringClass() == Object.class)
+				{
+					if(method.getName().equals("equals"))
+						return Boolean.valueOf(proxy == args[0]);
+					else if(method.getName().equals("hashCode"))
+						return Integer.valueOf(System.identityHashCode(proxy));
+					return "HttpLoadBenchmark stand-in TEA";
+				}
+				teaCallCount.incrementAndGet();
+				updateMax(maxTeaInFlightCount,teaInFlightCount.incrementAndGet());
+				try
+				{
+					Thread.sleep(teaDelay);
+				}
+				finally
+				{
+					teaInFlightCount.decrementAndGet();
+				}
+				if((args != null) && (args.length > 0) && method.getReturnType().isInstance(args[0]))
+					return args[0];
+				return null;
+			}
+		});
+		try
+		{
+			registry[0] = LocateRegistry.createRegistry(Registry.REGISTRY_PORT);
+		}
+		catch(ExportException e)
+		{
+			// there is already a registry on this machine
+			registry[0] = LocateRegistry.getRegistry();
+		}
+		registry[0].rebind(teaName,UnicastRemoteObject.exportObject(tea,0));
+		System.out.println("load: stand-in TEA bound as "+teaName+", replying after "+teaDelay+" ms.");
+		return tea;
+	}
+
+	/**
+	 * Unbind and unexport the stand-in TEA.
+	 * @param registry The registry it was bound in.
+	 * @param tea The stand-in TEA.
+	 * @exception Exception Thrown if the TEA cannot be unbound.
+	 */
+	protected void stopTea(Registry registry,Remote tea) throws Exception
+	{
+		registry.unbind(teaName);
+		UnicastRemoteObject.unexportObject(tea,true);
+	}
+
+	/**
+	 * Read and close a reply stream.
+	 * @param inputStream The stream, which may be null.
+	 * @exception IOException Thrown if reading the stream fails.
+	 */
+	protected static void drain(InputStream inputStream) throws IOException
+	{
+		byte buffer[] = new byte[8192];
+
+		if(inputStream == null)
+			return;
+		try
+		{
+			while(inputStream.read(buffer) > -1)
+				;
+		}
+		finally
+		{
+			inputStream.close();
+		}
+	}
+
+	/**
+	 * Print the benchmark specific arguments.
+	 */
+	public void help()
+	{
+		System.err.println("\t-url <endpoint url> -username <username> -password <password> [-document <filename>] "+
+				   "[-rest] [-bad_password_percent <n> [-bad_username <username>]] "+
+				   "[-tea_name <rmi name> [-tea_delay <ms>]]");
+		System.err.println("\tSends handle_rtml (or ping) requests from -threads threads at once, and prints the "+
+				   "rate, latency, peak requests in flight and reply status counts. With -tea_name it also "+
+				   "stands in for the TEA, and prints the peak TEA calls in flight.");
+	}
+}
@@ -0,0 +1,115 @@
+package org.estar.node_agent2.benchmark;
+
+import java.util.Arrays;
+
+/**
+ * Command line entry point for the Node Agent benchmarks (see scripts/nodeagentbenchmark):
+ * <pre>
+ * java org.estar.node_agent2.benchmark.NodeAgentBenchmark &lt;benchmark&gt; [-iterations &lt;n&gt;] [-warm_up &lt;n&gt;]
+ *	[-threads &lt;n&gt;] [benchmark arguments]
+ * </pre>
+ * The benchmarks that use the Node Agent configuration read it from the nodeagent.config.dir system property
+ * directory (/etc/nodeagent by default).
+ * The exit code is 0 if the benchmark ran and it's checks passed, 1 if a check failed, and 2 if it could not be run.
+ * @author cjm
+ * @see Benchmark
+ */
+public class NodeAgentBenchmark
+{
+	/**
+	 * The names of the benchmarks, in the same order as createBenchmark tests for them.
+	 */
+	public static final String BENCHMARK_NAMES[] = {"alias","catalog","fastinfoset","load","payload","preclassify","replay","reply","rewrite","startup"};
+
+	/**
+	 * Create the benchmark with the specified name.
+	 * @param name The benchmark name.
+	 * @return The benchmark, or null if the name is not known.
+	 * @see #BENCHMARK_NAMES
+	 */
+	public static Benchmark createBenchmark(String name)
+	{
+		if(name.equals("alias"))
+			return new AliasIndexBenchmark();
+		else if(name.equals("catalog"))
+			return new CatalogBenchmark();
+		else if(name.equals("fastinfoset"))
+			return new FastInfosetBenchmark();
+		else if(name.equals("load"))
+			return new HttpLoadBenchmark();
+		else if(name.equals("payload"))
+			return new PayloadMemoryBenchmark();
+		else if(name.equals("preclassify"))
+			return new PreClassifierBenchmark();
+		else if(name.equals("replay"))
+			return new ReplayGuardBenchmark();
+		else if(name.equals("reply"))
+			return new ReplySerializerBenchmark();
+		else if(name.equals("rewrite"))
+			return new RewriteHistoryBenchmark();
+		else if(name.equals("startup"))
+			return new StartupBenchmark();
+		return null;
+	}
+
+	/**
+	 * Print the command line usage.
+	 */
+	public static void help()
+	{
+		Benchmark benchmark = null;
+
+		System.err.println("java org.estar.node_agent2.benchmark.NodeAgentBenchmark <benchmark> [-iterations <n>] "+
+				   "[-warm_up <n>] [-threads <n>] [benchmark arguments]");
+		for(int i = 0; i < BENCHMARK_NAMES.length; i++)
+		{
+			benchmark = createBenchmark(BENCHMARK_NAMES[i]);
+			System.err.println(BENCHMARK_NAMES[i]+":");
+			benchmark.help();
+		}
+	}
+
+	/**
+	 * The NodeAgentBenchmark program entry point.
+	 * @param args Command line arguments, the benchmark name followed by it's arguments.
+	 */
+	public static void main(String[] args)
+	{
+		Benchmark benchmark = null;
+		boolean passed = false;
+
+		if((args.length < 1) || args[0].equals("-help"))
+		{
+			help();
+			System.exit(2);
+		}
+		benchmark = createBenchmark(args[0]);
+		if(benchmark == null)
+		{
+			System.err.println("NodeAgentBenchmark:Unknown benchmark:"+args[0]);
+			help();
+			System.exit(2);
+		}
+		try
+		{
+			benchmark.parseArguments(Arrays.copyOfRange(args,1,args.length));
+		}
+		catch(IllegalArgumentException e)
+		{
+			System.err.println("NodeAgentBenchmark:"+args[0]+":"+e.getMessage());
+			benchmark.help();
+			System.exit(2);
+		}
+		try
+		{
+			passed = benchmark.run();
+		}
+		catch(Exception e)
+		{
+			System.err.println("NodeAgentBenchmark:"+args[0]+" failed:"+e);
+			e.printStackTrace();
+			System.exit(2);
+		}
+		System.exit(passed ? 0 : 1);
+	}
+}
@@ -0,0 +1,323 @@
+package org.estar.node_agent2.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import org.estar.node_agent2.util.RTMLParserPool;
+import org.estar.node_agent2.util.RTMLUtil;
+
+import org.estar.rtml.RTMLDocument;
+
+/**
+ * Compares the memory allocated per handle_rtml request by the RPC endpoint (/node_agent) and the streaming
+ * endpoint (/node_agent_stream), for score documents of increasing size. The request side of each path is
+ * reproduced without the SOAP stack and the TEA: the handle_rtml payload is read with SAX, and the parsed document
+ * is serialized as the reply.
+ * <ul>
+ * <li>RPC: the argument is bound to a String (as JAX-WS does), and parsed as a String. The reply is
+ *     serialized to a String and escaped into a second String for the response.
+ * <li>Streaming: the argument is written into a UTF-8 byte buffer, and parsed as a stream. The reply is serialized
+ *     to a String and escaped as it is written to the response.
+ * </ul>
+ * The bytes allocated per request are printed for each path, also as a multiple of the document size.
+ * @author cjm
+ * @see org.estar.node_agent2.NodeAgentStreamingWebServiceImpl
+ * @see org.estar.node_agent2.NodeAgentWebServiceImpl#handle_rtml
+ */
+public class PayloadMemoryBenchmark extends Benchmark
+{
+	/**
+	 * The default numbers of observations in the benchmark documents (up to several MB).
+	 */
+	public static final int DEFAULT_OBSERVATION_COUNTS[] = {100,1000,10000};
+	/**
+	 * The default number of measured iterations, per document.
+	 */
+	public static final int DEFAULT_PAYLOAD_ITERATIONS = 20;
+	/**
+	 * The default number of warm-up iterations, per document.
+	 */
+	public static final int DEFAULT_PAYLOAD_WARM_UP_ITERATIONS = 5;
+	/**
+	 * The name of the handle_rtml argument element.
+	 */
+	public static final String ARGUMENT_NAME = "arg0";
+	/**
+	 * The numbers of observations in the benchmark documents.
+	 */
+	protected List<Integer> observationCountList = new ArrayList<Integer>();
+	/**
+	 * The SAX parser factory used to read the payloads.
+	 */
+	protected SAXParserFactory saxParserFactory = null;
+
+	/**
+	 * Constructor. Sets the default number of iterations, and creates the SAX parser factory.
+	 * @see #DEFAULT_PAYLOAD_ITERATIONS
+	 * @see #DEFAULT_PAYLOAD_WARM_UP_ITERATIONS
+	 */
+	public PayloadMemoryBenchmark()
+	{
+		super();
+		iterations = DEFAULT_PAYLOAD_ITERATIONS;
+		warmUpIterations = DEFAULT_PAYLOAD_WARM_UP_ITERATIONS;
+		saxParserFactory = SAXParserFactory.newInstance();
+		saxParserFactory.setNamespaceAware(true);
+	}
+
+	/**
+	 * Parse the -observations argument.
+	 */
+	protected int parseArgument(String args[],int index) throws IllegalArgumentException
+	{
+		if(args[index].equals("-observations"))
+		{
+			observationCountList.add(Integer.valueOf(parseInt(args,index)));
+			return index+1;
+		}
+		return super.parseArgument(args,index);
+	}
+
+	/**
+	 * For each document size, time both paths and print the bytes they allocate.
+	 * @return true.
+	 */
+	public boolean run() throws Exception
+	{
+		if(observationCountList.size() == 0)
+		{
+			for(int i = 0; i < DEFAULT_OBSERVATION_COUNTS.length; i++)
+				observationCountList.add(Integer.valueOf(DEFAULT_OBSERVATION_COUNTS[i]));
+		}
+		for(int i = 0; i < observationCountList.size(); i++)
+		{
+			int observationCount = observationCountList.get(i).intValue();
+			String documentString = createScoreDocument("benchmark_user",observationCount);
+			final byte payload[] = createPayload(documentString);
+			long documentLength = documentString.getBytes("UTF-8").length;
+			String name = "payload observations="+observationCount+" bytes="+documentLength;
+
+			time(name+" rpc",new Task()
+			{
+				public void run(int iteration) throws Exception
+				{
+					handleString(payload);
+				}
+			});
+			System.out.println(name+" rpc: allocated="+format(((double)allocatedBytesPerIteration)/documentLength)+
+					   " x document size");
+			time(name+" stream",new Task()
+			{
+				public void run(int iteration) throws Exception
+				{
+					handleStream(payload);
+				}
+			});
+			System.out.println(name+" stream: allocated="+
+					   format(((double)allocatedBytesPerIteration)/documentLength)+" x document size");
+		}
+		return true;
+	}
+
+	/**
+	 * Create the SOAP body payload of a handle_rtml request.
+	 * @param documentString The RTML document.
+	 * @return The payload, in UTF-8.
+	 * @exception IOException Thrown if the payload cannot be encoded.
+	 */
+	protected static byte[] createPayload(String documentString) throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("<ns2:handle_rtml xmlns:ns2=\"http://node_agent2.estar.org/\"><"+ARGUMENT_NAME+">");
+		escape(documentString,sb);
+		sb.append("</"+ARGUMENT_NAME+"></ns2:handle_rtml>");
+		return sb.toString().getBytes("UTF-8");
+	}
+
+	/**
+	 * The RPC path: bind the argument to a String, parse it, and escape the reply into a String.
+	 * @param payload The request payload.
+	 * @return The response payload length, so the work is not optimised away.
+	 * @exception Exception Thrown if the payload cannot be read, or the document parsed or serialized.
+	 */
+	protected int handleString(byte payload[]) throws Exception
+	{
+		final StringBuilder argument = new StringBuilder();
+		SAXParser saxParser = saxParserFactory.newSAXParser();
+		RTMLDocument document = null;
+		StringBuilder response = new StringBuilder();
+		String replyString = null;
+
+		saxParser.parse(new ByteArrayInputStream(payload),new ArgumentHandler()
+		{
+			public void characters(char ch[],int start,int length)
+			{
+				if(inArgument)
+					argument.append(ch,start,length);
+			}
+		});
+		document = RTMLParserPool.getInstance(false).parse(argument.toString());
+		replyString = RTMLUtil.getRTMLAsString(document);
+		response.append("<ns2:handle_rtmlResponse xmlns:ns2=\"http://node_agent2.estar.org/\"><return>");
+		escape(replyString,response);
+		response.append("</return></ns2:handle_rtmlResponse>");
+		return response.toString().length();
+	}
+
+	/**
+	 * The streaming path: write the argument into a UTF-8 byte buffer, parse it as a stream, and escape the
+	 * reply as it is written.
+	 * @param payload The request payload.
+	 * @return The number of response characters written, so the work is not optimised away.
+	 * @exception Exception Thrown if the payload cannot be read, or the document parsed or serialized.
+	 */
+	protected int handleStream(byte payload[]) throws Exception
+	{
+		final DocumentBuffer buffer = new DocumentBuffer(8192);
+		final Writer writer = new OutputStreamWriter(buffer,"UTF-8");
+		SAXParser saxParser = saxParserFactory.newSAXParser();
+		RTMLDocument document = null;
+		String replyString = null;
+		CountingWriter response = new CountingWriter();
+
+		saxParser.parse(new ByteArrayInputStream(payload),new ArgumentHandler()
+		{
+			public void characters(char ch[],int start,int length)
+			{
+				if(inArgument)
+				{
+					try
+					{
+						writer.write(ch,start,length);
+					}
+					catch(IOException e)
+					{
+						throw new RuntimeException(e);
+					}
+				}
+			}
+		});
+		writer.flush();
+		document = RTMLParserPool.getInstance(false).parse(buffer.getInputStream());
+		replyString = RTMLUtil.getRTMLAsString(document);
+		response.write("<ns2:handle_rtmlResponse xmlns:ns2=\"http://node_agent2.estar.org/\"><return>");
+		for(int i = 0; i < replyString.length(); i++)
+		{
+			char ch = replyString.charAt(i);
+
+			if(ch == '<')
+				response.write("&lt;");
+			else if(ch == '>')
+				response.write("&gt;");
+			else if(ch == '&')
+				response.write("&amp;");
+			else
+				response.write(ch);
+		}
+		response.write("</return></ns2:handle_rtmlResponse>");
+		return response.count;
+	}
+
+	/**
+	 * SAX handler tracking whether the parser is inside the handle_rtml argument element.
+	 */
+	protected static class ArgumentHandler extends DefaultHandler
+	{
+		/**
+		 * Whether the parser is inside the argument element.
+		 */
+		protected boolean inArgument = false;
+
+		public void startElement(String uri,String localName,String qName,Attributes attributes)
+		{
+			if(localName.equals(ARGUMENT_NAME))
+				inArgument = true;
+		}
+
+		public void endElement(String uri,String localName,String qName)
+		{
+			if(localName.equals(ARGUMENT_NAME))
+				inArgument = false;
+		}
+	}
+
+	/**
+	 * A byte buffer whose contents can be read without copying them, as the streaming endpoint's buffer is.
+	 */
+	protected static class DocumentBuffer extends ByteArrayOutputStream
+	{
+		/**
+		 * Constructor.
+		 * @param size The initial buffer size.
+		 */
+		public DocumentBuffer(int size)
+		{
+			super(size);
+		}
+
+		/**
+		 * Get a stream reading the buffer's contents, without copying them.
+		 * @return The stream.
+		 */
+		public ByteArrayInputStream getInputStream()
+		{
+			return new ByteArrayInputStream(buf,0,count);
+		}
+	}
+
+	/**
+	 * A writer that discards what is written to it, standing in for the response stream.
+	 */
+	protected static class CountingWriter extends Writer
+	{
+		/**
+		 * The number of characters written.
+		 */
+		protected int count = 0;
+
+		public void write(char cbuf[],int off,int len)
+		{
+			count += len;
+		}
+
+		public void write(int ch)
+		{
+			count++;
+		}
+
+		public void write(String str)
+		{
+			count += str.length();
+		}
+
+		public void flush()
+		{
+		}
+
+		public void close()
+		{
+		}
+	}
+
+	/**
+	 * Print the benchmark specific arguments.
+	 */
+	public void help()
+	{
+		System.err.println("\t[-observations <n> ...]");
+		System.err.println("\tPrints the bytes allocated per handle_rtml request by the RPC and streaming "+
+				   "endpoints, for score documents with n observations (default 100, 1000 and 10000).");
+	}
+}
@@ -0,0 +1,143 @@
+package org.estar.node_agent2.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.estar.node_agent2.util.RTMLParserPool;
+import org.estar.node_agent2.util.RTMLPreClassification;
+import org.estar.node_agent2.util.RTMLPreClassifier;
+
+import org.estar.rtml.RTMLDocument;
+
+/**
+ * Compares the time taken to pre-classify a document (RTMLPreClassifier, a StAX scan of the document's prefix)
+ * with the time taken to parse it (RTMLParser, through the RTMLParserPool), for score documents with increasing
+ * numbers of observations. Before timing, the Contact user and Project found by the pre-classifier are checked
+ * against those of the parsed document.
+ * @author cjm
+ * @see org.estar.node_agent2.util.RTMLPreClassifier#classify(java.lang.String)
+ * @see org.estar.node_agent2.util.RTMLParserPool#parse(java.lang.String)
+ */
+public class PreClassifierBenchmark extends Benchmark
+{
+	/**
+	 * The default numbers of observations in the benchmark documents.
+	 */
+	public static final int DEFAULT_OBSERVATION_COUNTS[] = {1,100,1000};
+	/**
+	 * The Contact user of the benchmark documents.
+	 */
+	public static final String USER = "benchmark_user";
+	/**
+	 * The numbers of observations in the benchmark documents.
+	 */
+	protected List<Integer> observationCountList = new ArrayList<Integer>();
+	/**
+	 * Whether to also time validating parses (which need the entity catalog, or network access).
+	 */
+	protected boolean validate = false;
+
+	/**
+	 * Parse the -observations and -validate arguments.
+	 */
+	protected int parseArgument(String args[],int index) throws IllegalArgumentException
+	{
+		if(args[index].equals("-observations"))
+		{
+			observationCountList.add(Integer.valueOf(parseInt(args,index)));
+			return index+1;
+		}
+		else if(args[index].equals("-validate"))
+		{
+			validate = true;
+			return index;
+		}
+		return super.parseArgument(args,index);
+	}
+
+	/**
+	 * For each document size, check the pre-classification matches the parsed document, then time
+	 * pre-classification and parsing.
+	 * @return true if every pre-classification matched the parsed document.
+	 */
+	public boolean run() throws Exception
+	{
+		boolean passed = true;
+
+		if(observationCountList.size() == 0)
+		{
+			for(int i = 0; i < DEFAULT_OBSERVATION_COUNTS.length; i++)
+				observationCountList.add(Integer.valueOf(DEFAULT_OBSERVATION_COUNTS[i]));
+		}
+		for(int i = 0; i < observationCountList.size(); i++)
+		{
+			final int observationCount = observationCountList.get(i).intValue();
+			final String documentString = createScoreDocument(USER,observationCount);
+
+			passed &= check(observationCount,documentString);
+			time("preclassify.classify observations="+observationCount+" bytes="+documentString.length(),new Task()
+			{
+				public void run(int iteration) throws Exception
+				{
+					RTMLPreClassifier.classify(documentString);
+				}
+			});
+			time("preclassify.parse observations="+observationCount+" bytes="+documentString.length(),new Task()
+			{
+				public void run(int iteration) throws Exception
+				{
+					RTMLParserPool.getInstance(false).parse(documentString);
+				}
+			});
+			if(validate)
+			{
+				time("preclassify.parse.validating observations="+observationCount+" bytes="+
+				     documentString.length(),new Task()
+				{
+					public void run(int iteration) throws Exception
+					{
+						RTMLParserPool.getInstance(true).parse(documentString);
+					}
+				});
+			}
+		}
+		return passed;
+	}
+
+	/**
+	 * Check the pre-classification of a document matches the parsed document.
+	 * @param observationCount The number of observations in the document.
+	 * @param documentString The document.
+	 * @return true if the pre-classification is complete, and it's Contact user and Project match the parsed
+	 *         document's.
+	 * @exception Exception Thrown if the document cannot be parsed.
+	 */
+	protected boolean check(int observationCount,String documentString) throws Exception
+	{
+		RTMLPreClassification classification = RTMLPreClassifier.classify(documentString);
+		RTMLDocument document = RTMLParserPool.getInstance(false).parse(documentString);
+		String failure = null;
+
+		if(classification.isComplete() == false)
+			failure = "classification incomplete:"+classification;
+		else if(document.getContact().getUser().equals(classification.getContactUser()) == false)
+			failure = "Contact user "+classification.getContactUser()+" != "+document.getContact().getUser();
+		else if(document.getProject().getProject().equals(classification.getProject()) == false)
+			failure = "Project "+classification.getProject()+" != "+document.getProject().getProject();
+		if(failure != null)
+			System.out.println("preclassify.check observations="+observationCount+": FAILED "+failure);
+		else
+			System.out.println("preclassify.check observations="+observationCount+": passed "+classification);
+		return (failure == null);
+	}
+
+	/**
+	 * Print the benchmark specific arguments.
+	 */
+	public void help()
+	{
+		System.err.println("\t[-observations <n> ...] [-validate]");
+		System.err.println("\tTimes pre-classification against parsing of score documents with n observations "+
+				   "(default 1, 100 and 1000).");
+	}
+}
@@ -0,0 +1,334 @@
+package org.estar.node_agent2.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.estar.node_agent2.util.ReplayGuard;
+
+/**
+ * Measures the replay protection check (ReplayGuard.check) over a full replay window of requests at -rate requests
+ * per second (default 10000), i.e. rate*window unique nonces, all in one time bucket (the worst case for the Bloom
+ * filter). The check rate achieved by -threads threads is printed against the target rate, with the number of
+ * genuine (unique nonce) requests wrongly rejected as replays, the false positive rate of the full filter (measured
+ * with a further batch of unique nonces) against the expected (1-e^(-kn/m))^k, and the filter memory, which is
+ * fixed however many requests are checked. Before timing, a re-sent nonce and a stale timestamp are checked to be
+ * rejected. Then, so filter rotation is exercised, a guard with a ROTATION_WINDOW ms window is sent requests at the
+ * rate for -rotation_seconds (default 5), with timestamps spread up to half a window either side of the current
+ * time, so they fall in neighbouring buckets as the filters rotate. The benchmark fails if either false positive rate
+ * exceeds -max_false_positive_rate (default 10^-4).
+ * The ReplayGuard is built with -window, -false_positive_rate and -hashes (defaulting to those of ReplayGuard), its
+ * filter size derived from them and -rate as ReplayGuard does, or set by -bits; not from server.configuration.
+ * @author cjm
+ * @see org.estar.node_agent2.util.ReplayGuard#check
+ */
+public class ReplayGuardBenchmark extends Benchmark
+{
+	/**
+	 * The default target request rate, in requests per second.
+	 */
+	public static final int DEFAULT_RATE = (int)ReplayGuard.DEFAULT_EXPECTED_RATE;
+	/**
+	 * The default largest false positive rate, of the full filter or during rotation, for the benchmark to pass.
+	 */
+	public static final double DEFAULT_MAX_FALSE_POSITIVE_RATE = 1.0e-4;
+	/**
+	 * The default time requests are sent to the rotating guard, in seconds.
+	 */
+	public static final int DEFAULT_ROTATION_SECONDS = 5;
+	/**
+	 * The replay window (and bucket length) of the rotating guard, in milliseconds.
+	 */
+	public static final long ROTATION_WINDOW = 1000;
+	/**
+	 * The length of each paced slice of requests sent to the rotating guard, in milliseconds.
+	 */
+	public static final long ROTATION_SLICE = 10;
+	/**
+	 * The number of unique nonces used to measure the false positive rate of the full filter.
+	 */
+	public static final int PROBE_COUNT = 100000;
+	/**
+	 * The username the requests are checked for.
+	 */
+	public static final String USER = "benchmark_user";
+	/**
+	 * The target request rate, in requests per second.
+	 */
+	protected int rate = DEFAULT_RATE;
+	/**
+	 * The replay window, in milliseconds.
+	 */
+	protected long window = ReplayGuard.DEFAULT_WINDOW;
+	/**
+	 * The number of bits in each Bloom filter, or 0 to derive it from the window, rate and false positive rate.
+	 */
+	protected int bitCount = 0;
+	/**
+	 * The target false positive rate the filters are sized for.
+	 */
+	protected double falsePositiveRate = ReplayGuard.DEFAULT_FALSE_POSITIVE_RATE;
+	/**
+	 * The largest measured false positive rate for the benchmark to pass.
+	 */
+	protected double maxFalsePositiveRate = DEFAULT_MAX_FALSE_POSITIVE_RATE;
+	/**
+	 * The time requests are sent to the rotating guard, in seconds.
+	 */
+	protected int rotationSeconds = DEFAULT_ROTATION_SECONDS;
+	/**
+	 * The number of hashes (bit probes) per nonce.
+	 */
+	protected int hashCount = ReplayGuard.DEFAULT_FILTER_HASHES;
+	/**
+	 * The number of nonces sent so far, used to make each nonce unique.
+	 */
+	protected AtomicLong nonceCount = new AtomicLong(0);
+	/**
+	 * The number of unique nonces rejected as replays (false positives).
+	 */
+	protected AtomicLong falsePositiveCount = new AtomicLong(0);
+
+	/**
+	 * Constructor. The number of iterations defaults to 0, meaning a full replay window of requests at the
+	 * target rate, shared between the threads.
+	 */
+	public ReplayGuardBenchmark()
+	{
+		super();
+		iterations = 0;
+	}
+
+	/**
+	 * Parse the -rate, -window, -bits, -hashes, -false_positive_rate, -max_false_positive_rate and -rotation_seconds
+	 * arguments.
+	 */
+	protected int parseArgument(String args[],int index) throws IllegalArgumentException
+	{
+		if(args[index].equals("-rate"))
+		{
+			rate = parseInt(args,index);
+			return index+1;
+		}
+		else if(args[index].equals("-window"))
+		{
+			window = parseInt(args,index);
+			return index+1;
+		}
+		else if(args[index].equals("-bits"))
+		{
+			bitCount = parseInt(args,index);
+			return index+1;
+		}
+		else if(args[index].equals("-hashes"))
+		{
+			hashCount = parseInt(args,index);
+			return index+1;
+		}
+		else if(args[index].equals("-false_positive_rate"))
+		{
+			falsePositiveRate = parseDouble(args,index);
+			return index+1;
+		}
+		else if(args[index].equals("-max_false_positive_rate"))
+		{
+			maxFalsePositiveRate = parseDouble(args,index);
+			return index+1;
+		}
+		else if(args[index].equals("-rotation_seconds"))
+		{
+			rotationSeconds = parseInt(args,index);
+			return index+1;
+		}
+		return super.parseArgument(args,index);
+	}
+
+	/**
+	 * Check replays and stale timestamps are rejected, then time a full window of checks, and print the check
+	 * rate, the false positives, and the filter memory. Then check false positives stay low as the filters rotate.
+	 * @return true if replays and stale timestamps were rejected, the check rate reached the target rate, and
+	 *         the false positive rates were below the maximum.
+	 * @see #rotate
+	 */
+	public boolean run() throws Exception
+	{
+		final ReplayGuard replayGuard = new ReplayGuard(window,getBitCount(window),hashCount);
+		final String timestamp = Long.toString(System.currentTimeMillis());
+		long windowNonceCount = (rate*window)/1000L;
+		long probeFalsePositiveCount;
+		double checkRate,expectedFalsePositiveRate,probeFalsePositiveRate;
+		boolean passed;
+
+		passed = check(replayGuard);
+		if(iterations == 0)
+			iterations = (int)Math.max(1,windowNonceCount/threadCount);
+		checkRate = timeConcurrent("replay rate="+rate+" window="+window+" ms bits="+
+					   replayGuard.getFilterBitCount()+" hashes="+hashCount,new Task()
+		{
+			public void run(int iteration) throws Exception
+			{
+				checkUniqueNonce(replayGuard,timestamp);
+			}
+		});
+		System.out.println("replay: checks="+nonceCount.get()+" falsePositives="+falsePositiveCount.get()+
+				   " checkRate="+format(checkRate)+" op/s ("+format(checkRate/rate)+" x target rate)");
+		falsePositiveCount.set(0);
+		for(int i = 0; i < PROBE_COUNT; i++)
+			checkUniqueNonce(replayGuard,timestamp);
+		probeFalsePositiveCount = falsePositiveCount.get();
+		probeFalsePositiveRate = ((double)probeFalsePositiveCount)/PROBE_COUNT;
+		expectedFalsePositiveRate = Math.pow(1.0-Math.exp(-((double)hashCount*(nonceCount.get()-PROBE_COUNT))/
+								      replayGuard.getFilterBitCount()),hashCount);
+		System.out.println("replay: full filter falsePositiveRate="+probeFalsePositiveRate+" (expected "+
+				   expectedFalsePositiveRate+") filterMemory="+
+				   ((ReplayGuard.FILTER_COUNT*replayGuard.getFilterBitCount())/8L)+" bytes");
+		System.out.println(replayGuard);
+		if(checkRate < rate)
+		{
+			System.out.println("replay: FAILED check rate "+format(checkRate)+" op/s is below "+rate+" op/s.");
+			passed = false;
+		}
+		if(probeFalsePositiveRate > maxFalsePositiveRate)
+		{
+			System.out.println("replay: FAILED full filter false positive rate "+probeFalsePositiveRate+
+					   " is above "+maxFalsePositiveRate+", increase the filter size.");
+			passed = false;
+		}
+		passed &= rotate();
+		return passed;
+	}
+
+	/**
+	 * Send requests with unique nonces at the rate, for rotationSeconds, to a guard with a ROTATION_WINDOW ms window,
+	 * in ROTATION_SLICE ms paced slices. Each timestamp is the current time plus or minus a random offset of up to
+	 * half a window, so requests fall in the current and neighbouring buckets, and older buckets' filters are
+	 * rotated as time moves on.
+	 * @return true if the filters rotated (at least) once per window, and the false positive rate was below the
+	 *         maximum.
+	 * @exception InterruptedException Thrown if the pacing sleep is interrupted.
+	 */
+	protected boolean rotate() throws InterruptedException
+	{
+		ReplayGuard replayGuard = new ReplayGuard(ROTATION_WINDOW,getBitCount(ROTATION_WINDOW),hashCount);
+		Random random = new Random();
+		long startTime = System.currentTimeMillis();
+		long endTime = startTime+(rotationSeconds*1000L);
+		long sliceCount = Math.max(1,(rate*ROTATION_SLICE)/1000L);
+		long checkCount = 0;
+		long minRotationCount = Math.max(1,(rotationSeconds*1000L)/ROTATION_WINDOW-1);
+		long sliceTime,now;
+		double rotationFalsePositiveRate;
+		boolean passed = true;
+
+		falsePositiveCount.set(0);
+		for(sliceTime = startTime; sliceTime < endTime; sliceTime += ROTATION_SLICE)
+		{
+			for(long i = 0; i < sliceCount; i++)
+			{
+				now = System.currentTimeMillis();
+				checkUniqueNonce(replayGuard,Long.toString(now+
+						 (long)((random.nextDouble()-0.5)*ROTATION_WINDOW)));
+			}
+			checkCount += sliceCount;
+			now = System.currentTimeMillis();
+			if(now < sliceTime+ROTATION_SLICE)
+				Thread.sleep(sliceTime+ROTATION_SLICE-now);
+		}
+		rotationFalsePositiveRate = ((double)falsePositiveCount.get())/checkCount;
+		System.out.println("replay.rotate: window="+ROTATION_WINDOW+" ms bits="+replayGuard.getFilterBitCount()+
+				   " checks="+checkCount+" rotations="+replayGuard.getRotationCount()+" falsePositives="+
+				   falsePositiveCount.get()+" falsePositiveRate="+rotationFalsePositiveRate);
+		if(replayGuard.getRotationCount() < minRotationCount)
+		{
+			System.out.println("replay.rotate: FAILED "+replayGuard.getRotationCount()+
+					   " rotations, expected at least "+minRotationCount+".");
+			passed = false;
+		}
+		if(rotationFalsePositiveRate > maxFalsePositiveRate)
+		{
+			System.out.println("replay.rotate: FAILED false positive rate "+rotationFalsePositiveRate+
+					   " is above "+maxFalsePositiveRate+".");
+			passed = false;
+		}
+		return passed;
+	}
+
+	/**
+	 * Get the number of bits in each Bloom filter, -bits if set, otherwise derived as ReplayGuard does.
+	 * @param window The replay window of the guard, in milliseconds.
+	 * @return The number of bits.
+	 * @see org.estar.node_agent2.util.ReplayGuard#getFilterBitCount(long,long,double,int)
+	 */
+	protected int getBitCount(long window)
+	{
+		if(bitCount > 0)
+			return bitCount;
+		return ReplayGuard.getFilterBitCount(window,rate,falsePositiveRate,hashCount);
+	}
+
+	/**
+	 * Check a re-sent nonce, and a stale timestamp, are rejected, and a new nonce accepted.
+	 * @param replayGuard The replay guard.
+	 * @return true if they were.
+	 */
+	protected boolean check(ReplayGuard replayGuard)
+	{
+		String timestamp = Long.toString(System.currentTimeMillis());
+		String failure = null;
+
+		if(isAccepted(replayGuard,timestamp,"check-nonce") == false)
+			failure = "new nonce rejected";
+		else if(isAccepted(replayGuard,timestamp,"check-nonce"))
+			failure = "re-sent nonce accepted";
+		else if(isAccepted(replayGuard,Long.toString(System.currentTimeMillis()-(2*window)),"check-stale"))
+			failure = "stale timestamp accepted";
+		if(failure != null)
+			System.out.println("replay.check: FAILED "+failure);
+		else
+			System.out.println("replay.check: passed");
+		return (failure == null);
+	}
+
+	/**
+	 * Check a request with a new, unique nonce, counting it if it is rejected (a false positive).
+	 * @param replayGuard The replay guard.
+	 * @param timestamp The request timestamp.
+	 */
+	protected void checkUniqueNonce(ReplayGuard replayGuard,String timestamp)
+	{
+		if(isAccepted(replayGuard,timestamp,Long.toHexString(nonceCount.incrementAndGet())) == false)
+			falsePositiveCount.incrementAndGet();
+	}
+
+	/**
+	 * Whether the replay guard accepts a request.
+	 * @param replayGuard The replay guard.
+	 * @param timestamp The request timestamp.
+	 * @param nonce The request nonce.
+	 * @return true if the request was accepted, false if it was rejected.
+	 */
+	protected static boolean isAccepted(ReplayGuard replayGuard,String timestamp,String nonce)
+	{
+		try
+		{
+			replayGuard.check(USER,timestamp,nonce);
+			return true;
+		}
+		catch(RuntimeException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Print the benchmark specific arguments.
+	 */
+	public void help()
+	{
+		System.err.println("\t[-rate <requests per second>] [-window <ms>] [-bits <n>] [-hashes <n>] "+
+				   "[-false_positive_rate <p>] [-max_false_positive_rate <p>] [-rotation_seconds <s>]");
+		System.err.println("\tTimes a full replay window of replay protection checks at the rate (default 10000), "+
+				   "printing the check rate, false positives and the fixed filter memory, then checks false "+
+				   "positives as the filters rotate. Fails if a false positive rate is above the maximum "+
+				   "(default 0.0001).");
+	}
+}
@@ -0,0 +1,124 @@
+package org.estar.node_agent2.benchmark;
+
+import java.util.Arrays;
+
+import org.estar.node_agent2.util.RTMLReplySerializer;
+import org.estar.node_agent2.util.RTMLUtil;
+
+import org.estar.rtml.RTMLDocument;
+
+/**
+ * Checks the template serializer (RTMLReplySerializer) output is byte-for-byte the same as the RTMLCreate output,
+ * for reject documents of both RTML versions with a range of values (including values that need escaping, which
+ * are not templated), and then compares the throughput of the two. The check fails if any document differs,
+ * or if no document was serialized from a template (i.e. the templates failed to compile).
+ * @author cjm
+ * @see org.estar.node_agent2.util.RTMLReplySerializer
+ * @see org.estar.node_agent2.util.RTMLUtil#createRejectDocument
+ * @see org.estar.node_agent2.util.RTMLUtil#createRTMLString
+ */
+public class ReplySerializerBenchmark extends Benchmark
+{
+	/**
+	 * The RTML versions checked.
+	 */
+	public static final String VERSIONS[] = {RTMLDocument.RTML_VERSION_22,RTMLDocument.RTML_VERSION_31};
+	/**
+	 * The node agent names checked.
+	 */
+	public static final String NODE_AGENT_NAMES[] = {"LT-NodeAgent","node agent 2"};
+	/**
+	 * The error messages checked. The later ones need escaping, or are not ASCII, so are not templated.
+	 */
+	public static final String ERRORS[] = {"isteaconnected = false, not sending rtml onwards",
+		"Document length 5000000 exceeds the maximum of 4194304.","",
+		"User <alice> & \"bob\" don't match","R\u00e9seau indisponible","tab\tand\nnewline"};
+	/**
+	 * The descriptions checked.
+	 */
+	public static final String DESCRIPTIONS[] = {"document not sent to the TEA","document exceeds limits",
+		"deadline expired","a > b"};
+
+	/**
+	 * Check the template serializer output against RTMLCreate, then time both.
+	 * @return true if every document was the same, and at least one was templated.
+	 * @see #check
+	 */
+	public boolean run() throws Exception
+	{
+		final RTMLDocument document = RTMLUtil.createRejectDocument(new Exception(ERRORS[0]),NODE_AGENT_NAMES[0],
+									    RTMLDocument.RTML_VERSION_31,DESCRIPTIONS[0]);
+		boolean passed = check();
+
+		System.out.println(RTMLReplySerializer.getInstance());
+		time("reply.template",new Task()
+		{
+			public void run(int iteration) throws Exception
+			{
+				RTMLReplySerializer.getInstance().serialize(document);
+			}
+		});
+		time("reply.rtmlcreate",new Task()
+		{
+			public void run(int iteration) throws Exception
+			{
+				RTMLUtil.createRTMLString(document);
+			}
+		});
+		return passed;
+	}
+
+	/**
+	 * Serialize a reject document for every combination of version, node agent name, error and description,
+	 * using both the template serializer and RTMLCreate, and compare the two byte-for-byte.
+	 * @return true if every document was the same, and at least one was templated.
+	 * @exception Exception Thrown if a document cannot be created or serialized.
+	 */
+	protected boolean check() throws Exception
+	{
+		int count = 0;
+		int mismatchCount = 0;
+		int templatedCount = 0;
+
+		for(int v = 0; v < VERSIONS.length; v++)
+		{
+			for(int n = 0; n < NODE_AGENT_NAMES.length; n++)
+			{
+				for(int e = 0; e < ERRORS.length; e++)
+				{
+					for(int d = 0; d < DESCRIPTIONS.length; d++)
+					{
+						RTMLDocument document = RTMLUtil.createRejectDocument(new Exception(ERRORS[e]),
+							NODE_AGENT_NAMES[n],VERSIONS[v],DESCRIPTIONS[d]);
+						long templateCount = RTMLReplySerializer.getInstance().getTemplateCount();
+						String templateString = RTMLReplySerializer.getInstance().serialize(document);
+						String createString = RTMLUtil.createRTMLString(document);
+
+						count++;
+						if(RTMLReplySerializer.getInstance().getTemplateCount() > templateCount)
+							templatedCount++;
+						if(Arrays.equals(templateString.getBytes("UTF-8"),createString.getBytes("UTF-8")) == false)
+						{
+							mismatchCount++;
+							System.out.println("reply.check: MISMATCH version="+VERSIONS[v]+" nodeAgentName="+
+									   NODE_AGENT_NAMES[n]+" error="+ERRORS[e]+" description="+
+									   DESCRIPTIONS[d]);
+							System.out.println("--- template:\n"+templateString+"\n--- RTMLCreate:\n"+createString);
+						}
+					}
+				}
+			}
+		}
+		System.out.println("reply.check: documents="+count+" templated="+templatedCount+" mismatches="+mismatchCount);
+		return (mismatchCount == 0) && (templatedCount > 0);
+	}
+
+	/**
+	 * Print the benchmark specific arguments (there are none).
+	 */
+	public void help()
+	{
+		System.err.println("\tChecks templated reject documents are byte-for-byte the same as RTMLCreate, "+
+				   "and compares their throughput.");
+	}
+}
@@ -0,0 +1,198 @@
+package org.estar.node_agent2.benchmark;
+
+import org.estar.node_agent2.configuration.NodeAgentProperties;
+import org.estar.node_agent2.storage.AliasIndex;
+import org.estar.node_agent2.storage.PersistentMap;
+import org.estar.node_agent2.util.RTMLParserPool;
+import org.estar.node_agent2.util.RTMLUtil;
+
+import org.estar.rtml.RTMLDocument;
+import org.estar.rtml.RTMLHistory;
+import org.estar.rtml.RTMLHistoryEntry;
+
+/**
+ * Checks the history entries added by RTMLUtil.rewriteDocumentIfAliased, and their order, when only the user is
+ * aliased, only the project is aliased, and both are aliased: the rewritten document must have the original
+ * entries followed by "rewritten contact to &lt;user alias&gt;" (if the user is aliased) and then
+ * "rewritten project to &lt;project alias&gt;" (if the project is aliased), each from the node agent with URI
+ * urn:/node_agent. The original document must be unchanged, and a document with no aliases must be returned as it is.
+ * The time taken to rewrite each case is then measured.
+ * The node agent name is read from server.configuration, so the nodeagent.config.dir system property must be set.
+ * @author cjm
+ * @see org.estar.node_agent2.util.RTMLUtil#rewriteDocumentIfAliased(org.estar.rtml.RTMLDocument,java.lang.String,org.estar.node_agent2.storage.AliasIndex,org.estar.node_agent2.storage.AliasIndex)
+ */
+public class RewriteHistoryBenchmark extends Benchmark
+{
+	/**
+	 * The URI of history entries added by the node agent.
+	 */
+	public static final String NODE_AGENT_URI = "urn:/node_agent";
+	/**
+	 * The eSTAR user name of the test documents.
+	 */
+	public static final String USER = "benchmark_user";
+	/**
+	 * The eSTAR project name of the test documents (see createScoreDocument).
+	 */
+	public static final String PROJECT = "benchmark";
+	/**
+	 * The LT user name the user is aliased to.
+	 */
+	public static final String USER_ALIAS = "LT_user";
+	/**
+	 * The LT project name the project is aliased to.
+	 */
+	public static final String PROJECT_ALIAS = "LT_project";
+	/**
+	 * The name of this node agent, from server.configuration.
+	 */
+	protected String nodeAgentName = null;
+
+	/**
+	 * Check the history entries of each case, then time each case.
+	 * @return true if every case added the expected history entries.
+	 * @see #check
+	 */
+	public boolean run() throws Exception
+	{
+		boolean passed = true;
+
+		if (NodeAgentProperties.getInstance() == null)
+		{
+			System.out.println("rewrite: No server.configuration found in "+NodeAgentProperties.BASE_DIR+
+					   ", set the "+NodeAgentProperties.CONFIG_DIR_SYSTEM_PROPERTY+" system property.");
+			return false;
+		}
+		nodeAgentName = NodeAgentProperties.getInstance().getProperty(NodeAgentProperties.NODE_AGENT_NAME);
+		passed &= check("rewrite.none",false,false,new String[0]);
+		passed &= check("rewrite.user",true,false,new String[] {"rewritten contact to "+USER_ALIAS});
+		passed &= check("rewrite.project",false,true,new String[] {"rewritten project to "+PROJECT_ALIAS});
+		passed &= check("rewrite.both",true,true,new String[] {"rewritten contact to "+USER_ALIAS,
+								       "rewritten project to "+PROJECT_ALIAS});
+		time("rewrite.none",createTask(false,false));
+		time("rewrite.user",createTask(true,false));
+		time("rewrite.project",createTask(false,true));
+		time("rewrite.both",createTask(true,true));
+		return passed;
+	}
+
+	/**
+	 * Rewrite a document with the specified aliases, and check the history entries of the result.
+	 * @param name The name of the case, printed with the result.
+	 * @param aliasUser Whether the document's user is aliased.
+	 * @param aliasProject Whether the document's project is aliased.
+	 * @param expectedDescriptions The descriptions of the history entries expected to be added, in order.
+	 * @return true if the expected entries (and only those) were added, in order, and the original document
+	 *         is unchanged.
+	 * @exception Exception Thrown if the document cannot be parsed or rewritten.
+	 */
+	protected boolean check(String name,boolean aliasUser,boolean aliasProject,String expectedDescriptions[])
+		throws Exception
+	{
+		RTMLDocument document = RTMLParserPool.getInstance(false).parse(createScoreDocument(USER,1));
+		int originalCount = getHistoryEntryCount(document);
+		RTMLDocument rewrittenDocument = null;
+		RTMLHistoryEntry entry = null;
+		String failure = null;
+
+		rewrittenDocument = RTMLUtil.rewriteDocumentIfAliased(document,RTMLUtil.RTML_IDENT_SOURCE_ESTAR,
+								      createAliasIndex(aliasUser,USER,USER_ALIAS),
+								      createAliasIndex(aliasProject,PROJECT,PROJECT_ALIAS));
+		if ((expectedDescriptions.length == 0) && (rewrittenDocument != document))
+			failure = "document without aliases was copied";
+		else if ((expectedDescriptions.length > 0) && (rewrittenDocument == document))
+			failure = "aliased document was not copied";
+		else if (getHistoryEntryCount(document) != originalCount)
+			failure = "original document history changed from "+originalCount+" to "+
+				getHistoryEntryCount(document)+" entries";
+		else if (document.getContact().getUser().equals(USER) == false)
+			failure = "original document user changed to "+document.getContact().getUser();
+		else if (document.getProject().getProject().equals(PROJECT) == false)
+			failure = "original document project changed to "+document.getProject().getProject();
+		else if (getHistoryEntryCount(rewrittenDocument) != (originalCount+expectedDescriptions.length))
+			failure = "expected "+(originalCount+expectedDescriptions.length)+" history entries, found "+
+				getHistoryEntryCount(rewrittenDocument);
+		else if (rewrittenDocument.getContact().getUser().equals(aliasUser ? USER_ALIAS : USER) == false)
+			failure = "rewritten user is "+rewrittenDocument.getContact().getUser();
+		else if (rewrittenDocument.getProject().getProject().equals(aliasProject ? PROJECT_ALIAS : PROJECT) == false)
+			failure = "rewritten project is "+rewrittenDocument.getProject().getProject();
+		for(int i = 0; (failure == null) && (i < expectedDescriptions.length); i++)
+		{
+			entry = rewrittenDocument.getHistory().getEntry(originalCount+i);
+			if (expectedDescriptions[i].equals(entry.getDescription()) == false)
+				failure = "history entry "+(originalCount+i)+" description is '"+entry.getDescription()+
+					"', expected '"+expectedDescriptions[i]+"'";
+			else if ((entry.getAgent() == null) || (nodeAgentName.equals(entry.getAgent().getId()) == false))
+				failure = "history entry "+(originalCount+i)+" agent is not "+nodeAgentName;
+			else if (NODE_AGENT_URI.equals(entry.getAgent().getUri()) == false)
+				failure = "history entry "+(originalCount+i)+" agent URI is "+entry.getAgent().getUri();
+		}
+		if (failure != null)
+			System.out.println(name+".check: FAILED "+failure);
+		else
+			System.out.println(name+".check: passed, "+expectedDescriptions.length+" history entries added");
+		return (failure == null);
+	}
+
+	/**
+	 * Create a task that rewrites a document with the specified aliases.
+	 * @param aliasUser Whether the document's user is aliased.
+	 * @param aliasProject Whether the document's project is aliased.
+	 * @return The task.
+	 * @exception Exception Thrown if the document cannot be parsed.
+	 */
+	protected Task createTask(boolean aliasUser,boolean aliasProject) throws Exception
+	{
+		final RTMLDocument document = RTMLParserPool.getInstance(false).parse(createScoreDocument(USER,1));
+		final AliasIndex userAliasIndex = createAliasIndex(aliasUser,USER,USER_ALIAS);
+		final AliasIndex projectAliasIndex = createAliasIndex(aliasProject,PROJECT,PROJECT_ALIAS);
+
+		return new Task()
+		{
+			public void run(int iteration) throws Exception
+			{
+				RTMLUtil.rewriteDocumentIfAliased(document,RTMLUtil.RTML_IDENT_SOURCE_ESTAR,userAliasIndex,
+								  projectAliasIndex);
+			}
+		};
+	}
+
+	/**
+	 * Create an alias index.
+	 * @param aliased Whether the index should contain the key.
+	 * @param key The eSTAR name.
+	 * @param alias The LT name the key is aliased to.
+	 * @return An index containing key=alias if aliased is true, otherwise an empty index.
+	 */
+	protected static AliasIndex createAliasIndex(boolean aliased,String key,String alias)
+	{
+		PersistentMap aliasMap = new PersistentMap();
+
+		if (aliased)
+			aliasMap.setProperty(key,alias);
+		return new AliasIndex(aliasMap);
+	}
+
+	/**
+	 * Get the number of history entries in a document.
+	 * @param document The document.
+	 * @return The number of entries, or 0 if the document has no history.
+	 */
+	protected static int getHistoryEntryCount(RTMLDocument document)
+	{
+		RTMLHistory history = document.getHistory();
+
+		if (history == null)
+			return 0;
+		return history.getEntryCount();
+	}
+
+	/**
+	 * Print the benchmark specific arguments (there are none).
+	 */
+	public void help()
+	{
+		System.err.println("\tChecks the history entries (and their order) added when a document's user, project, "+
+				   "or both are aliased, and times each case.");
+	}
+}
@@ -0,0 +1,351 @@
+package org.estar.node_agent2.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the startup time and resident memory of a Node Agent deployment, so the standalone server can be compared
+ * with tomcat. The -command is launched -iterations times (default 3). Each time, -url is polled until a GET of it
+ * returns 200 (e.g. the endpoint's ?wsdl), and the time taken and the resident memory (the VmRSS of the launched
+ * process and all it's descendants, from /proc) are printed. The process tree is then killed. The command must stay
+ * in the foreground, e.g. 'scripts/nodeagentserver -port_number 8080 -config_dir /etc/nodeagent', or
+ * 'catalina.sh run' for tomcat. This benchmark reads /proc, so only runs on Linux.
+ * @author cjm
+ * @see org.estar.node_agent2.standalone.NodeAgentServer
+ */
+public class StartupBenchmark extends Benchmark
+{
+	/**
+	 * The default number of times the command is launched.
+	 */
+	public static final int DEFAULT_STARTUP_ITERATIONS = 3;
+	/**
+	 * The default time to wait for the URL to answer, in seconds.
+	 */
+	public static final int DEFAULT_TIMEOUT = 120;
+	/**
+	 * The time between polls of the URL, in milliseconds.
+	 */
+	public static final long POLL_INTERVAL = 100;
+	/**
+	 * The command to launch.
+	 */
+	protected String command = null;
+	/**
+	 * The URL polled until the deployment answers.
+	 */
+	protected String urlString = null;
+	/**
+	 * The time to wait for the URL to answer, in seconds.
+	 */
+	protected int timeout = DEFAULT_TIMEOUT;
+
+	/**
+	 * Constructor. Sets the default number of launches, there are no warm-up launches.
+	 * @see #DEFAULT_STARTUP_ITERATIONS
+	 */
+	public StartupBenchmark()
+	{
+		super();
+		iterations = DEFAULT_STARTUP_ITERATIONS;
+		warmUpIterations = 0;
+	}
+
+	/**
+	 * Parse the -command, -url and -timeout arguments.
+	 */
+	protected int parseArgument(String args[],int index) throws IllegalArgumentException
+	{
+		if(args[index].equals("-command"))
+		{
+			command = getValue(args,index);
+			return index+1;
+		}
+		else if(args[index].equals("-url"))
+		{
+			urlString = getValue(args,index);
+			return index+1;
+		}
+		else if(args[index].equals("-timeout"))
+		{
+			timeout = parseInt(args,index);
+			return index+1;
+		}
+		return super.parseArgument(args,index);
+	}
+
+	/**
+	 * Launch the command -iterations times, printing the startup time and resident memory of each launch, and
+	 * their means.
+	 * @return true if the deployment answered within the timeout every time.
+	 */
+	public boolean run() throws Exception
+	{
+		long totalTime = 0;
+		long totalRss = 0;
+		boolean passed = true;
+
+		if((command == null) || (urlString == null))
+		{
+			System.out.println("startup: -command and -url must be specified.");
+			return false;
+		}
+		if(new File("/proc/self/status").exists() == false)
+		{
+			System.out.println("startup: /proc/self/status not found, resident memory can only be read on Linux.");
+			return false;
+		}
+		for(int i = 0; (i < iterations) && passed; i++)
+		{
+			long startupTime[] = new long[1];
+			long rss[] = new long[1];
+
+			passed = launch(startupTime,rss);
+			if(passed)
+			{
+				System.out.println("startup "+i+": time="+startupTime[0]+" ms rss="+rss[0]+" kB");
+				totalTime += startupTime[0];
+				totalRss += rss[0];
+			}
+			else
+				System.out.println("startup "+i+": FAILED "+urlString+" did not answer within "+timeout+" s.");
+		}
+		if(passed)
+		{
+			System.out.println("startup "+command+": launches="+iterations+" time="+
+					   format(((double)totalTime)/iterations)+" ms rss="+
+					   format(((double)totalRss)/iterations)+" kB");
+		}
+		return passed;
+	}
+
+	/**
+	 * Launch the command once, wait for the URL to answer, read the resident memory, and kill the process tree.
+	 * The command is run by 'sh -c "echo $$; exec command"', so the first line of it's output is it's process id.
+	 * @param startupTime An array, the first element of which is set to the time taken to answer, in milliseconds.
+	 * @param rss An array, the first element of which is set to the resident memory once it answered, in kB.
+	 * @return true if the URL answered within the timeout.
+	 * @exception Exception Thrown if the command cannot be launched, or it's process id read.
+	 */
+	protected boolean launch(long startupTime[],long rss[]) throws Exception
+	{
+		ProcessBuilder processBuilder = new ProcessBuilder("sh","-c","echo $$; exec "+command);
+		Process process = null;
+		BufferedReader reader = null;
+		String pidString = null;
+		long startTime,timeoutTime;
+		boolean ready = false;
+		int pid;
+
+		processBuilder.redirectErrorStream(true);
+		startTime = System.currentTimeMillis();
+		process = processBuilder.start();
+		try
+		{
+			reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			pidString = reader.readLine();
+			if(pidString == null)
+				throw new IOException("startup: "+command+" exited before printing it's process id.");
+			pid = Integer.parseInt(pidString.trim());
+			drain(process.getInputStream());
+			timeoutTime = startTime+(timeout*1000L);
+			while((ready == false) && (System.currentTimeMillis() < timeoutTime) && process.isAlive())
+			{
+				ready = isReady();
+				if(ready == false)
+					Thread.sleep(POLL_INTERVAL);
+			}
+			startupTime[0] = System.currentTimeMillis()-startTime;
+			if(ready)
+				rss[0] = getResidentMemory(pid);
+			kill(pid);
+		}
+		finally
+		{
+			process.destroy();
+			process.waitFor();
+		}
+		return ready;
+	}
+
+	/**
+	 * Whether a GET of the URL returns 200.
+	 * @return true if the URL returned 200, false if it returned another status or could not be connected to.
+	 */
+	protected boolean isReady()
+	{
+		HttpURLConnection connection = null;
+
+		try
+		{
+			connection = (HttpURLConnection)(new URL(urlString).openConnection());
+			connection.setConnectTimeout((int)POLL_INTERVAL*10);
+			connection.setReadTimeout((int)POLL_INTERVAL*10);
+			return (connection.getResponseCode() == HttpURLConnection.HTTP_OK);
+		}
+		catch(IOException e)
+		{
+			return false;
+		}
+		finally
+		{
+			if(connection != null)
+				connection.disconnect();
+		}
+	}
+
+	/**
+	 * Start a daemon thread reading (and discarding) the rest of the command's output, so it does not block.
+	 * @param inputStream The command's output.
+	 */
+	protected static void drain(final InputStream inputStream)
+	{
+		Thread thread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				byte buffer[] = new byte[8192];
+
+				try
+				{
+					while(inputStream.read(buffer) > -1)
+						;
+				}
+				catch(IOException e)
+				{
+				}
+			}
+		},"StartupBenchmark output");
+
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Get the resident memory of a process and all it's descendants.
+	 * @param pid The process id.
+	 * @return The sum of the VmRSS of the processes, in kB.
+	 * @exception IOException Thrown if /proc cannot be read.
+	 */
+	protected static long getResidentMemory(int pid) throws IOException
+	{
+		List<Integer> pidList = getProcessTree(pid);
+		long rss = 0;
+
+		for(int i = 0; i < pidList.size(); i++)
+			rss += getVmRSS(pidList.get(i).intValue());
+		return rss;
+	}
+
+	/**
+	 * Get the VmRSS of a process, from /proc/&lt;pid&gt;/status.
+	 * @param pid The process id.
+	 * @return The VmRSS, in kB, or 0 if the process has exited.
+	 * @exception IOException Thrown if the status file cannot be read.
+	 */
+	protected static long getVmRSS(int pid) throws IOException
+	{
+		File statusFile = new File("/proc/"+pid+"/status");
+		String line = null;
+
+		if(statusFile.exists() == false)
+			return 0;
+		line = findLine(new String(loadFile(statusFile.getPath()),"UTF-8"),"VmRSS:");
+		if(line == null)
+			return 0;
+		return Long.parseLong(line.substring("VmRSS:".length()).replace("kB","").trim());
+	}
+
+	/**
+	 * Get a process and all it's descendants, by reading the parent process id of every process in /proc.
+	 * @param pid The process id.
+	 * @return A list of the process ids, starting with pid.
+	 */
+	protected static List<Integer> getProcessTree(int pid)
+	{
+		List<Integer> pidList = new ArrayList<Integer>();
+		List<int[]> parentList = new ArrayList<int[]>();
+		File files[] = new File("/proc").listFiles();
+
+		for(int i = 0; (files != null) && (i < files.length); i++)
+		{
+			String stat = null;
+
+			if(files[i].getName().matches("[0-9]+") == false)
+				continue;
+			try
+			{
+				stat = new String(loadFile(files[i].getPath()+"/stat"),"UTF-8");
+				// the fields after the command name (which is in brackets) are state, then the parent pid
+				String fields[] = stat.substring(stat.lastIndexOf(')')+2).split(" ");
+
+				parentList.add(new int[] {Integer.parseInt(files[i].getName()),Integer.parseInt(fields[1])});
+			}
+			catch(Exception e)
+			{
+				// the process has exited
+			}
+		}
+		pidList.add(Integer.valueOf(pid));
+		for(int i = 0; i < pidList.size(); i++)
+		{
+			for(int j = 0; j < parentList.size(); j++)
+			{
+				if(parentList.get(j)[1] == pidList.get(i).intValue())
+					pidList.add(Integer.valueOf(parentList.get(j)[0]));
+			}
+		}
+		return pidList;
+	}
+
+	/**
+	 * Kill a process and all it's descendants, as the shell scripts do not pass on signals to their children.
+	 * @param pid The process id.
+	 * @exception Exception Thrown if kill cannot be run.
+	 */
+	protected static void kill(int pid) throws Exception
+	{
+		List<Integer> pidList = getProcessTree(pid);
+		List<String> commandList = new ArrayList<String>();
+
+		commandList.add("kill");
+		for(int i = 0; i < pidList.size(); i++)
+			commandList.add(pidList.get(i).toString());
+		new ProcessBuilder(commandList).redirectErrorStream(true).start().waitFor();
+	}
+
+	/**
+	 * Find the line starting with the specified prefix.
+	 * @param text The text to search.
+	 * @param prefix The prefix.
+	 * @return The line, or null if no line starts with the prefix.
+	 */
+	protected static String findLine(String text,String prefix)
+	{
+		String lines[] = text.split("\n");
+
+		for(int i = 0; i < lines.length; i++)
+		{
+			if(lines[i].startsWith(prefix))
+				return lines[i];
+		}
+		return null;
+	}
+
+	/**
+	 * Print the benchmark specific arguments.
+	 */
+	public void help()
+	{
+		System.err.println("\t-command <command> -url <url> [-timeout <seconds>]");
+		System.err.println("\tLaunches the command -iterations times (default 3), and prints the time until a GET of "+
+				   "the url returns 200, and the resident memory of the process tree.");
+	}
+}
@@ -3,16 +3,20 @@ package org.estar.node_agent2.client;
 import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 import javax.xml.namespace.QName;
 import javax.xml.ws.BindingProvider;
 import javax.xml.ws.Service;
 import javax.xml.ws.handler.MessageContext;
 
+import com.sun.xml.ws.client.ContentNegotiation;
+
 import ngat.util.logging.*;
 
 import org.estar.node_agent2.NodeAgentWebServiceInterface;
@@ -41,6 +45,18 @@ public class NodeAgentClient
 	 * Which NodeAgent endpoint to call: handle_rtml selected.
 	 */
 	public final static int ENDPOINT_HANDLE_RTML = 2;
+	/**
+	 * The default request size (in characters) at or above which requests are gzip compressed, when -gzip is used.
+	 */
+	public final static int DEFAULT_GZIP_THRESHOLD = 2048;
+	/**
+	 * The JAX-WS RI request context property setting how long (in milliseconds) the client waits for a reply.
+	 */
+	public final static String REQUEST_TIMEOUT_PROPERTY = "com.sun.xml.ws.request.timeout";
+	/**
+	 * How long (in milliseconds) before a session token expires that a new one is requested.
+	 */
+	public final static long TOKEN_RENEWAL_MARGIN = 60000;
 	/**
 	 * The hostname the tomcat server/web service is running on.
 	 */
@@ -73,9 +89,54 @@ public class NodeAgentClient
 	 * NodeAgent to invoke the handle_rtml endpoint.
 	 */
 	String rtmlFilename = null;
+	/**
+	 * A list of filenames containing the RTML documents to send to the NodeAgent, when
+	 * invoking the handle_rtml_batch endpoint. Each -handle_rtml argument adds a filename.
+	 */
+	List<String> rtmlFilenameList = new ArrayList<String>();
+	/**
+	 * Whether to send the RTML documents in one call to the handle_rtml_batch endpoint.
+	 */
+	boolean batch = false;
+	/**
+	 * The Fast Infoset content negotiation to use, or null to exchange textual SOAP.
+	 * @see com.sun.xml.ws.client.ContentNegotiation
+	 */
+	ContentNegotiation contentNegotiation = null;
+	/**
+	 * Whether to use gzip compression. If true, gzip responses are accepted, and requests at or above the
+	 * gzipThreshold are sent gzip compressed.
+	 * @see #gzipThreshold
+	 */
+	boolean gzip = false;
+	/**
+	 * The request size (in characters) at or above which requests are gzip compressed.
+	 * @see #DEFAULT_GZIP_THRESHOLD
+	 */
+	int gzipThreshold = DEFAULT_GZIP_THRESHOLD;
+	/**
+	 * How long (in milliseconds) to wait for the reply, or 0 to wait indefinitely. If set, it is sent to the
+	 * web service as the Timeout header, so the web service stops working on the request once we have given up.
+	 */
+	int timeout = 0;
+	/**
+	 * Whether to login and use a session token (in the Token header) instead of sending the password with 
+	 * every request. If the login fails (e.g. an older web service without login), the password is used.
+	 */
+	boolean useToken = true;
+	/**
+	 * The name of a file the session token is cached in between invocations, or null to not cache it.
+	 * The file contains a credential, so should only be readable by the user.
+	 */
+	String tokenFilename = null;
+	/**
+	 * The current session token, or null if we have not logged in.
+	 */
+	String token = null;
 	/**
 	 * A string containing a filename, used to store the returned RTML document when
-	 * invoking the handle_rtml endpoint.
+	 * invoking the handle_rtml endpoint. When invoking the handle_rtml_batch endpoint,
+	 * each returned document is saved in this filename with the document's index appended.
 	 */
 	String outputFilename = null;
 	/**
@@ -127,6 +188,14 @@ public class NodeAgentClient
 	 * @see #username
 	 * @see #password
 	 * @see #rtmlFilename
+	 * @see #rtmlFilenameList
+	 * @see #batch
+	 * @see #contentNegotiation
+	 * @see #gzip
+	 * @see #gzipThreshold
+	 * @see #timeout
+	 * @see #useToken
+	 * @see #tokenFilename
 	 * @see #outputFilename
 	 * @see #endpoint
 	 * @see #ENDPOINT_HANDLE_RTML
@@ -141,11 +210,52 @@ public class NodeAgentClient
 		}
 		for(int i = 0; i < args.length; i++)
 		{
-			if(args[i].equals("-handle_rtml"))
+			if(args[i].equals("-batch"))
+			{
+				batch = true;
+			}			
+			else if(args[i].equals("-fastinfoset"))
+			{
+				contentNegotiation = ContentNegotiation.pessimistic;
+				if(((i+1) < args.length)&&(args[i+1].startsWith("-") == false))
+				{
+					try
+					{
+						contentNegotiation = ContentNegotiation.valueOf(args[i+1]);
+					}
+					catch(IllegalArgumentException e)
+					{
+						System.err.println(this.getClass().getName()+
+								":parseArguments:fastinfoset:Illegal content negotiation:"+args[i+1]);
+						System.exit(8);
+					}
+					i+= 1;
+				}
+			}			
+			else if(args[i].equals("-gzip"))
+			{
+				gzip = true;
+				if(((i+1) < args.length)&&(args[i+1].startsWith("-") == false))
+				{
+					try
+					{
+						gzipThreshold = Integer.parseInt(args[i+1]);
+					}
+					catch(NumberFormatException e)
+					{
+						System.err.println(this.getClass().getName()+
+								":parseArguments:gzip:Illegal threshold:"+args[i+1]);
+						System.exit(8);
+					}
+					i+= 1;
+				}
+			}			
+			else if(args[i].equals("-handle_rtml"))
 			{
 				if((i+1) < args.length)
 				{
 					rtmlFilename = args[i+1];
+					rtmlFilenameList.add(rtmlFilename);
 					endpoint = ENDPOINT_HANDLE_RTML;
 				}
 				else
@@ -203,6 +313,10 @@ public class NodeAgentClient
 				}
 				i+= 1;
 			}			
+			else if(args[i].equals("-no_token"))
+			{
+				useToken = false;
+			}
 			else if(args[i].equals("-ping"))
 			{
 				endpoint = ENDPOINT_PING;
@@ -221,6 +335,34 @@ public class NodeAgentClient
 				}
 				i+= 1;
 			}			
+			else if(args[i].equals("-timeout"))
+			{
+				if((i+1) < args.length)
+				{
+					timeout = Integer.parseInt(args[i+1]);
+				}
+				else
+				{
+					System.err.println(this.getClass().getName()+
+							":parseArguments:timeout:No timeout specified.");
+					System.exit(9);
+				}
+				i+= 1;
+			}
+			else if(args[i].equals("-token_file"))
+			{
+				if((i+1) < args.length)
+				{
+					tokenFilename = args[i+1];
+				}
+				else
+				{
+					System.err.println(this.getClass().getName()+
+							":parseArguments:token_file:No token filename specified.");
+					System.exit(10);
+				}
+				i+= 1;
+			}
 			else if(args[i].equals("-username"))
 			{
 				if((i+1) < args.length)
@@ -292,6 +434,232 @@ public class NodeAgentClient
         reqContext.put(MessageContext.HTTP_REQUEST_HEADERS, headers);	
 	}
 
+	/**
+	 * Set the Fast Infoset content negotiation used to communicate with the web service, if one was specified.
+	 * With pessimistic negotiation, the first request is textual SOAP, advertising that Fast Infoset is accepted;
+	 * if the web service replies with Fast Infoset, later requests are sent as Fast Infoset.
+	 * With optimistic negotiation, every request is sent as Fast Infoset.
+	 * @see #contentNegotiation
+	 * @see com.sun.xml.ws.client.ContentNegotiation#PROPERTY
+	 */
+	public void setContentNegotiation()
+	{
+		if(contentNegotiation == null)
+			return;
+		Map<String, Object> reqContext = ((BindingProvider) nodeAgentInterface).getRequestContext();
+		reqContext.put(ContentNegotiation.PROPERTY, contentNegotiation.toString());
+	}
+
+	/**
+	 * Set the gzip compression HTTP request headers used to communicate with the web service, if -gzip was specified.
+	 * The web service is told gzip responses are accepted (the client transport decompresses them). If the request
+	 * document(s) are at least gzipThreshold characters long, the request is sent gzip compressed, smaller requests
+	 * are sent uncompressed. Must be called after setUsernamePassword, as the headers are added to its map.
+	 * @param requestLength The total length of the RTML document(s) being sent, or 0 for ping.
+	 * @see #gzip
+	 * @see #gzipThreshold
+	 * @see #setUsernamePassword
+	 */
+	@SuppressWarnings("unchecked")
+	public void setCompression(int requestLength)
+	{
+		Map<String, Object> reqContext = null;
+		Map<String, List<String>> headers = null;
+
+		if(gzip == false)
+			return;
+		reqContext = ((BindingProvider) nodeAgentInterface).getRequestContext();
+		headers = (Map<String, List<String>>)reqContext.get(MessageContext.HTTP_REQUEST_HEADERS);
+		if(headers == null)
+		{
+			headers = new HashMap<String, List<String>>();
+			reqContext.put(MessageContext.HTTP_REQUEST_HEADERS, headers);
+		}
+		headers.put("Accept-Encoding", Collections.singletonList("gzip"));
+		if(requestLength >= gzipThreshold)
+			headers.put("Content-Encoding", Collections.singletonList("gzip"));
+		else
+			headers.remove("Content-Encoding");
+	}
+
+	/**
+	 * Set how long to wait for the reply, if -timeout was specified. The client gives up after timeout milliseconds,
+	 * and the timeout is sent to the web service as the Timeout HTTP request header, so it can drop the request 
+	 * rather than do work for a client that has gone. Must be called after setUsernamePassword, 
+	 * as the header is added to its map.
+	 * @see #timeout
+	 * @see #REQUEST_TIMEOUT_PROPERTY
+	 * @see #setUsernamePassword
+	 */
+	@SuppressWarnings("unchecked")
+	public void setTimeout()
+	{
+		Map<String, Object> reqContext = null;
+		Map<String, List<String>> headers = null;
+
+		if(timeout <= 0)
+			return;
+		reqContext = ((BindingProvider) nodeAgentInterface).getRequestContext();
+		reqContext.put(REQUEST_TIMEOUT_PROPERTY, Integer.valueOf(timeout));
+		headers = (Map<String, List<String>>)reqContext.get(MessageContext.HTTP_REQUEST_HEADERS);
+		if(headers == null)
+		{
+			headers = new HashMap<String, List<String>>();
+			reqContext.put(MessageContext.HTTP_REQUEST_HEADERS, headers);
+		}
+		headers.put("Timeout", Collections.singletonList(Integer.toString(timeout)));
+	}
+
+	/**
+	 * Get the HTTP request headers map used to communicate with the web service, creating it if necessary.
+	 * @return The request headers map.
+	 * @see #nodeAgentInterface
+	 */
+	@SuppressWarnings("unchecked")
+	protected Map<String, List<String>> getRequestHeaders()
+	{
+		Map<String, Object> reqContext = ((BindingProvider) nodeAgentInterface).getRequestContext();
+		Map<String, List<String>> headers = null;
+
+		headers = (Map<String, List<String>>)reqContext.get(MessageContext.HTTP_REQUEST_HEADERS);
+		if(headers == null)
+		{
+			headers = new HashMap<String, List<String>>();
+			reqContext.put(MessageContext.HTTP_REQUEST_HEADERS, headers);
+		}
+		return headers;
+	}
+
+	/**
+	 * Set the Timestamp (the current time) and Nonce (a new random UUID) HTTP request headers, used by the
+	 * web service to reject replayed requests. Must be called before each web service call.
+	 * @see #getRequestHeaders
+	 */
+	public void setNonce()
+	{
+		Map<String, List<String>> headers = getRequestHeaders();
+
+		headers.put("Timestamp", Collections.singletonList(Long.toString(System.currentTimeMillis())));
+		headers.put("Nonce", Collections.singletonList(UUID.randomUUID().toString()));
+	}
+
+	/**
+	 * Get the expiry time of a session token (the second field of the token).
+	 * @param token The session token.
+	 * @return The expiry time, in milliseconds since the epoch, or 0 if the token is malformed.
+	 */
+	public static long getTokenExpiry(String token)
+	{
+		String fields[] = token.split("\\.");
+
+		if(fields.length != 3)
+			return 0;
+		try
+		{
+			return Long.parseLong(fields[1]);
+		}
+		catch(NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * Use a session token, instead of the password, in the HTTP request headers, if -no_token was not specified.
+	 * The cached token (in memory, or in the token file) is used if it does not expire within TOKEN_RENEWAL_MARGIN,
+	 * otherwise we login to get a new one. If the login fails the password is still sent. 
+	 * Must be called after setUsernamePassword, as the headers are changed in its map.
+	 * @see #useToken
+	 * @see #token
+	 * @see #tokenFilename
+	 * @see #TOKEN_RENEWAL_MARGIN
+	 * @see #login
+	 */
+	public void setToken()
+	{
+		Map<String, List<String>> headers = null;
+
+		if(useToken == false)
+			return;
+		if((token == null) && (tokenFilename != null) && new File(tokenFilename).exists())
+		{
+			try
+			{
+				token = loadFile(tokenFilename).trim();
+			}
+			catch(IOException e)
+			{
+				log.log(1,"NodeAgentClient:setToken:Failed to load token file "+tokenFilename+":"+e);
+				token = null;
+			}
+		}
+		if((token == null) || ((getTokenExpiry(token)-System.currentTimeMillis()) < TOKEN_RENEWAL_MARGIN))
+			login();
+		if(token != null)
+		{
+			headers = getRequestHeaders();
+			headers.remove("password");
+			headers.put("Token", Collections.singletonList(token));
+		}
+	}
+
+	/**
+	 * Login to the web service (using the username and password), to get a new session token. The token is saved
+	 * in the token file, if one was specified. If the login fails, token is set to null.
+	 * @see #token
+	 * @see #tokenFilename
+	 */
+	protected void login()
+	{
+		Map<String, List<String>> headers = getRequestHeaders();
+
+		headers.remove("Token");
+		headers.put("password", Collections.singletonList(password));
+		setNonce();
+		try
+		{
+			log.log(1,"NodeAgentClient:login:Invoking login endpoint.");
+			token = nodeAgentInterface.login();
+		}
+		catch(Exception e)
+		{
+			log.log(1,"NodeAgentClient:login:Login failed, using password instead:"+e);
+			token = null;
+			return;
+		}
+		if(tokenFilename != null)
+		{
+			try
+			{
+				saveFile(tokenFilename,token);
+			}
+			catch(IOException e)
+			{
+				log.log(1,"NodeAgentClient:login:Failed to save token file "+tokenFilename+":"+e);
+			}
+		}
+	}
+
+	/**
+	 * Called when a web service call fails. If we were using a session token, and it was rejected (e.g. the
+	 * web service was restarted with a new token secret), the token is discarded and a new one obtained,
+	 * so the call can be retried.
+	 * @param e The exception the call failed with.
+	 * @return true if a new token was obtained, and the call should be retried.
+	 * @see #setToken
+	 */
+	public boolean renewToken(Exception e)
+	{
+		if((token == null) || (e.getMessage() == null) || (e.getMessage().indexOf("Token") < 0))
+			return false;
+		log.log(1,"NodeAgentClient:renewToken:Token rejected, logging in again:"+e);
+		token = null;
+		if(tokenFilename != null)
+			new File(tokenFilename).delete();
+		setToken();
+		return token != null;
+	}
+
 	/**
 	 * help method.
 	 */
@@ -305,6 +673,20 @@ public class NodeAgentClient
 		System.err.println("\t-ping");
 		System.err.println("\t-handle_rtml <RTML filename>");
 		System.err.println("\t-output_filename <filename>");
+		System.err.println("\t-batch");
+		System.err.println("\t-fastinfoset [pessimistic|optimistic]");
+		System.err.println("\t-gzip [threshold]");
+		System.err.println("\t-timeout <milliseconds>");
+		System.err.println("\t-no_token");
+		System.err.println("\t-token_file <filename>");
+		System.err.println("With -batch, -handle_rtml can be specified more than once, and all the documents are sent");
+		System.err.println("in one call to handle_rtml_batch. Each returned document is saved to <filename>.<index>.");
+		System.err.println("With -gzip, gzip responses are accepted, and requests of at least threshold characters");
+		System.err.println("(default "+DEFAULT_GZIP_THRESHOLD+") are sent gzip compressed.");
+		System.err.println("With -timeout, the client gives up waiting for the reply after the timeout, and the web service");
+		System.err.println("is told the timeout so it does not send expired documents to the TEA.");
+		System.err.println("The client logs in and sends a session token instead of the password, unless -no_token is specified.");
+		System.err.println("With -token_file, the token is cached in the file and reused by later invocations until it expires.");
 	}
 	
 	/**
@@ -376,6 +758,17 @@ public class NodeAgentClient
 		// setup authentication
 		nac.log.log(1,"NodeAgentClient:main:Setting up authentication.");
 		nac.setUsernamePassword();
+		if(nac.contentNegotiation != null)
+		{
+			nac.log.log(1,"NodeAgentClient:main:Using Fast Infoset content negotiation:"+nac.contentNegotiation);
+			nac.setContentNegotiation();
+		}
+		if(nac.timeout > 0)
+		{
+			nac.log.log(1,"NodeAgentClient:main:Using timeout:"+nac.timeout+" ms.");
+			nac.setTimeout();
+		}
+		nac.setToken();
 		// Which endpoint are we calling?
 		if(nac.endpoint == ENDPOINT_PING)
 		{
@@ -384,8 +777,20 @@ public class NodeAgentClient
 			{
 				String returnString = null;
 			
+				nac.setCompression(0);
 				nac.log.log(1,"NodeAgentClient:main:Invoking ping endpoint.");
-				returnString = nac.nodeAgentInterface.ping();
+				try
+				{
+					nac.setNonce();
+					returnString = nac.nodeAgentInterface.ping();
+				}
+				catch(Exception e)
+				{
+					if(nac.renewToken(e) == false)
+						throw e;
+					nac.setNonce();
+					returnString = nac.nodeAgentInterface.ping();
+				}
 				nac.log.log(1,"NodeAgentClient: ping returned:"+returnString);
 			}
 			catch (Exception e)
@@ -395,6 +800,83 @@ public class NodeAgentClient
 				System.exit(2);
 			}
 		}
+		else if((nac.endpoint == ENDPOINT_HANDLE_RTML) && nac.batch)
+		{
+			String rtmlStrings[] = new String[nac.rtmlFilenameList.size()];
+			String returnStrings[] = null;
+
+			// load rtml files
+			for(int i = 0; i < rtmlStrings.length; i++)
+			{
+				String filename = nac.rtmlFilenameList.get(i);
+
+				try
+				{
+					nac.log.log(1,"NodeAgentClient:main:Loading RTML file "+filename+".");
+					rtmlStrings[i] = nac.loadFile(filename);
+				}
+				catch(Exception e)
+				{
+					nac.errorLog.log(1,"NodeAgentClient failed to load RTML file "+filename+":",e);
+					e.printStackTrace();
+					System.exit(3);
+				}
+			}
+			// call handle_rtml_batch endpoint
+			try
+			{
+				int requestLength = 0;
+
+				for(int i = 0; i < rtmlStrings.length; i++)
+					requestLength += rtmlStrings[i].length();
+				nac.setCompression(requestLength);
+				nac.log.log(1,"NodeAgentClient:main:Invoking handle_rtml_batch endpoint with "+
+					    rtmlStrings.length+" documents.");
+				try
+				{
+					nac.setNonce();
+					returnStrings = nac.nodeAgentInterface.handle_rtml_batch(rtmlStrings);
+				}
+				catch(Exception e)
+				{
+					if(nac.renewToken(e) == false)
+						throw e;
+					nac.setNonce();
+					returnStrings = nac.nodeAgentInterface.handle_rtml_batch(rtmlStrings);
+				}
+			}
+			catch(Exception e)
+			{
+				nac.errorLog.log(1,"NodeAgentClient failed to invoke handle_rtml_batch endpoint.");
+				e.printStackTrace();
+				System.exit(4);
+			}
+			// Save the returned documents, or print them out
+			for(int i = 0; i < returnStrings.length; i++)
+			{
+				if(nac.outputFilename != null)
+				{
+					String filename = nac.outputFilename+"."+i;
+
+					try
+					{
+						nac.log.log(1,"NodeAgentClient:main:Saving returned RTML "+i+" to file:"+filename);
+						nac.saveFile(filename,returnStrings[i]);
+					}
+					catch(Exception e)
+					{
+						nac.errorLog.log(1,"NodeAgentClient failed to save returned rtml into filename:"+filename,e);
+						e.printStackTrace();
+						System.exit(5);					
+					}
+				}
+				else
+				{
+					nac.log.log(1,"NodeAgentClient:main:handle_rtml_batch returned document "+i+" ("+
+						    nac.rtmlFilenameList.get(i)+"):"+returnStrings[i]);
+				}
+			}
+		}
 		else if(nac.endpoint == ENDPOINT_HANDLE_RTML)
 		{
 			String rtmlString = null;
@@ -415,8 +897,20 @@ public class NodeAgentClient
 			// call handle_rtml endpoint
 			try
 			{
+				nac.setCompression(rtmlString.length());
 				nac.log.log(1,"NodeAgentClient:main:Invoking handle_rtml endpoint.");
-				returnString = nac.nodeAgentInterface.handle_rtml(rtmlString);
+				try
+				{
+					nac.setNonce();
+					returnString = nac.nodeAgentInterface.handle_rtml(rtmlString);
+				}
+				catch(Exception e)
+				{
+					if(nac.renewToken(e) == false)
+						throw e;
+					nac.setNonce();
+					returnString = nac.nodeAgentInterface.handle_rtml(rtmlString);
+				}
 			}
 			catch(Exception e)
 			{
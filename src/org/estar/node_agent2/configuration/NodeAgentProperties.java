@@ -11,14 +11,28 @@ import org.estar.node_agent2.util.LoggerUtil;
 
 /**
  * Class holding configuration information from the /etc/nodeagent property files.
+ * The directory can be changed by setting the nodeagent.config.dir system property
+ * (e.g. -Dnodeagent.config.dir=/home/eng/nodeagent), before this class is loaded.
  * @author cjm
  */
 public class NodeAgentProperties extends Properties
 {
 	/**
-	 * Base directory containing the property files: /etc/nodeagent.
+	 * The name of the system property used to override the directory containing the property files.
 	 */
-	public static final String BASE_DIR                             = "/etc/nodeagent";
+	public static final String CONFIG_DIR_SYSTEM_PROPERTY			= "nodeagent.config.dir";
+	/**
+	 * The default directory containing the property files: /etc/nodeagent.
+	 */
+	public static final String DEFAULT_BASE_DIR                     = "/etc/nodeagent";
+	/**
+	 * Base directory containing the property files: The nodeagent.config.dir system property, 
+	 * or /etc/nodeagent if it is not set.
+	 * @see #CONFIG_DIR_SYSTEM_PROPERTY
+	 * @see #DEFAULT_BASE_DIR
+	 */
+	public static final String BASE_DIR                             = System.getProperty(CONFIG_DIR_SYSTEM_PROPERTY,
+											  DEFAULT_BASE_DIR);
 
 	public static final String NODE_AGENT_NAME 						= "nodeagent.name";
 	public static final String IS_TEA_CONNECTED 					= "isteaconnected";
@@ -28,12 +42,245 @@ public class NodeAgentProperties extends Properties
 	
 	public static final String NODE_AGENT_RESPONSE_HANDLER_RMI_NAME = "nodeagent.response.handler.rmi.name";
 	public static final String NODE_AGENT_PORT						= "nodeagent.port";
+	/**
+	 * The maximum number of initialised RTML parsers held by the RTMLParserPool.
+	 * @see org.estar.node_agent2.util.RTMLParserPool
+	 */
+	public static final String RTML_PARSER_POOL_SIZE				= "rtml.parser.pool.size";
+	/**
+	 * How long (in milliseconds) a request waits for a free parser in the RTMLParserPool before failing.
+	 * @see org.estar.node_agent2.util.RTMLParserPool
+	 */
+	public static final String RTML_PARSER_POOL_WAIT_TIMEOUT		= "rtml.parser.pool.wait.timeout";
+	/**
+	 * Whether to resolve the RTML DTD/schema from the local entity catalog, rather than over the network,
+	 * and validate documents against the grammars it caches.
+	 * @see org.estar.node_agent2.util.RTMLEntityCatalog
+	 */
+	public static final String RTML_CATALOG_USE					= "rtml.catalog.use";
+	/**
+	 * The directory containing the local entity catalog. If not set, the catalog shipped in the WAR is used.
+	 * @see org.estar.node_agent2.util.RTMLEntityCatalog
+	 */
+	public static final String RTML_CATALOG_DIR					= "rtml.catalog.dir";
+	/**
+	 * For users with the "sampled" validation policy, the default number of documents per fully validated document.
+	 * @see org.estar.node_agent2.util.RTMLValidationPolicy
+	 */
+	public static final String VALIDATION_SAMPLE_RATE				= "validation.sample.rate";
+	/**
+	 * The number of characters at the start of a received document scanned by the pre-classifier.
+	 * @see org.estar.node_agent2.util.RTMLPreClassifier
+	 */
+	public static final String RTML_PRECLASSIFIER_PREFIX_LENGTH	= "rtml.preclassifier.prefix.length";
+	/**
+	 * Whether reject documents created from scratch are serialized from a precompiled template, 
+	 * rather than by RTMLCreate.
+	 * @see org.estar.node_agent2.util.RTMLReplySerializer
+	 */
+	public static final String RTML_REPLY_TEMPLATE_USE			= "rtml.reply.template.use";
+	/**
+	 * The maximum number of documents, across all handle_rtml_batch calls, processed in parallel.
+	 * @see org.estar.node_agent2.util.RTMLBatchExecutor
+	 */
+	public static final String RTML_BATCH_PARALLELISM			= "rtml.batch.parallelism";
+	/**
+	 * The number of documents submitted with submit_rtml that are processed in parallel.
+	 * @see org.estar.node_agent2.util.RTMLTicketStore
+	 */
+	public static final String RTML_TICKET_PARALLELISM			= "rtml.ticket.parallelism";
+	/**
+	 * The maximum number of tickets (pending and completed) held in the ticket store.
+	 * @see org.estar.node_agent2.util.RTMLTicketStore
+	 */
+	public static final String RTML_TICKET_STORE_SIZE			= "rtml.ticket.store.size";
+	/**
+	 * How long (in milliseconds) a completed ticket's reply is kept, after the document was processed.
+	 * @see org.estar.node_agent2.util.RTMLTicketStore
+	 */
+	public static final String RTML_TICKET_EXPIRY				= "rtml.ticket.expiry";
+	/**
+	 * The longest time (in milliseconds) an await_rtml call waits for a reply.
+	 * @see org.estar.node_agent2.util.RTMLTicketStore
+	 */
+	public static final String RTML_TICKET_AWAIT_MAX			= "rtml.ticket.await.max";
+	/**
+	 * The number of documents processed in parallel by the asynchronous endpoint.
+	 * @see org.estar.node_agent2.util.RTMLAsyncExecutor
+	 */
+	public static final String RTML_ASYNC_PARALLELISM			= "rtml.async.parallelism";
+	/**
+	 * The number of documents that can wait for a thread of the asynchronous endpoint, before further documents
+	 * are rejected as busy.
+	 * @see org.estar.node_agent2.util.RTMLAsyncExecutor
+	 */
+	public static final String RTML_ASYNC_QUEUE_SIZE			= "rtml.async.queue.size";
+	/**
+	 * Whether gzip compression of requests and responses is negotiated.
+	 * @see org.estar.node_agent2.filter.GzipFilter
+	 */
+	public static final String HTTP_GZIP_USE						= "http.gzip.use";
+	/**
+	 * The response size (in bytes) at or above which responses are gzip compressed.
+	 * @see org.estar.node_agent2.filter.GzipFilter
+	 */
+	public static final String HTTP_GZIP_THRESHOLD				= "http.gzip.threshold";
+	/**
+	 * The maximum size (in bytes) of a received RTML document.
+	 * @see org.estar.node_agent2.util.RTMLDocumentLimits
+	 */
+	public static final String RTML_LIMIT_MAX_BYTES				= "rtml.limit.max.bytes";
+	/**
+	 * The maximum element depth of a received RTML document.
+	 * @see org.estar.node_agent2.util.RTMLDocumentLimits
+	 */
+	public static final String RTML_LIMIT_MAX_DEPTH				= "rtml.limit.max.depth";
+	/**
+	 * The maximum number of Observation elements in a received RTML document.
+	 * @see org.estar.node_agent2.util.RTMLDocumentLimits
+	 */
+	public static final String RTML_LIMIT_MAX_OBSERVATIONS			= "rtml.limit.max.observations";
+	/**
+	 * The maximum number of History Entry elements in a received RTML document.
+	 * @see org.estar.node_agent2.util.RTMLDocumentLimits
+	 */
+	public static final String RTML_LIMIT_MAX_HISTORY_ENTRIES		= "rtml.limit.max.history.entries";
+	/**
+	 * The total size (in bytes) of the received RTML documents being processed at once.
+	 * @see org.estar.node_agent2.util.RTMLDocumentLimits
+	 */
+	public static final String RTML_LIMIT_IN_FLIGHT_BYTES			= "rtml.limit.in.flight.bytes";
+	/**
+	 * How long (in milliseconds) a received RTML document waits for the in-flight bytes budget before being rejected.
+	 * @see org.estar.node_agent2.util.RTMLDocumentLimits
+	 */
+	public static final String RTML_LIMIT_IN_FLIGHT_WAIT			= "rtml.limit.in.flight.wait";
+	/**
+	 * Whether to warm up the Node Agent (by processing the warm-up corpus) when it starts.
+	 * @see org.estar.node_agent2.initialisation.NodeAgentWarmUp
+	 */
+	public static final String RTML_WARMUP_USE						= "rtml.warmup.use";
+	/**
+	 * The directory containing the warm-up corpus of RTML documents.
+	 * @see org.estar.node_agent2.initialisation.NodeAgentWarmUp
+	 */
+	public static final String RTML_WARMUP_CORPUS_DIR				= "rtml.warmup.corpus.dir";
+	/**
+	 * The number of times the warm-up corpus is processed.
+	 * @see org.estar.node_agent2.initialisation.NodeAgentWarmUp
+	 */
+	public static final String RTML_WARMUP_ITERATIONS				= "rtml.warmup.iterations";
+	/**
+	 * The default deadline (in milliseconds from receipt) for score documents, used when the client does not
+	 * supply one. 0 means no deadline.
+	 * @see org.estar.node_agent2.util.RTMLDeadlinePolicy
+	 */
+	public static final String RTML_DEADLINE_SCORE					= "rtml.deadline.score";
+	/**
+	 * The default deadline (in milliseconds from receipt) for request documents.
+	 * @see org.estar.node_agent2.util.RTMLDeadlinePolicy
+	 */
+	public static final String RTML_DEADLINE_REQUEST				= "rtml.deadline.request";
+	/**
+	 * The default deadline (in milliseconds from receipt) for abort documents.
+	 * @see org.estar.node_agent2.util.RTMLDeadlinePolicy
+	 */
+	public static final String RTML_DEADLINE_ABORT					= "rtml.deadline.abort";
+	/**
+	 * The default deadline (in milliseconds from receipt) for update documents.
+	 * @see org.estar.node_agent2.util.RTMLDeadlinePolicy
+	 */
+	public static final String RTML_DEADLINE_UPDATE					= "rtml.deadline.update";
+	/**
+	 * Whether to reload the alias, password and validation policy maps when their files change.
+	 * @see org.estar.node_agent2.storage.PersistentMapWatcher
+	 */
+	public static final String PERSISTENCE_RELOAD_USE				= "persistence.reload.use";
+	/**
+	 * How long (in milliseconds) a map file must be unchanged before it is reloaded.
+	 * @see org.estar.node_agent2.storage.PersistentMapWatcher
+	 */
+	public static final String PERSISTENCE_RELOAD_DEBOUNCE			= "persistence.reload.debounce";
+	/**
+	 * The maximum number of entries in the verified credential cache, and of usernames with failures recorded.
+	 * @see org.estar.node_agent2.util.NodeAgentAuthenticator
+	 */
+	public static final String AUTHENTICATION_CACHE_SIZE			= "authentication.cache.size";
+	/**
+	 * How long (in milliseconds) verified credentials are cached for. 0 disables the cache.
+	 * @see org.estar.node_agent2.util.NodeAgentAuthenticator
+	 */
+	public static final String AUTHENTICATION_CACHE_TTL				= "authentication.cache.ttl";
+	/**
+	 * How long (in milliseconds) a username is locked out after it's first failed verification. The lockout doubles
+	 * with each further consecutive failure.
+	 * @see org.estar.node_agent2.util.NodeAgentAuthenticator
+	 */
+	public static final String AUTHENTICATION_FAILURE_BACKOFF		= "authentication.failure.backoff";
+	/**
+	 * The maximum time (in milliseconds) a username is locked out after failed verifications. 0 disables the lockout.
+	 * @see org.estar.node_agent2.util.NodeAgentAuthenticator
+	 */
+	public static final String AUTHENTICATION_FAILURE_BACKOFF_MAX	= "authentication.failure.backoff.max";
+	/**
+	 * The secret used to sign session tokens. Node Agent instances with the same secret accept each other's tokens.
+	 * If not set, a random secret is generated at startup.
+	 * @see org.estar.node_agent2.util.SessionToken
+	 */
+	public static final String AUTHENTICATION_TOKEN_SECRET			= "authentication.token.secret";
+	/**
+	 * How long (in milliseconds) a session token is valid for.
+	 * @see org.estar.node_agent2.util.SessionToken
+	 */
+	public static final String AUTHENTICATION_TOKEN_TTL				= "authentication.token.ttl";
+	/**
+	 * Whether to check the Timestamp and Nonce request headers (when present) to reject replayed requests.
+	 * @see org.estar.node_agent2.util.ReplayGuard
+	 */
+	public static final String AUTHENTICATION_REPLAY_USE			= "authentication.replay.use";
+	/**
+	 * Whether to reject requests without the Timestamp and Nonce headers.
+	 * @see org.estar.node_agent2.util.ReplayGuard
+	 */
+	public static final String AUTHENTICATION_REPLAY_REQUIRED		= "authentication.replay.required";
+	/**
+	 * How far (in milliseconds) a request's timestamp can be from the current time.
+	 * @see org.estar.node_agent2.util.ReplayGuard
+	 */
+	public static final String AUTHENTICATION_REPLAY_WINDOW			= "authentication.replay.window";
+	/**
+	 * The expected peak request rate (requests per second), used to size the replay protection Bloom filters.
+	 * @see org.estar.node_agent2.util.ReplayGuard#getFilterBitCount(long,long,double,int)
+	 */
+	public static final String AUTHENTICATION_REPLAY_EXPECTED_RATE	= "authentication.replay.expected.rate";
+	/**
+	 * The target false positive rate (genuine requests rejected as replays) at the expected rate, used to size the
+	 * replay protection Bloom filters.
+	 * @see org.estar.node_agent2.util.ReplayGuard#getFilterBitCount(long,long,double,int)
+	 */
+	public static final String AUTHENTICATION_REPLAY_FALSE_POSITIVE_RATE = "authentication.replay.false.positive.rate";
+	/**
+	 * The number of bits in each of the replay protection Bloom filters. If not set, the size is derived from the
+	 * window, expected rate and target false positive rate.
+	 * @see org.estar.node_agent2.util.ReplayGuard
+	 */
+	public static final String AUTHENTICATION_REPLAY_FILTER_BITS	= "authentication.replay.filter.bits";
+	/**
+	 * The number of hashes (bit probes) per nonce in the replay protection Bloom filters.
+	 * @see org.estar.node_agent2.util.ReplayGuard
+	 */
+	public static final String AUTHENTICATION_REPLAY_FILTER_HASHES	= "authentication.replay.filter.hashes";
 	
 	private static final String PROPERTIES_FILE_PATH 				= BASE_DIR + "/server.configuration";
 	public static final String HASH_STORAGE_FILE_PATH 				= BASE_DIR + "/rtml.hashstoragefile";
 	public static final String USERALIAS_MAP_LOCATION 				= BASE_DIR + "/useralias.map";
 	public static final String PROJECTALIAS_MAP_LOCATION 			= BASE_DIR + "/projectalias.map";
 	public static final String PASSWORD_MAP_LOCATION 				= BASE_DIR + "/userpassword.map";
+	/**
+	 * The location of the (optional) map from RTML User names to the validation policy applied to their documents.
+	 * @see org.estar.node_agent2.util.RTMLValidationPolicy
+	 */
+	public static final String VALIDATION_POLICY_MAP_LOCATION		= BASE_DIR + "/uservalidation.map";
 	
 	public static final String REQUESTS_LOG_FILE_PATH				= BASE_DIR + "/requests.log";
 	
@@ -109,6 +356,71 @@ public class NodeAgentProperties extends Properties
 		return properties;
 	}
 	
+	/**
+	 * Return the value of the specified property as an integer.
+	 * @param key The name of the property.
+	 * @param defaultValue The value to return if the property is not set.
+	 * @return The integer value of the property, or defaultValue if the property is not set.
+	 * @throws NumberFormatException Thrown if the property is set but is not a legal integer.
+	 */
+	public int getIntProperty(String key,int defaultValue) throws NumberFormatException
+	{
+		String valueString = getProperty(key);
+
+		if(valueString == null)
+			return defaultValue;
+		return Integer.parseInt(valueString.trim());
+	}
+
+	/**
+	 * Return the value of the specified property as a long.
+	 * @param key The name of the property.
+	 * @param defaultValue The value to return if the property is not set.
+	 * @return The long value of the property, or defaultValue if the property is not set.
+	 * @throws NumberFormatException Thrown if the property is set but is not a legal long.
+	 */
+	public long getLongProperty(String key,long defaultValue) throws NumberFormatException
+	{
+		String valueString = getProperty(key);
+
+		if(valueString == null)
+			return defaultValue;
+		return Long.parseLong(valueString.trim());
+	}
+
+	/**
+	 * Return the value of the specified property as a double.
+	 * @param key The name of the property.
+	 * @param defaultValue The value to return if the property is not set.
+	 * @return The double value of the property, or defaultValue if the property is not set.
+	 * @throws NumberFormatException Thrown if the property is set but is not a legal double.
+	 */
+	public double getDoubleProperty(String key,double defaultValue) throws NumberFormatException
+	{
+		String valueString = getProperty(key);
+
+		if(valueString == null)
+			return defaultValue;
+		return Double.parseDouble(valueString.trim());
+	}
+
+	/**
+	 * Return the value of the specified property as a boolean.
+	 * @param key The name of the property.
+	 * @param defaultValue The value to return if the property is not set.
+	 * @return true if the property is set to "true" (ignoring case), false if it is set to anything else,
+	 *         or defaultValue if the property is not set.
+	 * @see #TRUE
+	 */
+	public boolean getBooleanProperty(String key,boolean defaultValue)
+	{
+		String valueString = getProperty(key);
+
+		if(valueString == null)
+			return defaultValue;
+		return valueString.trim().equalsIgnoreCase(TRUE);
+	}
+
 	/**
 	 * Print a debugging list of properties to System.out.
 	 */
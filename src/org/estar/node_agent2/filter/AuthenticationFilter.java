@@ -0,0 +1,210 @@
+package org.estar.node_agent2.filter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.util.LoggerUtil;
+import org.estar.node_agent2.util.NodeAgentAuthenticator;
+import org.estar.node_agent2.util.ReplayGuard;
+
+/**
+ * Servlet filter, mapped in front of WSServlet in web.xml, that checks the Username and Password HTTP headers
+ * of each SOAP request (POST) before the request body is read. A JAX-WS SOAPHandler is not used, as the handler
+ * chain only runs once JAX-WS has read and parsed the whole message.
+ * <ul>
+ * <li>If the username/password are legal, the username is stored in the USERNAME_ATTRIBUTE request attribute,
+ *     and the request continues to the web-service, which uses the attribute rather than checking again.
+ * <li>Otherwise a SOAP fault (HTTP 500, as returned when the web-service itself fails authentication) is returned
+ *     at once, with "Connection: close" so the container does not read the unread request body to reuse the
+ *     connection.
+ * </ul>
+ * Other requests (GETs of the WSDL) are passed through unchecked. The number of authenticated and rejected requests
+ * are reported by getStatistics (logged on each ping).
+ * @author cjm
+ * @see org.estar.node_agent2.util.NodeAgentAuthenticator
+ * @see org.estar.node_agent2.NodeAgentWebServiceImpl#checkUsernamePassword(javax.xml.ws.handler.MessageContext)
+ */
+public class AuthenticationFilter implements Filter
+{
+	/**
+	 * The request attribute containing the authenticated username.
+	 */
+	public static final String USERNAME_ATTRIBUTE = "org.estar.node_agent2.username";
+	/**
+	 * The request header containing the username.
+	 */
+	public static final String HEADER_USERNAME = "Username";
+	/**
+	 * The request header containing the password.
+	 */
+	public static final String HEADER_PASSWORD = "Password";
+	/**
+	 * The request header containing the session token (used instead of the password).
+	 * @see org.estar.node_agent2.util.SessionToken
+	 */
+	public static final String HEADER_TOKEN = "Token";
+	/**
+	 * The SOAP 1.1 fault envelope, before the fault string.
+	 */
+	private static final String FAULT_PREFIX = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"+
+		"<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\"><S:Body><S:Fault>"+
+		"<faultcode>S:Server</faultcode><faultstring>";
+	/**
+	 * The SOAP 1.1 fault envelope, after the fault string.
+	 */
+	private static final String FAULT_POSTFIX = "</faultstring></S:Fault></S:Body></S:Envelope>";
+	/**
+	 * The trace logger.
+	 */
+	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+	/**
+	 * The error logger.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+	/**
+	 * The number of requests authenticated.
+	 */
+	private static AtomicLong authenticatedCount = new AtomicLong(0);
+	/**
+	 * The number of requests rejected.
+	 */
+	private static AtomicLong rejectedCount = new AtomicLong(0);
+	/**
+	 * The time spent rejecting requests, in nanoseconds.
+	 */
+	private static AtomicLong rejectionTime = new AtomicLong(0);
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException
+	{
+	}
+
+	/**
+	 * Check the session token, or username and password, and the timestamp and nonce (replay protection),
+	 * of POST requests, then pass the request down the filter chain, or return a SOAP fault.
+	 * @see org.estar.node_agent2.util.NodeAgentAuthenticator#checkCredentials
+	 * @see #sendFault
+	 * @see #USERNAME_ATTRIBUTE
+	 */
+	@Override
+	public void doFilter(ServletRequest request,ServletResponse response,FilterChain chain)
+		throws IOException, ServletException
+	{
+		HttpServletRequest httpRequest = null;
+		String username = null;
+		long startTime;
+
+		if (((request instanceof HttpServletRequest) == false) ||
+		    (((HttpServletRequest)request).getMethod().equals("POST") == false))
+		{
+			chain.doFilter(request,response);
+			return;
+		}
+		httpRequest = (HttpServletRequest)request;
+		startTime = System.nanoTime();
+		try
+		{
+			username = NodeAgentAuthenticator.getInstance().checkCredentials(httpRequest.getHeader(HEADER_USERNAME),
+						httpRequest.getHeader(HEADER_PASSWORD),httpRequest.getHeader(HEADER_TOKEN),
+						httpRequest.getHeader(ReplayGuard.HEADER_TIMESTAMP),
+						httpRequest.getHeader(ReplayGuard.HEADER_NONCE));
+		}
+		catch (RuntimeException e)
+		{
+			rejectedCount.incrementAndGet();
+			errorLogger.log(1, AuthenticationFilter.class.getName(), "doFilter:Rejected request from "+
+					httpRequest.getRemoteAddr()+":"+e);
+			sendFault((HttpServletResponse)response,e.getMessage());
+			rejectionTime.addAndGet(System.nanoTime()-startTime);
+			return;
+		}
+		authenticatedCount.incrementAndGet();
+		request.setAttribute(USERNAME_ATTRIBUTE,username);
+		chain.doFilter(request,response);
+	}
+
+	@Override
+	public void destroy()
+	{
+	}
+
+	/**
+	 * Send a SOAP fault containing the specified message, and close the connection.
+	 * @param response The response.
+	 * @param message The fault string.
+	 * @exception IOException Thrown if writing the response fails.
+	 */
+	protected void sendFault(HttpServletResponse response,String message) throws IOException
+	{
+		byte faultBytes[] = null;
+		OutputStream outputStream = null;
+
+		faultBytes = (FAULT_PREFIX+escape(message)+FAULT_POSTFIX).getBytes("UTF-8");
+		response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		response.setHeader("Connection","close");
+		response.setContentType("text/xml; charset=utf-8");
+		response.setContentLength(faultBytes.length);
+		outputStream = response.getOutputStream();
+		outputStream.write(faultBytes);
+		outputStream.close();
+	}
+
+	/**
+	 * Escape the XML special characters in the specified string.
+	 * @param s The string.
+	 * @return The escaped string.
+	 */
+	private static String escape(String s)
+	{
+		StringBuilder sb = null;
+
+		if (s == null)
+			return "";
+		sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+
+			switch (c)
+			{
+				case '<':
+					sb.append("&lt;");
+					break;
+				case '>':
+					sb.append("&gt;");
+					break;
+				case '&':
+					sb.append("&amp;");
+					break;
+				default:
+					sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Return a string describing the filter's statistics.
+	 * @return The statistics string.
+	 */
+	public static String getStatistics()
+	{
+		long rejected = rejectedCount.get();
+
+		return AuthenticationFilter.class.getName()+"[authenticated="+authenticatedCount.get()+",rejected="+rejected+
+			",meanRejectionTime="+((rejected > 0) ? (rejectionTime.get()/rejected) : 0)+"ns]";
+	}
+}
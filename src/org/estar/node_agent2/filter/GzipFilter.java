@@ -0,0 +1,642 @@
+package org.estar.node_agent2.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.configuration.NodeAgentProperties;
+import org.estar.node_agent2.util.LoggerUtil;
+
+/**
+ * Servlet filter, mapped in front of WSServlet in web.xml, that adds gzip compression to the web-service endpoints,
+ * negotiated per request:
+ * <ul>
+ * <li>A request with a "Content-Encoding: gzip" header is decompressed as it is read. The header is hidden
+ *     from the servlet.
+ * <li>If the request has an "Accept-Encoding" header containing gzip, the response is buffered until it reaches
+ *     the http.gzip.threshold size. Responses that reach the threshold are gzip compressed (with a
+ *     "Content-Encoding: gzip" header), smaller responses (e.g. ping and score replies) are sent uncompressed.
+ * </ul>
+ * The response is completed when the servlet closes the output stream, so this also works for the asynchronous
+ * endpoint, whose response is written after the filter chain has returned.
+ * <p>
+ * Bytes on the wire, uncompressed bytes, and the CPU time spent compressing/decompressing are counted, and
+ * reported by getStatistics (logged on each ping).
+ * @author cjm
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#HTTP_GZIP_USE
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#HTTP_GZIP_THRESHOLD
+ */
+public class GzipFilter implements Filter
+{
+	/**
+	 * The gzip content encoding.
+	 */
+	public static final String GZIP = "gzip";
+	/**
+	 * The Content-Encoding header name.
+	 */
+	public static final String CONTENT_ENCODING = "Content-Encoding";
+	/**
+	 * The Accept-Encoding header name.
+	 */
+	public static final String ACCEPT_ENCODING = "Accept-Encoding";
+	/**
+	 * The Content-Length header name.
+	 */
+	public static final String CONTENT_LENGTH = "Content-Length";
+	/**
+	 * The default response size (in bytes) at or above which responses are compressed,
+	 * if the http.gzip.threshold property is not set.
+	 */
+	public static final int DEFAULT_THRESHOLD = 2048;
+	/**
+	 * The trace logger.
+	 */
+	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+	/**
+	 * The error logger.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+	/**
+	 * The number of compressed requests received.
+	 */
+	private static AtomicLong requestsDecompressedCount = new AtomicLong(0);
+	/**
+	 * The number of (compressed) bytes read from the wire for compressed requests.
+	 */
+	private static AtomicLong requestWireBytes = new AtomicLong(0);
+	/**
+	 * The number of decompressed bytes read by the servlet for compressed requests.
+	 */
+	private static AtomicLong requestBytes = new AtomicLong(0);
+	/**
+	 * The time spent decompressing requests, in nanoseconds.
+	 */
+	private static AtomicLong decompressionTime = new AtomicLong(0);
+	/**
+	 * The number of responses sent compressed.
+	 */
+	private static AtomicLong responsesCompressedCount = new AtomicLong(0);
+	/**
+	 * The number of responses to clients accepting gzip sent uncompressed, because they were below the threshold.
+	 */
+	private static AtomicLong responsesBelowThresholdCount = new AtomicLong(0);
+	/**
+	 * The number of uncompressed bytes written by the servlet for compressed responses.
+	 */
+	private static AtomicLong responseBytes = new AtomicLong(0);
+	/**
+	 * The number of (compressed) bytes written to the wire for compressed responses.
+	 */
+	private static AtomicLong responseWireBytes = new AtomicLong(0);
+	/**
+	 * The time spent compressing responses, in nanoseconds.
+	 */
+	private static AtomicLong compressionTime = new AtomicLong(0);
+	/**
+	 * Whether compression is enabled.
+	 */
+	private boolean useGzip = true;
+	/**
+	 * The response size (in bytes) at or above which responses are compressed.
+	 */
+	private int threshold = DEFAULT_THRESHOLD;
+
+	/**
+	 * Initialise the filter, retrieving whether to use compression and the threshold from NodeAgentProperties.
+	 * @param filterConfig The filter configuration.
+	 * @see #useGzip
+	 * @see #threshold
+	 */
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException
+	{
+		NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
+
+		if (nodeAgentProperties != null)
+		{
+			useGzip = nodeAgentProperties.getBooleanProperty(NodeAgentProperties.HTTP_GZIP_USE, true);
+			try
+			{
+				threshold = nodeAgentProperties.getIntProperty(NodeAgentProperties.HTTP_GZIP_THRESHOLD,
+									       DEFAULT_THRESHOLD);
+			}
+			catch (NumberFormatException e)
+			{
+				errorLogger.log(1, GzipFilter.class.getName(), "Illegal gzip threshold, using default:"+e);
+			}
+		}
+		traceLogger.log(5, GzipFilter.class.getName(), "init:useGzip = "+useGzip+", threshold = "+threshold+".");
+	}
+
+	/**
+	 * Wrap the request if it is compressed, and the response if the client accepts compression,
+	 * then pass them down the filter chain. If the request did not go asynchronous, the response is
+	 * completed once the chain returns.
+	 * @see GzipRequestWrapper
+	 * @see GzipResponseWrapper
+	 */
+	@Override
+	public void doFilter(ServletRequest request,ServletResponse response,FilterChain chain)
+		throws IOException, ServletException
+	{
+		HttpServletRequest httpRequest = null;
+		GzipResponseWrapper responseWrapper = null;
+
+		if ((useGzip == false) || ((request instanceof HttpServletRequest) == false))
+		{
+			chain.doFilter(request,response);
+			return;
+		}
+		httpRequest = (HttpServletRequest)request;
+		if (headerContainsGzip(httpRequest.getHeader(CONTENT_ENCODING)))
+		{
+			requestsDecompressedCount.incrementAndGet();
+			request = new GzipRequestWrapper(httpRequest);
+		}
+		if (headerContainsGzip(httpRequest.getHeader(ACCEPT_ENCODING)))
+		{
+			responseWrapper = new GzipResponseWrapper((HttpServletResponse)response,threshold);
+			response = responseWrapper;
+		}
+		chain.doFilter(request,response);
+		if ((responseWrapper != null) && (request.isAsyncStarted() == false))
+			responseWrapper.finish();
+	}
+
+	@Override
+	public void destroy()
+	{
+	}
+
+	/**
+	 * Does the specified header value list gzip as an encoding?
+	 * @param headerValue The header value, or null.
+	 * @return true if the header lists gzip.
+	 */
+	protected static boolean headerContainsGzip(String headerValue)
+	{
+		return (headerValue != null) && (headerValue.toLowerCase().indexOf(GZIP) > -1);
+	}
+
+	/**
+	 * Return a string describing the compression statistics.
+	 * @return The statistics.
+	 */
+	public static String getStatistics()
+	{
+		return GzipFilter.class.getName()+"[requestsDecompressed="+requestsDecompressedCount.get()+
+			",requestWireBytes="+requestWireBytes.get()+",requestBytes="+requestBytes.get()+
+			",decompressionTime="+(decompressionTime.get()/1000000.0)+"ms"+
+			",responsesCompressed="+responsesCompressedCount.get()+
+			",responsesBelowThreshold="+responsesBelowThresholdCount.get()+
+			",responseBytes="+responseBytes.get()+",responseWireBytes="+responseWireBytes.get()+
+			",compressionTime="+(compressionTime.get()/1000000.0)+"ms]";
+	}
+
+	/**
+	 * Request wrapper, decompressing the request body, and hiding the Content-Encoding and Content-Length headers.
+	 */
+	protected static class GzipRequestWrapper extends HttpServletRequestWrapper
+	{
+		/**
+		 * The decompressing input stream, created when first requested.
+		 */
+		private ServletInputStream inputStream = null;
+
+		/**
+		 * Constructor.
+		 * @param request The compressed request.
+		 */
+		public GzipRequestWrapper(HttpServletRequest request)
+		{
+			super(request);
+		}
+
+		@Override
+		public ServletInputStream getInputStream() throws IOException
+		{
+			if (inputStream == null)
+				inputStream = new GzipServletInputStream(super.getInputStream());
+			return inputStream;
+		}
+
+		@Override
+		public int getContentLength()
+		{
+			return -1;
+		}
+
+		@Override
+		public String getHeader(String name)
+		{
+			if (isHiddenHeader(name))
+				return null;
+			return super.getHeader(name);
+		}
+
+		@Override
+		public Enumeration<String> getHeaders(String name)
+		{
+			if (isHiddenHeader(name))
+				return Collections.enumeration(new ArrayList<String>());
+			return super.getHeaders(name);
+		}
+
+		@Override
+		public Enumeration<String> getHeaderNames()
+		{
+			List<String> headerNameList = new ArrayList<String>();
+			Enumeration<String> headerNames = super.getHeaderNames();
+
+			while (headerNames.hasMoreElements())
+			{
+				String name = headerNames.nextElement();
+
+				if (isHiddenHeader(name) == false)
+					headerNameList.add(name);
+			}
+			return Collections.enumeration(headerNameList);
+		}
+
+		@Override
+		public int getIntHeader(String name)
+		{
+			if (isHiddenHeader(name))
+				return -1;
+			return super.getIntHeader(name);
+		}
+
+		/**
+		 * Is the specified header hidden from the servlet?
+		 * @param name The header name.
+		 * @return true for Content-Encoding and Content-Length.
+		 */
+		private boolean isHiddenHeader(String name)
+		{
+			return CONTENT_ENCODING.equalsIgnoreCase(name) || CONTENT_LENGTH.equalsIgnoreCase(name);
+		}
+	}
+
+	/**
+	 * Servlet input stream decompressing the underlying request stream, counting compressed and
+	 * decompressed bytes and the decompression time.
+	 */
+	protected static class GzipServletInputStream extends ServletInputStream
+	{
+		/**
+		 * The decompressing stream.
+		 */
+		private InputStream gzipInputStream = null;
+
+		/**
+		 * Constructor.
+		 * @param inputStream The compressed request stream.
+		 * @exception IOException Thrown if the gzip header cannot be read.
+		 */
+		public GzipServletInputStream(final InputStream inputStream) throws IOException
+		{
+			super();
+			gzipInputStream = new GZIPInputStream(new InputStream()
+			{
+				public int read() throws IOException
+				{
+					int b = inputStream.read();
+
+					if (b > -1)
+						requestWireBytes.incrementAndGet();
+					return b;
+				}
+
+				public int read(byte b[],int off,int len) throws IOException
+				{
+					int count = inputStream.read(b,off,len);
+
+					if (count > 0)
+						requestWireBytes.addAndGet(count);
+					return count;
+				}
+			});
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte b[] = new byte[1];
+
+			if (read(b,0,1) < 1)
+				return -1;
+			return b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte b[],int off,int len) throws IOException
+		{
+			long startTime = System.nanoTime();
+			int count = gzipInputStream.read(b,off,len);
+
+			decompressionTime.addAndGet(System.nanoTime()-startTime);
+			if (count > 0)
+				requestBytes.addAndGet(count);
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			gzipInputStream.close();
+		}
+	}
+
+	/**
+	 * Response wrapper, that writes the response through a ThresholdGzipOutputStream. Content-Length set by the
+	 * servlet is held back, and only applied if the response is sent uncompressed.
+	 */
+	protected static class GzipResponseWrapper extends HttpServletResponseWrapper
+	{
+		/**
+		 * The compression threshold.
+		 */
+		private int threshold;
+		/**
+		 * The output stream, created when first requested.
+		 */
+		private ThresholdGzipOutputStream outputStream = null;
+		/**
+		 * The writer, if the servlet asked for one.
+		 */
+		private PrintWriter writer = null;
+
+		/**
+		 * Constructor.
+		 * @param response The response.
+		 * @param threshold The compression threshold.
+		 */
+		public GzipResponseWrapper(HttpServletResponse response,int threshold)
+		{
+			super(response);
+			this.threshold = threshold;
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException
+		{
+			if (outputStream == null)
+				outputStream = new ThresholdGzipOutputStream((HttpServletResponse)getResponse(),threshold);
+			return outputStream;
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException
+		{
+			if (writer == null)
+				writer = new PrintWriter(new OutputStreamWriter(getOutputStream(),getCharacterEncoding()));
+			return writer;
+		}
+
+		@Override
+		public void setContentLength(int length)
+		{
+			// the length is only known once we know whether the response is compressed
+		}
+
+		@Override
+		public void setHeader(String name,String value)
+		{
+			if (CONTENT_LENGTH.equalsIgnoreCase(name) == false)
+				super.setHeader(name,value);
+		}
+
+		@Override
+		public void addHeader(String name,String value)
+		{
+			if (CONTENT_LENGTH.equalsIgnoreCase(name) == false)
+				super.addHeader(name,value);
+		}
+
+		@Override
+		public void setIntHeader(String name,int value)
+		{
+			if (CONTENT_LENGTH.equalsIgnoreCase(name) == false)
+				super.setIntHeader(name,value);
+		}
+
+		@Override
+		public void addIntHeader(String name,int value)
+		{
+			if (CONTENT_LENGTH.equalsIgnoreCase(name) == false)
+				super.addIntHeader(name,value);
+		}
+
+		@Override
+		public void flushBuffer() throws IOException
+		{
+			if (writer != null)
+				writer.flush();
+			if (outputStream != null)
+				outputStream.flush();
+			else
+				super.flushBuffer();
+		}
+
+		/**
+		 * Complete the response, if the servlet did not close the output stream.
+		 * @exception IOException Thrown if writing the response fails.
+		 */
+		public void finish() throws IOException
+		{
+			if (writer != null)
+				writer.flush();
+			if (outputStream != null)
+				outputStream.finish();
+		}
+	}
+
+	/**
+	 * Output stream that buffers the response until it reaches the threshold. If it does, the
+	 * Content-Encoding header is set and the response is compressed from then on. If the response is
+	 * completed below the threshold it is written uncompressed, with it's Content-Length.
+	 */
+	protected static class ThresholdGzipOutputStream extends ServletOutputStream
+	{
+		/**
+		 * The response.
+		 */
+		private HttpServletResponse response = null;
+		/**
+		 * The compression threshold.
+		 */
+		private int threshold;
+		/**
+		 * The buffer holding the response, until we know whether to compress it.
+		 */
+		private ByteArrayOutputStream buffer = null;
+		/**
+		 * The compressing stream, once the threshold has been reached.
+		 */
+		private GZIPOutputStream gzipOutputStream = null;
+		/**
+		 * The number of uncompressed bytes written.
+		 */
+		private long byteCount = 0;
+		/**
+		 * The number of compressed bytes written to the response.
+		 */
+		private long wireByteCount = 0;
+		/**
+		 * Whether the response has been completed.
+		 */
+		private boolean finished = false;
+
+		/**
+		 * Constructor.
+		 * @param response The response.
+		 * @param threshold The compression threshold.
+		 */
+		public ThresholdGzipOutputStream(HttpServletResponse response,int threshold)
+		{
+			super();
+			this.response = response;
+			this.threshold = threshold;
+			buffer = new ByteArrayOutputStream(Math.max(threshold,32));
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] {(byte)b},0,1);
+		}
+
+		@Override
+		public void write(byte b[],int off,int len) throws IOException
+		{
+			if (finished)
+				throw new IOException(this.getClass().getName()+":write:Response already completed.");
+			byteCount += len;
+			if (gzipOutputStream != null)
+			{
+				compress(b,off,len);
+				return;
+			}
+			buffer.write(b,off,len);
+			if (buffer.size() >= threshold)
+				startCompression();
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			// uncompressed data is held until we know whether to compress it
+			if (gzipOutputStream != null)
+				gzipOutputStream.flush();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			finish();
+			response.getOutputStream().close();
+		}
+
+		/**
+		 * Complete the response. A compressed response has it's gzip trailer written, an uncompressed response
+		 * has it's Content-Length set and the buffer written. The statistics are updated.
+		 * @exception IOException Thrown if writing the response fails.
+		 */
+		public void finish() throws IOException
+		{
+			if (finished)
+				return;
+			finished = true;
+			if (gzipOutputStream != null)
+			{
+				long startTime = System.nanoTime();
+
+				gzipOutputStream.finish();
+				compressionTime.addAndGet(System.nanoTime()-startTime);
+				gzipOutputStream.flush();
+				responsesCompressedCount.incrementAndGet();
+				responseBytes.addAndGet(byteCount);
+				responseWireBytes.addAndGet(wireByteCount);
+			}
+			else
+			{
+				responsesBelowThresholdCount.incrementAndGet();
+				response.setContentLength(buffer.size());
+				buffer.writeTo(response.getOutputStream());
+				response.getOutputStream().flush();
+				buffer = null;
+			}
+		}
+
+		/**
+		 * Switch to compressing the response: set the Content-Encoding header, and compress the buffered data.
+		 * @exception IOException Thrown if writing the response fails.
+		 */
+		private void startCompression() throws IOException
+		{
+			byte bufferedBytes[] = buffer.toByteArray();
+
+			response.setHeader(CONTENT_ENCODING,GZIP);
+			response.addHeader("Vary",ACCEPT_ENCODING);
+			gzipOutputStream = new GZIPOutputStream(new FilterOutputStream(response.getOutputStream())
+			{
+				public void write(byte b[],int off,int len) throws IOException
+				{
+					wireByteCount += len;
+					out.write(b,off,len);
+				}
+
+				public void write(int b) throws IOException
+				{
+					wireByteCount++;
+					out.write(b);
+				}
+			},8192);
+			buffer = null;
+			compress(bufferedBytes,0,bufferedBytes.length);
+		}
+
+		/**
+		 * Compress the specified data into the response, timing the compression.
+		 * @param b The data.
+		 * @param off The offset of the data.
+		 * @param len The length of the data.
+		 * @exception IOException Thrown if writing the response fails.
+		 */
+		private void compress(byte b[],int off,int len) throws IOException
+		{
+			long startTime = System.nanoTime();
+
+			gzipOutputStream.write(b,off,len);
+			compressionTime.addAndGet(System.nanoTime()-startTime);
+		}
+	}
+}
@@ -1,10 +1,10 @@
 package org.estar.node_agent2.initialisation;
+import java.io.File;
+
 import javax.servlet.http.HttpServlet;
 import ngat.util.logging.LogManager;
 import ngat.util.logging.Logger;
 
-import org.estar.node_agent2.configuration.NodeAgentProperties;
-import org.estar.node_agent2.messaging.RMITeaConnectionHandler;
 import org.estar.node_agent2.util.LoggerUtil;
 
 /**
@@ -14,6 +14,16 @@ import org.estar.node_agent2.util.LoggerUtil;
  */
 public class InitialisationServlet extends HttpServlet
 {
+	/**
+	 * The location, within the deployed WAR, of the RTML entity catalog.
+	 * @see org.estar.node_agent2.util.RTMLEntityCatalog
+	 */
+	public static final String CATALOG_DIRECTORY = "/WEB-INF/rtml";
+	/**
+	 * The location, within the deployed WAR, of the warm-up corpus.
+	 * @see org.estar.node_agent2.initialisation.NodeAgentWarmUp
+	 */
+	public static final String WARMUP_CORPUS_DIRECTORY = "/WEB-INF/warmup";
 	/**
 	 * Class variable, logger used for logging.
 	 */
@@ -45,70 +55,35 @@ public class InitialisationServlet extends HttpServlet
 	}
 	
 	/**
-	 * Initialise the TEA connectyion handler, if configured to do so.
-	 * <ul>
-	 * <li>Get an instance of NodeAgentProperties.
-	 * <li>If the IS_TEA_CONNECTED property is true, we get an instance of RMITeaConnectionHandler.
-	 * </ul>
+	 * Initialise the Node Agent, using NodeAgentInitialiser. If the RTML_CATALOG_DIR property is not set, 
+	 * we load the RTML entity catalog from the CATALOG_DIRECTORY within the deployed WAR. If the
+	 * RTML_WARMUP_CORPUS_DIR property is not set, the warm-up uses the WARMUP_CORPUS_DIRECTORY within the WAR.
 	 * @see #traceLogger
-	 * @see org.estar.node_agent2.configuration.NodeAgentProperties
-	 * @see org.estar.node_agent2.configuration.NodeAgentProperties#getInstance
-	 * @see org.estar.node_agent2.configuration.NodeAgentProperties#IS_TEA_CONNECTED
-	 * @see org.estar.noe_agent2.messaging.RMITeaConnectionHandler
-	 * @see org.estar.noe_agent2.messaging.RMITeaConnectionHandler#getInstance
+	 * @see #CATALOG_DIRECTORY
+	 * @see #WARMUP_CORPUS_DIRECTORY
+	 * @see org.estar.node_agent2.initialisation.NodeAgentInitialiser#initialise
 	 */
 	public void init() throws javax.servlet.ServletException 
 	{
+		String catalogDirectoryString = null;
+		String corpusDirectoryString = null;
+
 		traceLogger.log(5,this.getClass().getName(), ".init()");
-		//if isLive property is set, create the connection to the TEA
-		try 
-		{
-			NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
-			if (nodeAgentProperties != null) 
-			{
-				if (!nodeAgentProperties.getProperty(NodeAgentProperties.IS_TEA_CONNECTED).equalsIgnoreCase(NodeAgentProperties.TRUE))
-				{
-					traceLogger.log(1, InitialisationServlet.class.getName(), 
-							"... " + NodeAgentProperties.IS_TEA_CONNECTED + " = false, will not connect RMITeaConnectionHandler on request receipt");
-				}
-				else
-				{
-					traceLogger.log(5, InitialisationServlet.class.getName(), 
-							"..." + NodeAgentProperties.IS_TEA_CONNECTED + " = true");
-					traceLogger.log(5, InitialisationServlet.class.getName(), 
-							"... loading RMITeaConnectionHandler instance");
-					RMITeaConnectionHandler.getInstance();
-				}
-			} 
-			else
-			{
-				errorLogger.log(1, InitialisationServlet.class.getName(), 
-							"... nodeAgentProperties = null!");
-			}
-		} 
-		catch (Exception e)
-		{
-			e.printStackTrace();
-		}
+		catalogDirectoryString = getServletContext().getRealPath(CATALOG_DIRECTORY);
+		corpusDirectoryString = getServletContext().getRealPath(WARMUP_CORPUS_DIRECTORY);
+		NodeAgentInitialiser.initialise((catalogDirectoryString != null) ? new File(catalogDirectoryString) : null,
+						(corpusDirectoryString != null) ? new File(corpusDirectoryString) : null);
 	}
 	
 	/**
 	 * Method called at destruction. Destroys the RMITeaConnectionHandler instance.
 	 * @see #traceLogger
-	 * @see org.estar.noe_agent2.messaging.RMITeaConnectionHandler
-	 * @see org.estar.noe_agent2.messaging.RMITeaConnectionHandler#getInstance
+	 * @see org.estar.node_agent2.initialisation.NodeAgentInitialiser#destroy
 	 */
 	public void destroy() 
 	{
-		try 
-		{
-			traceLogger.log(5, InitialisationServlet.class.getName(), ".destroy()");
-			RMITeaConnectionHandler.getInstance().destroy();
-		} 
-		catch (Exception e) 
-		{
-			e.printStackTrace();
-		}
+		traceLogger.log(5, InitialisationServlet.class.getName(), ".destroy()");
+		NodeAgentInitialiser.destroy();
 	}
 
 }
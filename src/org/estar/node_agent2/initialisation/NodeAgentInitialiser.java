@@ -0,0 +1,135 @@
+package org.estar.node_agent2.initialisation;
+import java.io.File;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.configuration.NodeAgentProperties;
+import org.estar.node_agent2.messaging.RMITeaConnectionHandler;
+import org.estar.node_agent2.storage.PersistenceController;
+import org.estar.node_agent2.storage.PersistentMapWatcher;
+import org.estar.node_agent2.util.LoggerUtil;
+import org.estar.node_agent2.util.RTMLEntityCatalog;
+
+/**
+ * The Node Agent's initialisation and shutdown, shared by the InitialisationServlet (when deployed in tomcat)
+ * and the standalone NodeAgentServer. The loggers should have been set up (LoggerUtil.setUpLoggers) first.
+ * @author cjm
+ * @see org.estar.node_agent2.initialisation.InitialisationServlet
+ * @see org.estar.node_agent2.standalone.NodeAgentServer
+ */
+public class NodeAgentInitialiser
+{
+	/**
+	 * Class variable, logger used for logging.
+	 */
+	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+	/**
+	 * Class variable, logger used for errors.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+
+	/**
+	 * Initialise the Node Agent.
+	 * <ul>
+	 * <li>Get an instance of NodeAgentProperties (loaded from NodeAgentProperties.BASE_DIR).
+	 * <li>If the IS_TEA_CONNECTED property is true, we get an instance of RMITeaConnectionHandler.
+	 * <li>Get an instance of PersistenceController, loading the alias and password maps.
+	 *     The PersistentMapWatcher is started, to reload the maps when their files change.
+	 * <li>If the RTML_CATALOG_DIR property is not set, and a default catalog directory is specified,
+	 *     we load the RTML entity catalog from it. Otherwise the catalog is loaded from the configured
+	 *     (or default) directory.
+	 * <li>The warm-up is started (in the background). The Node Agent is not ready until it completes.
+	 * </ul>
+	 * @param defaultCatalogDirectory The directory to load the RTML entity catalog from, if the RTML_CATALOG_DIR
+	 *        property is not set (e.g. the directory within the deployed WAR), or null to use
+	 *        RTMLEntityCatalog.DEFAULT_CATALOG_DIR.
+	 * @param defaultCorpusDirectory The warm-up corpus directory, if the RTML_WARMUP_CORPUS_DIR property is not set
+	 *        (e.g. the directory within the deployed WAR), or null to use NodeAgentWarmUp.DEFAULT_CORPUS_DIR.
+	 * @see org.estar.node_agent2.configuration.NodeAgentProperties#getInstance
+	 * @see org.estar.node_agent2.configuration.NodeAgentProperties#IS_TEA_CONNECTED
+	 * @see org.estar.node_agent2.configuration.NodeAgentProperties#BASE_DIR
+	 * @see org.estar.node_agent2.messaging.RMITeaConnectionHandler#getInstance
+	 * @see org.estar.node_agent2.storage.PersistenceController#getInstance
+	 * @see org.estar.node_agent2.storage.PersistentMapWatcher#start
+	 * @see org.estar.node_agent2.util.RTMLEntityCatalog
+	 * @see org.estar.node_agent2.initialisation.NodeAgentWarmUp#start
+	 */
+	public static void initialise(File defaultCatalogDirectory,File defaultCorpusDirectory)
+	{
+		traceLogger.log(5, NodeAgentInitialiser.class.getName(), ".initialise(configuration directory = "+
+				NodeAgentProperties.BASE_DIR+")");
+		//if isLive property is set, create the connection to the TEA
+		try
+		{
+			NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
+			if (nodeAgentProperties != null)
+			{
+				if (!nodeAgentProperties.getProperty(NodeAgentProperties.IS_TEA_CONNECTED).equalsIgnoreCase(NodeAgentProperties.TRUE))
+				{
+					traceLogger.log(1, NodeAgentInitialiser.class.getName(),
+							"... " + NodeAgentProperties.IS_TEA_CONNECTED + " = false, will not connect RMITeaConnectionHandler on request receipt");
+				}
+				else
+				{
+					traceLogger.log(5, NodeAgentInitialiser.class.getName(),
+							"..." + NodeAgentProperties.IS_TEA_CONNECTED + " = true");
+					traceLogger.log(5, NodeAgentInitialiser.class.getName(),
+							"... loading RMITeaConnectionHandler instance");
+					RMITeaConnectionHandler.getInstance();
+				}
+			}
+			else
+			{
+				errorLogger.log(1, NodeAgentInitialiser.class.getName(),
+							"... nodeAgentProperties = null!");
+			}
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+		// Load the alias and password maps now, rather than on the first request
+		try
+		{
+			PersistenceController.getInstance();
+			PersistentMapWatcher.getInstance().start();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+		// Load the RTML entity catalog from the default directory, unless another directory is configured
+		try
+		{
+			if ((defaultCatalogDirectory != null) && !RTMLEntityCatalog.isCatalogDirectoryConfigured())
+				RTMLEntityCatalog.getInstance().load(defaultCatalogDirectory);
+			traceLogger.log(5, NodeAgentInitialiser.class.getName(), "... " + RTMLEntityCatalog.getInstance());
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+		// Warm up, so the first real request is not the slow one
+		NodeAgentWarmUp.getInstance().start(defaultCorpusDirectory);
+	}
+
+	/**
+	 * Shut down the Node Agent. Stops the PersistentMapWatcher, and destroys the RMITeaConnectionHandler instance.
+	 * @see org.estar.node_agent2.storage.PersistentMapWatcher#stop
+	 * @see org.estar.node_agent2.messaging.RMITeaConnectionHandler#getInstance
+	 */
+	public static void destroy()
+	{
+		try
+		{
+			traceLogger.log(5, NodeAgentInitialiser.class.getName(), ".destroy()");
+			PersistentMapWatcher.getInstance().stop();
+			RMITeaConnectionHandler.getInstance().destroy();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,378 @@
+package org.estar.node_agent2.initialisation;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.configuration.NodeAgentProperties;
+import org.estar.node_agent2.messaging.RMITeaConnectionHandler;
+import org.estar.node_agent2.storage.PersistenceController;
+import org.estar.node_agent2.util.LoggerUtil;
+import org.estar.node_agent2.util.RTMLDocumentLimits;
+import org.estar.node_agent2.util.RTMLEntityCatalog;
+import org.estar.node_agent2.util.RTMLParserPool;
+import org.estar.node_agent2.util.RTMLPreClassification;
+import org.estar.node_agent2.util.RTMLPreClassifier;
+import org.estar.node_agent2.util.RTMLUtil;
+import org.estar.node_agent2.util.RTMLValidationPolicy;
+
+import org.estar.rtml.RTMLDocument;
+
+/**
+ * Warm-up run after the Node Agent is initialised, so the first real handle_rtml call does not pay for class
+ * loading, DTD/schema resolution, the first RMI lookup of the TEA and JIT compilation. The warm-up runs in a
+ * background thread, in stages, each of which is timed and logged:
+ * <ul>
+ * <li>persistence: The alias, password and validation policy stores are loaded.
+ * <li>catalog: The RTML entity catalog is loaded.
+ * <li>tea: The TEA's EmbeddedAgentRequestHandler is looked up (if the TEA is connected), loading the RMI stub
+ *     classes and opening the connection to the registry. No document is sent to the TEA.
+ * <li>corpus: Each *.rtml document in the warm-up corpus directory is pre-classified, checked against the
+ *     document limits, parsed (by the validating and non-validating parser pools, as a string and as a stream),
+ *     alias rewritten, and serialized, along with a reject document built from it. This is repeated
+ *     rtml.warmup.iterations times. Documents that fail a step are logged, and the warm-up continues.
+ * </ul>
+ * The JAX-WS runtime model is created when the web-services are deployed, before the warm-up starts.
+ * Until the warm-up completes the Node Agent is not ready, and ping returns "NAK (warming up)".
+ * @author cjm
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_WARMUP_USE
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_WARMUP_CORPUS_DIR
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_WARMUP_ITERATIONS
+ * @see org.estar.node_agent2.NodeAgentWebServiceImpl#getPingReply
+ */
+public class NodeAgentWarmUp implements Runnable
+{
+	/**
+	 * The default number of times the corpus is processed, if the rtml.warmup.iterations property is not set.
+	 */
+	public static final int DEFAULT_ITERATIONS = 3;
+	/**
+	 * The default warm-up corpus directory, used if the rtml.warmup.corpus.dir property is not set, and the
+	 * initialisation servlet has not configured the directory within the deployed WAR.
+	 */
+	public static final String DEFAULT_CORPUS_DIR = NodeAgentProperties.BASE_DIR + "/warmup";
+	/**
+	 * The filename suffix of the documents in the corpus directory.
+	 */
+	public static final String CORPUS_FILE_SUFFIX = ".rtml";
+	/**
+	 * The singleton instance of this class.
+	 */
+	private static NodeAgentWarmUp instance = null;
+	/**
+	 * Class variable, logger used for logging.
+	 */
+	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+	/**
+	 * Class variable, logger used for errors.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+	/**
+	 * Whether the warm-up has completed (or is disabled), i.e. the Node Agent is ready.
+	 */
+	private volatile boolean ready = false;
+	/**
+	 * Whether the warm-up has been started.
+	 */
+	private boolean started = false;
+	/**
+	 * The directory containing the warm-up corpus.
+	 */
+	private File corpusDirectory = null;
+	/**
+	 * The number of times the corpus is processed.
+	 */
+	private int iterations = DEFAULT_ITERATIONS;
+
+	/**
+	 * Get the singleton instance of this class. Construct it if required.
+	 * @return The singleton instance of this class.
+	 */
+	public static synchronized NodeAgentWarmUp getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new NodeAgentWarmUp();
+		}
+		return instance;
+	}
+
+	/**
+	 * Internal constructor used by getInstance.
+	 */
+	private NodeAgentWarmUp()
+	{
+		super();
+	}
+
+	/**
+	 * Start the warm-up in a background (daemon) thread, if the rtml.warmup.use property is not false.
+	 * Otherwise the Node Agent is ready at once. Calls after the first are ignored.
+	 * @param defaultCorpusDirectory The corpus directory to use if the rtml.warmup.corpus.dir property is not set
+	 *        (e.g. the directory within the deployed WAR), or null to use DEFAULT_CORPUS_DIR.
+	 * @see #run
+	 * @see #DEFAULT_CORPUS_DIR
+	 */
+	public synchronized void start(File defaultCorpusDirectory)
+	{
+		NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
+		String directoryString = null;
+		boolean useWarmUp = true;
+		Thread thread = null;
+
+		if (started)
+			return;
+		started = true;
+		if (defaultCorpusDirectory != null)
+			corpusDirectory = defaultCorpusDirectory;
+		else
+			corpusDirectory = new File(DEFAULT_CORPUS_DIR);
+		if (nodeAgentProperties != null)
+		{
+			useWarmUp = nodeAgentProperties.getBooleanProperty(NodeAgentProperties.RTML_WARMUP_USE, true);
+			directoryString = nodeAgentProperties.getProperty(NodeAgentProperties.RTML_WARMUP_CORPUS_DIR);
+			if (directoryString != null)
+				corpusDirectory = new File(directoryString);
+			try
+			{
+				iterations = nodeAgentProperties.getIntProperty(NodeAgentProperties.RTML_WARMUP_ITERATIONS,
+										DEFAULT_ITERATIONS);
+			}
+			catch (NumberFormatException e)
+			{
+				errorLogger.log(1, NodeAgentWarmUp.class.getName(), "Illegal warm-up iterations, using default:"+e);
+			}
+		}
+		if (useWarmUp == false)
+		{
+			traceLogger.log(1, NodeAgentWarmUp.class.getName(), "... warm-up disabled, Node Agent ready.");
+			ready = true;
+			return;
+		}
+		thread = new Thread(this,"NodeAgentWarmUp");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Has the warm-up completed (or is it disabled)?
+	 * @return true if the Node Agent is ready for requests, false if it is still warming up.
+	 */
+	public boolean isReady()
+	{
+		return ready;
+	}
+
+	/**
+	 * Run the warm-up stages, logging how long each one took. The Node Agent is ready once they have all run,
+	 * whether or not they succeeded.
+	 * @see #warmUpPersistence
+	 * @see #warmUpCatalog
+	 * @see #warmUpTEA
+	 * @see #warmUpCorpus
+	 */
+	public void run()
+	{
+		long startTime = System.currentTimeMillis();
+		long stageStartTime;
+
+		traceLogger.log(1, NodeAgentWarmUp.class.getName(), "Warm-up started.");
+		try
+		{
+			stageStartTime = System.currentTimeMillis();
+			warmUpPersistence();
+			logStage("persistence",stageStartTime);
+			stageStartTime = System.currentTimeMillis();
+			warmUpCatalog();
+			logStage("catalog",stageStartTime);
+			stageStartTime = System.currentTimeMillis();
+			warmUpTEA();
+			logStage("tea",stageStartTime);
+			stageStartTime = System.currentTimeMillis();
+			warmUpCorpus();
+			logStage("corpus",stageStartTime);
+		}
+		catch (Throwable t)
+		{
+			errorLogger.log(1, NodeAgentWarmUp.class.getName(), "Warm-up failed:"+t);
+		}
+		finally
+		{
+			ready = true;
+		}
+		traceLogger.log(1, NodeAgentWarmUp.class.getName(), "Warm-up completed in "+
+				(System.currentTimeMillis()-startTime)+" ms, Node Agent ready.");
+	}
+
+	/**
+	 * Load the persistence stores (alias, password and validation policy maps), and the alias indexes.
+	 * @see org.estar.node_agent2.storage.PersistenceController#getInstance
+	 * @see org.estar.node_agent2.util.RTMLValidationPolicy#getInstance
+	 */
+	protected void warmUpPersistence()
+	{
+		PersistenceController persistenceController = PersistenceController.getInstance();
+
+		persistenceController.getUserAliasMapStore();
+		persistenceController.getProjectAliasMapStore();
+		persistenceController.getUserAliasIndex();
+		persistenceController.getProjectAliasIndex();
+		persistenceController.getPasswordMapStore();
+		RTMLValidationPolicy.getInstance();
+	}
+
+	/**
+	 * Load the RTML entity catalog.
+	 * @see org.estar.node_agent2.util.RTMLEntityCatalog#getInstance
+	 */
+	protected void warmUpCatalog()
+	{
+		traceLogger.log(5, NodeAgentWarmUp.class.getName(), "... "+RTMLEntityCatalog.getInstance());
+	}
+
+	/**
+	 * If the TEA is connected, lookup it's EmbeddedAgentRequestHandler.
+	 * @see org.estar.node_agent2.messaging.RMITeaConnectionHandler#lookupEmbeddedAgentRequestHandler
+	 */
+	protected void warmUpTEA()
+	{
+		NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
+
+		if ((nodeAgentProperties == null) || (nodeAgentProperties.getProperty(NodeAgentProperties.IS_TEA_CONNECTED).
+						       equalsIgnoreCase(NodeAgentProperties.TRUE) == false))
+		{
+			traceLogger.log(5, NodeAgentWarmUp.class.getName(), "... TEA not connected, not looking it up.");
+			return;
+		}
+		try
+		{
+			RMITeaConnectionHandler.getInstance().lookupEmbeddedAgentRequestHandler();
+		}
+		catch (Exception e)
+		{
+			errorLogger.log(1, NodeAgentWarmUp.class.getName(), "warmUpTEA:Failed to lookup TEA:"+e);
+		}
+	}
+
+	/**
+	 * Process each document in the corpus directory, iterations times.
+	 * @see #corpusDirectory
+	 * @see #iterations
+	 * @see #warmUpDocument
+	 */
+	protected void warmUpCorpus()
+	{
+		String nodeAgentName = NodeAgentProperties.getInstance().getProperty(NodeAgentProperties.NODE_AGENT_NAME);
+		File fileList[] = corpusDirectory.listFiles();
+		int documentCount = 0;
+
+		if (fileList == null)
+		{
+			errorLogger.log(1, NodeAgentWarmUp.class.getName(), "warmUpCorpus:Corpus directory "+corpusDirectory+
+					" not found.");
+			return;
+		}
+		Arrays.sort(fileList);
+		for (int iteration = 0; iteration < iterations; iteration++)
+		{
+			for (int i = 0; i < fileList.length; i++)
+			{
+				if (fileList[i].isFile() && fileList[i].getName().endsWith(CORPUS_FILE_SUFFIX))
+				{
+					warmUpDocument(fileList[i],nodeAgentName);
+					documentCount++;
+				}
+			}
+		}
+		traceLogger.log(1, NodeAgentWarmUp.class.getName(), "... processed "+documentCount+
+				" corpus documents from "+corpusDirectory+".");
+	}
+
+	/**
+	 * Process one corpus document through the same steps as handle_rtml, except the TEA call.
+	 * @param file The document's file.
+	 * @param nodeAgentName The name of this node agent.
+	 * @see org.estar.node_agent2.util.RTMLPreClassifier#classify
+	 * @see org.estar.node_agent2.util.RTMLDocumentLimits#check
+	 * @see org.estar.node_agent2.util.RTMLParserPool#parse
+	 * @see org.estar.node_agent2.util.RTMLUtil#rewriteDocumentIfAliased
+	 * @see org.estar.node_agent2.util.RTMLUtil#getRTMLAsString
+	 * @see org.estar.node_agent2.util.RTMLUtil#createRejectDocument
+	 */
+	protected void warmUpDocument(File file,String nodeAgentName)
+	{
+		RTMLDocumentLimits.Reservation reservation = null;
+		RTMLPreClassification classification = null;
+		RTMLDocument parsedDocument = null;
+		RTMLDocument rewrittenDocument = null;
+		InputStream inputStream = null;
+		String rtmlDocumentString = null;
+		byte document[] = null;
+
+		reservation = RTMLDocumentLimits.getInstance().createReservation();
+		try
+		{
+			document = readFile(file);
+			rtmlDocumentString = new String(document,"ISO-8859-1");
+			classification = RTMLPreClassifier.classify(rtmlDocumentString);
+			RTMLDocumentLimits.getInstance().check(rtmlDocumentString,reservation);
+			RTMLParserPool.getInstance(false).parse(rtmlDocumentString);
+			inputStream = RTMLDocumentLimits.getInstance().check(new ByteArrayInputStream(document),reservation);
+			parsedDocument = RTMLParserPool.getInstance(true).parse(inputStream);
+			rewrittenDocument = RTMLUtil.rewriteDocumentIfAliased(parsedDocument,RTMLUtil.RTML_IDENT_SOURCE_ESTAR);
+			RTMLUtil.getRTMLAsString(rewrittenDocument);
+			RTMLUtil.getRTMLAsString(RTMLUtil.createRejectDocument(new Exception("warm-up"),nodeAgentName,
+						 classification.getRTMLDocumentVersion(),"warm-up reject"));
+		}
+		catch (Exception e)
+		{
+			errorLogger.log(1, NodeAgentWarmUp.class.getName(), "warmUpDocument:"+file+" failed:"+e);
+		}
+		finally
+		{
+			reservation.release();
+		}
+	}
+
+	/**
+	 * Read the contents of the specified file.
+	 * @param file The file.
+	 * @return The file's contents.
+	 * @exception IOException Thrown if reading the file fails.
+	 */
+	private byte[] readFile(File file) throws IOException
+	{
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int)file.length());
+		FileInputStream inputStream = new FileInputStream(file);
+		byte buffer[] = new byte[4096];
+		int readCount;
+
+		try
+		{
+			while ((readCount = inputStream.read(buffer)) > -1)
+				outputStream.write(buffer,0,readCount);
+		}
+		finally
+		{
+			inputStream.close();
+		}
+		return outputStream.toByteArray();
+	}
+
+	/**
+	 * Log how long a warm-up stage took.
+	 * @param stageName The name of the stage.
+	 * @param stageStartTime When the stage started, in milliseconds since the epoch.
+	 */
+	private void logStage(String stageName,long stageStartTime)
+	{
+		traceLogger.log(1, NodeAgentWarmUp.class.getName(), "... warm-up stage "+stageName+" took "+
+				(System.currentTimeMillis()-stageStartTime)+" ms.");
+	}
+}
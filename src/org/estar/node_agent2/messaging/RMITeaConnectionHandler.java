@@ -7,12 +7,20 @@ import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.Date;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import ngat.util.logging.LogManager;
 import ngat.util.logging.Logger;
 
 import org.estar.node_agent2.configuration.NodeAgentProperties;
 import org.estar.node_agent2.util.LoggerUtil;
+import org.estar.node_agent2.util.RTMLAsyncExecutor;
+import org.estar.node_agent2.util.RTMLDeadline;
+import org.estar.node_agent2.util.RTMLDeadlineException;
+import org.estar.node_agent2.util.RTMLDeadlinePolicy;
 
 import org.estar.rtml.RTMLDocument;
 
@@ -25,6 +33,12 @@ import org.estar.tea.TelescopeAvailabilityPredictor;
 /**
  * This singleton class used to invoke 'handle' RTML  calls on the TEA.
  * It is initialised by the InitialisationServlet.
+ * The handle methods can be called by many threads at once (the container's request threads, and the asynchronous
+ * endpoint's pool), and each looks up the TEA itself, so calls to the TEA run in parallel. The number of TEA calls
+ * in flight at once is capped by a semaphore, with rtml.async.parallelism permits, so the asynchronous endpoint can
+ * keep that many calls in flight, but a burst of documents cannot swamp the TEA. A document waits for a permit
+ * until it's deadline.
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_ASYNC_PARALLELISM
  */
 public class RMITeaConnectionHandler
 {
@@ -53,12 +67,32 @@ public class RMITeaConnectionHandler
 	//private EmbeddedAgentRequestHandler earh;
 	private TelescopeAvailabilityPredictor tap;
 	private RMIBindingPersistorRunnable persistenceRunnable;
+	/**
+	 * The maximum number of TEA calls in flight at once, the number of permits of teaCallSemaphore.
+	 */
+	private int parallelism = RTMLAsyncExecutor.DEFAULT_PARALLELISM;
+	/**
+	 * The semaphore a thread acquires a permit of, before calling the TEA.
+	 */
+	private Semaphore teaCallSemaphore = null;
+	/**
+	 * The number of TEA calls currently in flight.
+	 */
+	private AtomicInteger inFlightCount = new AtomicInteger(0);
+	/**
+	 * The largest number of TEA calls in flight at once.
+	 */
+	private AtomicInteger maxInFlightCount = new AtomicInteger(0);
+	/**
+	 * The number of TEA calls made.
+	 */
+	private AtomicLong teaCallCount = new AtomicLong(0);
 	
 	/**
 	 * Return the singleton instance of the TeaConnectionHandler.
 	 * @see #instance
 	 */
-	public static RMITeaConnectionHandler getInstance()
+	public static synchronized RMITeaConnectionHandler getInstance()
 	{
 		if (instance == null) 
 		{
@@ -72,6 +106,7 @@ public class RMITeaConnectionHandler
 	 * <li>Logs construction to traceLogger.
 	 * <li>Constructs embeddedAgentRequestHandlerURL from NodeAgentProperties.
 	 * <li>Constructs telescopeAvailabilityPredictorRequestHandlerURL from NodeAgentProperties.
+	 * <li>Creates the semaphore capping the TEA calls in flight, with rtml.async.parallelism permits.
 	 * <li>Creates an instance of DefaultNodeAgentAsynchronousResponseHandler.
 	 * <li>Creates an instance of RMIBindingPersistorRunnable to run the instance of 
 	 *     DefaultNodeAgentAsynchronousResponseHandler in a thread.
@@ -79,6 +114,8 @@ public class RMITeaConnectionHandler
 	 * @see #traceLogger
 	 * @see #embeddedAgentRequestHandlerURL
 	 * @see #telescopeAvailabilityPredictorRequestHandlerURL
+	 * @see #parallelism
+	 * @see #teaCallSemaphore
 	 * @see DefaultNodeAgentAsynchronousResponseHandler
 	 * @see RMIBindingPersistorRunnable
 	 * @see org.estar.configuration.NodeAgentProperties#RMI_PREFIX
@@ -103,6 +140,20 @@ public class RMITeaConnectionHandler
 			getProperty(NodeAgentProperties.TEA_HOST_NAME_PROPERTY);
 		telescopeAvailabilityPredictorRequestHandlerURL  += "/" + NodeAgentProperties.getInstance().
 			getProperty(NodeAgentProperties.TEA_AVAILABILITY_PREDICTOR_RMI_NAME);
+
+		try
+		{
+			parallelism = NodeAgentProperties.getInstance().getIntProperty(
+					NodeAgentProperties.RTML_ASYNC_PARALLELISM,RTMLAsyncExecutor.DEFAULT_PARALLELISM);
+		}
+		catch (NumberFormatException e)
+		{
+			errorLogger.log(1, RMITeaConnectionHandler.class.getName(),
+					"Illegal async parallelism, using default:"+e);
+		}
+		if (parallelism < 1)
+			parallelism = 1;
+		teaCallSemaphore = new Semaphore(parallelism,true);
 		
 		String dnaarhBindingName =  NodeAgentProperties.getInstance().
 			getProperty(NodeAgentProperties.NODE_AGENT_RESPONSE_HANDLER_RMI_NAME);
@@ -130,164 +181,286 @@ public class RMITeaConnectionHandler
 	/**
 	 * Method to handle a score request RTML document.
 	 * <ul>
+	 * <li>We wait for a permit to call the TEA (acquire).
+	 * <li>If the document's deadline has passed (while waiting for it's turn to call the TEA), we throw an
+	 *     RTMLDeadlineException without calling the TEA.
 	 * <li>We lookup the embedded agent request handler (RMI interface) using Naming.lookup
 	 *     on the embeddedAgentRequestHandlerURL.
 	 * <li>We invoke the embedded agent request handler RMI method handleScore, with the supplied RTML document.
 	 *     and return the reply document.
 	 * </ul>
 	 * @param rtmlDocument A document object model containing the RTML document to score.
+	 * @param deadline The document's deadline, or null if it has none.
 	 * @return An instance of RTMLDocument containing the reply from TEA's handleScore RMI method.
+	 * @exception RTMLDeadlineException Thrown if the document's deadline has passed.
 	 * @see #traceLogger
+	 * @see #acquire
+	 * @see #release
+	 * @see org.estar.node_agent2.util.RTMLDeadlinePolicy#check
 	 * @see #embeddedAgentRequestHandlerURL
 	 * @see org.estar.tea.EmbeddedAgentRequestHandler
 	 * @see org.estar.tea.EmbeddedAgentRequestHandler#handleScore
 	 */
-	public synchronized RTMLDocument handleScore(RTMLDocument rtmlDocument) throws MalformedURLException, 
-										       RemoteException, NotBoundException
+	public RTMLDocument handleScore(RTMLDocument rtmlDocument,RTMLDeadline deadline) throws 
+		MalformedURLException, RemoteException, NotBoundException, RTMLDeadlineException
 	{
 		traceLogger.log(5, RMITeaConnectionHandler.class.getName(), "handleScore() invoked");
 		RTMLDocument replyDocument = null;
 		
-		//locate reference to EmbeddedAgentRequestHandler (in the TEA)
-		traceLogger.log(5, RMITeaConnectionHandler.class.getName(),
-				"looking up EmbeddedAgentRequestHandler on TEA using URL: "+
-				embeddedAgentRequestHandlerURL);
-		EmbeddedAgentRequestHandler earh = (EmbeddedAgentRequestHandler)Naming.lookup(
-										embeddedAgentRequestHandlerURL);
-		traceLogger.log(5, RMITeaConnectionHandler.class.getName(), "... located EmbeddedAgentRequestHandler: "+
-				earh);
-		
-		//invoke required method on earh
-		traceLogger.log(5, RMITeaConnectionHandler.class.getName(), 
-				"... calling EmbeddedAgentRequestHandler.handleScore(rtmlDocument)");
-		replyDocument = earh.handleScore(rtmlDocument);
+		acquire(deadline);
+		try
+		{
+			// has the client given up, while we waited our turn for the TEA
+			RTMLDeadlinePolicy.getInstance().check(deadline,RTMLDeadlinePolicy.STAGE_TEA);
 
+			//locate reference to EmbeddedAgentRequestHandler (in the TEA)
+			EmbeddedAgentRequestHandler earh = lookupEmbeddedAgentRequestHandler();
+
+			//invoke required method on earh
+			traceLogger.log(5, RMITeaConnectionHandler.class.getName(), 
+					"... calling EmbeddedAgentRequestHandler.handleScore(rtmlDocument)");
+			replyDocument = earh.handleScore(rtmlDocument);
+		}
+		finally
+		{
+			release();
+		}
 		return replyDocument;
 	}
 
 	/**
 	 * Method to handle a request RTML document.
 	 * <ul>
+	 * <li>We wait for a permit to call the TEA (acquire).
+	 * <li>If the document's deadline has passed (while waiting for it's turn to call the TEA), we throw an
+	 *     RTMLDeadlineException without calling the TEA.
 	 * <li>We lookup the embedded agent request handler (RMI interface) using Naming.lookup
 	 *     on the embeddedAgentRequestHandlerURL.
 	 * <li>We invoke the embedded agent request handler RMI method handleRequest, with the supplied RTML document.
 	 *     and return the reply document.
 	 * </ul>
 	 * @param rtmlDocument A document object model containing the RTML document to process.
+	 * @param deadline The document's deadline, or null if it has none.
 	 * @return An instance of RTMLDocument containing the reply from TEA's handleRequest RMI method.
+	 * @exception RTMLDeadlineException Thrown if the document's deadline has passed.
 	 * @see #traceLogger
+	 * @see #acquire
+	 * @see #release
+	 * @see org.estar.node_agent2.util.RTMLDeadlinePolicy#check
 	 * @see #embeddedAgentRequestHandlerURL
 	 * @see org.estar.tea.EmbeddedAgentRequestHandler
 	 * @see org.estar.tea.EmbeddedAgentRequestHandler#handleRequest
 	 */
-	public synchronized RTMLDocument handleRequest(RTMLDocument rtmlDocument) throws MalformedURLException, 
-										    RemoteException, NotBoundException 
+	public RTMLDocument handleRequest(RTMLDocument rtmlDocument,RTMLDeadline deadline) throws 
+		MalformedURLException, RemoteException, NotBoundException, RTMLDeadlineException
 	{
 		traceLogger.log(5, RMITeaConnectionHandler.class.getName(), "handleRequest() invoked");
 		RTMLDocument replyDocument = null;
 		
-		//locate reference to EmbeddedAgentRequestHandler (in the TEA)
-		traceLogger.log(5, RMITeaConnectionHandler.class.getName(),
-				"looking up EmbeddedAgentRequestHandler on TEA using URL: "+
-				embeddedAgentRequestHandlerURL);
-		EmbeddedAgentRequestHandler earh = (EmbeddedAgentRequestHandler)Naming.lookup(
-										embeddedAgentRequestHandlerURL);
-		
-		traceLogger.log(5, RMITeaConnectionHandler.class.getName(), "... located EmbeddedAgentRequestHandler: "+
-				earh);
-		
-		//invoke required method on earh
-		traceLogger.log(5, RMITeaConnectionHandler.class.getName(), 
-				"... calling EmbeddedAgentRequestHandler.handleRequest(rtmlDocument)");
-		replyDocument = earh.handleRequest(rtmlDocument);
+		acquire(deadline);
+		try
+		{
+			// has the client given up, while we waited our turn for the TEA
+			RTMLDeadlinePolicy.getInstance().check(deadline,RTMLDeadlinePolicy.STAGE_TEA);
+
+			//locate reference to EmbeddedAgentRequestHandler (in the TEA)
+			EmbeddedAgentRequestHandler earh = lookupEmbeddedAgentRequestHandler();
 
+			//invoke required method on earh
+			traceLogger.log(5, RMITeaConnectionHandler.class.getName(), 
+					"... calling EmbeddedAgentRequestHandler.handleRequest(rtmlDocument)");
+			replyDocument = earh.handleRequest(rtmlDocument);
+		}
+		finally
+		{
+			release();
+		}
 		return replyDocument;
 	}
 	
 	/**
 	 * Method to handle an abort RTML document.
 	 * <ul>
+	 * <li>We wait for a permit to call the TEA (acquire).
+	 * <li>If the document's deadline has passed (while waiting for it's turn to call the TEA), we throw an
+	 *     RTMLDeadlineException without calling the TEA.
 	 * <li>We lookup the embedded agent request handler (RMI interface) using Naming.lookup
 	 *     on the embeddedAgentRequestHandlerURL.
 	 * <li>We invoke the embedded agent request handler RMI method handleAbort, with the supplied RTML document.
 	 *     and return the reply document.
 	 * </ul>
 	 * @param rtmlDocument A document object model containing the RTML document to abort.
+	 * @param deadline The document's deadline, or null if it has none.
 	 * @return An instance of RTMLDocument containing the reply from TEA's handleAbort RMI method.
+	 * @exception RTMLDeadlineException Thrown if the document's deadline has passed.
 	 * @see #traceLogger
+	 * @see #acquire
+	 * @see #release
+	 * @see org.estar.node_agent2.util.RTMLDeadlinePolicy#check
 	 * @see #embeddedAgentRequestHandlerURL
 	 * @see org.estar.tea.EmbeddedAgentRequestHandler
 	 * @see org.estar.tea.EmbeddedAgentRequestHandler#handleAbort
 	 */
-	public synchronized RTMLDocument handleAbort(RTMLDocument rtmlDocument) throws MalformedURLException, 
-    RemoteException, NotBoundException 
+	public RTMLDocument handleAbort(RTMLDocument rtmlDocument,RTMLDeadline deadline) throws 
+		MalformedURLException, RemoteException, NotBoundException, RTMLDeadlineException
     {
 		traceLogger.log(5, RMITeaConnectionHandler.class.getName(), "handleAbort() invoked");
 		RTMLDocument replyDocument = null;
+		
+		acquire(deadline);
+		try
+		{
+			// has the client given up, while we waited our turn for the TEA
+			RTMLDeadlinePolicy.getInstance().check(deadline,RTMLDeadlinePolicy.STAGE_TEA);
 
-		//locate reference to EmbeddedAgentRequestHandler (in the TEA)
-		traceLogger.log(5, RMITeaConnectionHandler.class.getName(),
-				"looking up EmbeddedAgentRequestHandler on TEA using URL: "+
-				embeddedAgentRequestHandlerURL);
-		EmbeddedAgentRequestHandler earh = (EmbeddedAgentRequestHandler)Naming.lookup(
-				embeddedAgentRequestHandlerURL);
-
-		traceLogger.log(5, RMITeaConnectionHandler.class.getName(), "... located EmbeddedAgentRequestHandler: "+
-earh);
-
-		//invoke required method on earh
-		traceLogger.log(5, RMITeaConnectionHandler.class.getName(), 
-				"... calling EmbeddedAgentRequestHandler.handleAbort(rtmlDocument)");
-		replyDocument = earh.handleAbort(rtmlDocument);
+			//locate reference to EmbeddedAgentRequestHandler (in the TEA)
+			EmbeddedAgentRequestHandler earh = lookupEmbeddedAgentRequestHandler();
 
+			//invoke required method on earh
+			traceLogger.log(5, RMITeaConnectionHandler.class.getName(), 
+					"... calling EmbeddedAgentRequestHandler.handleAbort(rtmlDocument)");
+			replyDocument = earh.handleAbort(rtmlDocument);
+		}
+		finally
+		{
+			release();
+		}
 		return replyDocument;
     }
 	
 	/**
 	 * Method to handle an update RTML document.
 	 * <ul>
+	 * <li>We wait for a permit to call the TEA (acquire).
+	 * <li>If the document's deadline has passed (while waiting for it's turn to call the TEA), we throw an
+	 *     RTMLDeadlineException without calling the TEA.
 	 * <li>We lookup the embedded agent request handler (RMI interface) using Naming.lookup
 	 *     on the embeddedAgentRequestHandlerURL.
 	 * <li>We invoke the embedded agent request handler RMI method handleUpdate, with the supplied RTML document.
 	 *     and return the reply document.
 	 * </ul>
 	 * @param rtmlDocument A document object model containing the RTML document to provide an update for.
+	 * @param deadline The document's deadline, or null if it has none.
 	 * @return An instance of RTMLDocument containing the reply from TEA's handleUpdate RMI method.
+	 * @exception RTMLDeadlineException Thrown if the document's deadline has passed.
 	 * @see #traceLogger
+	 * @see #acquire
+	 * @see #release
+	 * @see org.estar.node_agent2.util.RTMLDeadlinePolicy#check
 	 * @see #embeddedAgentRequestHandlerURL
 	 * @see org.estar.tea.EmbeddedAgentRequestHandler
 	 * @see org.estar.tea.EmbeddedAgentRequestHandler#handleUpdate
 	 */
-	public synchronized RTMLDocument handleUpdate(RTMLDocument rtmlDocument) throws MalformedURLException, 
-    RemoteException, NotBoundException 
+	public RTMLDocument handleUpdate(RTMLDocument rtmlDocument,RTMLDeadline deadline) throws 
+		MalformedURLException, RemoteException, NotBoundException, RTMLDeadlineException
     {
 		traceLogger.log(5, RMITeaConnectionHandler.class.getName(), "handleUpdate() invoked");
 		RTMLDocument replyDocument = null;
+		
+		acquire(deadline);
+		try
+		{
+			// has the client given up, while we waited our turn for the TEA
+			RTMLDeadlinePolicy.getInstance().check(deadline,RTMLDeadlinePolicy.STAGE_TEA);
+
+			//locate reference to EmbeddedAgentRequestHandler (in the TEA)
+			EmbeddedAgentRequestHandler earh = lookupEmbeddedAgentRequestHandler();
+
+			//invoke required method on earh
+			traceLogger.log(5, RMITeaConnectionHandler.class.getName(), 
+					"... calling EmbeddedAgentRequestHandler.handleUpdate(rtmlDocument)");
+			replyDocument = earh.handleUpdate(rtmlDocument);
+		}
+		finally
+		{
+			release();
+		}
+		return replyDocument;
+    }
+	
+	/**
+	 * Lookup the embedded agent request handler (RMI interface) using Naming.lookup on the 
+	 * embeddedAgentRequestHandlerURL. This is done for each call, so a restarted TEA is found. 
+	 * It is also called during warm-up, so the first real call does not pay for loading the RMI stub classes
+	 * and opening the connection to the registry.
+	 * @return The embedded agent request handler.
+	 * @see #embeddedAgentRequestHandlerURL
+	 * @see org.estar.node_agent2.initialisation.NodeAgentWarmUp
+	 */
+	public EmbeddedAgentRequestHandler lookupEmbeddedAgentRequestHandler() throws MalformedURLException, 
+										       RemoteException, NotBoundException
+	{
+		EmbeddedAgentRequestHandler earh = null;
 
-		//locate reference to EmbeddedAgentRequestHandler (in the TEA)
 		traceLogger.log(5, RMITeaConnectionHandler.class.getName(),
 				"looking up EmbeddedAgentRequestHandler on TEA using URL: "+
 				embeddedAgentRequestHandlerURL);
-		EmbeddedAgentRequestHandler earh = (EmbeddedAgentRequestHandler)Naming.lookup(
-				embeddedAgentRequestHandlerURL);
-
+		earh = (EmbeddedAgentRequestHandler)Naming.lookup(embeddedAgentRequestHandlerURL);
 		traceLogger.log(5, RMITeaConnectionHandler.class.getName(), "... located EmbeddedAgentRequestHandler: "+
-earh);
+				earh);
+		return earh;
+	}
+	
+	/**
+	 * Wait for a permit to call the TEA. If the document has a deadline, we wait until (just after) it, and then
+	 * throw an RTMLDeadlineException without a permit; otherwise we wait until a permit is free.
+	 * The number of TEA calls (and the largest number) in flight are updated.
+	 * @param deadline The document's deadline, or null if it has none.
+	 * @exception RTMLDeadlineException Thrown if the deadline passed while waiting for a permit.
+	 * @see #teaCallSemaphore
+	 * @see #release
+	 */
+	protected void acquire(RTMLDeadline deadline) throws RTMLDeadlineException
+	{
+		boolean acquired = false;
+		int count,maxCount;
 
-		//invoke required method on earh
-		traceLogger.log(5, RMITeaConnectionHandler.class.getName(), 
-				"... calling EmbeddedAgentRequestHandler.handleUpdate(rtmlDocument)");
-		replyDocument = earh.handleUpdate(rtmlDocument);
+		if ((deadline != null) && deadline.hasDeadline())
+		{
+			try
+			{
+				acquired = teaCallSemaphore.tryAcquire(Math.max(0,deadline.getRemaining())+1,
+								       TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			if (acquired == false)
+				RTMLDeadlinePolicy.getInstance().check(deadline,RTMLDeadlinePolicy.STAGE_TEA);
+		}
+		if (acquired == false)
+			teaCallSemaphore.acquireUninterruptibly();
+		teaCallCount.incrementAndGet();
+		count = inFlightCount.incrementAndGet();
+		maxCount = maxInFlightCount.get();
+		while ((count > maxCount) && (maxInFlightCount.compareAndSet(maxCount,count) == false))
+			maxCount = maxInFlightCount.get();
+	}
 
-		return replyDocument;
-    }
+	/**
+	 * Give back the permit to call the TEA, acquired by acquire.
+	 * @see #acquire
+	 * @see #teaCallSemaphore
+	 */
+	protected void release()
+	{
+		inFlightCount.decrementAndGet();
+		teaCallSemaphore.release();
+	}
 	
 	public void destroy() {
 		persistenceRunnable.stop();
 	}
 	
+	/**
+	 * Return a string describing the handler, and the TEA call statistics.
+	 */
 	public String toString() {
-		return this.getClass().getName() + " [instantiationTimeStamp:" + instantiationTimeStamp + "]";
+		return this.getClass().getName() + " [instantiationTimeStamp:" + instantiationTimeStamp + 
+			",parallelism:" + parallelism + ",calls:" + teaCallCount.get() + ",inFlight:" + 
+			inFlightCount.get() + ",maxInFlight:" + maxInFlightCount.get() + ",waiting:" + 
+			teaCallSemaphore.getQueueLength() + "]";
 	}
 	
 	
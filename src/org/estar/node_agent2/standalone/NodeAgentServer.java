@@ -0,0 +1,304 @@
+package org.estar.node_agent2.standalone;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.ws.Endpoint;
+
+import com.sun.net.httpserver.HttpServer;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.NodeAgentAsyncWebServiceImpl;
+import org.estar.node_agent2.NodeAgentStreamingWebServiceImpl;
+import org.estar.node_agent2.NodeAgentWebServiceImpl;
+import org.estar.node_agent2.configuration.NodeAgentProperties;
+import org.estar.node_agent2.initialisation.NodeAgentInitialiser;
+import org.estar.node_agent2.util.LoggerUtil;
+
+/**
+ * Standalone Node Agent server, which publishes the Node Agent web-service endpoints on the JDK's embedded
+ * HTTP server, without tomcat. The endpoints are published at the same paths as the tomcat deployment
+ * (/node_agent2/node_agent, /node_agent2/node_agent_stream and /node_agent2/node_agent_async), so clients only
+ * need to change the host/port. The same initialisation as the InitialisationServlet is run
+ * (NodeAgentInitialiser). The configuration directory defaults to /etc/nodeagent, and can be changed with
+ * -config_dir.
+ * <p>
+ * The servlet filters (GzipFilter, AuthenticationFilter) and the /rtml servlet are not available in this mode;
+ * usernames and passwords are checked by the web-service itself.
+ * The startup time and heap used once started are logged.
+ * @author cjm
+ * @see org.estar.node_agent2.initialisation.NodeAgentInitialiser
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#CONFIG_DIR_SYSTEM_PROPERTY
+ */
+public class NodeAgentServer
+{
+	/**
+	 * The context path the endpoints are published under, the same as the tomcat deployment.
+	 */
+	public final static String CONTEXT_PATH = "/node_agent2";
+	/**
+	 * The default port number to listen on.
+	 */
+	public final static int DEFAULT_PORT_NUMBER = 8080;
+	/**
+	 * The default number of threads handling requests.
+	 */
+	public final static int DEFAULT_THREAD_COUNT = 32;
+	/**
+	 * The port number to listen on.
+	 */
+	int portNumber = DEFAULT_PORT_NUMBER;
+	/**
+	 * The number of threads handling requests.
+	 */
+	int threadCount = DEFAULT_THREAD_COUNT;
+	/**
+	 * The configuration directory, or null to use the default.
+	 */
+	String configDirectory = null;
+	/**
+	 * The directory to load the RTML entity catalog from, or null to use the default.
+	 */
+	String catalogDirectory = null;
+	/**
+	 * The embedded HTTP server.
+	 */
+	HttpServer httpServer = null;
+	/**
+	 * The thread pool handling requests.
+	 */
+	ExecutorService executorService = null;
+	/**
+	 * The published endpoints.
+	 */
+	List<Endpoint> endpointList = new ArrayList<Endpoint>();
+	/**
+	 * 	Output logger.
+	 */
+	Logger log = null;
+	/**
+	 * 	Error logger.
+	 */
+	Logger errorLog = null;
+
+	/**
+	 * NodeAgentServer constructor. Does nothing.
+	 */
+	public NodeAgentServer()
+	{
+		super();
+	}
+
+	/**
+	 * Parse the command line arguments.
+	 * @param args An array of arguments to parse.
+	 * @exception Exception Thrown if an error occurs.
+	 * @see #help
+	 * @see #portNumber
+	 * @see #threadCount
+	 * @see #configDirectory
+	 * @see #catalogDirectory
+	 */
+	public void parseArguments(String args[]) throws Exception
+	{
+		for(int i = 0; i < args.length; i++)
+		{
+			if(args[i].equals("-catalog_dir"))
+			{
+				if((i+1) < args.length)
+				{
+					catalogDirectory = args[i+1];
+				}
+				else
+				{
+					System.err.println(this.getClass().getName()+
+							":parseArguments:catalog_dir:No directory specified.");
+					System.exit(1);
+				}
+				i+= 1;
+			}
+			else if(args[i].equals("-config_dir"))
+			{
+				if((i+1) < args.length)
+				{
+					configDirectory = args[i+1];
+				}
+				else
+				{
+					System.err.println(this.getClass().getName()+
+							":parseArguments:config_dir:No directory specified.");
+					System.exit(1);
+				}
+				i+= 1;
+			}
+			else if(args[i].equals("-help"))
+			{
+				help();
+				System.exit(0);
+			}
+			else if(args[i].equals("-port")||args[i].equals("-port_number"))
+			{
+				if((i+1) < args.length)
+				{
+					portNumber = Integer.parseInt(args[i+1]);
+				}
+				else
+				{
+					System.err.println(this.getClass().getName()+
+							":parseArguments:port:No port number specified.");
+					System.exit(1);
+				}
+				i+= 1;
+			}
+			else if(args[i].equals("-threads"))
+			{
+				if((i+1) < args.length)
+				{
+					threadCount = Integer.parseInt(args[i+1]);
+				}
+				else
+				{
+					System.err.println(this.getClass().getName()+
+							":parseArguments:threads:No thread count specified.");
+					System.exit(1);
+				}
+				i+= 1;
+			}
+			else
+			{
+				System.err.println(this.getClass().getName()+":parseArguments:Unknown argument:"+args[i]);
+				help();
+				System.exit(1);
+			}
+		}
+	}
+
+	/**
+	 * Initialise the loggers and the Node Agent. The configuration directory system property is set first,
+	 * as NodeAgentProperties reads it when it is loaded.
+	 * @see #configDirectory
+	 * @see #catalogDirectory
+	 * @see org.estar.node_agent2.configuration.NodeAgentProperties#CONFIG_DIR_SYSTEM_PROPERTY
+	 * @see org.estar.node_agent2.util.LoggerUtil#setUpLoggers
+	 * @see org.estar.node_agent2.initialisation.NodeAgentInitialiser#initialise
+	 */
+	public void initialise()
+	{
+		if(configDirectory != null)
+			System.setProperty(NodeAgentProperties.CONFIG_DIR_SYSTEM_PROPERTY,configDirectory);
+		LoggerUtil.setUpLoggers();
+		log = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+		errorLog = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+		log.log(1,"NodeAgentServer:initialise:Using configuration directory:"+NodeAgentProperties.BASE_DIR);
+		NodeAgentInitialiser.initialise((catalogDirectory != null) ? new File(catalogDirectory) : null,null);
+	}
+
+	/**
+	 * Create the embedded HTTP server, publish the endpoints on it, and start it.
+	 * @exception Exception Thrown if the server cannot be created, or an endpoint published.
+	 * @see #httpServer
+	 * @see #executorService
+	 * @see #publish
+	 */
+	public void start() throws Exception
+	{
+		httpServer = HttpServer.create(new InetSocketAddress(portNumber),0);
+		executorService = Executors.newFixedThreadPool(threadCount);
+		httpServer.setExecutor(executorService);
+		publish(new NodeAgentWebServiceImpl(),"/node_agent");
+		publish(new NodeAgentStreamingWebServiceImpl(),"/node_agent_stream");
+		publish(new NodeAgentAsyncWebServiceImpl(),"/node_agent_async");
+		httpServer.start();
+	}
+
+	/**
+	 * Publish the specified web-service implementation at the specified path (under CONTEXT_PATH).
+	 * @param implementor The web-service implementation.
+	 * @param path The path, relative to CONTEXT_PATH.
+	 * @see #CONTEXT_PATH
+	 * @see #endpointList
+	 */
+	protected void publish(Object implementor,String path)
+	{
+		Endpoint endpoint = Endpoint.create(implementor);
+
+		endpoint.publish(httpServer.createContext(CONTEXT_PATH+path));
+		endpointList.add(endpoint);
+		log.log(1,"NodeAgentServer:publish:Published "+implementor.getClass().getName()+" at http://localhost:"+
+			portNumber+CONTEXT_PATH+path);
+	}
+
+	/**
+	 * Stop the endpoints and the embedded HTTP server, and shut down the Node Agent.
+	 * @see org.estar.node_agent2.initialisation.NodeAgentInitialiser#destroy
+	 */
+	public void stop()
+	{
+		log.log(1,"NodeAgentServer:stop:Stopping.");
+		for(Endpoint endpoint : endpointList)
+			endpoint.stop();
+		if(httpServer != null)
+			httpServer.stop(0);
+		if(executorService != null)
+			executorService.shutdown();
+		NodeAgentInitialiser.destroy();
+	}
+
+	/**
+	 * help method.
+	 */
+	public void help()
+	{
+		System.err.println("java org.estar.node_agent2.standalone.NodeAgentServer");
+		System.err.println("\t-port_number <port number> (default "+DEFAULT_PORT_NUMBER+")");
+		System.err.println("\t-threads <request thread count> (default "+DEFAULT_THREAD_COUNT+")");
+		System.err.println("\t-config_dir <configuration directory> (default "+NodeAgentProperties.DEFAULT_BASE_DIR+")");
+		System.err.println("\t-catalog_dir <RTML entity catalog directory> (default <configuration directory>/rtml)");
+	}
+
+	/**
+	 * The NodeAgentServer program entry point. The startup time (since the JVM started) and the heap used
+	 * once the server has started are logged.
+	 * @param args Command line arguments.
+	 * @see #parseArguments
+	 * @see #initialise
+	 * @see #start
+	 * @see #stop
+	 */
+	public static void main(String[] args)
+	{
+		final NodeAgentServer server = new NodeAgentServer();
+		Runtime runtime = Runtime.getRuntime();
+		long startupTime;
+
+		try
+		{
+			server.parseArguments(args);
+			server.initialise();
+			server.start();
+		}
+		catch (Exception e)
+		{
+			System.err.println("NodeAgentServer failed to start:"+e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		runtime.addShutdownHook(new Thread("NodeAgentServer-shutdown")
+		{
+			public void run()
+			{
+				server.stop();
+			}
+		});
+		startupTime = System.currentTimeMillis()-ManagementFactory.getRuntimeMXBean().getStartTime();
+		server.log.log(1,"NodeAgentServer:main:Started in "+startupTime+" ms, heap used "+
+			       ((runtime.totalMemory()-runtime.freeMemory())/1024)+" KB of "+(runtime.totalMemory()/1024)+" KB.");
+	}
+}
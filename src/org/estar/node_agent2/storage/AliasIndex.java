@@ -0,0 +1,145 @@
+package org.estar.node_agent2.storage;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.util.LoggerUtil;
+
+/**
+ * An immutable, bidirectional index of an alias store (e.g. eSTAR username to LT username). The forward
+ * (key to alias) and reverse (alias to key) lookups are both hash lookups, so the reverse lookup no longer walks
+ * every entry of the store. Instances are never modified once constructed, so they are read without locking by
+ * any number of threads. The PersistenceController builds a new index when an alias store is set, and publishes
+ * it (through a volatile field) in place of the old one, so readers see either the old or the new index, never a
+ * partly built one.
+ * <p>
+ * If more than one key has the same alias, the reverse lookup returns the key that sorts first, so it is
+ * deterministic (PersistentMap.getKey returned whichever it found first).
+ * @author cjm
+ * @see org.estar.node_agent2.storage.PersistenceController#getUserAliasIndex
+ * @see org.estar.node_agent2.storage.PersistenceController#getProjectAliasIndex
+ */
+public class AliasIndex
+{
+	/**
+	 * The error logger.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+	/**
+	 * The forward map, from key to alias.
+	 */
+	private final Map<String,String> forwardMap;
+	/**
+	 * The reverse map, from alias to key.
+	 */
+	private final Map<String,String> reverseMap;
+
+	/**
+	 * Constructor. Builds the forward and reverse maps from the specified alias store.
+	 * @param aliasMapStore The alias store to index. The index is a snapshot, later changes to the store are
+	 *        not seen. If null, an empty index is built.
+	 * @see #forwardMap
+	 * @see #reverseMap
+	 */
+	public AliasIndex(PersistentMap aliasMapStore)
+	{
+		super();
+		Map<String,String> forward = null;
+		Map<String,String> reverse = null;
+
+		if (aliasMapStore == null)
+		{
+			forwardMap = Collections.emptyMap();
+			reverseMap = Collections.emptyMap();
+			return;
+		}
+		forward = new HashMap<String,String>(Math.max(16,(aliasMapStore.size()*4)/3+1));
+		reverse = new HashMap<String,String>(Math.max(16,(aliasMapStore.size()*4)/3+1));
+		for (String key : aliasMapStore.stringPropertyNames())
+		{
+			String alias = aliasMapStore.getProperty(key);
+			String previousKey = null;
+
+			forward.put(key,alias);
+			previousKey = reverse.get(alias);
+			if (previousKey == null)
+			{
+				reverse.put(alias,key);
+			}
+			else
+			{
+				errorLogger.log(1, AliasIndex.class.getName(), "Alias "+alias+" is used by both "+previousKey+
+						" and "+key+".");
+				if (key.compareTo(previousKey) < 0)
+					reverse.put(alias,key);
+			}
+		}
+		forwardMap = Collections.unmodifiableMap(forward);
+		reverseMap = Collections.unmodifiableMap(reverse);
+	}
+
+	/**
+	 * Does the index contain the specified key?
+	 * @param key The key.
+	 * @return true if the key has an alias.
+	 */
+	public boolean containsKey(String key)
+	{
+		return (key != null) && forwardMap.containsKey(key);
+	}
+
+	/**
+	 * Does the index contain the specified alias?
+	 * @param alias The alias.
+	 * @return true if a key has the alias.
+	 */
+	public boolean containsAlias(String alias)
+	{
+		return (alias != null) && reverseMap.containsKey(alias);
+	}
+
+	/**
+	 * Get the alias for the specified key (the forward lookup).
+	 * @param key The key.
+	 * @return The alias, or null if the key has none.
+	 */
+	public String getAlias(String key)
+	{
+		if (key == null)
+			return null;
+		return forwardMap.get(key);
+	}
+
+	/**
+	 * Get the key with the specified alias (the reverse lookup).
+	 * @param alias The alias.
+	 * @return The key, or null if no key has the alias.
+	 */
+	public String getKey(String alias)
+	{
+		if (alias == null)
+			return null;
+		return reverseMap.get(alias);
+	}
+
+	/**
+	 * Get the number of keys in the index.
+	 * @return The number of keys.
+	 */
+	public int size()
+	{
+		return forwardMap.size();
+	}
+
+	/**
+	 * Return a string describing the index. Only the size is included, as the index may be large.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+"[size="+forwardMap.size()+",aliases="+reverseMap.size()+"]";
+	}
+}
@@ -0,0 +1,137 @@
+package org.estar.node_agent2.storage;
+
+/**
+ * The precomputed authorization information for one (request header) username: the stored password used to
+ * check it's credentials, it's resolved LT username (the user alias, or the username itself if it has none), and
+ * the alias index snapshots it was built from, used to rewrite and check the user's documents. The
+ * PersistenceController builds a context for every user in the password store whenever the password or alias
+ * stores change, so a request finds everything it needs with one lookup, and uses one consistent snapshot of
+ * the stores throughout. Instances are immutable.
+ * @author cjm
+ * @see org.estar.node_agent2.storage.PersistenceController#getAuthorizationContext
+ * @see org.estar.node_agent2.storage.AliasIndex
+ */
+public class AuthorizationContext
+{
+	/**
+	 * The (request header) username.
+	 */
+	private final String username;
+	/**
+	 * The resolved LT username.
+	 */
+	private final String ltUsername;
+	/**
+	 * The stored password (hashed or plain-text) of the user, or null if the user is not in the password store.
+	 */
+	private final String storedPassword;
+	/**
+	 * The user alias index snapshot the context was built from.
+	 */
+	private final AliasIndex userAliasIndex;
+	/**
+	 * The project alias index snapshot the context was built from.
+	 */
+	private final AliasIndex projectAliasIndex;
+	/**
+	 * The generation of the snapshot (incremented each time the contexts are rebuilt).
+	 */
+	private final long generation;
+
+	/**
+	 * Constructor. The LT username is resolved using the user alias index.
+	 * @param username The (request header) username.
+	 * @param storedPassword The stored password of the user, or null if the user is not in the password store.
+	 * @param userAliasIndex The user alias index snapshot.
+	 * @param projectAliasIndex The project alias index snapshot.
+	 * @param generation The generation of the snapshot.
+	 * @see #ltUsername
+	 */
+	public AuthorizationContext(String username,String storedPassword,AliasIndex userAliasIndex,
+				    AliasIndex projectAliasIndex,long generation)
+	{
+		super();
+		this.username = username;
+		this.storedPassword = storedPassword;
+		this.userAliasIndex = userAliasIndex;
+		this.projectAliasIndex = projectAliasIndex;
+		this.generation = generation;
+		this.ltUsername = unaliasUsername(username);
+	}
+
+	/**
+	 * Get the (request header) username.
+	 * @return The username.
+	 */
+	public String getUsername()
+	{
+		return username;
+	}
+
+	/**
+	 * Get the resolved LT username.
+	 * @return The user alias of the username, or the username if it has no alias.
+	 */
+	public String getLTUsername()
+	{
+		return ltUsername;
+	}
+
+	/**
+	 * Get the stored password of the user.
+	 * @return The stored password (hashed or plain-text), or null if the user is not in the password store.
+	 */
+	public String getStoredPassword()
+	{
+		return storedPassword;
+	}
+
+	/**
+	 * Get the user alias index snapshot the context was built from.
+	 * @return The user alias index.
+	 */
+	public AliasIndex getUserAliasIndex()
+	{
+		return userAliasIndex;
+	}
+
+	/**
+	 * Get the project alias index snapshot the context was built from.
+	 * @return The project alias index.
+	 */
+	public AliasIndex getProjectAliasIndex()
+	{
+		return projectAliasIndex;
+	}
+
+	/**
+	 * Get the generation of the snapshot the context was built from.
+	 * @return The generation.
+	 */
+	public long getGeneration()
+	{
+		return generation;
+	}
+
+	/**
+	 * Convert an eSTAR username into an LT username, using this context's user alias index snapshot.
+	 * @param rtmlUsername The username to unalias.
+	 * @return The user alias, if the username has one, otherwise rtmlUsername.
+	 */
+	public String unaliasUsername(String rtmlUsername)
+	{
+		String alias = userAliasIndex.getAlias(rtmlUsername);
+
+		if (alias != null)
+			return alias;
+		return rtmlUsername;
+	}
+
+	/**
+	 * Return a string describing the context. The stored password is not included.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+"[username="+username+",ltUsername="+ltUsername+",generation="+generation+"]";
+	}
+}
@@ -1,6 +1,9 @@
 package org.estar.node_agent2.storage;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import ngat.util.logging.LogManager;
 import ngat.util.logging.Logger;
@@ -25,19 +28,51 @@ public class PersistenceController
 	
 	/**
 	 * The persistent map holding user aliases.
+	 * The stores are volatile, as the PersistentMapWatcher replaces them (with a newly loaded map) when their
+	 * files change.
+	 * @see org.estar.node_agent2.storage.PersistentMapWatcher
 	 * @see org.estar.node_agent2.storage.PersistentMap
 	 */
-	private PersistentMap userAliasMapStore; 
+	private volatile PersistentMap userAliasMapStore; 
 	/**
 	 * The persistent map holding project aliases.
 	 * @see org.estar.node_agent2.storage.PersistentMap
 	 */
-	private PersistentMap projectAliasMapStore; 
+	private volatile PersistentMap projectAliasMapStore; 
 	/**
 	 * The persistent map holding user - password relationships.
 	 * @see org.estar.node_agent2.storage.PersistentMap
 	 */
-	private PersistentMap passwordMapStore; 
+	private volatile PersistentMap passwordMapStore; 
+	/**
+	 * The persistent map holding user - validation policy relationships.
+	 * @see org.estar.node_agent2.storage.PersistentMap
+	 * @see org.estar.node_agent2.util.RTMLValidationPolicy
+	 */
+	private volatile PersistentMap validationPolicyMapStore; 
+	/**
+	 * The bidirectional index of the user alias store, rebuilt and republished whenever the store is set.
+	 * Volatile, so readers see the latest index without locking.
+	 * @see org.estar.node_agent2.storage.AliasIndex
+	 */
+	private volatile AliasIndex userAliasIndex = new AliasIndex(null);
+	/**
+	 * The bidirectional index of the project alias store, rebuilt and republished whenever the store is set.
+	 * Volatile, so readers see the latest index without locking.
+	 * @see org.estar.node_agent2.storage.AliasIndex
+	 */
+	private volatile AliasIndex projectAliasIndex = new AliasIndex(null);
+	/**
+	 * The authorization context of every user in the password store, rebuilt and republished whenever the password
+	 * or alias stores are set. Volatile and unmodifiable, so readers need no locking.
+	 * @see org.estar.node_agent2.storage.AuthorizationContext
+	 * @see #rebuildAuthorizationContexts
+	 */
+	private volatile Map<String,AuthorizationContext> authorizationContextMap = Collections.emptyMap();
+	/**
+	 * The generation of the authorization contexts, incremented each time they are rebuilt.
+	 */
+	private long authorizationGeneration = 0;
 	
 	/**
 	 * Get the singleton instance of this class. Construct it if required.
@@ -54,9 +89,16 @@ public class PersistenceController
 	/**
 	 * Internal constructor used by getInstance to instantiate the only instance of this class.
 	 * Creates the userAliasMapStore, projectAliasMapStore and passwordMapStore PersistentMap's.
+	 * The validationPolicyMapStore is optional, if it's file cannot be loaded an empty map is used
+	 * (i.e. all users get full validation). The user and project alias indexes are built from the alias stores,
+	 * and the authorization contexts from the password store and alias indexes.
+	 * @see #rebuildAuthorizationContexts
 	 * @see #userAliasMapStore
 	 * @see #projectAliasMapStore
 	 * @see #passwordMapStore
+	 * @see #validationPolicyMapStore
+	 * @see #userAliasIndex
+	 * @see #projectAliasIndex
 	 * @see #errorLogger
 	 */
 	private PersistenceController() 
@@ -72,6 +114,21 @@ public class PersistenceController
 			e.printStackTrace();
 			errorLogger.log(1, PersistenceController.class.getName(), e);
 		}
+		userAliasIndex = new AliasIndex(userAliasMapStore);
+		projectAliasIndex = new AliasIndex(projectAliasMapStore);
+		traceLogger.log(5, PersistenceController.class.getName(), "... user alias index:"+userAliasIndex+
+				", project alias index:"+projectAliasIndex);
+		rebuildAuthorizationContexts();
+		try 
+		{
+			validationPolicyMapStore = new PersistentMap(NodeAgentProperties.VALIDATION_POLICY_MAP_LOCATION);
+		} 
+		catch (IOException e) 
+		{
+			traceLogger.log(5, PersistenceController.class.getName(), "... no validation policy store loaded ("+e+
+					"), all users will get full validation.");
+			validationPolicyMapStore = new PersistentMap();
+		}
 	}
 
 	/**
@@ -85,13 +142,29 @@ public class PersistenceController
 	}
 
 	/**
-	 * Set the project alias PersistentMap.
+	 * Set the project alias PersistentMap. The project alias index is rebuilt from it, and published,
+	 * as are the authorization contexts.
 	 * @param projectAliasMapStore The project alias PersistentMap instance to use.
 	 * @see #projectAliasMapStore
+	 * @see #projectAliasIndex
+	 * @see #rebuildAuthorizationContexts
 	 */
-	public void setProjectAliasMapStore(PersistentMap projectAliasMapStore) 
+	public synchronized void setProjectAliasMapStore(PersistentMap projectAliasMapStore) 
 	{
 		this.projectAliasMapStore = projectAliasMapStore;
+		this.projectAliasIndex = new AliasIndex(projectAliasMapStore);
+		rebuildAuthorizationContexts();
+	}
+
+	/**
+	 * Get the project alias index, an immutable snapshot of the project alias store, 
+	 * with forward (eSTAR to LT) and reverse (LT to eSTAR) lookups.
+	 * @return The project alias index.
+	 * @see #projectAliasIndex
+	 */
+	public AliasIndex getProjectAliasIndex() 
+	{
+		return projectAliasIndex;
 	}
 
 	/**
@@ -105,13 +178,29 @@ public class PersistenceController
 	}
 
 	/**
-	 * Set the user alias PersistentMap.
+	 * Set the user alias PersistentMap. The user alias index is rebuilt from it, and published,
+	 * as are the authorization contexts.
 	 * @param userAliasMapStore The user alias PersistentMap instance to use.
 	 * @see #userAliasMapStore
+	 * @see #userAliasIndex
+	 * @see #rebuildAuthorizationContexts
 	 */
-	public void setUserAliasMapStore(PersistentMap userAliasMapStore) 
+	public synchronized void setUserAliasMapStore(PersistentMap userAliasMapStore) 
 	{
 		this.userAliasMapStore = userAliasMapStore;
+		this.userAliasIndex = new AliasIndex(userAliasMapStore);
+		rebuildAuthorizationContexts();
+	}
+
+	/**
+	 * Get the user alias index, an immutable snapshot of the user alias store, 
+	 * with forward (eSTAR to LT) and reverse (LT to eSTAR) lookups.
+	 * @return The user alias index.
+	 * @see #userAliasIndex
+	 */
+	public AliasIndex getUserAliasIndex() 
+	{
+		return userAliasIndex;
 	}
 
 	/**
@@ -125,13 +214,82 @@ public class PersistenceController
 	}
 
 	/**
-	 * Set the password PersistentMap.
+	 * Set the password PersistentMap. The authorization contexts are rebuilt, and published.
 	 * @param passwordMapStore The password PersistentMap instance to use.
 	 * @see #passwordMapStore
+	 * @see #rebuildAuthorizationContexts
 	 */
-	public void setPasswordMapStore(PersistentMap passwordMapStore) 
+	public synchronized void setPasswordMapStore(PersistentMap passwordMapStore) 
 	{
 		this.passwordMapStore = passwordMapStore;
+		rebuildAuthorizationContexts();
+	}
+
+	/**
+	 * Get the authorization context of the specified (request header) username, with one lookup.
+	 * If the user is not in the password store, a context (with no stored password) is built from the current
+	 * alias indexes, but not kept.
+	 * @param username The username.
+	 * @return The user's authorization context.
+	 * @see #authorizationContextMap
+	 */
+	public AuthorizationContext getAuthorizationContext(String username) 
+	{
+		AuthorizationContext authorizationContext = authorizationContextMap.get(username);
+
+		if (authorizationContext != null)
+			return authorizationContext;
+		return new AuthorizationContext(username,null,userAliasIndex,projectAliasIndex,-1);
+	}
+
+	/**
+	 * Build an authorization context for every user in the password store, from the current password store
+	 * and alias indexes, and publish them (replacing the previous contexts).
+	 * @see #authorizationContextMap
+	 * @see #authorizationGeneration
+	 */
+	protected synchronized void rebuildAuthorizationContexts() 
+	{
+		Map<String,AuthorizationContext> contextMap = null;
+		PersistentMap passwordMap = passwordMapStore;
+		AliasIndex userIndex = userAliasIndex;
+		AliasIndex projectIndex = projectAliasIndex;
+
+		authorizationGeneration++;
+		if (passwordMap == null)
+		{
+			authorizationContextMap = Collections.emptyMap();
+			return;
+		}
+		contextMap = new HashMap<String,AuthorizationContext>(Math.max(16,(passwordMap.size()*4)/3+1));
+		for (String username : passwordMap.stringPropertyNames())
+		{
+			contextMap.put(username,new AuthorizationContext(username,passwordMap.getProperty(username),
+									 userIndex,projectIndex,authorizationGeneration));
+		}
+		authorizationContextMap = Collections.unmodifiableMap(contextMap);
+		traceLogger.log(5, PersistenceController.class.getName(), "... rebuilt "+contextMap.size()+
+				" authorization contexts (generation "+authorizationGeneration+").");
+	}
+
+	/**
+	 * Get the validation policy PersistentMap instance.
+	 * @return The validation policy PersistentMap instance.
+	 * @see #validationPolicyMapStore
+	 */
+	public PersistentMap getValidationPolicyMapStore() 
+	{
+		return validationPolicyMapStore;
+	}
+
+	/**
+	 * Set the validation policy PersistentMap.
+	 * @param validationPolicyMapStore The validation policy PersistentMap instance to use.
+	 * @see #validationPolicyMapStore
+	 */
+	public void setValidationPolicyMapStore(PersistentMap validationPolicyMapStore) 
+	{
+		this.validationPolicyMapStore = validationPolicyMapStore;
 	}
 
 }
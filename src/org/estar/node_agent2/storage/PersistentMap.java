@@ -27,6 +27,14 @@ public class PersistentMap  extends Properties
 	 */
 	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
 
+	/**
+	 * Constructor for an empty map, used when an optional store's file does not exist.
+	 */
+	public PersistentMap()
+	{
+		super();
+	}
+
 	/**
 	 * Constructor.
 	 * @param fileName The name to read the persistent data in from.
@@ -38,14 +46,23 @@ public class PersistentMap  extends Properties
 		traceLogger.log(5, PersistentMap.class.getName(), "Loading alias store: " + fileName);
 		Properties properties = new Properties();
 		FileInputStream in = new FileInputStream(fileName);
-		properties.load(in);
+		try
+		{
+			properties.load(in);
+		}
+		finally
+		{
+			in.close();
+		}
 		this.putAll(properties);
 		traceLogger.log(5, PersistentMap.class.getName(), "... " + this);
 	}
 	/**
-	 * Method to get the key for the specifeid value i.e. a reverse lookup.
+	 * Method to get the key for the specifeid value i.e. a reverse lookup. This walks every entry,
+	 * so the alias stores are looked up using their AliasIndex instead.
 	 * @param value The value to find the key for.
 	 * @return The string value of the key.
+	 * @see org.estar.node_agent2.storage.AliasIndex#getKey
 	 */
 	public String getKey(String value) 
 	{
@@ -0,0 +1,444 @@
+package org.estar.node_agent2.storage;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.configuration.NodeAgentProperties;
+import org.estar.node_agent2.util.LoggerUtil;
+import org.estar.node_agent2.util.PasswordHash;
+import org.estar.node_agent2.util.RTMLValidationPolicy;
+
+/**
+ * Watches the user alias, project alias, password and validation policy map files, and reloads a store
+ * when it's file changes, so users and aliases can be added without restarting tomcat.
+ * <ul>
+ * <li>A background (daemon) thread waits on an NIO WatchService, registered on the directories
+ *     containing the map files.
+ * <li>Changes are debounced: a store is only reloaded once it's file has not changed for
+ *     persistence.reload.debounce milliseconds, so a file being written (or several edits in quick succession)
+ *     causes one reload, of the finished file.
+ * <li>The changed file is loaded into a new PersistentMap and validated, on the watcher thread. Only if it is valid
+ *     is the new map swapped in (PersistenceController setters, which also republish the alias indexes). Requests
+ *     in progress keep using the snapshot they started with. A file that cannot be read or fails validation is
+ *     logged and counted, and the previous (good) snapshot is kept.
+ * </ul>
+ * The number of reloads and failures, and the reload latency (from the last change to the file, to the new
+ * snapshot being published) are logged on each ping.
+ * @author cjm
+ * @see org.estar.node_agent2.storage.PersistenceController
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#PERSISTENCE_RELOAD_USE
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#PERSISTENCE_RELOAD_DEBOUNCE
+ */
+public class PersistentMapWatcher implements Runnable
+{
+	/**
+	 * The default time (in milliseconds) a file must be unchanged before it is reloaded,
+	 * if the persistence.reload.debounce property is not set.
+	 */
+	public static final long DEFAULT_DEBOUNCE = 2000;
+	/**
+	 * How long (in milliseconds) the watcher thread waits for a change, when no reload is pending.
+	 */
+	public static final long IDLE_POLL_TIME = 60000;
+	/**
+	 * The singleton instance of this class.
+	 */
+	private static PersistentMapWatcher instance = null;
+	/**
+	 * The trace logger.
+	 */
+	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+	/**
+	 * The error logger.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+	/**
+	 * The time (in milliseconds) a file must be unchanged before it is reloaded.
+	 */
+	private long debounce = DEFAULT_DEBOUNCE;
+	/**
+	 * The watch service, or null if the watcher is not running.
+	 */
+	private WatchService watchService = null;
+	/**
+	 * Whether the watcher thread should keep running.
+	 */
+	private volatile boolean running = false;
+	/**
+	 * The watched map files (absolute, normalised paths).
+	 */
+	private Set<Path> watchedFileSet = new HashSet<Path>();
+	/**
+	 * The map files with a pending reload, and the time of the last change to each.
+	 * Only used by the watcher thread.
+	 */
+	private Map<Path,Long> pendingMap = new HashMap<Path,Long>();
+	/**
+	 * The number of change events seen for the watched files.
+	 */
+	private AtomicLong eventCount = new AtomicLong(0);
+	/**
+	 * The number of successful reloads.
+	 */
+	private AtomicLong reloadCount = new AtomicLong(0);
+	/**
+	 * The number of failed reloads (the previous snapshot was kept).
+	 */
+	private AtomicLong failureCount = new AtomicLong(0);
+	/**
+	 * The total reload latency (last change to publication) of the successful reloads, in milliseconds.
+	 */
+	private AtomicLong totalLatency = new AtomicLong(0);
+	/**
+	 * The latency (last change to publication) of the last successful reload, in milliseconds.
+	 */
+	private volatile long lastLatency = 0;
+	/**
+	 * The reason the last failed reload failed, or null.
+	 */
+	private volatile String lastFailure = null;
+
+	/**
+	 * Get the singleton instance of this class. Construct it if required.
+	 * @return The singleton instance of this class.
+	 */
+	public static synchronized PersistentMapWatcher getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new PersistentMapWatcher();
+		}
+		return instance;
+	}
+
+	/**
+	 * Internal constructor used by getInstance.
+	 */
+	private PersistentMapWatcher()
+	{
+		super();
+	}
+
+	/**
+	 * Start watching the map files in a background (daemon) thread, if the persistence.reload.use property
+	 * is not false. Calls while the watcher is running are ignored.
+	 * @see #run
+	 * @see #watchedFileSet
+	 * @see org.estar.node_agent2.configuration.NodeAgentProperties#USERALIAS_MAP_LOCATION
+	 * @see org.estar.node_agent2.configuration.NodeAgentProperties#PROJECTALIAS_MAP_LOCATION
+	 * @see org.estar.node_agent2.configuration.NodeAgentProperties#PASSWORD_MAP_LOCATION
+	 * @see org.estar.node_agent2.configuration.NodeAgentProperties#VALIDATION_POLICY_MAP_LOCATION
+	 */
+	public synchronized void start()
+	{
+		NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
+		Set<Path> directorySet = new HashSet<Path>();
+		Thread thread = null;
+
+		if (running)
+			return;
+		if (nodeAgentProperties != null)
+		{
+			if (nodeAgentProperties.getBooleanProperty(NodeAgentProperties.PERSISTENCE_RELOAD_USE, true) == false)
+			{
+				traceLogger.log(1, PersistentMapWatcher.class.getName(), "... map file reloading disabled.");
+				return;
+			}
+			try
+			{
+				debounce = nodeAgentProperties.getLongProperty(NodeAgentProperties.PERSISTENCE_RELOAD_DEBOUNCE,
+									       DEFAULT_DEBOUNCE);
+			}
+			catch (NumberFormatException e)
+			{
+				errorLogger.log(1, PersistentMapWatcher.class.getName(), "Illegal reload debounce, using default:"+e);
+			}
+		}
+		watchedFileSet.clear();
+		watchedFileSet.add(Paths.get(NodeAgentProperties.USERALIAS_MAP_LOCATION).toAbsolutePath().normalize());
+		watchedFileSet.add(Paths.get(NodeAgentProperties.PROJECTALIAS_MAP_LOCATION).toAbsolutePath().normalize());
+		watchedFileSet.add(Paths.get(NodeAgentProperties.PASSWORD_MAP_LOCATION).toAbsolutePath().normalize());
+		watchedFileSet.add(Paths.get(NodeAgentProperties.VALIDATION_POLICY_MAP_LOCATION).toAbsolutePath().normalize());
+		try
+		{
+			watchService = FileSystems.getDefault().newWatchService();
+			for (Path file : watchedFileSet)
+				directorySet.add(file.getParent());
+			// files are often replaced (written elsewhere and renamed into place), so creates are watched too
+			for (Path directory : directorySet)
+			{
+				directory.register(watchService,StandardWatchEventKinds.ENTRY_CREATE,
+						   StandardWatchEventKinds.ENTRY_MODIFY);
+			}
+		}
+		catch (IOException e)
+		{
+			errorLogger.log(1, PersistentMapWatcher.class.getName(), "Failed to watch the map files, "+
+					"they will not be reloaded:"+e);
+			stop();
+			return;
+		}
+		traceLogger.log(1, PersistentMapWatcher.class.getName(), "... watching "+watchedFileSet+
+				" (debounce "+debounce+" ms).");
+		running = true;
+		thread = new Thread(this,"PersistentMapWatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop watching the map files. The watcher thread exits.
+	 * @see #watchService
+	 */
+	public synchronized void stop()
+	{
+		running = false;
+		if (watchService != null)
+		{
+			try
+			{
+				watchService.close();
+			}
+			catch (IOException e)
+			{
+				errorLogger.log(1, PersistentMapWatcher.class.getName(), "Failed to close watch service:"+e);
+			}
+			watchService = null;
+		}
+	}
+
+	/**
+	 * The watcher thread. Waits for change events on the watched files, recording the time of the last change
+	 * to each. Files that have not changed for the debounce time are reloaded.
+	 * @see #pendingMap
+	 * @see #debounce
+	 * @see #reload
+	 */
+	public void run()
+	{
+		WatchService service = watchService;
+		WatchKey watchKey = null;
+
+		while (running)
+		{
+			try
+			{
+				watchKey = service.poll(pendingMap.isEmpty() ? IDLE_POLL_TIME : debounce,TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				watchKey = null;
+			}
+			catch (ClosedWatchServiceException e)
+			{
+				break;
+			}
+			if (watchKey != null)
+			{
+				Path directory = (Path)watchKey.watchable();
+
+				for (WatchEvent<?> event : watchKey.pollEvents())
+				{
+					Path file = null;
+
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+					{
+						// we may have missed events, so reload everything once it settles
+						for (Path watchedFile : watchedFileSet)
+							pendingMap.put(watchedFile,System.currentTimeMillis());
+						continue;
+					}
+					file = directory.resolve((Path)event.context()).toAbsolutePath().normalize();
+					if (watchedFileSet.contains(file))
+					{
+						eventCount.incrementAndGet();
+						pendingMap.put(file,System.currentTimeMillis());
+					}
+				}
+				watchKey.reset();
+			}
+			// reload the files that have settled
+			Iterator<Map.Entry<Path,Long>> iterator = pendingMap.entrySet().iterator();
+			while (iterator.hasNext())
+			{
+				Map.Entry<Path,Long> entry = iterator.next();
+
+				if ((System.currentTimeMillis()-entry.getValue().longValue()) >= debounce)
+				{
+					iterator.remove();
+					reload(entry.getKey(),entry.getValue().longValue());
+				}
+			}
+		}
+		traceLogger.log(1, PersistentMapWatcher.class.getName(), "... stopped watching the map files.");
+	}
+
+	/**
+	 * Reload the specified map file. It is loaded into a new PersistentMap, validated, and if valid published
+	 * using the PersistenceController setter for that store. If loading or validation fails, the failure is logged
+	 * and counted, and the current snapshot is kept.
+	 * @param file The map file.
+	 * @param changeTime The time of the last change to the file, used to measure the reload latency.
+	 * @see #validate
+	 * @see org.estar.node_agent2.storage.PersistenceController#setUserAliasMapStore
+	 * @see org.estar.node_agent2.storage.PersistenceController#setProjectAliasMapStore
+	 * @see org.estar.node_agent2.storage.PersistenceController#setPasswordMapStore
+	 * @see org.estar.node_agent2.storage.PersistenceController#setValidationPolicyMapStore
+	 */
+	protected void reload(Path file,long changeTime)
+	{
+		PersistenceController persistenceController = PersistenceController.getInstance();
+		PersistentMap persistentMap = null;
+		long latency;
+
+		traceLogger.log(5, PersistentMapWatcher.class.getName(), "reload:Reloading "+file+".");
+		try
+		{
+			persistentMap = new PersistentMap(file.toString());
+			if (file.equals(Paths.get(NodeAgentProperties.USERALIAS_MAP_LOCATION).toAbsolutePath().normalize()))
+			{
+				validate(file,persistentMap,persistenceController.getUserAliasMapStore());
+				persistenceController.setUserAliasMapStore(persistentMap);
+			}
+			else if (file.equals(Paths.get(NodeAgentProperties.PROJECTALIAS_MAP_LOCATION).toAbsolutePath().normalize()))
+			{
+				validate(file,persistentMap,persistenceController.getProjectAliasMapStore());
+				persistenceController.setProjectAliasMapStore(persistentMap);
+			}
+			else if (file.equals(Paths.get(NodeAgentProperties.PASSWORD_MAP_LOCATION).toAbsolutePath().normalize()))
+			{
+				validate(file,persistentMap,persistenceController.getPasswordMapStore());
+				validatePasswords(file,persistentMap);
+				persistenceController.setPasswordMapStore(persistentMap);
+			}
+			else
+			{
+				validate(file,persistentMap,null);
+				validateValidationPolicies(file,persistentMap);
+				persistenceController.setValidationPolicyMapStore(persistentMap);
+			}
+		}
+		catch (Exception e)
+		{
+			failureCount.incrementAndGet();
+			lastFailure = file+":"+e.getMessage();
+			errorLogger.log(1, PersistentMapWatcher.class.getName(), "reload:Failed to reload "+file+
+					", keeping the previous snapshot:"+e);
+			return;
+		}
+		latency = System.currentTimeMillis()-changeTime;
+		lastLatency = latency;
+		totalLatency.addAndGet(latency);
+		reloadCount.incrementAndGet();
+		traceLogger.log(1, PersistentMapWatcher.class.getName(), "reload:Reloaded "+file+" ("+persistentMap.size()+
+				" entries) "+latency+" ms after it changed.");
+	}
+
+	/**
+	 * Validate a reloaded map. Every key and value must be non-blank. If the current snapshot has entries,
+	 * the reloaded map must not be empty (an empty file is almost certainly a truncated or half-written one).
+	 * @param file The map file, used in error messages.
+	 * @param persistentMap The reloaded map.
+	 * @param currentMap The current snapshot, or null if an empty reload is acceptable.
+	 * @exception Exception Thrown if the map is not valid.
+	 */
+	protected void validate(Path file,PersistentMap persistentMap,PersistentMap currentMap) throws Exception
+	{
+		if (persistentMap.isEmpty() && (currentMap != null) && (currentMap.isEmpty() == false))
+			throw new Exception(file+" is empty, but the current map has "+currentMap.size()+" entries.");
+		for (String key : persistentMap.stringPropertyNames())
+		{
+			String value = persistentMap.getProperty(key);
+
+			if (key.trim().length() == 0)
+				throw new Exception(file+" contains a blank key.");
+			if ((value == null) || (value.trim().length() == 0))
+				throw new Exception(file+" has a blank value for key "+key+".");
+		}
+	}
+
+	/**
+	 * Validate a reloaded password map. Every hashed password must be well-formed.
+	 * @param file The map file, used in error messages.
+	 * @param persistentMap The reloaded map.
+	 * @exception Exception Thrown if a hashed password is not well-formed.
+	 * @see org.estar.node_agent2.util.PasswordHash#checkWellFormed
+	 */
+	protected void validatePasswords(Path file,PersistentMap persistentMap) throws Exception
+	{
+		for (String key : persistentMap.stringPropertyNames())
+		{
+			try
+			{
+				PasswordHash.checkWellFormed(persistentMap.getProperty(key));
+			}
+			catch (IllegalArgumentException e)
+			{
+				throw new Exception(file+" has an illegal password hash for "+key+":"+e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Validate a reloaded validation policy map. Every value must be a recognised validation policy.
+	 * @param file The map file, used in error messages.
+	 * @param persistentMap The reloaded map.
+	 * @exception Exception Thrown if a policy is not recognised.
+	 * @see org.estar.node_agent2.util.RTMLValidationPolicy#POLICY_FULL
+	 * @see org.estar.node_agent2.util.RTMLValidationPolicy#POLICY_WELL_FORMED
+	 * @see org.estar.node_agent2.util.RTMLValidationPolicy#POLICY_SAMPLED
+	 */
+	protected void validateValidationPolicies(Path file,PersistentMap persistentMap) throws Exception
+	{
+		for (String key : persistentMap.stringPropertyNames())
+		{
+			String policy = persistentMap.getProperty(key).trim();
+
+			if (policy.equals(RTMLValidationPolicy.POLICY_FULL) ||
+			    policy.equals(RTMLValidationPolicy.POLICY_WELL_FORMED) ||
+			    policy.equals(RTMLValidationPolicy.POLICY_SAMPLED))
+				continue;
+			if (policy.startsWith(RTMLValidationPolicy.POLICY_SAMPLED+":"))
+			{
+				try
+				{
+					if (Integer.parseInt(policy.substring(RTMLValidationPolicy.POLICY_SAMPLED.length()+1).trim()) > 0)
+						continue;
+				}
+				catch (NumberFormatException e)
+				{
+				}
+			}
+			throw new Exception(file+" has an unknown validation policy "+policy+" for "+key+".");
+		}
+	}
+
+	/**
+	 * Return a string describing the reload statistics.
+	 */
+	public String toString()
+	{
+		long count = reloadCount.get();
+
+		return this.getClass().getName()+"[running="+running+",events="+eventCount.get()+",reloads="+count+
+			",failures="+failureCount.get()+",lastLatency="+lastLatency+" ms,meanLatency="+
+			((count > 0) ? (totalLatency.get()/count) : 0)+" ms,lastFailure="+lastFailure+"]";
+	}
+}
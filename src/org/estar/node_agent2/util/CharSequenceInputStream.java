@@ -0,0 +1,125 @@
+package org.estar.node_agent2.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * An input stream reading part of a character sequence (e.g. a received RTML document String) encoded in the
+ * specified character set. The characters are encoded a buffer at a time as the stream is read, so the encoded
+ * document is never held in memory as a whole, and the sequence is not copied.
+ * Characters that cannot be encoded are replaced by the character set's replacement bytes.
+ * @author cjm
+ * @see org.estar.node_agent2.util.RTMLEntityCatalog#openDocument
+ */
+public class CharSequenceInputStream extends InputStream
+{
+	/**
+	 * The size of the encoded byte buffer.
+	 */
+	public static final int BUFFER_SIZE = 8192;
+	/**
+	 * The characters still to be encoded.
+	 */
+	private CharBuffer charBuffer = null;
+	/**
+	 * The encoded bytes not yet read.
+	 */
+	private ByteBuffer byteBuffer = null;
+	/**
+	 * The encoder.
+	 */
+	private CharsetEncoder encoder = null;
+	/**
+	 * Whether all the characters have been encoded.
+	 */
+	private boolean encoded = false;
+
+	/**
+	 * Constructor.
+	 * @param charSequence The character sequence.
+	 * @param start The index of the first character to read.
+	 * @param end The index after the last character to read.
+	 * @param charset The character set to encode the characters in.
+	 * @exception IndexOutOfBoundsException Thrown if start or end are illegal.
+	 */
+	public CharSequenceInputStream(CharSequence charSequence,int start,int end,Charset charset)
+		throws IndexOutOfBoundsException
+	{
+		super();
+		charBuffer = CharBuffer.wrap(charSequence,start,end);
+		encoder = charset.newEncoder();
+		encoder.onMalformedInput(CodingErrorAction.REPLACE);
+		encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		byteBuffer.flip();
+	}
+
+	/**
+	 * Read one byte.
+	 * @return The byte (0 to 255), or -1 at the end of the sequence.
+	 */
+	public int read()
+	{
+		if (fill() == false)
+			return -1;
+		return byteBuffer.get() & 0xff;
+	}
+
+	/**
+	 * Read up to len bytes.
+	 * @param bytes The array to read the bytes into.
+	 * @param offset The index in bytes of the first byte read.
+	 * @param len The maximum number of bytes to read.
+	 * @return The number of bytes read, or -1 at the end of the sequence.
+	 */
+	public int read(byte bytes[],int offset,int len)
+	{
+		int count;
+
+		if (len == 0)
+			return 0;
+		if (fill() == false)
+			return -1;
+		count = Math.min(len,byteBuffer.remaining());
+		byteBuffer.get(bytes,offset,count);
+		return count;
+	}
+
+	/**
+	 * Get the number of bytes that can be read without encoding more characters.
+	 * @return The number of encoded bytes not yet read.
+	 */
+	public int available()
+	{
+		return byteBuffer.remaining();
+	}
+
+	/**
+	 * Encode the next buffer of characters, if all the encoded bytes have been read.
+	 * @return true if there are bytes to read, false at the end of the sequence.
+	 */
+	protected boolean fill()
+	{
+		CoderResult result = null;
+
+		while (byteBuffer.hasRemaining() == false)
+		{
+			if (encoded)
+				return false;
+			byteBuffer.clear();
+			result = encoder.encode(charBuffer,byteBuffer,true);
+			if (result.isUnderflow())
+			{
+				encoder.flush(byteBuffer);
+				encoded = true;
+			}
+			byteBuffer.flip();
+		}
+		return true;
+	}
+}
@@ -0,0 +1,533 @@
+package org.estar.node_agent2.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.configuration.NodeAgentProperties;
+import org.estar.node_agent2.storage.PersistenceController;
+
+/**
+ * Checks the usernames and passwords supplied in request headers against the password map store.
+ * This is shared by the web-service endpoints, the plain HTTP endpoint, and the AuthenticationFilter,
+ * which authenticates SOAP requests before their body is read.
+ * <p>
+ * Passwords in the store may be slow salted hashes (PasswordHash), which take milliseconds to verify. So
+ * recently verified credentials are cached: a digest of the (username, password, stored password) is kept in a
+ * bounded (least recently used) cache until it expires, and later requests with the same credentials are accepted
+ * without re-hashing. As the stored password is part of the digest, changing a user's password (in userpassword.map)
+ * invalidates their cached credentials.
+ * <p>
+ * Failed verifications are recorded per username, not per password, as a brute-force attacker sends a different
+ * password each time. After a failure the username is locked out for the failure backoff time, doubling with each
+ * consecutive failure up to the maximum backoff, and requests for it are rejected during the lockout without hashing
+ * (unless their credentials are in the verified cache, so clients that already authenticated are not locked out).
+ * So guessing a user's password costs the Node Agent at most one hash per lockout, rather than one per guess.
+ * A successful verification clears the username's failures, and they are forgotten once the username has not
+ * failed for the maximum backoff time after it's lockout ended.
+ * <p>
+ * Clients can instead present a session token (issued by the login web-service method), which is checked without
+ * looking up the password store (checkCredentials).
+ * @author cjm
+ * @see org.estar.node_agent2.util.PasswordHash
+ * @see org.estar.node_agent2.util.SessionToken
+ * @see org.estar.node_agent2.storage.PersistenceController#getAuthorizationContext
+ * @see org.estar.node_agent2.filter.AuthenticationFilter
+ */
+public class NodeAgentAuthenticator
+{
+	/**
+	 * The singleton instance of this class.
+	 */
+	private static NodeAgentAuthenticator instance = null;
+	/**
+	 * The trace logger.
+	 */
+	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+	/**
+	 * The error logger.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+	/**
+	 * The default maximum number of entries in each credential cache.
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 1000;
+	/**
+	 * The default time (in milliseconds) verified credentials are cached for.
+	 */
+	public static final long DEFAULT_CACHE_TTL = 600000;
+	/**
+	 * The default lockout (in milliseconds) after a username's first failed verification.
+	 */
+	public static final long DEFAULT_FAILURE_BACKOFF = 1000;
+	/**
+	 * The default maximum lockout (in milliseconds) after a username's failed verifications.
+	 */
+	public static final long DEFAULT_FAILURE_BACKOFF_MAX = 60000;
+	/**
+	 * The maximum number of entries in the verified cache, and of usernames with failures recorded.
+	 */
+	private int cacheSize = DEFAULT_CACHE_SIZE;
+	/**
+	 * The time (in milliseconds) verified credentials are cached for. 0 disables the cache.
+	 */
+	private long cacheTTL = DEFAULT_CACHE_TTL;
+	/**
+	 * The lockout (in milliseconds) after a username's first failed verification, doubled for each further
+	 * consecutive failure.
+	 */
+	private long failureBackoff = DEFAULT_FAILURE_BACKOFF;
+	/**
+	 * The maximum lockout (in milliseconds) after a username's failed verifications. 0 disables the lockout.
+	 */
+	private long failureBackoffMax = DEFAULT_FAILURE_BACKOFF_MAX;
+	/**
+	 * The cache of verified credentials, from credential digest to expiry time (milliseconds since the epoch).
+	 * Least recently used order, bounded to cacheSize entries. Synchronized on itself.
+	 * @see #getCredentialDigest
+	 */
+	private Map<String,Long> verifiedCache = null;
+	/**
+	 * The failed verifications of each username, from username to it's failure record.
+	 * Least recently used order, bounded to cacheSize entries. Synchronized on itself.
+	 * @see #recordFailure
+	 */
+	private Map<String,FailureRecord> failureMap = null;
+	/**
+	 * The number of credentials accepted from the verified cache.
+	 */
+	private AtomicLong verifiedHitCount = new AtomicLong(0);
+	/**
+	 * The number of credentials rejected without hashing, as their username was locked out.
+	 */
+	private AtomicLong lockoutRejectCount = new AtomicLong(0);
+	/**
+	 * The number of (possibly slow) password verifications.
+	 */
+	private AtomicLong verifyCount = new AtomicLong(0);
+	/**
+	 * The total time taken by the password verifications, in nanoseconds.
+	 */
+	private AtomicLong verifyTime = new AtomicLong(0);
+	/**
+	 * The number of verifications against plain-text stored passwords.
+	 */
+	private AtomicLong plainTextCount = new AtomicLong(0);
+
+	/**
+	 * The consecutive failed verifications of one username. Synchronized on the failureMap.
+	 */
+	protected static class FailureRecord
+	{
+		/**
+		 * The number of consecutive failed verifications.
+		 */
+		int failureCount = 0;
+		/**
+		 * The time the username's lockout ends, in milliseconds since the epoch.
+		 */
+		long lockedUntil = 0;
+	}
+
+	/**
+	 * Get the singleton instance of this class. Construct it if required.
+	 * @return The singleton instance of this class.
+	 */
+	public static synchronized NodeAgentAuthenticator getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new NodeAgentAuthenticator();
+		}
+		return instance;
+	}
+
+	/**
+	 * Internal constructor used by getInstance. Retrieves the cache size, expiry time and failure backoff times from
+	 * NodeAgentProperties, and creates the verified cache and failure map.
+	 * @see #cacheSize
+	 * @see #cacheTTL
+	 * @see #failureBackoff
+	 * @see #failureBackoffMax
+	 * @see #createCache
+	 */
+	private NodeAgentAuthenticator()
+	{
+		super();
+		NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
+
+		if (nodeAgentProperties != null)
+		{
+			try
+			{
+				cacheSize = nodeAgentProperties.getIntProperty(NodeAgentProperties.AUTHENTICATION_CACHE_SIZE,
+									       DEFAULT_CACHE_SIZE);
+				cacheTTL = nodeAgentProperties.getLongProperty(NodeAgentProperties.AUTHENTICATION_CACHE_TTL,
+									       DEFAULT_CACHE_TTL);
+				failureBackoff = nodeAgentProperties.getLongProperty(
+							NodeAgentProperties.AUTHENTICATION_FAILURE_BACKOFF,DEFAULT_FAILURE_BACKOFF);
+				failureBackoffMax = nodeAgentProperties.getLongProperty(
+							NodeAgentProperties.AUTHENTICATION_FAILURE_BACKOFF_MAX,DEFAULT_FAILURE_BACKOFF_MAX);
+			}
+			catch (NumberFormatException e)
+			{
+				errorLogger.log(1, NodeAgentAuthenticator.class.getName(),
+						"Illegal authentication cache configuration, using defaults:"+e);
+			}
+		}
+		if (cacheSize < 1)
+			cacheSize = 1;
+		if (failureBackoff < 1)
+			failureBackoff = 1;
+		verifiedCache = createCache(cacheSize);
+		failureMap = createCache(cacheSize);
+	}
+
+	/**
+	 * Create a cache, in least recently used order, that removes it's eldest entry when it has
+	 * more than the specified number of entries.
+	 * @param maximumSize The maximum number of entries.
+	 * @return The cache.
+	 */
+	protected static <V> Map<String,V> createCache(final int maximumSize)
+	{
+		return new LinkedHashMap<String,V>(16,0.75f,true)
+		{
+			protected boolean removeEldestEntry(Map.Entry<String,V> eldest)
+			{
+				return size() > maximumSize;
+			}
+		};
+	}
+
+	/**
+	 * Check the credentials extracted from the request headers. If a session token was supplied, it is checked
+	 * (an HMAC check, and a check the user is still in the password store, without re-hashing the password),
+	 * otherwise the username and password are
+	 * checked. The request's timestamp and nonce are then checked by the ReplayGuard, so only authenticated
+	 * requests are added to it's filters.
+	 * @param headerUsername The username from the request header, or null if none was supplied.
+	 *        If a token is supplied, the username is optional, but must match the token's username if present.
+	 * @param headerPassword The password from the request header, or null if none was supplied.
+	 * @param headerToken The session token from the request header, or null if none was supplied.
+	 * @param headerTimestamp The request timestamp from the request header, or null if none was supplied.
+	 * @param headerNonce The request nonce from the request header, or null if none was supplied.
+	 * @return The username.
+	 * @exception RuntimeException Thrown if the token is not legal or has expired, it was issued to another user,
+	 *            the username is not known or the password is incorrect, or the request is a replay.
+	 * @see org.estar.node_agent2.util.SessionToken#checkToken
+	 * @see org.estar.node_agent2.util.ReplayGuard#check
+	 * @see #checkUsernamePassword
+	 */
+	public String checkCredentials(String headerUsername,String headerPassword,String headerToken,
+				       String headerTimestamp,String headerNonce) throws RuntimeException
+	{
+		String username = null;
+
+		if (headerToken == null)
+			username = checkUsernamePassword(headerUsername,headerPassword);
+		else
+			username = checkToken(headerUsername,headerToken);
+		ReplayGuard.getInstance().check(username,headerTimestamp,headerNonce);
+		return username;
+	}
+
+	/**
+	 * Check a session token, extracted from the request headers.
+	 * @param headerUsername The username from the request header, or null if none was supplied.
+	 *        If present, it must match the token's username.
+	 * @param headerToken The session token from the request header.
+	 * @return The username the token was issued to.
+	 * @exception RuntimeException Thrown if the token is not legal or has expired, it was issued to another user,
+	 *            or the user is no longer in the password store.
+	 * @see org.estar.node_agent2.util.SessionToken#checkToken
+	 * @see org.estar.node_agent2.storage.PersistenceController#getAuthorizationContext
+	 */
+	protected String checkToken(String headerUsername,String headerToken) throws RuntimeException
+	{
+		String tokenUsername = null;
+
+		tokenUsername = SessionToken.getInstance().checkToken(headerToken);
+		if ((headerUsername != null) && (headerUsername.equals(tokenUsername) == false))
+		{
+			errorLogger.log(1, this.getClass().getName(),"checkToken:Token for username "+tokenUsername+
+					" presented by username:"+headerUsername);
+			throw new RuntimeException(this.getClass().getName()+
+						   ":checkToken:Token was not issued to User:"+headerUsername);
+		}
+		// a user removed from the password store loses access at once, not when it's token expires
+		if (PersistenceController.getInstance().getAuthorizationContext(tokenUsername).getStoredPassword() == null)
+		{
+			errorLogger.log(1, this.getClass().getName(),"checkToken:Token for username "+tokenUsername+
+					" presented, but username is not in persistent store.");
+			throw new RuntimeException(this.getClass().getName()+
+						   ":checkToken:Failed to find username:"+tokenUsername+" in persistent store.");
+		}
+		traceLogger.log(2, this.getClass().getName(),"checkToken:Token for username "+
+				tokenUsername+" is correct.");
+		return tokenUsername;
+	}
+
+	/**
+	 * Check the specified Username and Password (extracted from the request headers) are legal.
+	 * @param headerUsername The username from the request header, or null if none was supplied.
+	 * @param headerPassword The password from the request header, or null if none was supplied.
+	 * @return The username.
+	 * @exception RuntimeException Thrown if the username is not known, or the password is incorrect.
+	 */
+	public String checkUsernamePassword(String headerUsername,String headerPassword) throws RuntimeException
+	{
+		String savedPassword = null;
+
+		if (headerUsername == null)
+		{
+			errorLogger.log(1, this.getClass().getName(),"checkUsernamePassword:Failed to find username in headers.");
+			throw new RuntimeException(this.getClass().getName()+
+						   ":checkUsernamePassword:Failed to find username in headers.");
+		}
+		if (headerPassword == null)
+		{
+			errorLogger.log(1, this.getClass().getName(),
+					"checkUsernamePassword:Failed to find password in headers for username:"+headerUsername);
+			throw new RuntimeException(this.getClass().getName()+
+				   ":checkUsernamePassword:Failed to find password in headers for username:"+headerUsername);
+		}
+		// get password for the supplied username from it's authorization context (one lookup)
+		savedPassword = PersistenceController.getInstance().getAuthorizationContext(headerUsername).getStoredPassword();
+		if (savedPassword == null)
+		{
+			errorLogger.log(1, this.getClass().getName(),
+					"checkUsernamePassword:Failed to find password for username:"+headerUsername+
+					" in persistent store.");
+			throw new RuntimeException(this.getClass().getName()+
+						   ":checkUsernamePassword:Failed to find password for username:"+headerUsername+
+						   " in persistent store.");
+		}
+		if (verifyPassword(headerUsername,headerPassword,savedPassword))
+		{
+			traceLogger.log(2, this.getClass().getName(),"checkUsernamePassword:Password for username "+
+					headerUsername+" is correct.");
+		}
+		else
+		{
+			traceLogger.log(1, this.getClass().getName(),"checkUsernamePassword:Password for username "+
+					headerUsername+" is NOT correct.");
+			errorLogger.log(1, this.getClass().getName(),"checkUsernamePassword:Password for username "+
+					headerUsername+" is NOT correct.");
+			throw new RuntimeException(this.getClass().getName()+
+						   ":checkUsernamePassword:Incorrect Password for User:"+headerUsername);
+		}
+		return headerUsername;
+	}
+
+	/**
+	 * Verify the password supplied by a client against the stored password, using the verified cache and the
+	 * username's failure record.
+	 * <ul>
+	 * <li>If the credentials are in the (unexpired) verified cache, they are accepted.
+	 * <li>If the username is locked out after failed verifications, they are rejected without hashing.
+	 * <li>Otherwise the password is verified (PasswordHash.verify, slow for hashed stored passwords). If correct,
+	 *     the credentials are added to the verified cache and the username's failures cleared, otherwise the
+	 *     failure is recorded, locking the username out.
+	 * </ul>
+	 * @param username The username.
+	 * @param password The password supplied by the client.
+	 * @param savedPassword The stored password (hashed or plain-text) for the username.
+	 * @return true if the password is correct.
+	 * @exception RuntimeException Thrown if the stored password is not a well-formed hash,
+	 *            or the hash algorithm is not available.
+	 * @see #getCredentialDigest
+	 * @see #verifiedCache
+	 * @see #isLockedOut
+	 * @see #recordFailure
+	 * @see org.estar.node_agent2.util.PasswordHash#verify
+	 */
+	protected boolean verifyPassword(String username,String password,String savedPassword) throws RuntimeException
+	{
+		String credentialDigest = null;
+		boolean verified;
+		long startTime;
+
+		credentialDigest = getCredentialDigest(username,password,savedPassword);
+		if ((cacheTTL > 0) && isCached(verifiedCache,credentialDigest))
+		{
+			verifiedHitCount.incrementAndGet();
+			return true;
+		}
+		if ((failureBackoffMax > 0) && isLockedOut(username))
+		{
+			lockoutRejectCount.incrementAndGet();
+			return false;
+		}
+		if (PasswordHash.isHash(savedPassword) == false)
+		{
+			plainTextCount.incrementAndGet();
+			traceLogger.log(5, this.getClass().getName(),"verifyPassword:Password for username "+
+					username+" is stored in plain-text.");
+		}
+		startTime = System.nanoTime();
+		try
+		{
+			verified = PasswordHash.verify(password,savedPassword);
+		}
+		catch (Exception e)
+		{
+			errorLogger.log(1, this.getClass().getName(),"verifyPassword:Stored password for username "+
+					username+" is not a legal password hash:"+e);
+			throw new RuntimeException(this.getClass().getName()+
+					   ":verifyPassword:Stored password for username "+username+" is not a legal password hash.",e);
+		}
+		verifyCount.incrementAndGet();
+		verifyTime.addAndGet(System.nanoTime()-startTime);
+		if (verified)
+		{
+			if (cacheTTL > 0)
+			{
+				synchronized (verifiedCache)
+				{
+					verifiedCache.put(credentialDigest,System.currentTimeMillis()+cacheTTL);
+				}
+			}
+			synchronized (failureMap)
+			{
+				failureMap.remove(username);
+			}
+		}
+		else if (failureBackoffMax > 0)
+			recordFailure(username);
+		return verified;
+	}
+
+	/**
+	 * Is the specified username locked out, after failed verifications?
+	 * @param username The username.
+	 * @return true if the username's lockout has not yet ended.
+	 * @see #failureMap
+	 */
+	protected boolean isLockedOut(String username)
+	{
+		FailureRecord failureRecord = null;
+
+		synchronized (failureMap)
+		{
+			failureRecord = failureMap.get(username);
+			return (failureRecord != null) && (System.currentTimeMillis() < failureRecord.lockedUntil);
+		}
+	}
+
+	/**
+	 * Record a failed verification of the specified username, and lock it out for the failure backoff time,
+	 * doubled for each previous consecutive failure, up to the maximum backoff. Failures are counted afresh if the
+	 * username has not failed for the maximum backoff time after it's last lockout ended.
+	 * @param username The username.
+	 * @see #failureBackoff
+	 * @see #failureBackoffMax
+	 */
+	protected void recordFailure(String username)
+	{
+		FailureRecord failureRecord = null;
+		long now = System.currentTimeMillis();
+		long lockout;
+
+		synchronized (failureMap)
+		{
+			failureRecord = failureMap.get(username);
+			if ((failureRecord == null) || (now > (failureRecord.lockedUntil+failureBackoffMax)))
+			{
+				failureRecord = new FailureRecord();
+				failureMap.put(username,failureRecord);
+			}
+			failureRecord.failureCount++;
+			lockout = Math.min(failureBackoffMax,failureBackoff<<Math.min(failureRecord.failureCount-1,30));
+			failureRecord.lockedUntil = now+lockout;
+		}
+		errorLogger.log(1, this.getClass().getName(),"recordFailure:Username "+username+" locked out for "+
+				lockout+" ms after "+failureRecord.failureCount+" failed verifications.");
+	}
+
+	/**
+	 * Is the specified credential digest in the specified cache, and not expired? Expired entries are removed.
+	 * @param cache The cache.
+	 * @param credentialDigest The credential digest.
+	 * @return true if the digest is cached and has not expired.
+	 */
+	protected boolean isCached(Map<String,Long> cache,String credentialDigest)
+	{
+		Long expiryTime = null;
+
+		synchronized (cache)
+		{
+			expiryTime = cache.get(credentialDigest);
+			if (expiryTime == null)
+				return false;
+			if (System.currentTimeMillis() > expiryTime.longValue())
+			{
+				cache.remove(credentialDigest);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the digest used as the credential cache key. This is a (fast) SHA-256 digest of the username, the supplied
+	 * password and the stored password, so passwords are not kept in memory, and changing the stored password
+	 * means the cached entries no longer match.
+	 * @param username The username.
+	 * @param password The password supplied by the client.
+	 * @param savedPassword The stored password.
+	 * @return The digest, in hexadecimal.
+	 * @exception RuntimeException Thrown if SHA-256 is not available.
+	 */
+	protected String getCredentialDigest(String username,String password,String savedPassword) throws RuntimeException
+	{
+		MessageDigest messageDigest = null;
+		StringBuilder sb = null;
+
+		try
+		{
+			messageDigest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException(this.getClass().getName()+":getCredentialDigest:SHA-256 not available.",e);
+		}
+		messageDigest.update(username.getBytes(StandardCharsets.UTF_8));
+		messageDigest.update((byte)0);
+		messageDigest.update(password.getBytes(StandardCharsets.UTF_8));
+		messageDigest.update((byte)0);
+		messageDigest.update(savedPassword.getBytes(StandardCharsets.UTF_8));
+		sb = new StringBuilder();
+		for (byte b : messageDigest.digest())
+			sb.append(String.format("%02x",b));
+		return sb.toString();
+	}
+
+	/**
+	 * Return a string describing the credential cache statistics.
+	 */
+	public String toString()
+	{
+		long count = verifyCount.get();
+		int verifiedSize;
+		int failedSize;
+
+		synchronized (verifiedCache)
+		{
+			verifiedSize = verifiedCache.size();
+		}
+		synchronized (failureMap)
+		{
+			failedSize = failureMap.size();
+		}
+		return this.getClass().getName()+"[verified="+verifiedSize+",failedUsers="+failedSize+",verifiedHits="+
+			verifiedHitCount.get()+",lockoutRejects="+lockoutRejectCount.get()+",verifications="+count+
+			",meanVerificationTime="+((count > 0) ? (verifyTime.get()/count) : 0)+"ns,plainText="+
+			plainTextCount.get()+"]";
+	}
+}
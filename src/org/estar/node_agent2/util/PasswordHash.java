@@ -0,0 +1,208 @@
+package org.estar.node_agent2.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted, slow (PBKDF2) password hashes, as stored in the password map store (userpassword.map).
+ * A hashed entry has the form:
+ * <pre>
+ * PBKDF2$&lt;iterations&gt;$&lt;base64 salt&gt;$&lt;base64 hash&gt;
+ * </pre>
+ * Entries not starting with PBKDF2$ are plain-text passwords, which are still accepted (so the map can be
+ * converted a user at a time). The main method generates a hashed entry for a password.
+ * @author cjm
+ * @see org.estar.node_agent2.util.NodeAgentAuthenticator
+ */
+public class PasswordHash
+{
+	/**
+	 * The prefix of a hashed entry.
+	 */
+	public static final String PREFIX = "PBKDF2";
+	/**
+	 * The separator between the fields of a hashed entry.
+	 */
+	public static final String SEPARATOR = "$";
+	/**
+	 * The PBKDF2 algorithm used.
+	 */
+	public static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+	/**
+	 * The default number of PBKDF2 iterations used when creating a hash.
+	 */
+	public static final int DEFAULT_ITERATIONS = 65536;
+	/**
+	 * The length of the salt, in bytes.
+	 */
+	public static final int SALT_LENGTH = 16;
+	/**
+	 * The length of the hash, in bytes.
+	 */
+	public static final int HASH_LENGTH = 32;
+	/**
+	 * The random number generator used to create salts.
+	 */
+	private static SecureRandom secureRandom = new SecureRandom();
+
+	/**
+	 * Is the specified password map entry a hash (rather than a plain-text password)?
+	 * @param storedPassword The password map entry.
+	 * @return true if the entry starts with the PBKDF2$ prefix.
+	 * @see #PREFIX
+	 */
+	public static boolean isHash(String storedPassword)
+	{
+		return (storedPassword != null) && storedPassword.startsWith(PREFIX+SEPARATOR);
+	}
+
+	/**
+	 * Check the specified password map entry is either a plain-text password, or a well-formed hash.
+	 * @param storedPassword The password map entry.
+	 * @exception IllegalArgumentException Thrown if the entry is a hash, but is not well-formed.
+	 */
+	public static void checkWellFormed(String storedPassword) throws IllegalArgumentException
+	{
+		if (isHash(storedPassword))
+			parseIterations(storedPassword.split("\\"+SEPARATOR));
+	}
+
+	/**
+	 * Create a hashed password map entry for the specified password, with a new random salt.
+	 * @param password The password.
+	 * @param iterations The number of PBKDF2 iterations.
+	 * @return The hashed entry.
+	 * @exception GeneralSecurityException Thrown if the PBKDF2 algorithm is not available.
+	 * @see #pbkdf2
+	 */
+	public static String createHash(String password,int iterations) throws GeneralSecurityException
+	{
+		byte salt[] = new byte[SALT_LENGTH];
+		byte hash[] = null;
+
+		secureRandom.nextBytes(salt);
+		hash = pbkdf2(password,salt,iterations,HASH_LENGTH);
+		return PREFIX+SEPARATOR+iterations+SEPARATOR+Base64.getEncoder().encodeToString(salt)+SEPARATOR+
+			Base64.getEncoder().encodeToString(hash);
+	}
+
+	/**
+	 * Verify a password against a password map entry. Hashed entries are verified by re-hashing the password
+	 * with the entry's salt and iterations (slow). Plain-text entries are compared directly. Both comparisons
+	 * take the same time whether or not they match (MessageDigest.isEqual).
+	 * @param password The password supplied by the client.
+	 * @param storedPassword The password map entry.
+	 * @return true if the password matches.
+	 * @exception IllegalArgumentException Thrown if the entry is a hash, but is not well-formed.
+	 * @exception GeneralSecurityException Thrown if the PBKDF2 algorithm is not available.
+	 * @see #pbkdf2
+	 */
+	public static boolean verify(String password,String storedPassword) throws IllegalArgumentException,
+		GeneralSecurityException
+	{
+		String fields[] = null;
+		byte salt[] = null;
+		byte expectedHash[] = null;
+		int iterations;
+
+		if (isHash(storedPassword) == false)
+		{
+			return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8),
+						     storedPassword.getBytes(StandardCharsets.UTF_8));
+		}
+		fields = storedPassword.split("\\"+SEPARATOR);
+		iterations = parseIterations(fields);
+		salt = Base64.getDecoder().decode(fields[2]);
+		expectedHash = Base64.getDecoder().decode(fields[3]);
+		return MessageDigest.isEqual(pbkdf2(password,salt,iterations,expectedHash.length),expectedHash);
+	}
+
+	/**
+	 * Check the fields of a hashed entry, and return the number of iterations.
+	 * @param fields The entry, split at the separators.
+	 * @return The number of iterations.
+	 * @exception IllegalArgumentException Thrown if the entry is not well-formed.
+	 */
+	protected static int parseIterations(String fields[]) throws IllegalArgumentException
+	{
+		int iterations;
+
+		if (fields.length != 4)
+			throw new IllegalArgumentException("Password hash has "+fields.length+" fields, 4 expected.");
+		try
+		{
+			iterations = Integer.parseInt(fields[1]);
+			if (iterations < 1)
+				throw new IllegalArgumentException("Password hash has illegal iterations:"+iterations);
+			if ((Base64.getDecoder().decode(fields[2]).length == 0) ||
+			    (Base64.getDecoder().decode(fields[3]).length == 0))
+				throw new IllegalArgumentException("Password hash has an empty salt or hash.");
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Password hash has illegal iterations:"+e);
+		}
+		return iterations;
+	}
+
+	/**
+	 * Hash a password using PBKDF2.
+	 * @param password The password.
+	 * @param salt The salt.
+	 * @param iterations The number of iterations.
+	 * @param length The length of the hash, in bytes.
+	 * @return The hash.
+	 * @exception GeneralSecurityException Thrown if the PBKDF2 algorithm is not available.
+	 * @see #ALGORITHM
+	 */
+	protected static byte[] pbkdf2(String password,byte salt[],int iterations,int length) throws
+		GeneralSecurityException
+	{
+		PBEKeySpec keySpec = new PBEKeySpec(password.toCharArray(),salt,iterations,length*8);
+
+		try
+		{
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(keySpec).getEncoded();
+		}
+		finally
+		{
+			keySpec.clearPassword();
+		}
+	}
+
+	/**
+	 * Print a hashed password map entry for a password, to be pasted into userpassword.map:
+	 * <pre>
+	 * java org.estar.node_agent2.util.PasswordHash &lt;password&gt; [&lt;iterations&gt;]
+	 * </pre>
+	 * @param args The command line arguments.
+	 */
+	public static void main(String[] args)
+	{
+		int iterations = DEFAULT_ITERATIONS;
+
+		if ((args.length < 1) || (args.length > 2))
+		{
+			System.err.println("java org.estar.node_agent2.util.PasswordHash <password> [<iterations>]");
+			System.exit(1);
+		}
+		try
+		{
+			if (args.length == 2)
+				iterations = Integer.parseInt(args[1]);
+			System.out.println(createHash(args[0],iterations));
+		}
+		catch (Exception e)
+		{
+			System.err.println("PasswordHash failed:"+e);
+			System.exit(2);
+		}
+		System.exit(0);
+	}
+}
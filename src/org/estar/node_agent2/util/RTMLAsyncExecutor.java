@@ -0,0 +1,232 @@
+package org.estar.node_agent2.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.configuration.NodeAgentProperties;
+
+/**
+ * A singleton fixed size thread pool, used by the asynchronous endpoint (NodeAgentAsyncWebServiceImpl) to
+ * process documents (including the blocking TEA call) after the container's request thread has been released.
+ * The pool size (the rtml.async.parallelism property) caps the number of documents in flight through the
+ * asynchronous endpoint, independently of the container's connector thread count; further documents are queued
+ * until a thread is free. The queue is bounded (the rtml.async.queue.size property), and documents submitted when it
+ * is full are rejected with a RejectedExecutionException, so an overloaded node agent sheds load rather than
+ * queueing documents (and their payloads) without limit.
+ * The threads are daemon threads, so they do not stop the container shutting down.
+ * @author cjm
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_ASYNC_PARALLELISM
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_ASYNC_QUEUE_SIZE
+ */
+public class RTMLAsyncExecutor
+{
+	/**
+	 * The default parallelism, if the rtml.async.parallelism property is not set.
+	 */
+	public static final int DEFAULT_PARALLELISM = 32;
+	/**
+	 * The default queue size, if the rtml.async.queue.size property is not set.
+	 */
+	public static final int DEFAULT_QUEUE_SIZE = 256;
+	/**
+	 * The singleton instance of this class.
+	 */
+	private static RTMLAsyncExecutor instance = null;
+	/**
+	 * The trace logger.
+	 */
+	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+	/**
+	 * The error logger.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+	/**
+	 * The number of threads in the pool.
+	 */
+	private int parallelism = DEFAULT_PARALLELISM;
+	/**
+	 * The maximum number of tasks waiting for a thread.
+	 */
+	private int queueSize = DEFAULT_QUEUE_SIZE;
+	/**
+	 * The thread pool.
+	 */
+	private ThreadPoolExecutor executorService = null;
+	/**
+	 * The number of tasks submitted.
+	 */
+	private AtomicLong submitCount = new AtomicLong(0);
+	/**
+	 * The number of tasks rejected because the queue was full.
+	 */
+	private AtomicLong rejectCount = new AtomicLong(0);
+
+	/**
+	 * Get the singleton instance of this class. Construct it if required.
+	 * @return The singleton instance of this class.
+	 */
+	public static synchronized RTMLAsyncExecutor getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new RTMLAsyncExecutor();
+		}
+		return instance;
+	}
+
+	/**
+	 * Internal constructor used by getInstance. Retrieves the parallelism and queue size from NodeAgentProperties,
+	 * and creates the thread pool.
+	 * @see #parallelism
+	 * @see #queueSize
+	 * @see #executorService
+	 */
+	private RTMLAsyncExecutor()
+	{
+		NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
+
+		if (nodeAgentProperties != null)
+		{
+			try
+			{
+				parallelism = nodeAgentProperties.getIntProperty(NodeAgentProperties.RTML_ASYNC_PARALLELISM,
+										 DEFAULT_PARALLELISM);
+			}
+			catch (NumberFormatException e)
+			{
+				errorLogger.log(1, RTMLAsyncExecutor.class.getName(),
+						"Illegal async parallelism, using default:"+e);
+			}
+			try
+			{
+				queueSize = nodeAgentProperties.getIntProperty(NodeAgentProperties.RTML_ASYNC_QUEUE_SIZE,
+									       DEFAULT_QUEUE_SIZE);
+			}
+			catch (NumberFormatException e)
+			{
+				errorLogger.log(1, RTMLAsyncExecutor.class.getName(),
+						"Illegal async queue size, using default:"+e);
+			}
+		}
+		if (parallelism < 1)
+			parallelism = 1;
+		if (queueSize < 1)
+			queueSize = 1;
+		traceLogger.log(5, RTMLAsyncExecutor.class.getName(), "Creating async executor with parallelism "+
+				parallelism+" and queue size "+queueSize+".");
+		executorService = new ThreadPoolExecutor(parallelism,parallelism,0L,TimeUnit.MILLISECONDS,
+							 new ArrayBlockingQueue<Runnable>(queueSize),new ThreadFactory()
+		{
+			private AtomicInteger threadCount = new AtomicInteger(0);
+
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable,"RTMLAsyncExecutor-"+threadCount.incrementAndGet());
+
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Submit a task to the thread pool.
+	 * @param task The task.
+	 * @return A future, used to retrieve the task's result.
+	 * @exception RejectedExecutionException Thrown if the queue is full.
+	 * @see #rejected
+	 */
+	public <T> Future<T> submit(Callable<T> task) throws RejectedExecutionException
+	{
+		submitCount.incrementAndGet();
+		try
+		{
+			return executorService.submit(task);
+		}
+		catch (RejectedExecutionException e)
+		{
+			throw rejected(e);
+		}
+	}
+
+	/**
+	 * Submit a task, that returns no result, to the thread pool.
+	 * @param task The task.
+	 * @return A future, used to wait for the task to complete.
+	 * @exception RejectedExecutionException Thrown if the queue is full.
+	 * @see #rejected
+	 */
+	public Future<?> submit(Runnable task) throws RejectedExecutionException
+	{
+		submitCount.incrementAndGet();
+		try
+		{
+			return executorService.submit(task);
+		}
+		catch (RejectedExecutionException e)
+		{
+			throw rejected(e);
+		}
+	}
+
+	/**
+	 * Count and log a task rejected by the thread pool.
+	 * @param e The exception thrown by the thread pool.
+	 * @return A RejectedExecutionException with a message suitable for returning to the client.
+	 */
+	protected RejectedExecutionException rejected(RejectedExecutionException e)
+	{
+		rejectCount.incrementAndGet();
+		errorLogger.log(1, RTMLAsyncExecutor.class.getName(), "submit:Queue of "+queueSize+
+				" documents full, rejecting document:"+e);
+		return new RejectedExecutionException("Node agent busy: Asynchronous queue of "+queueSize+
+						      " documents full, try again later.",e);
+	}
+
+	/**
+	 * Get the number of threads in the pool.
+	 * @return The parallelism.
+	 */
+	public int getParallelism()
+	{
+		return parallelism;
+	}
+
+	/**
+	 * Get the maximum number of tasks waiting for a thread.
+	 * @return The queue size.
+	 */
+	public int getQueueSize()
+	{
+		return queueSize;
+	}
+
+	/**
+	 * Get the number of tasks rejected because the queue was full.
+	 * @return The number of rejected tasks.
+	 */
+	public long getRejectCount()
+	{
+		return rejectCount.get();
+	}
+
+	/**
+	 * Return a string describing the executor.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+"[parallelism="+parallelism+",queueSize="+queueSize+",queued="+
+			executorService.getQueue().size()+",active="+executorService.getActiveCount()+",submitted="+
+			submitCount.get()+",rejected="+rejectCount.get()+"]";
+	}
+}
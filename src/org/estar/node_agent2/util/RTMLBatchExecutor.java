@@ -0,0 +1,136 @@
+package org.estar.node_agent2.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.configuration.NodeAgentProperties;
+
+/**
+ * A singleton fixed size thread pool, shared by all handle_rtml_batch calls, used to process the documents in
+ * a batch in parallel. The pool size (the rtml.batch.parallelism property) caps the number of batch documents
+ * being processed at once across all batches; further documents are queued until a thread is free.
+ * The threads are daemon threads, so they do not stop the container shutting down.
+ * @author cjm
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_BATCH_PARALLELISM
+ */
+public class RTMLBatchExecutor
+{
+	/**
+	 * The default parallelism, if the rtml.batch.parallelism property is not set.
+	 */
+	public static final int DEFAULT_PARALLELISM = 4;
+	/**
+	 * The singleton instance of this class.
+	 */
+	private static RTMLBatchExecutor instance = null;
+	/**
+	 * The trace logger.
+	 */
+	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+	/**
+	 * The error logger.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+	/**
+	 * The number of threads in the pool.
+	 */
+	private int parallelism = DEFAULT_PARALLELISM;
+	/**
+	 * The thread pool.
+	 */
+	private ExecutorService executorService = null;
+	/**
+	 * The number of tasks submitted.
+	 */
+	private AtomicLong submitCount = new AtomicLong(0);
+
+	/**
+	 * Get the singleton instance of this class. Construct it if required.
+	 * @return The singleton instance of this class.
+	 */
+	public static synchronized RTMLBatchExecutor getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new RTMLBatchExecutor();
+		}
+		return instance;
+	}
+
+	/**
+	 * Internal constructor used by getInstance. Retrieves the parallelism from NodeAgentProperties,
+	 * and creates the thread pool.
+	 * @see #parallelism
+	 * @see #executorService
+	 */
+	private RTMLBatchExecutor()
+	{
+		NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
+
+		if (nodeAgentProperties != null)
+		{
+			try
+			{
+				parallelism = nodeAgentProperties.getIntProperty(NodeAgentProperties.RTML_BATCH_PARALLELISM,
+										 DEFAULT_PARALLELISM);
+			}
+			catch (NumberFormatException e)
+			{
+				errorLogger.log(1, RTMLBatchExecutor.class.getName(),
+						"Illegal batch parallelism, using default:"+e);
+			}
+		}
+		if (parallelism < 1)
+			parallelism = 1;
+		traceLogger.log(5, RTMLBatchExecutor.class.getName(), "Creating batch executor with parallelism "+
+				parallelism+".");
+		executorService = Executors.newFixedThreadPool(parallelism,new ThreadFactory()
+		{
+			private AtomicInteger threadCount = new AtomicInteger(0);
+
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable,"RTMLBatchExecutor-"+threadCount.incrementAndGet());
+
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Submit a task to the thread pool.
+	 * @param task The task.
+	 * @return A future, used to retrieve the task's result.
+	 */
+	public <T> Future<T> submit(Callable<T> task)
+	{
+		submitCount.incrementAndGet();
+		return executorService.submit(task);
+	}
+
+	/**
+	 * Get the number of threads in the pool.
+	 * @return The parallelism.
+	 */
+	public int getParallelism()
+	{
+		return parallelism;
+	}
+
+	/**
+	 * Return a string describing the executor.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+"[parallelism="+parallelism+",submitted="+submitCount.get()+"]";
+	}
+}
@@ -0,0 +1,119 @@
+package org.estar.node_agent2.util;
+
+/**
+ * The deadline by which the client of a received RTML document needs the reply. After the deadline the client
+ * has given up, so there is no point continuing to process the document. Instances are created (and the
+ * per document type defaults applied) by RTMLDeadlinePolicy, and are immutable.
+ * @author cjm
+ * @see RTMLDeadlinePolicy
+ */
+public class RTMLDeadline
+{
+	/**
+	 * The deadline value used when there is no deadline.
+	 */
+	public static final long NO_DEADLINE = Long.MAX_VALUE;
+	/**
+	 * The time the request was received, in milliseconds since the epoch.
+	 */
+	protected long receivedTime;
+	/**
+	 * The deadline, in milliseconds since the epoch, or NO_DEADLINE.
+	 * @see #NO_DEADLINE
+	 */
+	protected long deadline;
+	/**
+	 * Whether the deadline was supplied by the client (in the Deadline or Timeout request header),
+	 * rather than being a per document type default.
+	 */
+	protected boolean fromHeader;
+
+	/**
+	 * Constructor.
+	 * @param receivedTime The time the request was received, in milliseconds since the epoch.
+	 * @param deadline The deadline, in milliseconds since the epoch, or NO_DEADLINE.
+	 * @param fromHeader Whether the deadline was supplied by the client.
+	 * @see #receivedTime
+	 * @see #deadline
+	 * @see #fromHeader
+	 */
+	public RTMLDeadline(long receivedTime,long deadline,boolean fromHeader)
+	{
+		super();
+		this.receivedTime = receivedTime;
+		this.deadline = deadline;
+		this.fromHeader = fromHeader;
+	}
+
+	/**
+	 * Get the time the request was received.
+	 * @return The time, in milliseconds since the epoch.
+	 * @see #receivedTime
+	 */
+	public long getReceivedTime()
+	{
+		return receivedTime;
+	}
+
+	/**
+	 * Get the deadline.
+	 * @return The deadline, in milliseconds since the epoch, or NO_DEADLINE.
+	 * @see #deadline
+	 */
+	public long getDeadline()
+	{
+		return deadline;
+	}
+
+	/**
+	 * Is there a deadline?
+	 * @return true if there is a deadline.
+	 * @see #NO_DEADLINE
+	 */
+	public boolean hasDeadline()
+	{
+		return deadline != NO_DEADLINE;
+	}
+
+	/**
+	 * Was the deadline supplied by the client?
+	 * @return true if the deadline came from the Deadline or Timeout request header.
+	 * @see #fromHeader
+	 */
+	public boolean isFromHeader()
+	{
+		return fromHeader;
+	}
+
+	/**
+	 * Get the time remaining until the deadline.
+	 * @return The time remaining, in milliseconds (negative once the deadline has passed),
+	 *         or Long.MAX_VALUE if there is no deadline.
+	 */
+	public long getRemaining()
+	{
+		if (deadline == NO_DEADLINE)
+			return Long.MAX_VALUE;
+		return deadline-System.currentTimeMillis();
+	}
+
+	/**
+	 * Has the deadline passed?
+	 * @return true if there is a deadline, and it has passed.
+	 */
+	public boolean hasExpired()
+	{
+		return (deadline != NO_DEADLINE) && (System.currentTimeMillis() > deadline);
+	}
+
+	/**
+	 * Return a string describing the deadline.
+	 */
+	public String toString()
+	{
+		if (deadline == NO_DEADLINE)
+			return this.getClass().getName()+"[none]";
+		return this.getClass().getName()+"[timeout="+(deadline-receivedTime)+" ms,remaining="+getRemaining()+
+			" ms,fromHeader="+fromHeader+"]";
+	}
+}
@@ -0,0 +1,19 @@
+package org.estar.node_agent2.util;
+
+/**
+ * Exception thrown when the deadline of a received RTML document has passed before processing has finished,
+ * so the rest of the processing (including the call to the TEA) is abandoned.
+ * @author cjm
+ * @see org.estar.node_agent2.util.RTMLDeadlinePolicy#check
+ */
+public class RTMLDeadlineException extends Exception
+{
+	/**
+	 * Constructor.
+	 * @param message A description of the deadline and the stage it expired before.
+	 */
+	public RTMLDeadlineException(String message)
+	{
+		super(message);
+	}
+}
@@ -0,0 +1,342 @@
+package org.estar.node_agent2.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.configuration.NodeAgentProperties;
+
+/**
+ * Class deciding the deadline of each received RTML document, and dropping documents whose deadline has passed
+ * (because the client has given up waiting) before any more work is done on them.
+ * <ul>
+ * <li>A client can supply a deadline with the request, either as a Deadline header (the absolute deadline, in
+ *     milliseconds since the epoch), or as a Timeout header (the time in milliseconds, from receipt, it will wait
+ *     for the reply). If both are supplied, the earlier is used.
+ * <li>Otherwise, once the document has been pre-classified, the default deadline for the document type is used
+ *     (rtml.deadline.score, rtml.deadline.request, rtml.deadline.abort, rtml.deadline.update, in milliseconds from
+ *     receipt). A default of 0 means documents of that type have no deadline.
+ * <li>The deadline is checked between each stage of processing, and before the document is sent to the TEA.
+ *     A document whose deadline has passed causes an RTMLDeadlineException, which the web-service returns as an
+ *     RTML reject without doing the remaining stages.
+ * </ul>
+ * The number of documents dropped at each stage (the wasted work avoided), and the number of TEA replies that
+ * arrived after their deadline, are counted and logged on each ping.
+ * @author cjm
+ * @see org.estar.node_agent2.util.RTMLDeadline
+ * @see org.estar.node_agent2.util.RTMLDeadlineException
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_DEADLINE_SCORE
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_DEADLINE_REQUEST
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_DEADLINE_ABORT
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_DEADLINE_UPDATE
+ */
+public class RTMLDeadlinePolicy
+{
+	/**
+	 * The request header containing the absolute deadline, in milliseconds since the epoch.
+	 */
+	public static final String HEADER_DEADLINE = "Deadline";
+	/**
+	 * The request header containing the timeout, in milliseconds from receipt.
+	 */
+	public static final String HEADER_TIMEOUT = "Timeout";
+	/**
+	 * Stage: the document has been received (and pre-classified), but nothing else done.
+	 * This includes any time the document spent queued for a batch, ticket or asynchronous executor thread.
+	 */
+	public static final String STAGE_RECEIVED = "received";
+	/**
+	 * Stage: the document has been checked against the limits, and admitted to the in-flight bytes budget.
+	 */
+	public static final String STAGE_ADMITTED = "admitted";
+	/**
+	 * Stage: the document has been parsed.
+	 */
+	public static final String STAGE_PARSED = "parsed";
+	/**
+	 * Stage: the document's aliases have been rewritten, and it is about to be sent to the TEA.
+	 */
+	public static final String STAGE_DISPATCH = "dispatch";
+	/**
+	 * Stage: the document has waited it's turn for the TEA connection, and the RMI call is about to be made.
+	 */
+	public static final String STAGE_TEA = "tea";
+	/**
+	 * RTML 2.2 document type for score documents.
+	 */
+	public static final String TYPE_SCORE = "score";
+	/**
+	 * RTML 3.1 document mode for score documents.
+	 */
+	public static final String MODE_INQUIRY = "inquiry";
+	/**
+	 * RTML document type for request documents.
+	 */
+	public static final String TYPE_REQUEST = "request";
+	/**
+	 * RTML document type for abort documents.
+	 */
+	public static final String TYPE_ABORT = "abort";
+	/**
+	 * RTML document type for update documents.
+	 */
+	public static final String TYPE_UPDATE = "update";
+	/**
+	 * The singleton instance of this class.
+	 */
+	private static RTMLDeadlinePolicy instance = null;
+	/**
+	 * The trace logger.
+	 */
+	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+	/**
+	 * The error logger.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+	/**
+	 * The default deadline for score documents, in milliseconds from receipt, or 0 for none.
+	 */
+	private long scoreTimeout = 0;
+	/**
+	 * The default deadline for request documents, in milliseconds from receipt, or 0 for none.
+	 */
+	private long requestTimeout = 0;
+	/**
+	 * The default deadline for abort documents, in milliseconds from receipt, or 0 for none.
+	 */
+	private long abortTimeout = 0;
+	/**
+	 * The default deadline for update documents, in milliseconds from receipt, or 0 for none.
+	 */
+	private long updateTimeout = 0;
+	/**
+	 * The number of documents received with a deadline header.
+	 */
+	private AtomicLong headerDeadlineCount = new AtomicLong(0);
+	/**
+	 * The number of documents given a per document type default deadline.
+	 */
+	private AtomicLong defaultDeadlineCount = new AtomicLong(0);
+	/**
+	 * The number of illegal Deadline/Timeout headers, which were ignored.
+	 */
+	private AtomicLong illegalHeaderCount = new AtomicLong(0);
+	/**
+	 * The number of documents dropped because their deadline had passed, i.e. the work avoided.
+	 */
+	private AtomicLong wastedWorkAvoidedCount = new AtomicLong(0);
+	/**
+	 * Per stage count of documents dropped because their deadline had passed.
+	 */
+	private ConcurrentMap<String,AtomicLong> expiredStageMap = new ConcurrentHashMap<String,AtomicLong>();
+	/**
+	 * The number of TEA replies that arrived after the document's deadline, i.e. wasted work not avoided.
+	 */
+	private AtomicLong lateReplyCount = new AtomicLong(0);
+
+	/**
+	 * Get the singleton instance of this class. Construct it if required.
+	 * @return The singleton instance of this class.
+	 */
+	public static synchronized RTMLDeadlinePolicy getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new RTMLDeadlinePolicy();
+		}
+		return instance;
+	}
+
+	/**
+	 * Internal constructor used by getInstance. Retrieves the per document type default deadlines
+	 * from NodeAgentProperties.
+	 * @see #getTimeoutProperty
+	 */
+	private RTMLDeadlinePolicy()
+	{
+		scoreTimeout = getTimeoutProperty(NodeAgentProperties.RTML_DEADLINE_SCORE);
+		requestTimeout = getTimeoutProperty(NodeAgentProperties.RTML_DEADLINE_REQUEST);
+		abortTimeout = getTimeoutProperty(NodeAgentProperties.RTML_DEADLINE_ABORT);
+		updateTimeout = getTimeoutProperty(NodeAgentProperties.RTML_DEADLINE_UPDATE);
+	}
+
+	/**
+	 * Retrieve a default deadline property.
+	 * @param key The property key.
+	 * @return The default deadline, in milliseconds, or 0 (no deadline) if it is not set, or is not legal.
+	 */
+	private long getTimeoutProperty(String key)
+	{
+		NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
+		long timeout = 0;
+
+		if (nodeAgentProperties == null)
+			return 0;
+		try
+		{
+			timeout = nodeAgentProperties.getLongProperty(key,0);
+		}
+		catch (NumberFormatException e)
+		{
+			errorLogger.log(1, RTMLDeadlinePolicy.class.getName(),
+					"Illegal "+key+", using default (no deadline):"+e);
+		}
+		if (timeout < 0)
+			timeout = 0;
+		return timeout;
+	}
+
+	/**
+	 * Create the deadline of a request as it is received, from the request headers.
+	 * @param deadlineHeader The value of the Deadline header (milliseconds since the epoch), or null.
+	 * @param timeoutHeader The value of the Timeout header (milliseconds from now), or null.
+	 * @return The deadline. If neither header was supplied (or legal) the deadline has no deadline, until
+	 *         a default is applied by applyDefault.
+	 * @see #HEADER_DEADLINE
+	 * @see #HEADER_TIMEOUT
+	 * @see #applyDefault
+	 */
+	public RTMLDeadline createDeadline(String deadlineHeader,String timeoutHeader)
+	{
+		long receivedTime = System.currentTimeMillis();
+		long deadline = RTMLDeadline.NO_DEADLINE;
+
+		if (deadlineHeader != null)
+		{
+			try
+			{
+				deadline = Math.min(deadline,Long.parseLong(deadlineHeader.trim()));
+			}
+			catch (NumberFormatException e)
+			{
+				illegalHeaderCount.incrementAndGet();
+				errorLogger.log(1, RTMLDeadlinePolicy.class.getName(),
+						"Illegal "+HEADER_DEADLINE+" header "+deadlineHeader+", ignored:"+e);
+			}
+		}
+		if (timeoutHeader != null)
+		{
+			try
+			{
+				long timeout = Long.parseLong(timeoutHeader.trim());
+
+				if (timeout >= 0)
+					deadline = Math.min(deadline,receivedTime+timeout);
+			}
+			catch (NumberFormatException e)
+			{
+				illegalHeaderCount.incrementAndGet();
+				errorLogger.log(1, RTMLDeadlinePolicy.class.getName(),
+						"Illegal "+HEADER_TIMEOUT+" header "+timeoutHeader+", ignored:"+e);
+			}
+		}
+		if (deadline != RTMLDeadline.NO_DEADLINE)
+		{
+			headerDeadlineCount.incrementAndGet();
+			return new RTMLDeadline(receivedTime,deadline,true);
+		}
+		return new RTMLDeadline(receivedTime,deadline,false);
+	}
+
+	/**
+	 * Apply the default deadline for the document type, if the client did not supply a deadline.
+	 * @param deadline The deadline created when the request was received, or null if there was none
+	 *        (in which case the document is treated as received now).
+	 * @param documentType The document's type (RTML 2.2) or mode (RTML 3.1), from the pre-classifier, or null.
+	 * @return The deadline to use for the document.
+	 * @see #getDefaultTimeout
+	 * @see org.estar.node_agent2.util.RTMLPreClassification#getDocumentType
+	 */
+	public RTMLDeadline applyDefault(RTMLDeadline deadline,String documentType)
+	{
+		long timeout;
+
+		if (deadline == null)
+			deadline = new RTMLDeadline(System.currentTimeMillis(),RTMLDeadline.NO_DEADLINE,false);
+		if (deadline.isFromHeader())
+			return deadline;
+		timeout = getDefaultTimeout(documentType);
+		if (timeout <= 0)
+			return deadline;
+		defaultDeadlineCount.incrementAndGet();
+		return new RTMLDeadline(deadline.getReceivedTime(),deadline.getReceivedTime()+timeout,false);
+	}
+
+	/**
+	 * Get the default deadline for the specified document type.
+	 * @param documentType The document's type (RTML 2.2) or mode (RTML 3.1), or null.
+	 * @return The default deadline, in milliseconds from receipt, or 0 for no deadline.
+	 */
+	public long getDefaultTimeout(String documentType)
+	{
+		if (documentType == null)
+			return 0;
+		if (documentType.equals(TYPE_SCORE) || documentType.equals(MODE_INQUIRY))
+			return scoreTimeout;
+		if (documentType.equals(TYPE_REQUEST))
+			return requestTimeout;
+		if (documentType.equals(TYPE_ABORT))
+			return abortTimeout;
+		if (documentType.equals(TYPE_UPDATE))
+			return updateTimeout;
+		return 0;
+	}
+
+	/**
+	 * Check whether the deadline has passed, before the specified stage of processing is started.
+	 * @param deadline The document's deadline, or null if it has none.
+	 * @param stage The stage the document has reached, one of the STAGE_ constants.
+	 * @exception RTMLDeadlineException Thrown if the deadline has passed. The document is counted as
+	 *            wasted work avoided.
+	 * @see #wastedWorkAvoidedCount
+	 * @see #expiredStageMap
+	 */
+	public void check(RTMLDeadline deadline,String stage) throws RTMLDeadlineException
+	{
+		AtomicLong counter = null;
+
+		if ((deadline == null) || (deadline.hasExpired() == false))
+			return;
+		wastedWorkAvoidedCount.incrementAndGet();
+		counter = expiredStageMap.get(stage);
+		if (counter == null)
+		{
+			AtomicLong newCounter = new AtomicLong(0);
+
+			counter = expiredStageMap.putIfAbsent(stage,newCounter);
+			if (counter == null)
+				counter = newCounter;
+		}
+		counter.incrementAndGet();
+		traceLogger.log(2, RTMLDeadlinePolicy.class.getName(), "... deadline expired at stage "+stage+":"+deadline);
+		throw new RTMLDeadlineException("Deadline expired "+(-deadline.getRemaining())+" ms ago, after "+
+				(System.currentTimeMillis()-deadline.getReceivedTime())+" ms, at stage "+stage+".");
+	}
+
+	/**
+	 * Report that the TEA has replied to a document. If the document's deadline has passed by then, the reply
+	 * is counted as late (the work was wasted, but could not be avoided).
+	 * @param deadline The document's deadline, or null if it has none.
+	 * @see #lateReplyCount
+	 */
+	public void reportReply(RTMLDeadline deadline)
+	{
+		if ((deadline != null) && deadline.hasExpired())
+			lateReplyCount.incrementAndGet();
+	}
+
+	/**
+	 * Return a string describing the deadline statistics.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+"[scoreTimeout="+scoreTimeout+",requestTimeout="+requestTimeout+
+			",abortTimeout="+abortTimeout+",updateTimeout="+updateTimeout+
+			",headerDeadlines="+headerDeadlineCount.get()+",defaultDeadlines="+defaultDeadlineCount.get()+
+			",illegalHeaders="+illegalHeaderCount.get()+",wastedWorkAvoided="+wastedWorkAvoidedCount.get()+
+			",expiredByStage="+expiredStageMap+",lateReplies="+lateReplyCount.get()+"]";
+	}
+}
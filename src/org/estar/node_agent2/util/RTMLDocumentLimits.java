@@ -0,0 +1,494 @@
+package org.estar.node_agent2.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.configuration.NodeAgentProperties;
+
+/**
+ * Size and complexity limits applied to received RTML documents before they are parsed into a DOM.
+ * <ul>
+ * <li>The document's size must not exceed rtml.limit.max.bytes. For documents received as strings the
+ *     string length (in characters) is used. Documents already held in memory (a ByteArrayInputStream, as
+ *     extracted by the streaming and asynchronous endpoints) are checked in place, without being copied.
+ *     Other streamed documents are read up to the limit, and no further.
+ * <li>A StAX scan (which builds no tree) checks the element depth (rtml.limit.max.depth), the number of
+ *     Observation elements (rtml.limit.max.observations) and the number of History Entry elements
+ *     (rtml.limit.max.history.entries). The scan stops at the first limit exceeded.
+ *     Documents that are not well-formed are left for the parser to report.
+ * <li>A global in-flight bytes budget (rtml.limit.in.flight.bytes) is shared by all documents being processed.
+ *     Each document reserves it's size from the budget for as long as it is being processed. If the budget is
+ *     exhausted, the document waits up to rtml.limit.in.flight.wait milliseconds for other documents to finish,
+ *     and is then rejected. This stops many large documents arriving at once from exhausting the heap.
+ *     A document's reservation is always acquired in one go (a stream of unknown length reserves
+ *     rtml.limit.max.bytes before it is read, and gives back what it did not use), so a document never holds
+ *     part of the budget whilst waiting for the rest.
+ * </ul>
+ * Documents exceeding a limit cause an RTMLLimitException, which the web-service returns as an RTML reject.
+ * @author cjm
+ * @see org.estar.node_agent2.util.RTMLLimitException
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_LIMIT_MAX_BYTES
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_LIMIT_MAX_DEPTH
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_LIMIT_MAX_OBSERVATIONS
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_LIMIT_MAX_HISTORY_ENTRIES
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_LIMIT_IN_FLIGHT_BYTES
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_LIMIT_IN_FLIGHT_WAIT
+ */
+public class RTMLDocumentLimits
+{
+	/**
+	 * The default maximum document size (in bytes), if the rtml.limit.max.bytes property is not set.
+	 */
+	public static final int DEFAULT_MAX_BYTES = 4194304;
+	/**
+	 * The default maximum element depth, if the rtml.limit.max.depth property is not set.
+	 */
+	public static final int DEFAULT_MAX_DEPTH = 32;
+	/**
+	 * The default maximum number of Observation elements, if the rtml.limit.max.observations property is not set.
+	 */
+	public static final int DEFAULT_MAX_OBSERVATIONS = 100;
+	/**
+	 * The default maximum number of History Entry elements, if the rtml.limit.max.history.entries property is not set.
+	 */
+	public static final int DEFAULT_MAX_HISTORY_ENTRIES = 1000;
+	/**
+	 * The default in-flight bytes budget, if the rtml.limit.in.flight.bytes property is not set.
+	 */
+	public static final int DEFAULT_IN_FLIGHT_BYTES = 67108864;
+	/**
+	 * The default time (in milliseconds) to wait for the in-flight bytes budget,
+	 * if the rtml.limit.in.flight.wait property is not set.
+	 */
+	public static final long DEFAULT_IN_FLIGHT_WAIT = 30000;
+	/**
+	 * The size of the chunks streamed documents are read in.
+	 */
+	public static final int CHUNK_LENGTH = 8192;
+	/**
+	 * The singleton instance of this class.
+	 */
+	private static RTMLDocumentLimits instance = null;
+	/**
+	 * The trace logger.
+	 */
+	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+	/**
+	 * The error logger.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+	/**
+	 * The maximum document size, in bytes.
+	 */
+	private int maxBytes = DEFAULT_MAX_BYTES;
+	/**
+	 * The maximum element depth.
+	 */
+	private int maxDepth = DEFAULT_MAX_DEPTH;
+	/**
+	 * The maximum number of Observation elements.
+	 */
+	private int maxObservations = DEFAULT_MAX_OBSERVATIONS;
+	/**
+	 * The maximum number of History Entry elements.
+	 */
+	private int maxHistoryEntries = DEFAULT_MAX_HISTORY_ENTRIES;
+	/**
+	 * The in-flight bytes budget.
+	 */
+	private int inFlightBytes = DEFAULT_IN_FLIGHT_BYTES;
+	/**
+	 * How long (in milliseconds) to wait for the in-flight bytes budget.
+	 */
+	private long inFlightWait = DEFAULT_IN_FLIGHT_WAIT;
+	/**
+	 * The in-flight bytes budget, one permit per byte.
+	 */
+	private Semaphore inFlightSemaphore = null;
+	/**
+	 * The StAX factory used to scan documents.
+	 */
+	private XMLInputFactory xmlInputFactory = null;
+	/**
+	 * The number of documents checked.
+	 */
+	private AtomicLong checkCount = new AtomicLong(0);
+	/**
+	 * The number of documents rejected as too large.
+	 */
+	private AtomicLong sizeRejectCount = new AtomicLong(0);
+	/**
+	 * The number of documents rejected as too deep, or with too many observations or history entries.
+	 */
+	private AtomicLong complexityRejectCount = new AtomicLong(0);
+	/**
+	 * The number of documents rejected because the in-flight bytes budget was exhausted.
+	 */
+	private AtomicLong budgetRejectCount = new AtomicLong(0);
+	/**
+	 * The number of times a document had to wait for the in-flight bytes budget.
+	 */
+	private AtomicLong budgetWaitCount = new AtomicLong(0);
+
+	/**
+	 * Get the singleton instance of this class. Construct it if required.
+	 * @return The singleton instance of this class.
+	 */
+	public static synchronized RTMLDocumentLimits getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new RTMLDocumentLimits();
+		}
+		return instance;
+	}
+
+	/**
+	 * Internal constructor used by getInstance. Retrieves the limits from NodeAgentProperties, and creates
+	 * the in-flight bytes budget. The budget is never smaller than the maximum document size, so a document
+	 * within the size limit can always be admitted eventually.
+	 */
+	private RTMLDocumentLimits()
+	{
+		NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
+
+		if (nodeAgentProperties != null)
+		{
+			try
+			{
+				maxBytes = nodeAgentProperties.getIntProperty(NodeAgentProperties.RTML_LIMIT_MAX_BYTES,
+									      DEFAULT_MAX_BYTES);
+				maxDepth = nodeAgentProperties.getIntProperty(NodeAgentProperties.RTML_LIMIT_MAX_DEPTH,
+									      DEFAULT_MAX_DEPTH);
+				maxObservations = nodeAgentProperties.getIntProperty(
+						NodeAgentProperties.RTML_LIMIT_MAX_OBSERVATIONS, DEFAULT_MAX_OBSERVATIONS);
+				maxHistoryEntries = nodeAgentProperties.getIntProperty(
+						NodeAgentProperties.RTML_LIMIT_MAX_HISTORY_ENTRIES, DEFAULT_MAX_HISTORY_ENTRIES);
+				inFlightBytes = nodeAgentProperties.getIntProperty(NodeAgentProperties.RTML_LIMIT_IN_FLIGHT_BYTES,
+										   DEFAULT_IN_FLIGHT_BYTES);
+				inFlightWait = nodeAgentProperties.getLongProperty(NodeAgentProperties.RTML_LIMIT_IN_FLIGHT_WAIT,
+										   DEFAULT_IN_FLIGHT_WAIT);
+			}
+			catch (NumberFormatException e)
+			{
+				errorLogger.log(1, RTMLDocumentLimits.class.getName(),
+						"Illegal document limits configuration, using defaults for remaining values:"+e);
+			}
+		}
+		if (inFlightBytes < maxBytes)
+			inFlightBytes = maxBytes;
+		inFlightSemaphore = new Semaphore(inFlightBytes, true);
+		xmlInputFactory = XMLInputFactory.newInstance();
+		xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		traceLogger.log(5, RTMLDocumentLimits.class.getName(), "Created:"+this);
+	}
+
+	/**
+	 * Create a reservation against the in-flight bytes budget, for one document. The reservation must be
+	 * released (in a finally block) once the document has been processed.
+	 * @return A new, empty, reservation.
+	 * @see Reservation#release
+	 */
+	public Reservation createReservation()
+	{
+		return new Reservation();
+	}
+
+	/**
+	 * Check a document received as a string against the limits, and reserve it's size from the in-flight budget.
+	 * @param rtmlDocumentString The document.
+	 * @param reservation The document's reservation.
+	 * @exception RTMLLimitException Thrown if the document exceeds a limit, or the budget could not be reserved.
+	 * @see #scan
+	 */
+	public void check(String rtmlDocumentString,Reservation reservation) throws RTMLLimitException
+	{
+		checkCount.incrementAndGet();
+		if (rtmlDocumentString.length() > maxBytes)
+		{
+			sizeRejectCount.incrementAndGet();
+			throw new RTMLLimitException("Document length "+rtmlDocumentString.length()+
+						     " exceeds the maximum of "+maxBytes+".");
+		}
+		reservation.reserve(rtmlDocumentString.length());
+		try
+		{
+			scan(xmlInputFactory.createXMLStreamReader(new StringReader(rtmlDocumentString)));
+		}
+		catch (XMLStreamException e)
+		{
+			traceLogger.log(5, RTMLDocumentLimits.class.getName(), "check:Failed to create reader:"+e);
+		}
+	}
+
+	/**
+	 * Check a streamed document against the limits, and reserve it's size from the in-flight budget.
+	 * <ul>
+	 * <li>If the stream is a ByteArrayInputStream the document is already in memory, so it's remaining length is
+	 *     reserved, and it is scanned in place (the stream is marked and reset), and returned, without being copied.
+	 * <li>Otherwise the maximum document size is reserved first, the stream is read (up to the maximum size) into
+	 *     a buffer, and the unused part of the reservation is given back. The buffer is scanned and returned
+	 *     without being copied again.
+	 * </ul>
+	 * @param inputStream The stream containing the document. The stream is not closed.
+	 * @param reservation The document's reservation.
+	 * @return A stream over the document, which supports mark/reset.
+	 * @exception RTMLLimitException Thrown if the document exceeds a limit, or the budget could not be reserved.
+	 * @exception IOException Thrown if reading the stream fails.
+	 * @see #scan
+	 * @see Reservation#reserve
+	 * @see Reservation#trim
+	 */
+	public InputStream check(InputStream inputStream,Reservation reservation) throws RTMLLimitException, IOException
+	{
+		DocumentBuffer documentBuffer = null;
+		ByteArrayInputStream documentInputStream = null;
+		byte chunk[] = null;
+		int length,readCount;
+
+		checkCount.incrementAndGet();
+		if (inputStream instanceof ByteArrayInputStream)
+		{
+			documentInputStream = (ByteArrayInputStream)inputStream;
+			length = documentInputStream.available();
+			if (length > maxBytes)
+			{
+				sizeRejectCount.incrementAndGet();
+				throw new RTMLLimitException("Document length "+length+" exceeds the maximum of "+maxBytes+".");
+			}
+			reservation.reserve(length);
+		}
+		else
+		{
+			reservation.reserve(maxBytes);
+			documentBuffer = new DocumentBuffer(CHUNK_LENGTH);
+			chunk = new byte[CHUNK_LENGTH];
+			while ((readCount = inputStream.read(chunk, 0, chunk.length)) > -1)
+			{
+				if (documentBuffer.size()+readCount > maxBytes)
+				{
+					sizeRejectCount.incrementAndGet();
+					throw new RTMLLimitException("Document length exceeds the maximum of "+maxBytes+".");
+				}
+				documentBuffer.write(chunk, 0, readCount);
+			}
+			reservation.trim(documentBuffer.size());
+			documentInputStream = documentBuffer.getInputStream();
+		}
+		documentInputStream.mark(0);
+		try
+		{
+			scan(xmlInputFactory.createXMLStreamReader(documentInputStream));
+		}
+		catch (XMLStreamException e)
+		{
+			traceLogger.log(5, RTMLDocumentLimits.class.getName(), "check:Failed to create reader:"+e);
+		}
+		documentInputStream.reset();
+		return documentInputStream;
+	}
+
+	/**
+	 * Scan the document, checking the element depth, and the number of Observation and History Entry elements.
+	 * @param xmlStreamReader A reader over the document.
+	 * @exception RTMLLimitException Thrown if the document exceeds a limit.
+	 */
+	private void scan(XMLStreamReader xmlStreamReader) throws RTMLLimitException
+	{
+		int depth = 0;
+		int historyDepth = -1;
+		int observationCount = 0;
+		int historyEntryCount = 0;
+
+		try
+		{
+			while (xmlStreamReader.hasNext())
+			{
+				int event = xmlStreamReader.next();
+
+				if (event == XMLStreamConstants.START_ELEMENT)
+				{
+					String name = xmlStreamReader.getLocalName();
+
+					depth++;
+					if (depth > maxDepth)
+					{
+						complexityRejectCount.incrementAndGet();
+						throw new RTMLLimitException("Document element depth exceeds the maximum of "+
+									     maxDepth+".");
+					}
+					if (name.equals("Observation") && (++observationCount > maxObservations))
+					{
+						complexityRejectCount.incrementAndGet();
+						throw new RTMLLimitException("Document contains more than the maximum of "+
+									     maxObservations+" observations.");
+					}
+					if (name.equals("History") && (historyDepth < 0))
+					{
+						historyDepth = depth;
+					}
+					else if ((depth == historyDepth+1) && name.equals("Entry") &&
+						 (++historyEntryCount > maxHistoryEntries))
+					{
+						complexityRejectCount.incrementAndGet();
+						throw new RTMLLimitException("Document contains more than the maximum of "+
+									     maxHistoryEntries+" history entries.");
+					}
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT)
+				{
+					if (depth == historyDepth)
+						historyDepth = -1;
+					depth--;
+				}
+			}
+		}
+		catch (XMLStreamException e)
+		{
+			// not well-formed, the parser will report the error
+			traceLogger.log(5, RTMLDocumentLimits.class.getName(), "... limits scan stopped:"+e.getMessage());
+		}
+		finally
+		{
+			try
+			{
+				xmlStreamReader.close();
+			}
+			catch (XMLStreamException e)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Return a string describing the limits and the number of documents rejected.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+"[maxBytes="+maxBytes+",maxDepth="+maxDepth+",maxObservations="+
+			maxObservations+",maxHistoryEntries="+maxHistoryEntries+",inFlight="+
+			(inFlightBytes-inFlightSemaphore.availablePermits())+"/"+inFlightBytes+",checked="+checkCount.get()+
+			",sizeRejects="+sizeRejectCount.get()+",complexityRejects="+complexityRejectCount.get()+
+			",budgetWaits="+budgetWaitCount.get()+",budgetRejects="+budgetRejectCount.get()+"]";
+	}
+
+	/**
+	 * A byte array output stream, whose contents can be read without copying them.
+	 */
+	private static class DocumentBuffer extends ByteArrayOutputStream
+	{
+		/**
+		 * Constructor.
+		 * @param size The initial buffer size.
+		 */
+		public DocumentBuffer(int size)
+		{
+			super(size);
+		}
+
+		/**
+		 * Get an input stream over the buffer's contents, sharing the buffer.
+		 * @return The input stream.
+		 */
+		public ByteArrayInputStream getInputStream()
+		{
+			return new ByteArrayInputStream(buf,0,count);
+		}
+	}
+
+	/**
+	 * A document's reservation against the in-flight bytes budget. Not thread safe; each reservation is used
+	 * by the one thread processing it's document.
+	 */
+	public class Reservation
+	{
+		/**
+		 * The number of bytes reserved.
+		 */
+		private int reservedBytes = 0;
+
+		/**
+		 * Internal constructor, used by createReservation.
+		 */
+		private Reservation()
+		{
+			super();
+		}
+
+		/**
+		 * Reserve more bytes from the in-flight budget, waiting up to the in-flight wait time if the
+		 * budget is exhausted.
+		 * @param bytes The number of bytes to reserve.
+		 * @exception RTMLLimitException Thrown if the bytes could not be reserved in time.
+		 */
+		protected void reserve(int bytes) throws RTMLLimitException
+		{
+			boolean acquired = false;
+
+			if (bytes <= 0)
+				return;
+			if (inFlightSemaphore.tryAcquire(bytes) == false)
+			{
+				budgetWaitCount.incrementAndGet();
+				try
+				{
+					acquired = inFlightSemaphore.tryAcquire(bytes, inFlightWait, TimeUnit.MILLISECONDS);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				if (acquired == false)
+				{
+					budgetRejectCount.incrementAndGet();
+					errorLogger.log(1, RTMLDocumentLimits.class.getName(), "reserve:In-flight budget of "+
+							inFlightBytes+" bytes exhausted, rejecting document.");
+					throw new RTMLLimitException("Node agent busy: In-flight budget of "+inFlightBytes+
+								     " bytes exhausted, try again later.");
+				}
+			}
+			reservedBytes += bytes;
+		}
+
+		/**
+		 * Give back to the in-flight budget any reserved bytes beyond the specified number.
+		 * @param bytes The number of bytes to keep reserved.
+		 */
+		protected void trim(int bytes)
+		{
+			if (reservedBytes > bytes)
+			{
+				inFlightSemaphore.release(reservedBytes-bytes);
+				reservedBytes = bytes;
+			}
+		}
+
+		/**
+		 * Return all the bytes reserved to the in-flight budget. Can be called more than once.
+		 */
+		public void release()
+		{
+			if (reservedBytes > 0)
+			{
+				inFlightSemaphore.release(reservedBytes);
+				reservedBytes = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,675 @@
+package org.estar.node_agent2.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.configuration.NodeAgentProperties;
+
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+
+/**
+ * An offline catalog of the RTML DTD (RTML 2.2) and schema (RTML 3.1) files, which also validates documents
+ * against them.
+ * Validating parses normally resolve the DOCTYPE system identifier / schema location of each document
+ * over the network, which adds latency to every request, and makes the parse fail if the remote site is
+ * unreachable. The catalog maps these remote identifiers to local copies, which are shipped in the WAR
+ * (WEB-INF/rtml), or held in the directory specified by the rtml.catalog.dir property.
+ * <p>
+ * The mapping is read from a properties file (catalog.properties) in the catalog directory, each entry
+ * mapping a remote system identifier to a local filename in the same directory. The catalog is loaded once per
+ * JVM, and nothing is downloaded: mappings whose local file does not exist are logged and ignored, so they fall
+ * back to the remote resolution.
+ * <p>
+ * When the catalog is loaded, the local DTDs are read into memory, and the local schemas are compiled into one
+ * Schema, which is thread-safe and shared by all validations. RTMLParser does not allow us to install our own
+ * EntityResolver or grammar, so validate checks a document against these cached grammars, and the document
+ * is then parsed by a non-validating RTMLParser (see RTMLParserPool). Schema documents are not rewritten at all.
+ * A non-validating parser still reads the external DTD (for it's entities and default attributes), so the
+ * DOCTYPE system identifier of a DTD document is the only thing rewritten, to point at the local copy,
+ * in the stream the document is parsed from.
+ * @author cjm
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_CATALOG_USE
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_CATALOG_DIR
+ * @see org.estar.node_agent2.util.RTMLParserPool
+ */
+public class RTMLEntityCatalog
+{
+	/**
+	 * The name of the catalog mapping file, in the catalog directory.
+	 */
+	public static final String CATALOG_FILE_NAME = "catalog.properties";
+	/**
+	 * The default catalog directory, used if the rtml.catalog.dir property is not set, and the
+	 * initialisation servlet has not configured the directory within the deployed WAR.
+	 */
+	public static final String DEFAULT_CATALOG_DIR = NodeAgentProperties.BASE_DIR + "/rtml";
+	/**
+	 * How far into the document (in characters) we search for remote identifiers to rewrite.
+	 * The DOCTYPE and the root element's schemaLocation attribute are always near the start of the document.
+	 */
+	public static final int PROLOG_SEARCH_LENGTH = 4096;
+	/**
+	 * The filename extension of local copies that are schemas (the others are DTDs).
+	 */
+	public static final String SCHEMA_FILE_EXTENSION = ".xsd";
+	/**
+	 * The JAXP property used to set the schema language of a validating SAX parser.
+	 */
+	public static final String JAXP_SCHEMA_LANGUAGE = "http://java.sun.com/xml/jaxp/properties/schemaLanguage";
+	/**
+	 * A pattern matching the encoding declaration in an XML declaration.
+	 */
+	public static final Pattern ENCODING_PATTERN = Pattern.compile("encoding\\s*=\\s*(\"[^\"]*\"|'[^']*')");
+	/**
+	 * The singleton instance of this class.
+	 */
+	private static RTMLEntityCatalog instance = null;
+	/**
+	 * The trace logger.
+	 */
+	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+	/**
+	 * The error logger.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+	/**
+	 * Whether to localise documents at all (the rtml.catalog.use property).
+	 */
+	private boolean useCatalog = true;
+	/**
+	 * The directory the catalog was loaded from.
+	 */
+	private File catalogDirectory = null;
+	/**
+	 * A map of remote system identifiers to local file URLs. This is replaced as a whole when the
+	 * catalog is (re-)loaded, and is not modified afterwards.
+	 */
+	private volatile Map<String,String> systemIdMap = Collections.emptyMap();
+	/**
+	 * A map of the remote system identifiers and local file URLs of the DTDs to their contents, served by the
+	 * entityResolver. This is replaced as a whole when the catalog is (re-)loaded, and is not modified afterwards.
+	 */
+	private volatile Map<String,byte[]> entityMap = Collections.emptyMap();
+	/**
+	 * The remote system identifiers of the schemas compiled into schema.
+	 */
+	private volatile Set<String> schemaIdSet = Collections.emptySet();
+	/**
+	 * The local schemas, compiled when the catalog is loaded, or null if there are none.
+	 */
+	private volatile Schema schema = null;
+	/**
+	 * A Validator of the compiled schema per thread, as Validators are not thread safe, and are relatively
+	 * expensive to create. This is replaced when the catalog is (re-)loaded, and is null if there is no schema.
+	 */
+	private volatile ThreadLocal<Validator> validatorThreadLocal = null;
+	/**
+	 * The entity resolver used when validating DTD documents, which serves the catalogued DTDs from entityMap.
+	 */
+	private EntityResolver entityResolver = null;
+	/**
+	 * The factory of the SAX parsers used to validate documents against their DTD, or (if their schema is not
+	 * catalogued) against the remote schema.
+	 */
+	private SAXParserFactory saxParserFactory = null;
+	/**
+	 * A DTD validating XMLReader per thread, using the entityResolver, as XMLReaders are not thread safe, and are
+	 * relatively expensive to create.
+	 */
+	private ThreadLocal<XMLReader> dtdReaderThreadLocal = null;
+	/**
+	 * The number of documents validated against a DTD.
+	 */
+	private AtomicLong dtdValidationCount = new AtomicLong(0);
+	/**
+	 * The number of documents validated against the compiled schema.
+	 */
+	private AtomicLong schemaValidationCount = new AtomicLong(0);
+	/**
+	 * The number of documents validated against a schema resolved remotely.
+	 */
+	private AtomicLong remoteValidationCount = new AtomicLong(0);
+	/**
+	 * The error handler used by validations, which fails the validation on the first error.
+	 */
+	private static final ErrorHandler VALIDATION_ERROR_HANDLER = new ErrorHandler()
+	{
+		public void warning(SAXParseException e)
+		{
+		}
+
+		public void error(SAXParseException e) throws SAXException
+		{
+			throw e;
+		}
+
+		public void fatalError(SAXParseException e) throws SAXException
+		{
+			throw e;
+		}
+	};
+
+	/**
+	 * Get the singleton instance of this class. Construct it if required.
+	 * @return The singleton instance of this class.
+	 */
+	public static synchronized RTMLEntityCatalog getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new RTMLEntityCatalog();
+		}
+		return instance;
+	}
+
+	/**
+	 * Internal constructor used by getInstance. If the rtml.catalog.use property is not false,
+	 * the catalog is loaded from the directory specified by the rtml.catalog.dir property,
+	 * or the DEFAULT_CATALOG_DIR if it is not set.
+	 * @see #useCatalog
+	 * @see #load
+	 * @see #DEFAULT_CATALOG_DIR
+	 * @see #entityResolver
+	 * @see #saxParserFactory
+	 * @see #dtdReaderThreadLocal
+	 */
+	private RTMLEntityCatalog()
+	{
+		NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
+		String directoryString = null;
+
+		entityResolver = new EntityResolver()
+		{
+			public InputSource resolveEntity(String publicId,String systemId)
+			{
+				byte entity[] = null;
+				InputSource inputSource = null;
+
+				if (systemId == null)
+					return null;
+				entity = entityMap.get(systemId);
+				if (entity == null)
+					return null;
+				inputSource = new InputSource(new ByteArrayInputStream(entity));
+				inputSource.setPublicId(publicId);
+				inputSource.setSystemId(systemId);
+				return inputSource;
+			}
+		};
+		saxParserFactory = SAXParserFactory.newInstance();
+		saxParserFactory.setNamespaceAware(true);
+		saxParserFactory.setValidating(true);
+		dtdReaderThreadLocal = new ThreadLocal<XMLReader>()
+		{
+			protected XMLReader initialValue()
+			{
+				try
+				{
+					XMLReader xmlReader = newSAXParser().getXMLReader();
+
+					xmlReader.setEntityResolver(entityResolver);
+					xmlReader.setErrorHandler(VALIDATION_ERROR_HANDLER);
+					return xmlReader;
+				}
+				catch (Exception e)
+				{
+					throw new RuntimeException(RTMLEntityCatalog.class.getName()+
+								   ":Failed to create validating XMLReader.",e);
+				}
+			}
+		};
+		if (nodeAgentProperties != null)
+		{
+			useCatalog = nodeAgentProperties.getBooleanProperty(NodeAgentProperties.RTML_CATALOG_USE, true);
+			directoryString = nodeAgentProperties.getProperty(NodeAgentProperties.RTML_CATALOG_DIR);
+		}
+		if (directoryString == null)
+			directoryString = DEFAULT_CATALOG_DIR;
+		if (useCatalog)
+			load(new File(directoryString));
+		else
+			traceLogger.log(5, RTMLEntityCatalog.class.getName(), "... RTML entity catalog disabled.");
+	}
+
+	/**
+	 * Is the catalog directory set explicitly in the configuration?
+	 * @return true if the rtml.catalog.dir property is set, false otherwise.
+	 */
+	public static boolean isCatalogDirectoryConfigured()
+	{
+		NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
+
+		return (nodeAgentProperties != null) &&
+			(nodeAgentProperties.getProperty(NodeAgentProperties.RTML_CATALOG_DIR) != null);
+	}
+
+	/**
+	 * (Re-)load the catalog from the catalog.properties file in the specified directory.
+	 * If the catalog file cannot be read, the catalog is left empty, documents are not rewritten, and DTDs
+	 * and schemas are resolved remotely. The local DTDs are read into memory, and the local schemas (files ending
+	 * in SCHEMA_FILE_EXTENSION) are compiled. If the schemas cannot be compiled, they are resolved remotely.
+	 * @param directory The directory containing catalog.properties and the local DTD/schema copies.
+	 * @see #CATALOG_FILE_NAME
+	 * @see #SCHEMA_FILE_EXTENSION
+	 * @see #systemIdMap
+	 * @see #entityMap
+	 * @see #schemaIdSet
+	 * @see #schema
+	 * @see #validatorThreadLocal
+	 * @see #catalogDirectory
+	 */
+	public synchronized void load(File directory)
+	{
+		Map<String,String> newSystemIdMap = new HashMap<String,String>();
+		Map<String,byte[]> newEntityMap = new HashMap<String,byte[]>();
+		Set<String> newSchemaIdSet = new HashSet<String>();
+		List<Source> schemaSourceList = new ArrayList<Source>();
+		Schema newSchema = null;
+		ThreadLocal<Validator> newValidatorThreadLocal = null;
+		Properties catalogProperties = new Properties();
+		FileInputStream in = null;
+
+		if (!useCatalog)
+			return;
+		traceLogger.log(5, RTMLEntityCatalog.class.getName(), "Loading RTML entity catalog from: " + directory);
+		try
+		{
+			in = new FileInputStream(new File(directory, CATALOG_FILE_NAME));
+			catalogProperties.load(in);
+		}
+		catch (IOException e)
+		{
+			errorLogger.log(1, RTMLEntityCatalog.class.getName(),
+					"Failed to load RTML entity catalog from "+directory+
+					", DTDs and schemas will be resolved remotely:"+e);
+			return;
+		}
+		finally
+		{
+			if (in != null)
+			{
+				try
+				{
+					in.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+		Enumeration keysE = catalogProperties.keys();
+		while (keysE.hasMoreElements())
+		{
+			String systemId = (String)keysE.nextElement();
+			File localFile = new File(directory, catalogProperties.getProperty(systemId).trim());
+
+			if (localFile.canRead() == false)
+			{
+				errorLogger.log(1, RTMLEntityCatalog.class.getName(),
+						"Local copy "+localFile+" of "+systemId+" not found, it will be resolved remotely.");
+				continue;
+			}
+			if (localFile.getName().endsWith(SCHEMA_FILE_EXTENSION))
+			{
+				schemaSourceList.add(new StreamSource(localFile));
+				newSchemaIdSet.add(systemId);
+			}
+			else
+			{
+				try
+				{
+					byte entity[] = Files.readAllBytes(localFile.toPath());
+
+					newEntityMap.put(systemId, entity);
+					newEntityMap.put(localFile.toURI().toString(), entity);
+					newSystemIdMap.put(systemId, localFile.toURI().toString());
+				}
+				catch (IOException e)
+				{
+					errorLogger.log(1, RTMLEntityCatalog.class.getName(),
+							"Failed to read local copy "+localFile+" of "+systemId+
+							", it will be resolved remotely:"+e);
+					continue;
+				}
+			}
+			traceLogger.log(5, RTMLEntityCatalog.class.getName(), "... " + systemId + " -> " + localFile);
+		}
+		if (schemaSourceList.size() > 0)
+		{
+			try
+			{
+				newSchema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).
+					newSchema(schemaSourceList.toArray(new Source[schemaSourceList.size()]));
+			}
+			catch (SAXException e)
+			{
+				errorLogger.log(1, RTMLEntityCatalog.class.getName(),
+						"Failed to compile local schemas "+newSchemaIdSet+
+						", they will be resolved remotely:"+e);
+				newSchemaIdSet.clear();
+			}
+		}
+		if (newSchema != null)
+		{
+			final Schema compiledSchema = newSchema;
+
+			newValidatorThreadLocal = new ThreadLocal<Validator>()
+			{
+				protected Validator initialValue()
+				{
+					Validator validator = compiledSchema.newValidator();
+
+					validator.setErrorHandler(VALIDATION_ERROR_HANDLER);
+					return validator;
+				}
+			};
+		}
+		catalogDirectory = directory;
+		systemIdMap = Collections.unmodifiableMap(newSystemIdMap);
+		entityMap = Collections.unmodifiableMap(newEntityMap);
+		schemaIdSet = Collections.unmodifiableSet(newSchemaIdSet);
+		schema = newSchema;
+		validatorThreadLocal = newValidatorThreadLocal;
+	}
+
+	/**
+	 * Validate the RTML document read from the specified stream against it's DTD or schema, using the grammars
+	 * cached when the catalog was loaded.
+	 * <ul>
+	 * <li>A document with a DOCTYPE is validated against it's DTD, by this thread's validating XMLReader, whose
+	 *     entity resolver serves the catalogued DTDs from memory.
+	 * <li>A document whose prolog refers to a catalogued schema is validated against the compiled schema, which is
+	 *     not re-read or re-compiled, by this thread's Validator.
+	 * <li>Any other document is validated against the schema it refers to, which is resolved remotely.
+	 * </ul>
+	 * Only the first PROLOG_SEARCH_LENGTH bytes are examined (as ISO-8859-1, as the identifiers are ASCII) to
+	 * decide which.
+	 * @param inputStream The stream to read the RTML document from. This is read to the end.
+	 * @exception SAXException Thrown if the document is malformed or invalid.
+	 * @exception IOException Thrown if reading the document fails.
+	 * @exception ParserConfigurationException Thrown if a validating SAX parser cannot be created.
+	 * @see #PROLOG_SEARCH_LENGTH
+	 * @see #dtdReaderThreadLocal
+	 * @see #validatorThreadLocal
+	 * @see #schemaIdSet
+	 * @see #VALIDATION_ERROR_HANDLER
+	 */
+	public void validate(InputStream inputStream) throws SAXException, IOException, ParserConfigurationException
+	{
+		ThreadLocal<Validator> currentValidatorThreadLocal = validatorThreadLocal;
+		SAXParser saxParser = null;
+		XMLReader xmlReader = null;
+		InputStream documentInputStream = null;
+		byte prolog[] = new byte[PROLOG_SEARCH_LENGTH];
+		String prologString = null;
+		int count = 0;
+		int readCount = 0;
+
+		while ((count < prolog.length) && ((readCount = inputStream.read(prolog, count, prolog.length-count)) > -1))
+			count += readCount;
+		prologString = new String(prolog, 0, count, "ISO-8859-1");
+		documentInputStream = new SequenceInputStream(new ByteArrayInputStream(prolog, 0, count), inputStream);
+		if ((prologString.indexOf("<!DOCTYPE") < 0) && (currentValidatorThreadLocal != null) &&
+		    containsAny(prologString, schemaIdSet))
+		{
+			currentValidatorThreadLocal.get().validate(new StreamSource(documentInputStream));
+			schemaValidationCount.incrementAndGet();
+			return;
+		}
+		if (prologString.indexOf("<!DOCTYPE") > -1)
+		{
+			dtdReaderThreadLocal.get().parse(new InputSource(documentInputStream));
+			dtdValidationCount.incrementAndGet();
+			return;
+		}
+		saxParser = newSAXParser();
+		saxParser.setProperty(JAXP_SCHEMA_LANGUAGE, XMLConstants.W3C_XML_SCHEMA_NS_URI);
+		xmlReader = saxParser.getXMLReader();
+		xmlReader.setErrorHandler(VALIDATION_ERROR_HANDLER);
+		xmlReader.parse(new InputSource(documentInputStream));
+		remoteValidationCount.incrementAndGet();
+	}
+
+	/**
+	 * Create a new validating SAX parser. SAXParserFactory is not thread safe, so this is synchronized on it.
+	 * @return The SAX parser.
+	 * @exception SAXException Thrown if the parser cannot be created.
+	 * @exception ParserConfigurationException Thrown if the parser cannot be created.
+	 * @see #saxParserFactory
+	 */
+	protected SAXParser newSAXParser() throws SAXException, ParserConfigurationException
+	{
+		synchronized (saxParserFactory)
+		{
+			return saxParserFactory.newSAXParser();
+		}
+	}
+
+	/**
+	 * Does the specified string contain any of the specified identifiers?
+	 * @param string The string to search.
+	 * @param idSet The identifiers.
+	 * @return true if the string contains one of the identifiers, false otherwise.
+	 */
+	protected static boolean containsAny(String string,Set<String> idSet)
+	{
+		for (String id : idSet)
+		{
+			if (string.indexOf(id) > -1)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Rewrite any remote DTD identifiers in the prolog of the specified document, so they refer
+	 * to the local copies held in the catalog. Only the first PROLOG_SEARCH_LENGTH characters are searched.
+	 * Schema locations are not rewritten, as non-validating parsers do not read the schema.
+	 * @param rtmlDocumentString The RTML document to localise.
+	 * @return The localised document, or the original string if it did not refer to any catalogued identifiers.
+	 * @see #PROLOG_SEARCH_LENGTH
+	 * @see #systemIdMap
+	 */
+	public String localiseDocument(String rtmlDocumentString)
+	{
+		Map<String,String> currentSystemIdMap = systemIdMap;
+		StringBuilder sb = null;
+		String prolog = null;
+		int prologLength;
+
+		if (currentSystemIdMap.isEmpty() || (rtmlDocumentString == null))
+			return rtmlDocumentString;
+		prologLength = Math.min(rtmlDocumentString.length(), PROLOG_SEARCH_LENGTH);
+		prolog = rtmlDocumentString.substring(0, prologLength);
+		for (Map.Entry<String,String> entry : currentSystemIdMap.entrySet())
+		{
+			int index = prolog.indexOf(entry.getKey());
+
+			if (index > -1)
+			{
+				prolog = prolog.substring(0, index) + entry.getValue() +
+					prolog.substring(index + entry.getKey().length());
+				if (sb == null)
+					sb = new StringBuilder();
+			}
+		}
+		if (sb == null)
+			return rtmlDocumentString;
+		sb.ensureCapacity(prolog.length() + rtmlDocumentString.length() - prologLength);
+		sb.append(prolog);
+		sb.append(rtmlDocumentString, prologLength, rtmlDocumentString.length());
+		return sb.toString();
+	}
+
+	/**
+	 * Rewrite any remote DTD identifiers in the prolog of the document read from the specified stream.
+	 * The first PROLOG_SEARCH_LENGTH bytes are read and localised (as ISO-8859-1, which maps each byte to one
+	 * character and back, so the document's own encoding is preserved for the ASCII identifiers we replace),
+	 * and returned in front of the rest of the stream.
+	 * @param inputStream The stream to read the RTML document from.
+	 * @return The localised document stream, or the original stream if the catalog is empty.
+	 * @exception IOException Thrown if reading the prolog fails.
+	 * @see #PROLOG_SEARCH_LENGTH
+	 * @see #localiseDocument(java.lang.String)
+	 */
+	public InputStream localiseDocument(InputStream inputStream) throws IOException
+	{
+		byte prolog[] = new byte[PROLOG_SEARCH_LENGTH];
+		String prologString = null;
+		String localisedPrologString = null;
+		int count = 0;
+		int readCount = 0;
+
+		if (systemIdMap.isEmpty())
+			return inputStream;
+		while ((count < prolog.length) && ((readCount = inputStream.read(prolog, count, prolog.length-count)) > -1))
+			count += readCount;
+		prologString = new String(prolog, 0, count, "ISO-8859-1");
+		localisedPrologString = localiseDocument(prologString);
+		if (localisedPrologString == prologString)
+			return new SequenceInputStream(new ByteArrayInputStream(prolog, 0, count), inputStream);
+		return new SequenceInputStream(new ByteArrayInputStream(localisedPrologString.getBytes("ISO-8859-1")),
+					       inputStream);
+	}
+
+	/**
+	 * Open a stream over the specified RTML document, to parse it. Leading whitespace (which is not allowed before
+	 * the XML declaration) is skipped, as String.trim would, and the prolog (the first PROLOG_SEARCH_LENGTH
+	 * characters) is localised. The rest of the document is encoded (as UTF-8) as it is read, so the document is not
+	 * copied. The prolog's XML declaration, if any, is changed to declare the UTF-8 encoding.
+	 * @param rtmlDocumentString The RTML document.
+	 * @return The stream.
+	 * @see #PROLOG_SEARCH_LENGTH
+	 * @see #localiseDocument(java.lang.String)
+	 * @see #setEncodingDeclaration
+	 * @see CharSequenceInputStream
+	 */
+	public InputStream openDocument(String rtmlDocumentString)
+	{
+		String prolog = null;
+		int start = 0;
+		int prologEnd;
+
+		while ((start < rtmlDocumentString.length()) && (rtmlDocumentString.charAt(start) <= ' '))
+			start++;
+		prologEnd = Math.min(rtmlDocumentString.length(), start + PROLOG_SEARCH_LENGTH);
+		// don't split a surrogate pair between the prolog and the rest of the document
+		if ((prologEnd < rtmlDocumentString.length()) &&
+		    Character.isHighSurrogate(rtmlDocumentString.charAt(prologEnd-1)))
+			prologEnd--;
+		prolog = setEncodingDeclaration(localiseDocument(rtmlDocumentString.substring(start, prologEnd)));
+		return new SequenceInputStream(new ByteArrayInputStream(prolog.getBytes(StandardCharsets.UTF_8)),
+			new CharSequenceInputStream(rtmlDocumentString, prologEnd, rtmlDocumentString.length(),
+						    StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Change the encoding declared by the XML declaration at the start of the specified prolog to UTF-8.
+	 * @param prolog The prolog.
+	 * @return The prolog, with the XML declaration's encoding (if any) changed to UTF-8.
+	 * @see #ENCODING_PATTERN
+	 */
+	protected static String setEncodingDeclaration(String prolog)
+	{
+		Matcher matcher = null;
+		int declarationEnd;
+
+		if (prolog.startsWith("<?xml") == false)
+			return prolog;
+		declarationEnd = prolog.indexOf("?>");
+		if (declarationEnd < 0)
+			return prolog;
+		matcher = ENCODING_PATTERN.matcher(prolog).region(0, declarationEnd);
+		if (matcher.find() == false)
+			return prolog;
+		return prolog.substring(0, matcher.start()) + "encoding=\"UTF-8\"" + prolog.substring(matcher.end());
+	}
+
+	/**
+	 * Get the directory the catalog was last loaded from.
+	 * @return The catalog directory, or null if no catalog has been loaded.
+	 * @see #catalogDirectory
+	 */
+	public File getCatalogDirectory()
+	{
+		return catalogDirectory;
+	}
+
+	/**
+	 * Is the catalog in use (the rtml.catalog.use property)? If it is, validate is used to validate documents.
+	 * @return true if the catalog is in use, false otherwise.
+	 * @see #useCatalog
+	 * @see #validate
+	 */
+	public boolean isUsed()
+	{
+		return useCatalog;
+	}
+
+	/**
+	 * Get the local schemas, compiled when the catalog was loaded.
+	 * @return The compiled schema, or null if there are no (compilable) local schemas.
+	 * @see #schema
+	 */
+	public Schema getSchema()
+	{
+		return schema;
+	}
+
+	/**
+	 * Get the entity resolver serving the catalogued DTDs from memory.
+	 * @return The entity resolver.
+	 * @see #entityResolver
+	 */
+	public EntityResolver getEntityResolver()
+	{
+		return entityResolver;
+	}
+
+	/**
+	 * Return a string describing the catalog and the validation statistics.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+"[useCatalog="+useCatalog+",directory="+catalogDirectory+
+			",dtds="+systemIdMap+",schemas="+schemaIdSet+",dtdValidations="+dtdValidationCount.get()+
+			",schemaValidations="+schemaValidationCount.get()+
+			",remoteValidations="+remoteValidationCount.get()+"]";
+	}
+}
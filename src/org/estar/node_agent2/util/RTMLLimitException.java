@@ -0,0 +1,19 @@
+package org.estar.node_agent2.util;
+
+/**
+ * Exception thrown when a received RTML document exceeds one of the configured ingestion limits,
+ * or cannot be admitted within the in-flight bytes budget.
+ * @author cjm
+ * @see org.estar.node_agent2.util.RTMLDocumentLimits
+ */
+public class RTMLLimitException extends Exception
+{
+	/**
+	 * Constructor.
+	 * @param message A description of the limit exceeded.
+	 */
+	public RTMLLimitException(String message)
+	{
+		super(message);
+	}
+}
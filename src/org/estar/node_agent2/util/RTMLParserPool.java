@@ -0,0 +1,683 @@
+package org.estar.node_agent2.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.configuration.NodeAgentProperties;
+
+import org.estar.rtml.RTMLDocument;
+import org.estar.rtml.RTMLException;
+import org.estar.rtml.RTMLParser;
+
+import org.xml.sax.SAXException;
+
+/**
+ * A bounded, thread-safe pool of initialised RTML parsers. Creating and initialising an RTMLParser
+ * is expensive compared to the parse itself, so rather than creating a new parser per web-service call
+ * we borrow an already initialised one from this pool, and return it afterwards.
+ * There are two pools, one of validating parsers and one of non-validating (well-formedness checking only)
+ * parsers, see getInstance(boolean). If the RTMLEntityCatalog is in use, the validating pool validates each
+ * document against the grammars cached by the catalog, and then parses it with a non-validating parser, so the
+ * DTD/schema is not re-read and re-compiled by every parse.
+ * <ul>
+ * <li>Parsers are created lazily, up to the configured pool size.
+ * <li>If all parsers are in use, callers wait (up to the configured wait timeout) for one to be returned.
+ * <li>A parser whose parse failed because the document was malformed or invalid (a SAXException or
+ *     RTMLException) is put back into the pool, as the parser's DocumentBuilder can be re-used after a failed
+ *     parse. A parser that failed for any other reason is in an unknown state, and is discarded on return,
+ *     and a fresh parser is created and put into the pool in it's place straight away, so callers waiting
+ *     for a parser are not kept waiting.
+ * <li>Callers waiting for a parser also re-check, every WAIT_SLICE milliseconds, whether the pool has room
+ *     to create a new parser (e.g. if creating a replacement failed).
+ * </ul>
+ * Statistics on the pool size and the time callers spend waiting for a parser are kept, and can be logged
+ * to help size the pool against the number of container worker threads.
+ * @author cjm
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_PARSER_POOL_SIZE
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_PARSER_POOL_WAIT_TIMEOUT
+ */
+public class RTMLParserPool
+{
+	/**
+	 * The default maximum number of parsers in the pool, if the pool size property is not set.
+	 */
+	public static final int DEFAULT_POOL_SIZE = 8;
+	/**
+	 * The default time to wait for a free parser, in milliseconds, if the wait timeout property is not set.
+	 */
+	public static final long DEFAULT_WAIT_TIMEOUT = 30000;
+	/**
+	 * How long (in milliseconds) a caller waits for a parser to be returned, before re-checking whether
+	 * the pool has room to create a new one.
+	 */
+	public static final long WAIT_SLICE = 100;
+	/**
+	 * The instance of this class holding validating parsers.
+	 */
+	private static RTMLParserPool validatingInstance = null;
+	/**
+	 * The instance of this class holding non-validating parsers.
+	 */
+	private static RTMLParserPool nonValidatingInstance = null;
+	/**
+	 * The trace logger.
+	 */
+	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+	/**
+	 * The error logger.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+	/**
+	 * Whether the parsers in this pool validate the documents they parse.
+	 */
+	private boolean validate;
+	/**
+	 * Whether documents are validated by the RTMLEntityCatalog (using it's cached grammars) before being parsed
+	 * by a non-validating parser, rather than by a validating parser.
+	 */
+	private boolean catalogValidate;
+	/**
+	 * The maximum number of parsers this pool will create.
+	 */
+	private int poolSize;
+	/**
+	 * How long to wait for a free parser, in milliseconds.
+	 */
+	private long waitTimeout;
+	/**
+	 * The initialised parsers not currently in use.
+	 */
+	private BlockingQueue<RTMLParser> idleParsers = null;
+	/**
+	 * The number of parsers currently created (idle or in use).
+	 */
+	private AtomicInteger createdCount = new AtomicInteger(0);
+	/**
+	 * The total number of parsers created over the lifetime of the pool (including replacements for
+	 * discarded parsers).
+	 */
+	private AtomicLong totalCreatedCount = new AtomicLong(0);
+	/**
+	 * The number of parsers discarded on return, because the parse failed for a reason other than the document.
+	 */
+	private AtomicLong discardCount = new AtomicLong(0);
+	/**
+	 * The number of parsers put back into the pool after a parse that failed because of the document.
+	 */
+	private AtomicLong documentErrorCount = new AtomicLong(0);
+	/**
+	 * The number of times a parser has been borrowed.
+	 */
+	private AtomicLong borrowCount = new AtomicLong(0);
+	/**
+	 * The number of borrows that had to wait for a parser to be returned.
+	 */
+	private AtomicLong waitCount = new AtomicLong(0);
+	/**
+	 * The total time spent waiting for parsers, in nanoseconds.
+	 */
+	private AtomicLong totalWaitTime = new AtomicLong(0);
+	/**
+	 * The longest time spent waiting for a parser, in nanoseconds.
+	 */
+	private AtomicLong maxWaitTime = new AtomicLong(0);
+	/**
+	 * The number of documents parsed by parse.
+	 */
+	private AtomicLong parseCount = new AtomicLong(0);
+	/**
+	 * The total time spent in parse (localising, validating and parsing, excluding waiting for a parser), in nanoseconds.
+	 */
+	private AtomicLong totalParseTime = new AtomicLong(0);
+
+	/**
+	 * Get the instance of this class holding validating parsers. Construct it if required.
+	 * @return The validating parser pool.
+	 * @see #getInstance(boolean)
+	 */
+	public static RTMLParserPool getInstance()
+	{
+		return getInstance(true);
+	}
+
+	/**
+	 * Get the instance of this class holding either validating or non-validating parsers. 
+	 * Construct it if required.
+	 * @param validate Whether to return the pool of validating parsers (true), or the pool of
+	 *        non-validating parsers (false).
+	 * @return The parser pool.
+	 * @see #validatingInstance
+	 * @see #nonValidatingInstance
+	 */
+	public static synchronized RTMLParserPool getInstance(boolean validate)
+	{
+		if (validate)
+		{
+			if (validatingInstance == null)
+			{
+				validatingInstance = new RTMLParserPool(true);
+			}
+			return validatingInstance;
+		}
+		else
+		{
+			if (nonValidatingInstance == null)
+			{
+				nonValidatingInstance = new RTMLParserPool(false);
+			}
+			return nonValidatingInstance;
+		}
+	}
+
+	/**
+	 * Internal constructor used by getInstance. The pool size and wait timeout are retrieved from
+	 * NodeAgentProperties, using the defaults if they are not set.
+	 * @param validate Whether the parsers in this pool validate the documents they parse.
+	 * @see #validate
+	 * @see #catalogValidate
+	 * @see #poolSize
+	 * @see #waitTimeout
+	 * @see #idleParsers
+	 * @see #DEFAULT_POOL_SIZE
+	 * @see #DEFAULT_WAIT_TIMEOUT
+	 */
+	private RTMLParserPool(boolean validate)
+	{
+		NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
+
+		this.validate = validate;
+		catalogValidate = validate && RTMLEntityCatalog.getInstance().isUsed();
+		poolSize = DEFAULT_POOL_SIZE;
+		waitTimeout = DEFAULT_WAIT_TIMEOUT;
+		if (nodeAgentProperties != null)
+		{
+			try
+			{
+				poolSize = nodeAgentProperties.getIntProperty(NodeAgentProperties.RTML_PARSER_POOL_SIZE,
+						DEFAULT_POOL_SIZE);
+				waitTimeout = nodeAgentProperties.getLongProperty(NodeAgentProperties.RTML_PARSER_POOL_WAIT_TIMEOUT,
+						DEFAULT_WAIT_TIMEOUT);
+			}
+			catch (NumberFormatException e)
+			{
+				errorLogger.log(1, RTMLParserPool.class.getName(),
+						"Illegal parser pool property, using defaults:"+e);
+			}
+		}
+		if (poolSize < 1)
+			poolSize = 1;
+		idleParsers = new ArrayBlockingQueue<RTMLParser>(poolSize);
+		traceLogger.log(5, RTMLParserPool.class.getName(), "... created parser pool (validate="+validate+
+				",catalogValidate="+catalogValidate+") of size "+poolSize+" with wait timeout "+waitTimeout+" ms.");
+	}
+
+	/**
+	 * Borrow an initialised parser from the pool. An idle parser is returned if one is available,
+	 * otherwise a new one is created if the pool is not full, otherwise we wait for a parser to be returned.
+	 * The wait is done in slices of WAIT_SLICE milliseconds, and after each slice we re-check whether the pool
+	 * has room to create a new parser, so a waiter does not sleep through capacity freed by a discarded parser.
+	 * The parser must be returned using returnParser when it is finished with.
+	 * @return An initialised RTMLParser.
+	 * @throws Exception Thrown if no parser became available within the wait timeout,
+	 *         or creating a new parser failed.
+	 * @see #returnParser
+	 * @see #createParserIfNotFull
+	 * @see #idleParsers
+	 * @see #WAIT_SLICE
+	 */
+	public RTMLParser borrowParser() throws Exception
+	{
+		RTMLParser parser = null;
+		long waitStartTime,waitEndTime,remainingTime,waitTime;
+
+		borrowCount.incrementAndGet();
+		parser = idleParsers.poll();
+		if (parser != null)
+			return parser;
+		parser = createParserIfNotFull();
+		if (parser != null)
+			return parser;
+		// pool is full, wait for a parser to be returned
+		waitCount.incrementAndGet();
+		waitStartTime = System.nanoTime();
+		waitEndTime = waitStartTime+TimeUnit.MILLISECONDS.toNanos(waitTimeout);
+		while (parser == null)
+		{
+			remainingTime = waitEndTime-System.nanoTime();
+			if (remainingTime <= 0)
+				break;
+			parser = idleParsers.poll(Math.min(remainingTime,TimeUnit.MILLISECONDS.toNanos(WAIT_SLICE)),
+						  TimeUnit.NANOSECONDS);
+			if (parser == null)
+				parser = createParserIfNotFull();
+		}
+		waitTime = System.nanoTime()-waitStartTime;
+		totalWaitTime.addAndGet(waitTime);
+		updateMaxWaitTime(waitTime);
+		if (parser == null)
+		{
+			errorLogger.log(1, RTMLParserPool.class.getName(),
+					"borrowParser:Timed out after "+waitTimeout+" ms waiting for a parser:"+this);
+			throw new Exception(this.getClass().getName()+":borrowParser:Timed out after "+waitTimeout+
+					" ms waiting for a free RTML parser.");
+		}
+		return parser;
+	}
+
+	/**
+	 * Return a previously borrowed parser to the pool.
+	 * @param parser The parser to return.
+	 * @param reusable Whether the parser can be re-used. This should be false if the parser threw an unexpected
+	 *        exception whilst parsing, in which case the parser is discarded, and a new one is created and put
+	 *        into the pool in it's place (waking any caller waiting for a parser).
+	 * @see #borrowParser
+	 * @see #idleParsers
+	 * @see #createdCount
+	 * @see #discardCount
+	 * @see #createParser
+	 */
+	public void returnParser(RTMLParser parser,boolean reusable)
+	{
+		RTMLParser replacementParser = null;
+
+		if (parser == null)
+			return;
+		if (reusable)
+		{
+			if (idleParsers.offer(parser) == false)
+				createdCount.decrementAndGet();
+			return;
+		}
+		discardCount.incrementAndGet();
+		try
+		{
+			replacementParser = createParser();
+		}
+		catch (Exception e)
+		{
+			errorLogger.log(1, RTMLParserPool.class.getName(),"returnParser:Failed to create replacement parser:"+e);
+			createdCount.decrementAndGet();
+			return;
+		}
+		if (idleParsers.offer(replacementParser) == false)
+			createdCount.decrementAndGet();
+	}
+
+	/**
+	 * Is the specified parse failure caused by the document (rather than the parser)? The parser's
+	 * DocumentBuilder can be re-used after it reports a malformed or invalid document, so such parsers are
+	 * put back into the pool rather than discarded.
+	 * @param e The exception thrown by the parse.
+	 * @return true if the exception is a SAXException or an RTMLException.
+	 * @see #documentErrorCount
+	 */
+	protected boolean isDocumentError(Exception e)
+	{
+		if ((e instanceof SAXException) || (e instanceof RTMLException))
+		{
+			documentErrorCount.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Parse the specified string into an RTML document, using a parser borrowed from the pool.
+	 * The document is read through a stream from the RTMLEntityCatalog, which skips leading whitespace and
+	 * localises the DOCTYPE, so a DTD is read from the local copy rather than over the network.
+	 * The document string is not copied. If catalogValidate is set, the document is first validated by the
+	 * catalog, from a second stream.
+	 * @param rtmlDocumentString The string to parse. Leading whitespace is ignored.
+	 * @return The parsed RTML document.
+	 * @throws Exception Thrown if no parser is available, or the validation or parse fails.
+	 * @see #borrowParser
+	 * @see #returnParser
+	 * @see #catalogValidate
+	 * @see #parseCount
+	 * @see #totalParseTime
+	 * @see RTMLEntityCatalog#openDocument
+	 * @see RTMLEntityCatalog#validate
+	 */
+	public RTMLDocument parse(String rtmlDocumentString) throws Exception
+	{
+		RTMLEntityCatalog catalog = RTMLEntityCatalog.getInstance();
+		RTMLParser parser = null;
+		RTMLDocument rtmlDocument = null;
+		boolean reusable = false;
+		long parseStartTime;
+
+		parser = borrowParser();
+		parseStartTime = System.nanoTime();
+		try
+		{
+			if (catalogValidate)
+				catalog.validate(catalog.openDocument(rtmlDocumentString));
+			rtmlDocument = parser.parse(catalog.openDocument(rtmlDocumentString));
+			reusable = true;
+		}
+		catch (Exception e)
+		{
+			reusable = isDocumentError(e);
+			throw e;
+		}
+		finally
+		{
+			returnParser(parser,reusable);
+			parseCount.incrementAndGet();
+			totalParseTime.addAndGet(System.nanoTime()-parseStartTime);
+		}
+		return rtmlDocument;
+	}
+
+	/**
+	 * Parse the RTML document read from the specified stream, using a parser borrowed from the pool.
+	 * The document's DOCTYPE is localised using the RTMLEntityCatalog first. The document is never held as a string.
+	 * If catalogValidate is set, the document is first validated by the catalog, and the stream is then reset and
+	 * parsed. The stream must be a ByteArrayInputStream (as returned by RTMLDocumentLimits.check) to be reset,
+	 * otherwise it is read into one first.
+	 * @param inputStream The stream to parse. This is not closed.
+	 * @return The parsed RTML document.
+	 * @throws Exception Thrown if no parser is available, or the validation or parse fails.
+	 * @see #borrowParser
+	 * @see #returnParser
+	 * @see #catalogValidate
+	 * @see RTMLEntityCatalog#localiseDocument(java.io.InputStream)
+	 * @see RTMLEntityCatalog#validate
+	 * @see RTMLDocumentLimits#check
+	 */
+	public RTMLDocument parse(InputStream inputStream) throws Exception
+	{
+		RTMLParser parser = null;
+		RTMLDocument rtmlDocument = null;
+		boolean reusable = false;
+		long parseStartTime;
+
+		parser = borrowParser();
+		parseStartTime = System.nanoTime();
+		try
+		{
+			if (catalogValidate)
+			{
+				if ((inputStream instanceof ByteArrayInputStream) == false)
+					inputStream = readDocument(inputStream);
+				inputStream.mark(Integer.MAX_VALUE);
+				RTMLEntityCatalog.getInstance().validate(inputStream);
+				inputStream.reset();
+			}
+			rtmlDocument = parser.parse(RTMLEntityCatalog.getInstance().localiseDocument(inputStream));
+			reusable = true;
+		}
+		catch (Exception e)
+		{
+			reusable = isDocumentError(e);
+			throw e;
+		}
+		finally
+		{
+			returnParser(parser,reusable);
+			parseCount.incrementAndGet();
+			totalParseTime.addAndGet(System.nanoTime()-parseStartTime);
+		}
+		return rtmlDocument;
+	}
+
+	/**
+	 * Read the rest of the specified stream into a ByteArrayInputStream, which can be reset after validating it.
+	 * @param inputStream The stream to read.
+	 * @return A stream of the bytes read.
+	 * @throws IOException Thrown if reading the stream fails.
+	 */
+	private static InputStream readDocument(InputStream inputStream) throws IOException
+	{
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		byte buffer[] = new byte[8192];
+		int count;
+
+		while ((count = inputStream.read(buffer)) > -1)
+			outputStream.write(buffer, 0, count);
+		return new ByteArrayInputStream(outputStream.toByteArray());
+	}
+
+	/**
+	 * Create and initialise a new parser, if fewer than poolSize parsers have been created.
+	 * @return A new, initialised, RTMLParser, or null if the pool is full.
+	 * @throws Exception Thrown if the initialisation fails.
+	 * @see #createdCount
+	 * @see #createParser
+	 */
+	private RTMLParser createParserIfNotFull() throws Exception
+	{
+		int count;
+
+		while (true)
+		{
+			count = createdCount.get();
+			if (count >= poolSize)
+				return null;
+			if (createdCount.compareAndSet(count, count+1))
+			{
+				try
+				{
+					return createParser();
+				}
+				catch (Exception e)
+				{
+					createdCount.decrementAndGet();
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create and initialise a new parser, validating if this pool's validate flag is set, and the documents are not
+	 * validated by the catalog.
+	 * @return A new, initialised, RTMLParser.
+	 * @throws Exception Thrown if the initialisation fails.
+	 * @see #validate
+	 * @see #catalogValidate
+	 * @see #totalCreatedCount
+	 */
+	private RTMLParser createParser() throws Exception
+	{
+		RTMLParser parser = null;
+
+		traceLogger.log(5, RTMLParserPool.class.getName(), "... creating new pooled parser.");
+		parser = new RTMLParser();
+		parser.init(validate && !catalogValidate);
+		totalCreatedCount.incrementAndGet();
+		return parser;
+	}
+
+	/**
+	 * Update maxWaitTime if the specified wait time is longer.
+	 * @param waitTime The wait time, in nanoseconds.
+	 * @see #maxWaitTime
+	 */
+	private void updateMaxWaitTime(long waitTime)
+	{
+		long currentMaxWaitTime;
+
+		do
+		{
+			currentMaxWaitTime = maxWaitTime.get();
+			if (waitTime <= currentMaxWaitTime)
+				return;
+		}
+		while (!maxWaitTime.compareAndSet(currentMaxWaitTime, waitTime));
+	}
+
+	/**
+	 * Get whether the parsers in this pool validate the documents they parse.
+	 * @return true if the parsers are validating, false otherwise.
+	 * @see #validate
+	 */
+	public boolean isValidating()
+	{
+		return validate;
+	}
+
+	/**
+	 * Get the maximum number of parsers this pool will create.
+	 * @return The pool size.
+	 * @see #poolSize
+	 */
+	public int getPoolSize()
+	{
+		return poolSize;
+	}
+
+	/**
+	 * Get the number of parsers currently created (idle or in use).
+	 * @return The number of created parsers.
+	 * @see #createdCount
+	 */
+	public int getCreatedCount()
+	{
+		return createdCount.get();
+	}
+
+	/**
+	 * Get the number of parsers currently idle in the pool.
+	 * @return The number of idle parsers.
+	 * @see #idleParsers
+	 */
+	public int getIdleCount()
+	{
+		return idleParsers.size();
+	}
+
+	/**
+	 * Get the total number of parsers created over the lifetime of the pool.
+	 * @return The total number of parsers created.
+	 * @see #totalCreatedCount
+	 */
+	public long getTotalCreatedCount()
+	{
+		return totalCreatedCount.get();
+	}
+
+	/**
+	 * Get the number of parsers discarded because their parse failed.
+	 * @return The number of discarded parsers.
+	 * @see #discardCount
+	 */
+	public long getDiscardCount()
+	{
+		return discardCount.get();
+	}
+
+	/**
+	 * Get the number of parsers put back into the pool after a parse that failed because of the document.
+	 * @return The number of document errors.
+	 * @see #documentErrorCount
+	 */
+	public long getDocumentErrorCount()
+	{
+		return documentErrorCount.get();
+	}
+
+	/**
+	 * Get the number of times a parser has been borrowed.
+	 * @return The number of borrows.
+	 * @see #borrowCount
+	 */
+	public long getBorrowCount()
+	{
+		return borrowCount.get();
+	}
+
+	/**
+	 * Get the number of borrows that had to wait for a parser to be returned to the pool.
+	 * @return The number of borrows that waited.
+	 * @see #waitCount
+	 */
+	public long getWaitCount()
+	{
+		return waitCount.get();
+	}
+
+	/**
+	 * Get the total time spent waiting for a parser.
+	 * @return The total wait time, in milliseconds.
+	 * @see #totalWaitTime
+	 */
+	public double getTotalWaitTime()
+	{
+		return ((double)totalWaitTime.get())/1000000.0;
+	}
+
+	/**
+	 * Get the longest time spent waiting for a parser.
+	 * @return The maximum wait time, in milliseconds.
+	 * @see #maxWaitTime
+	 */
+	public double getMaxWaitTime()
+	{
+		return ((double)maxWaitTime.get())/1000000.0;
+	}
+
+	/**
+	 * Get the average time a borrow that had to wait, waited for a parser.
+	 * @return The average wait time, in milliseconds.
+	 * @see #getTotalWaitTime
+	 * @see #getWaitCount
+	 */
+	public double getAverageWaitTime()
+	{
+		long count = waitCount.get();
+
+		if (count == 0)
+			return 0.0;
+		return getTotalWaitTime()/((double)count);
+	}
+
+	/**
+	 * Get the number of documents parsed using parse.
+	 * @return The number of parsed documents.
+	 * @see #parseCount
+	 */
+	public long getParseCount()
+	{
+		return parseCount.get();
+	}
+
+	/**
+	 * Get the average time taken to localise, validate (if the catalog validates) and parse a document. Comparing this with the
+	 * rtml.catalog.use property set to true and false shows the effect of the entity catalog.
+	 * @return The average parse time, in milliseconds.
+	 * @see #parseCount
+	 * @see #totalParseTime
+	 */
+	public double getAverageParseTime()
+	{
+		long count = parseCount.get();
+
+		if (count == 0)
+			return 0.0;
+		return (((double)totalParseTime.get())/1000000.0)/((double)count);
+	}
+
+	/**
+	 * Return a string describing the pool size and wait statistics.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+"[validate="+validate+",catalogValidate="+catalogValidate+",poolSize="+poolSize+",created="+getCreatedCount()+
+			",idle="+getIdleCount()+",totalCreated="+getTotalCreatedCount()+",discarded="+getDiscardCount()+
+			",documentErrors="+getDocumentErrorCount()+
+			",borrows="+getBorrowCount()+",waits="+getWaitCount()+",totalWaitTime="+getTotalWaitTime()+
+			" ms,averageWaitTime="+getAverageWaitTime()+" ms,maxWaitTime="+getMaxWaitTime()+
+			" ms,parses="+getParseCount()+",averageParseTime="+getAverageParseTime()+" ms]";
+	}
+}
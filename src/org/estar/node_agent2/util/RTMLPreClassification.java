@@ -0,0 +1,129 @@
+package org.estar.node_agent2.util;
+
+import org.estar.rtml.RTMLDocument;
+
+/**
+ * The result of pre-classifying an RTML document using the RTMLPreClassifier: the document's version,
+ * type/mode, Contact user and Project tag, as found in the start of the document. Any of these can be null
+ * if they were not found in the scanned part of the document.
+ * @author cjm
+ * @see RTMLPreClassifier
+ */
+public class RTMLPreClassification
+{
+	/**
+	 * The RTML root element's version attribute.
+	 */
+	protected String version = null;
+	/**
+	 * The RTML root element's type attribute (RTML 2.2).
+	 */
+	protected String type = null;
+	/**
+	 * The RTML root element's mode attribute (RTML 3.1).
+	 */
+	protected String mode = null;
+	/**
+	 * The Contact's User (RTML 2.2) or Username (RTML 3.1).
+	 */
+	protected String contactUser = null;
+	/**
+	 * The Project tag, either the Project element's text (RTML 2.2) or it's ProjectID attribute (RTML 3.1).
+	 */
+	protected String project = null;
+
+	/**
+	 * Get the RTML root element's version attribute.
+	 * @return The version, or null if it was not found.
+	 * @see #version
+	 */
+	public String getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * Get the RTMLDocument version constant corresponding to the document's version attribute.
+	 * @return RTMLDocument.RTML_VERSION_31 for a 3.1 document (including 3.1a), otherwise RTMLDocument.RTML_VERSION_22.
+	 * @see #version
+	 * @see org.estar.rtml.RTMLDocument#RTML_VERSION_22
+	 * @see org.estar.rtml.RTMLDocument#RTML_VERSION_31
+	 */
+	public String getRTMLDocumentVersion()
+	{
+		if ((version != null) && version.startsWith(RTMLDocument.RTML_VERSION_31))
+			return RTMLDocument.RTML_VERSION_31;
+		return RTMLDocument.RTML_VERSION_22;
+	}
+
+	/**
+	 * Get the RTML root element's type attribute (RTML 2.2).
+	 * @return The type, or null if it was not found.
+	 * @see #type
+	 */
+	public String getType()
+	{
+		return type;
+	}
+
+	/**
+	 * Get the RTML root element's mode attribute (RTML 3.1).
+	 * @return The mode, or null if it was not found.
+	 * @see #mode
+	 */
+	public String getMode()
+	{
+		return mode;
+	}
+
+	/**
+	 * Get the document type, i.e. the type attribute if present, otherwise the mode attribute.
+	 * @return The document type, or null if neither was found.
+	 * @see #type
+	 * @see #mode
+	 */
+	public String getDocumentType()
+	{
+		if (type != null)
+			return type;
+		return mode;
+	}
+
+	/**
+	 * Get the Contact user.
+	 * @return The Contact user, or null if it was not found.
+	 * @see #contactUser
+	 */
+	public String getContactUser()
+	{
+		return contactUser;
+	}
+
+	/**
+	 * Get the Project tag.
+	 * @return The Project tag, or null if it was not found.
+	 * @see #project
+	 */
+	public String getProject()
+	{
+		return project;
+	}
+
+	/**
+	 * Have all the pre-classified fields been found?
+	 * @return true if the version, type or mode, contact user and project were all found.
+	 */
+	public boolean isComplete()
+	{
+		return (version != null) && (getDocumentType() != null) && (contactUser != null) && (project != null);
+	}
+
+	/**
+	 * Return a string describing the classification.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+"[version="+version+",type="+type+",mode="+mode+
+			",contactUser="+contactUser+",project="+project+"]";
+	}
+}
@@ -0,0 +1,295 @@
+package org.estar.node_agent2.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.configuration.NodeAgentProperties;
+
+/**
+ * Single pass StAX scanner, that pulls the version, type/mode, Contact user and Project tag out of the start
+ * of an RTML document, without building a document object model or validating the document.
+ * This allows decisions that would otherwise be made after a full validating parse (is the TEA connected,
+ * does the document's user match the authenticated user) to be made before it, so documents that are going
+ * to be rejected do not pay for the full parse.
+ * <p>
+ * Only the first rtml.preclassifier.prefix.length characters of the document are scanned, and the scan stops
+ * as soon as all the fields have been found. A document that is not well-formed within the scanned prefix
+ * returns whatever was found up to that point; the full parse reports the actual error.
+ * @author cjm
+ * @see RTMLPreClassification
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_PRECLASSIFIER_PREFIX_LENGTH
+ */
+public class RTMLPreClassifier
+{
+	/**
+	 * The default number of characters scanned, if the rtml.preclassifier.prefix.length property is not set.
+	 */
+	public static final int DEFAULT_PREFIX_LENGTH = 8192;
+	/**
+	 * The trace logger.
+	 */
+	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+	/**
+	 * The error logger.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+	/**
+	 * The StAX input factory. This is configured once, and not to load the DTD or any external entities.
+	 */
+	private static XMLInputFactory xmlInputFactory = null;
+	/**
+	 * The number of characters of the document to scan.
+	 */
+	private static int prefixLength = -1;
+
+	/**
+	 * Pre-classify the specified RTML document, scanning at most the first prefix length characters.
+	 * @param rtmlDocumentString The RTML document.
+	 * @return The classification. Fields that were not found are null.
+	 * @see #getPrefixLength
+	 * @see #classify(java.io.Reader)
+	 */
+	public static RTMLPreClassification classify(String rtmlDocumentString)
+	{
+		int length = Math.min(rtmlDocumentString.length(), getPrefixLength());
+
+		return classify(new StringReader(rtmlDocumentString.substring(0, length)));
+	}
+
+	/**
+	 * Pre-classify the RTML document at the start of the specified input stream, scanning at most the 
+	 * first prefix length bytes. The stream is marked before the prefix is read, and reset afterwards,
+	 * so the whole document can then be parsed from the same stream.
+	 * @param inputStream The input stream to read the RTML document from. This must support mark/reset.
+	 * @return The classification. Fields that were not found are null.
+	 * @exception IOException Thrown if the stream does not support mark/reset, or reading it fails.
+	 * @see #getPrefixLength
+	 * @see #classify(java.io.InputStream,int)
+	 */
+	public static RTMLPreClassification classify(InputStream inputStream) throws IOException
+	{
+		return classify(inputStream,getPrefixLength());
+	}
+
+	/**
+	 * Pre-classify the RTML document at the start of the specified input stream, scanning at most the 
+	 * first prefixLength bytes. The stream is marked before the prefix is read, and reset afterwards.
+	 * The prefix is scanned as a byte stream, so the parser detects the document's encoding.
+	 * @param inputStream The input stream to read the RTML document from. This must support mark/reset.
+	 * @param length The maximum number of bytes to scan.
+	 * @return The classification. Fields that were not found are null.
+	 * @exception IOException Thrown if the stream does not support mark/reset, or reading it fails.
+	 * @see #scan
+	 */
+	public static RTMLPreClassification classify(InputStream inputStream,int length) throws IOException
+	{
+		byte prefix[] = new byte[length];
+		int count = 0;
+		int readCount = 0;
+
+		if (inputStream.markSupported() == false)
+		{
+			throw new IOException(RTMLPreClassifier.class.getName()+
+					":classify:Input stream does not support mark/reset.");
+		}
+		inputStream.mark(length);
+		try
+		{
+			while ((count < length) && ((readCount = inputStream.read(prefix, count, length-count)) > -1))
+				count += readCount;
+		}
+		finally
+		{
+			inputStream.reset();
+		}
+		try
+		{
+			return scan(getXMLInputFactory().createXMLStreamReader(new ByteArrayInputStream(prefix, 0, count)));
+		}
+		catch (XMLStreamException e)
+		{
+			traceLogger.log(5, RTMLPreClassifier.class.getName(), "... pre-classification failed:"+e.getMessage());
+			return new RTMLPreClassification();
+		}
+	}
+
+	/**
+	 * Pre-classify the RTML document read from the specified reader. The reader is read until all the
+	 * fields have been found, the document ends, or it is found to be not well-formed. The caller is
+	 * responsible for limiting how much the reader returns.
+	 * @param reader The reader to read the RTML document from.
+	 * @return The classification. Fields that were not found are null.
+	 * @see #getXMLInputFactory
+	 * @see #scan
+	 */
+	public static RTMLPreClassification classify(Reader reader)
+	{
+		try
+		{
+			return scan(getXMLInputFactory().createXMLStreamReader(reader));
+		}
+		catch (XMLStreamException e)
+		{
+			traceLogger.log(5, RTMLPreClassifier.class.getName(), "... pre-classification failed:"+e.getMessage());
+			return new RTMLPreClassification();
+		}
+	}
+
+	/**
+	 * Scan the document read by the specified stream reader, until all the fields have been found, the
+	 * document ends, or it is found to be not well-formed. The stream reader is closed.
+	 * @param xmlStreamReader The stream reader to scan.
+	 * @return The classification. Fields that were not found are null.
+	 */
+	private static RTMLPreClassification scan(XMLStreamReader xmlStreamReader)
+	{
+		RTMLPreClassification classification = new RTMLPreClassification();
+		int depth = 0;
+		int contactDepth = -1;
+		StringBuilder projectText = null;
+		boolean seenRoot = false;
+
+		try
+		{
+			while (xmlStreamReader.hasNext() && (classification.isComplete() == false))
+			{
+				int event = xmlStreamReader.next();
+
+				if (event == XMLStreamConstants.START_ELEMENT)
+				{
+					String name = xmlStreamReader.getLocalName();
+
+					depth++;
+					// a child of a depth 2 Project, so the ProjectID is not in this document, keep scanning
+					projectText = null;
+					if (seenRoot == false)
+					{
+						seenRoot = true;
+						classification.version = xmlStreamReader.getAttributeValue(null, "version");
+						classification.type = xmlStreamReader.getAttributeValue(null, "type");
+						classification.mode = xmlStreamReader.getAttributeValue(null, "mode");
+					}
+					else if (name.equals("Contact") && (classification.contactUser == null))
+					{
+						contactDepth = depth;
+					}
+					else if ((contactDepth > -1) && (name.equals("User") || name.equals("Username")))
+					{
+						classification.contactUser = xmlStreamReader.getElementText().trim();
+						depth--;
+					}
+					else if (name.equals("Project") && (classification.project == null))
+					{
+						String projectId = xmlStreamReader.getAttributeValue(null, "ProjectID");
+
+						if (projectId != null)
+							classification.project = projectId.trim();
+						else if (depth == 2)
+						{
+							// RTML 2.2 Project tag is the element text, if it has no children
+							projectText = new StringBuilder();
+						}
+					}
+				}
+				else if ((projectText != null) && ((event == XMLStreamConstants.CHARACTERS) ||
+								   (event == XMLStreamConstants.CDATA) ||
+								   (event == XMLStreamConstants.SPACE)))
+				{
+					projectText.append(xmlStreamReader.getText());
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT)
+				{
+					if (projectText != null)
+					{
+						classification.project = projectText.toString().trim();
+						projectText = null;
+					}
+					if (depth == contactDepth)
+						contactDepth = -1;
+					depth--;
+				}
+			}
+		}
+		catch (XMLStreamException e)
+		{
+			// end of prefix, or document not well-formed, return what we found
+			traceLogger.log(5, RTMLPreClassifier.class.getName(), "... pre-classification stopped:"+e.getMessage());
+		}
+		finally
+		{
+			if (xmlStreamReader != null)
+			{
+				try
+				{
+					xmlStreamReader.close();
+				}
+				catch (XMLStreamException e)
+				{
+				}
+			}
+		}
+		traceLogger.log(5, RTMLPreClassifier.class.getName(), "... pre-classified document as:"+classification);
+		return classification;
+	}
+
+	/**
+	 * Get the number of characters of a document to scan, from the rtml.preclassifier.prefix.length property,
+	 * or DEFAULT_PREFIX_LENGTH if it is not set.
+	 * @return The prefix length.
+	 * @see #prefixLength
+	 * @see #DEFAULT_PREFIX_LENGTH
+	 */
+	public static synchronized int getPrefixLength()
+	{
+		if (prefixLength < 0)
+		{
+			NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
+
+			prefixLength = DEFAULT_PREFIX_LENGTH;
+			if (nodeAgentProperties != null)
+			{
+				try
+				{
+					prefixLength = nodeAgentProperties.getIntProperty(
+						NodeAgentProperties.RTML_PRECLASSIFIER_PREFIX_LENGTH, DEFAULT_PREFIX_LENGTH);
+				}
+				catch (NumberFormatException e)
+				{
+					errorLogger.log(1, RTMLPreClassifier.class.getName(),
+							"Illegal pre-classifier prefix length, using default:"+e);
+				}
+			}
+		}
+		return prefixLength;
+	}
+
+	/**
+	 * Get the StAX input factory, creating and configuring it if required. The factory is configured
+	 * not to process the DTD or load external entities, so the scan never goes to the network.
+	 * @return The XMLInputFactory.
+	 * @see #xmlInputFactory
+	 */
+	private static synchronized XMLInputFactory getXMLInputFactory()
+	{
+		if (xmlInputFactory == null)
+		{
+			xmlInputFactory = XMLInputFactory.newInstance();
+			xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+			xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+			xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		}
+		return xmlInputFactory;
+	}
+}
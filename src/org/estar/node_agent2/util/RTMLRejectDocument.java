@@ -0,0 +1,78 @@
+package org.estar.node_agent2.util;
+
+import org.estar.rtml.RTMLDocument;
+
+/**
+ * An RTML reject document created from scratch by RTMLUtil.createRejectDocument. As well as being an
+ * ordinary RTMLDocument, it remembers the values it was created from, so RTMLReplySerializer can
+ * serialize it from a precompiled template rather than through RTMLCreate.
+ * A deep clone of this document is a plain RTMLDocument, and so is always serialized by RTMLCreate.
+ * @author cjm
+ * @see RTMLUtil#createRejectDocument
+ * @see RTMLReplySerializer
+ */
+public class RTMLRejectDocument extends RTMLDocument
+{
+	/**
+	 * The name of the node agent, used as the history entry's agent name.
+	 */
+	protected String nodeAgentName = null;
+	/**
+	 * The error, used in the error string and as the history entry's error.
+	 */
+	protected String error = null;
+	/**
+	 * The description, used in the error string and as the history entry's description.
+	 */
+	protected String description = null;
+
+	/**
+	 * Constructor.
+	 * @param nodeAgentName The name of the node agent.
+	 * @param error The error.
+	 * @param description The description.
+	 */
+	public RTMLRejectDocument(String nodeAgentName,String error,String description)
+	{
+		super();
+		this.nodeAgentName = nodeAgentName;
+		this.error = error;
+		this.description = description;
+	}
+
+	/**
+	 * Get the name of the node agent that created this document.
+	 * @return The node agent name.
+	 */
+	public String getNodeAgentName()
+	{
+		return nodeAgentName;
+	}
+
+	/**
+	 * Get the error this document was created for.
+	 * @return The error.
+	 */
+	public String getError()
+	{
+		return error;
+	}
+
+	/**
+	 * Get the description of why the document was rejected.
+	 * @return The description.
+	 */
+	public String getDescription()
+	{
+		return description;
+	}
+
+	/**
+	 * Get the error string set in this document, i.e. "error : description".
+	 * @return The error string.
+	 */
+	public String getRejectErrorString()
+	{
+		return error + " : " + description;
+	}
+}
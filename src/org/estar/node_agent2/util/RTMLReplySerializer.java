@@ -0,0 +1,415 @@
+package org.estar.node_agent2.util;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.configuration.NodeAgentProperties;
+
+import org.estar.rtml.RTMLDateFormat;
+import org.estar.rtml.RTMLDocument;
+import org.estar.rtml.RTMLHistory;
+import org.estar.rtml.RTMLHistoryEntry;
+
+/**
+ * Serializer for reply RTML documents. Most replies the node agent creates itself are reject documents created
+ * from scratch (RTMLRejectDocument), which all have the same shape: a version, the reject type, an error string,
+ * and one history error entry. Serializing these through RTMLCreate builds a DOM and transforms it for every reply.
+ * Instead, for each RTML version, a reject document is created with sentinel values and serialized once by
+ * RTMLCreate, and the output compiled into a template of literal segments and value slots. Reject documents are
+ * then serialized by concatenating the segments and the document's values.
+ * <ul>
+ * <li>A template is only used when all the document's values are printable ASCII not needing XML escaping,
+ *     so the output is the same as RTMLCreate would produce. Otherwise the document is serialized by RTMLCreate.
+ * <li>The history entry's timestamp is a slot, filled from the document's own history entry when it is rendered.
+ *     The template is compiled with a sentinel timestamp, and is only used if that timestamp, formatted by
+ *     RTMLDateFormat, is found in the RTMLCreate output, so the rendered timestamp is formatted as RTMLCreate
+ *     would format it.
+ * <li>All other documents (including TEA replies, and reject documents built from a parsed document)
+ *     are serialized by RTMLCreate.
+ * </ul>
+ * Templates are compiled once per RTML version, are immutable, and shared between threads. The "reply" benchmark
+ * checks the template output is byte-for-byte the same as the RTMLCreate output, and compares their throughput.
+ * @author cjm
+ * @see RTMLRejectDocument
+ * @see org.estar.node_agent2.benchmark.ReplySerializerBenchmark
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_REPLY_TEMPLATE_USE
+ */
+public class RTMLReplySerializer
+{
+	/**
+	 * Template slot for the error string.
+	 */
+	protected static final int SLOT_ERROR_STRING = 0;
+	/**
+	 * Template slot for the history entry agent name (the node agent name).
+	 */
+	protected static final int SLOT_NODE_AGENT_NAME = 1;
+	/**
+	 * Template slot for the history entry error.
+	 */
+	protected static final int SLOT_ERROR = 2;
+	/**
+	 * Template slot for the history entry description.
+	 */
+	protected static final int SLOT_DESCRIPTION = 3;
+	/**
+	 * Template slot for the history entry timestamp.
+	 */
+	protected static final int SLOT_TIME_STAMP = 4;
+	/**
+	 * The number of template slots.
+	 */
+	protected static final int SLOT_COUNT = 5;
+	/**
+	 * The sentinel values used to find each string slot in the RTMLCreate output, indexed by slot.
+	 * These only contain characters that are not escaped. The timestamp slot's sentinel is SENTINEL_TIME_STAMP,
+	 * formatted by RTMLDateFormat.
+	 */
+	protected static final String SLOT_SENTINELS[] = {"RTMLReplySlotErrorString7f3a","RTMLReplySlotNodeAgent7f3a",
+							  "RTMLReplySlotError7f3a","RTMLReplySlotDescription7f3a"};
+	/**
+	 * The timestamp given to the sentinel document's history entry (1999-03-04 05:06:07.089 UTC).
+	 */
+	protected static final long SENTINEL_TIME_STAMP = 920524567089L;
+	/**
+	 * The singleton instance of this class.
+	 */
+	private static RTMLReplySerializer instance = null;
+	/**
+	 * The trace logger.
+	 */
+	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+	/**
+	 * The error logger.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+	/**
+	 * Whether to use templates at all.
+	 */
+	private boolean useTemplates = true;
+	/**
+	 * A date formatter per thread, as date formats are not thread safe.
+	 */
+	private ThreadLocal<RTMLDateFormat> dateFormatThreadLocal = new ThreadLocal<RTMLDateFormat>()
+	{
+		protected RTMLDateFormat initialValue()
+		{
+			return new RTMLDateFormat();
+		}
+	};
+	/**
+	 * The compiled reject document templates, keyed by RTML version.
+	 */
+	private ConcurrentMap<String,Template> templateMap = new ConcurrentHashMap<String,Template>();
+	/**
+	 * The number of documents serialized from a template.
+	 */
+	private AtomicLong templateCount = new AtomicLong(0);
+	/**
+	 * The number of reject documents that could not use a template, and were serialized by RTMLCreate.
+	 */
+	private AtomicLong rejectFallbackCount = new AtomicLong(0);
+	/**
+	 * The number of other documents, serialized by RTMLCreate.
+	 */
+	private AtomicLong createCount = new AtomicLong(0);
+	/**
+	 * The number of templates compiled.
+	 */
+	private AtomicLong compileCount = new AtomicLong(0);
+
+	/**
+	 * Get the singleton instance of this class. Construct it if required.
+	 * @return The singleton instance of this class.
+	 */
+	public static synchronized RTMLReplySerializer getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new RTMLReplySerializer();
+		}
+		return instance;
+	}
+
+	/**
+	 * Internal constructor used by getInstance. Retrieves whether to use templates from NodeAgentProperties.
+	 * @see #useTemplates
+	 */
+	private RTMLReplySerializer()
+	{
+		NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
+
+		if (nodeAgentProperties != null)
+			useTemplates = nodeAgentProperties.getBooleanProperty(NodeAgentProperties.RTML_REPLY_TEMPLATE_USE, true);
+	}
+
+	/**
+	 * Serialize the specified document. RTMLRejectDocuments whose values do not need escaping are
+	 * serialized from the template for their version, all other documents by RTMLCreate.
+	 * @param document The document to serialize.
+	 * @return A string, containing the document as an XML RTML string.
+	 * @throws Exception Thrown if a problem occurs.
+	 * @see #getTemplate
+	 * @see RTMLUtil#createRTMLString
+	 */
+	public String serialize(RTMLDocument document) throws Exception
+	{
+		if (useTemplates && (document instanceof RTMLRejectDocument))
+		{
+			RTMLRejectDocument rejectDocument = (RTMLRejectDocument)document;
+			String values[] = new String[SLOT_COUNT];
+			Date timeStamp = null;
+			Template template = null;
+
+			values[SLOT_ERROR_STRING] = rejectDocument.getRejectErrorString();
+			values[SLOT_NODE_AGENT_NAME] = rejectDocument.getNodeAgentName();
+			values[SLOT_ERROR] = rejectDocument.getError();
+			values[SLOT_DESCRIPTION] = rejectDocument.getDescription();
+			timeStamp = getHistoryTimeStamp(rejectDocument);
+			if (timeStamp != null)
+				values[SLOT_TIME_STAMP] = dateFormatThreadLocal.get().format(timeStamp);
+			if (isTemplateSafe(values) && (rejectDocument.getVersion() != null))
+				template = getTemplate(rejectDocument.getVersion());
+			if ((template != null) && template.isCompiled())
+			{
+				templateCount.incrementAndGet();
+				return template.render(values);
+			}
+			rejectFallbackCount.incrementAndGet();
+		}
+		else
+			createCount.incrementAndGet();
+		return RTMLUtil.createRTMLString(document);
+	}
+
+	/**
+	 * Get the timestamp of the (only) history entry of a reject document.
+	 * @param document The reject document.
+	 * @return The timestamp, or null if the document does not have exactly one history entry.
+	 */
+	protected static Date getHistoryTimeStamp(RTMLDocument document)
+	{
+		RTMLHistory history = document.getHistory();
+		RTMLHistoryEntry entry = null;
+
+		if ((history == null) || (history.getEntryCount() != 1))
+			return null;
+		entry = history.getEntry(0);
+		if (entry == null)
+			return null;
+		return entry.getTimeStamp();
+	}
+
+	/**
+	 * Get the template for the specified RTML version, compiling it if there is no template.
+	 * If two threads compile the same template at the same time, the first one compiled is kept.
+	 * @param version The RTML version.
+	 * @return The template. If the compilation failed, a template that is not compiled is returned,
+	 *         so the compilation is not retried.
+	 * @see #templateMap
+	 * @see #compile
+	 */
+	protected Template getTemplate(String version)
+	{
+		Template template = templateMap.get(version);
+
+		if (template == null)
+		{
+			template = compile(version);
+			if (templateMap.putIfAbsent(version,template) != null)
+				template = templateMap.get(version);
+		}
+		return template;
+	}
+
+	/**
+	 * Compile a reject document template for the specified RTML version. A reject document is created with
+	 * the sentinel values and timestamp, serialized by RTMLCreate, and split at each occurrence of a sentinel.
+	 * If the formatted sentinel timestamp does not occur exactly once, the history entry timestamp is not
+	 * formatted the way we expect, and the template is not compiled.
+	 * @param version The RTML version.
+	 * @return The template. If the compilation failed, the template is not compiled.
+	 * @see #SLOT_SENTINELS
+	 * @see #SENTINEL_TIME_STAMP
+	 * @see RTMLUtil#createRTMLString
+	 */
+	protected Template compile(String version)
+	{
+		RTMLDocument sentinelDocument = null;
+		List<String> segmentList = new ArrayList<String>();
+		List<Integer> slotList = new ArrayList<Integer>();
+		String sentinels[] = new String[SLOT_COUNT];
+		String xml = null;
+		int position = 0;
+
+		compileCount.incrementAndGet();
+		try
+		{
+			sentinelDocument = new RTMLDocument();
+			sentinelDocument.setVersion(version);
+			sentinelDocument.setReject();
+			sentinelDocument.setErrorString(SLOT_SENTINELS[SLOT_ERROR_STRING]);
+			sentinelDocument.addHistoryError(SLOT_SENTINELS[SLOT_NODE_AGENT_NAME], RTMLUtil.REJECT_HISTORY_URI,
+							 SLOT_SENTINELS[SLOT_ERROR], SLOT_SENTINELS[SLOT_DESCRIPTION]);
+			sentinelDocument.getHistory().getEntry(0).setTimeStamp(new Date(SENTINEL_TIME_STAMP));
+			xml = RTMLUtil.createRTMLString(sentinelDocument);
+			System.arraycopy(SLOT_SENTINELS,0,sentinels,0,SLOT_SENTINELS.length);
+			sentinels[SLOT_TIME_STAMP] = dateFormatThreadLocal.get().format(new Date(SENTINEL_TIME_STAMP));
+			if ((xml.indexOf(sentinels[SLOT_TIME_STAMP]) < 0) ||
+			    (xml.indexOf(sentinels[SLOT_TIME_STAMP]) != xml.lastIndexOf(sentinels[SLOT_TIME_STAMP])))
+			{
+				throw new Exception("History timestamp "+sentinels[SLOT_TIME_STAMP]+
+						    " not found once in the RTMLCreate output.");
+			}
+		}
+		catch (Exception e)
+		{
+			errorLogger.log(1, RTMLReplySerializer.class.getName(),
+					"Failed to compile reply template for version "+version+":"+e);
+			return new Template(null,null);
+		}
+		while (true)
+		{
+			int nextIndex = -1;
+			int nextSlot = -1;
+
+			for (int slot = 0; slot < sentinels.length; slot++)
+			{
+				int index = xml.indexOf(sentinels[slot],position);
+
+				if ((index > -1) && ((nextIndex < 0) || (index < nextIndex)))
+				{
+					nextIndex = index;
+					nextSlot = slot;
+				}
+			}
+			if (nextIndex < 0)
+				break;
+			segmentList.add(xml.substring(position,nextIndex));
+			slotList.add(Integer.valueOf(nextSlot));
+			position = nextIndex+sentinels[nextSlot].length();
+		}
+		segmentList.add(xml.substring(position));
+		traceLogger.log(5, RTMLReplySerializer.class.getName(),
+				"Compiled reply template for version "+version+" with "+slotList.size()+" slots.");
+		return new Template(segmentList,slotList);
+	}
+
+	/**
+	 * Are the specified values safe to insert into a template, i.e. non-null printable ASCII, that
+	 * RTMLCreate would not escape?
+	 * @param values The values.
+	 * @return true if all the values can be inserted into a template unchanged.
+	 */
+	protected static boolean isTemplateSafe(String values[])
+	{
+		for (int i = 0; i < values.length; i++)
+		{
+			if (values[i] == null)
+				return false;
+			for (int j = 0; j < values[i].length(); j++)
+			{
+				char ch = values[i].charAt(j);
+
+				if ((ch < 0x20) || (ch > 0x7e) || (ch == '<') || (ch == '>') || (ch == '&') || (ch == '"') ||
+				    (ch == '\''))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the number of documents serialized from a template.
+	 * @return The number of documents.
+	 */
+	public long getTemplateCount()
+	{
+		return templateCount.get();
+	}
+
+	/**
+	 * Return a string describing how many documents have been serialized from templates and by RTMLCreate.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+"[useTemplates="+useTemplates+",templated="+templateCount.get()+
+			",rejectFallback="+rejectFallbackCount.get()+",created="+createCount.get()+
+			",compiled="+compileCount.get()+"]";
+	}
+
+	/**
+	 * A compiled template: literal segments, separated by value slots.
+	 * There is always one more segment than there are slots.
+	 */
+	protected static class Template
+	{
+		/**
+		 * The literal segments, or null if the compilation failed.
+		 */
+		private String segments[] = null;
+		/**
+		 * The slot inserted after each segment (except the last).
+		 */
+		private int slots[] = null;
+		/**
+		 * The total length of the literal segments.
+		 */
+		private int segmentsLength = 0;
+
+		/**
+		 * Constructor.
+		 * @param segmentList The literal segments, or null if the compilation failed.
+		 * @param slotList The slots.
+		 */
+		protected Template(List<String> segmentList,List<Integer> slotList)
+		{
+			if (segmentList == null)
+				return;
+			segments = segmentList.toArray(new String[segmentList.size()]);
+			slots = new int[slotList.size()];
+			for (int i = 0; i < slots.length; i++)
+				slots[i] = slotList.get(i).intValue();
+			for (int i = 0; i < segments.length; i++)
+				segmentsLength += segments[i].length();
+		}
+
+		/**
+		 * Was the template successfully compiled?
+		 * @return true if the template can be rendered.
+		 */
+		protected boolean isCompiled()
+		{
+			return segments != null;
+		}
+
+		/**
+		 * Render the template with the specified values.
+		 * @param values The values, indexed by slot.
+		 * @return The rendered document.
+		 */
+		protected String render(String values[])
+		{
+			int length = segmentsLength;
+			StringBuilder sb = null;
+
+			for (int i = 0; i < slots.length; i++)
+				length += values[slots[i]].length();
+			sb = new StringBuilder(length);
+			for (int i = 0; i < slots.length; i++)
+			{
+				sb.append(segments[i]);
+				sb.append(values[slots[i]]);
+			}
+			sb.append(segments[segments.length-1]);
+			return sb.toString();
+		}
+	}
+}
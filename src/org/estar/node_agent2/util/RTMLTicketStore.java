@@ -0,0 +1,366 @@
+package org.estar.node_agent2.util;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.configuration.NodeAgentProperties;
+
+/**
+ * Store of tickets for documents submitted with submit_rtml. Submitting a document starts processing it on this
+ * store's thread pool (sized by rtml.ticket.parallelism), and returns a ticket (a random UUID string) at once.
+ * The reply is retrieved with poll_rtml or await_rtml.
+ * <ul>
+ * <li>Each ticket is bound to the username that submitted it; other users are told the ticket is unknown.
+ * <li>The store is bounded (rtml.ticket.store.size), counting both pending and completed tickets.
+ *     Submissions are refused when it is full.
+ * <li>A completed ticket's reply is kept for rtml.ticket.expiry milliseconds after it completed, so a client
+ *     that loses a poll reply can poll again. Expired tickets are purged on each submission.
+ * </ul>
+ * @author cjm
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_TICKET_PARALLELISM
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_TICKET_STORE_SIZE
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_TICKET_EXPIRY
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#RTML_TICKET_AWAIT_MAX
+ */
+public class RTMLTicketStore
+{
+	/**
+	 * The default parallelism, if the rtml.ticket.parallelism property is not set.
+	 */
+	public static final int DEFAULT_PARALLELISM = 4;
+	/**
+	 * The default store size, if the rtml.ticket.store.size property is not set.
+	 */
+	public static final int DEFAULT_STORE_SIZE = 1000;
+	/**
+	 * The default completed ticket expiry time (in milliseconds), if the rtml.ticket.expiry property is not set.
+	 */
+	public static final long DEFAULT_EXPIRY = 600000;
+	/**
+	 * The default maximum await time (in milliseconds), if the rtml.ticket.await.max property is not set.
+	 */
+	public static final long DEFAULT_AWAIT_MAX = 60000;
+	/**
+	 * The singleton instance of this class.
+	 */
+	private static RTMLTicketStore instance = null;
+	/**
+	 * The trace logger.
+	 */
+	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+	/**
+	 * The error logger.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+	/**
+	 * The number of threads processing submitted documents.
+	 */
+	private int parallelism = DEFAULT_PARALLELISM;
+	/**
+	 * The maximum number of tickets in the store.
+	 */
+	private int storeSize = DEFAULT_STORE_SIZE;
+	/**
+	 * How long (in milliseconds) a completed ticket is kept.
+	 */
+	private long expiry = DEFAULT_EXPIRY;
+	/**
+	 * The longest time (in milliseconds) await waits.
+	 */
+	private long awaitMax = DEFAULT_AWAIT_MAX;
+	/**
+	 * The thread pool processing submitted documents.
+	 */
+	private ExecutorService executorService = null;
+	/**
+	 * The tickets, keyed by ticket string.
+	 */
+	private ConcurrentMap<String,Ticket> ticketMap = new ConcurrentHashMap<String,Ticket>();
+	/**
+	 * The number of tickets in the store, including tickets being added.
+	 */
+	private AtomicInteger ticketCount = new AtomicInteger(0);
+	/**
+	 * The number of documents submitted.
+	 */
+	private AtomicLong submitCount = new AtomicLong(0);
+	/**
+	 * The number of submissions refused because the store was full.
+	 */
+	private AtomicLong refusedCount = new AtomicLong(0);
+	/**
+	 * The number of tickets that expired.
+	 */
+	private AtomicLong expiredCount = new AtomicLong(0);
+
+	/**
+	 * Get the singleton instance of this class. Construct it if required.
+	 * @return The singleton instance of this class.
+	 */
+	public static synchronized RTMLTicketStore getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new RTMLTicketStore();
+		}
+		return instance;
+	}
+
+	/**
+	 * Internal constructor used by getInstance. Retrieves the configuration from NodeAgentProperties,
+	 * and creates the thread pool.
+	 * @see #parallelism
+	 * @see #storeSize
+	 * @see #expiry
+	 * @see #awaitMax
+	 * @see #executorService
+	 */
+	private RTMLTicketStore()
+	{
+		NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
+
+		if (nodeAgentProperties != null)
+		{
+			try
+			{
+				parallelism = nodeAgentProperties.getIntProperty(NodeAgentProperties.RTML_TICKET_PARALLELISM,
+										 DEFAULT_PARALLELISM);
+				storeSize = nodeAgentProperties.getIntProperty(NodeAgentProperties.RTML_TICKET_STORE_SIZE,
+									       DEFAULT_STORE_SIZE);
+				expiry = nodeAgentProperties.getLongProperty(NodeAgentProperties.RTML_TICKET_EXPIRY,
+									     DEFAULT_EXPIRY);
+				awaitMax = nodeAgentProperties.getLongProperty(NodeAgentProperties.RTML_TICKET_AWAIT_MAX,
+									       DEFAULT_AWAIT_MAX);
+			}
+			catch (NumberFormatException e)
+			{
+				errorLogger.log(1, RTMLTicketStore.class.getName(),
+						"Illegal ticket store configuration, using defaults for remaining values:"+e);
+			}
+		}
+		if (parallelism < 1)
+			parallelism = 1;
+		executorService = Executors.newFixedThreadPool(parallelism,new ThreadFactory()
+		{
+			private AtomicInteger threadCount = new AtomicInteger(0);
+
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable,"RTMLTicketStore-"+threadCount.incrementAndGet());
+
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Submit a task processing a document for the specified user, and return it's ticket.
+	 * Expired tickets are purged first.
+	 * @param username The (header) username submitting the document.
+	 * @param task The task, returning the reply document string.
+	 * @return The ticket.
+	 * @exception RuntimeException Thrown if the store is full.
+	 * @see #purgeExpired
+	 */
+	public String submit(String username,final Callable<String> task) throws RuntimeException
+	{
+		final Ticket ticket = new Ticket(username);
+		String ticketString = null;
+
+		purgeExpired();
+		if (ticketCount.incrementAndGet() > storeSize)
+		{
+			ticketCount.decrementAndGet();
+			refusedCount.incrementAndGet();
+			errorLogger.log(1, RTMLTicketStore.class.getName(), "submit:Ticket store full ("+storeSize+
+					" tickets), refusing submission from "+username+".");
+			throw new RuntimeException(RTMLTicketStore.class.getName()+":submit:Ticket store full ("+storeSize+
+						   " tickets), try again later.");
+		}
+		ticketString = UUID.randomUUID().toString();
+		ticketMap.put(ticketString,ticket);
+		ticket.future = executorService.submit(new Callable<String>()
+		{
+			public String call() throws Exception
+			{
+				try
+				{
+					return task.call();
+				}
+				finally
+				{
+					ticket.completionTime = System.currentTimeMillis();
+				}
+			}
+		});
+		submitCount.incrementAndGet();
+		traceLogger.log(5, RTMLTicketStore.class.getName(), "submit:Created ticket "+ticketString+" for "+username+".");
+		return ticketString;
+	}
+
+	/**
+	 * Get the reply for the specified ticket, if the document has been processed.
+	 * @param username The (header) username polling.
+	 * @param ticketString The ticket.
+	 * @return The reply document string, or null if the document is still being processed.
+	 * @exception RuntimeException Thrown if the ticket is not known to this user, or has expired.
+	 * @see #await
+	 */
+	public String poll(String username,String ticketString) throws RuntimeException
+	{
+		return await(username,ticketString,0);
+	}
+
+	/**
+	 * Wait (up to the timeout, capped at rtml.ticket.await.max) for the reply for the specified ticket.
+	 * @param username The (header) username waiting.
+	 * @param ticketString The ticket.
+	 * @param timeout The time to wait in milliseconds. Zero returns at once.
+	 * @return The reply document string, or null if the document is still being processed when the timeout expires.
+	 * @exception RuntimeException Thrown if the ticket is not known to this user, or has expired, or the processing
+	 *            task failed.
+	 * @see #getTicket
+	 * @see #awaitMax
+	 */
+	public String await(String username,String ticketString,long timeout) throws RuntimeException
+	{
+		Ticket ticket = getTicket(username,ticketString);
+
+		if (timeout > awaitMax)
+			timeout = awaitMax;
+		try
+		{
+			if (timeout <= 0)
+			{
+				if (ticket.future.isDone() == false)
+					return null;
+				return ticket.future.get();
+			}
+			return ticket.future.get(timeout,TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e)
+		{
+			return null;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (Exception e)
+		{
+			errorLogger.log(1, RTMLTicketStore.class.getName(), "await:Ticket "+ticketString+" failed:"+e);
+			throw new RuntimeException(RTMLTicketStore.class.getName()+":await:Ticket "+ticketString+" failed:"+e,e);
+		}
+	}
+
+	/**
+	 * Find the specified ticket, checking it belongs to the specified user.
+	 * @param username The (header) username.
+	 * @param ticketString The ticket.
+	 * @return The ticket.
+	 * @exception RuntimeException Thrown if the ticket is not known, has expired, or belongs to another user.
+	 */
+	protected Ticket getTicket(String username,String ticketString) throws RuntimeException
+	{
+		Ticket ticket = null;
+
+		if (ticketString != null)
+			ticket = ticketMap.get(ticketString);
+		if ((ticket == null) || (ticket.username.equals(username) == false) || isExpired(ticket,
+												     System.currentTimeMillis()))
+		{
+			errorLogger.log(1, RTMLTicketStore.class.getName(), "getTicket:Unknown ticket "+ticketString+
+					" for "+username+".");
+			throw new RuntimeException(RTMLTicketStore.class.getName()+":getTicket:Unknown or expired ticket:"+
+						   ticketString);
+		}
+		return ticket;
+	}
+
+	/**
+	 * Remove completed tickets older than the expiry time from the store.
+	 * Concurrent submits may purge at once, so a ticket is only counted as removed by the thread whose
+	 * remove(key,value) succeeded, keeping ticketCount equal to the store size.
+	 * @see #expiry
+	 * @see #ticketCount
+	 */
+	protected void purgeExpired()
+	{
+		long now = System.currentTimeMillis();
+
+		for (Map.Entry<String,Ticket> entry : ticketMap.entrySet())
+		{
+			if (isExpired(entry.getValue(),now) && ticketMap.remove(entry.getKey(),entry.getValue()))
+			{
+				ticketCount.decrementAndGet();
+				expiredCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Has the specified ticket expired?
+	 * @param ticket The ticket.
+	 * @param now The current time, in milliseconds since the epoch.
+	 * @return true if the ticket completed more than the expiry time ago.
+	 */
+	private boolean isExpired(Ticket ticket,long now)
+	{
+		long completionTime = ticket.completionTime;
+
+		return (completionTime > 0) && (now-completionTime > expiry);
+	}
+
+	/**
+	 * Return a string describing the store.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+"[parallelism="+parallelism+",size="+ticketCount.get()+"/"+storeSize+
+			",submitted="+submitCount.get()+",refused="+refusedCount.get()+",expired="+expiredCount.get()+"]";
+	}
+
+	/**
+	 * A submitted document's ticket.
+	 */
+	protected static class Ticket
+	{
+		/**
+		 * The username that submitted the document.
+		 */
+		protected String username = null;
+		/**
+		 * The future returning the reply document string.
+		 */
+		protected volatile Future<String> future = null;
+		/**
+		 * When processing the document completed, in milliseconds since the epoch, or 0 if it has not.
+		 */
+		protected volatile long completionTime = 0;
+
+		/**
+		 * Constructor.
+		 * @param username The username that submitted the document.
+		 */
+		protected Ticket(String username)
+		{
+			this.username = username;
+		}
+	}
+}
@@ -6,15 +6,16 @@ import ngat.util.logging.LogManager;
 import ngat.util.logging.Logger;
 
 import org.estar.node_agent2.configuration.NodeAgentProperties;
+import org.estar.node_agent2.storage.AliasIndex;
 import org.estar.node_agent2.storage.PersistenceController;
-import org.estar.node_agent2.storage.PersistentMap;
 
 
 import org.estar.rtml.RTMLContact;
 import org.estar.rtml.RTMLCreate;
 import org.estar.rtml.RTMLDocument;
 import org.estar.rtml.RTMLException;
-import org.estar.rtml.RTMLParser;
+import org.estar.rtml.RTMLHistory;
+import org.estar.rtml.RTMLHistoryEntry;
 import org.estar.rtml.RTMLProject;
 
 public class RTMLUtil 
@@ -29,10 +30,30 @@ public class RTMLUtil
 	public static final String DOC_TYPE = "<!DOCTYPE RTML SYSTEM \"http://www.estar.org.uk/documents/rtml2.2.dtd\">";
 	public static final String LAST_RESORT_RTML_PREFIX = "<RTML type=\"reject\" version=\"2.2\">";
 	public static final String LAST_RESORT_RTML_POSTFIX = "</RTML> ";
+	/**
+	 * The URI of the history entry added to reject documents created by the node agent.
+	 */
+	public static final String REJECT_HISTORY_URI = "urn:/node_agent";
+
+	/**
+	 * Class method to take a document object model of an RTML document and return a 
+	 * string representation of it. Reject documents created from scratch are serialized from a
+	 * precompiled template by RTMLReplySerializer, other documents use RTMLCreate.
+	 * @param document An instance of RTMLDocument, containing the data to be converted into
+	 * an RTML XML string.
+	 * @return A string, containing the  data in document as an XML RTML string.
+	 * @throws Exception Thrown if a problem occurs.
+	 * @see RTMLReplySerializer#serialize
+	 * @see #createRTMLString
+	 */
+	public static String getRTMLAsString(RTMLDocument document) throws Exception 
+	{
+		return RTMLReplySerializer.getInstance().serialize(document);
+	}
 
 	/**
 	 * Class method to take a document object model of an RTML document and return a 
-	 * string representation of it.	
+	 * string representation of it, created by RTMLCreate.
 	 * @param document An instance of RTMLDocument, containing the data to be converted into
 	 * an RTML XML string.
 	 * @return A string, containing the  data in document as an XML RTML string.
@@ -42,7 +63,7 @@ public class RTMLUtil
 	 * @see org.estar.rtml.RTMLCreate#toXMLString
 	 * @see org.estar.rtml.RTMLDocument
 	 */
-	public static String getRTMLAsString(RTMLDocument document) throws Exception 
+	public static String createRTMLString(RTMLDocument document) throws Exception 
 	{
 		RTMLCreate rtmlCreator = new RTMLCreate();
 		rtmlCreator.create(document);
@@ -50,29 +71,57 @@ public class RTMLUtil
 	}
 
 	/**
-	 * Use the project and user alias hash maps to look for alias entries.
+	 * Use the project and user alias indexes to look for alias entries. For documents from eSTAR the forward
+	 * lookup is used, for documents from the TEA (ngat) the reverse lookup.
 	 * If alias entries are found, rewrite the document
 	 * (currently rewrites project and/or user if either is aliased).
 	 * @param rtmlDocument The document to rewrite (if an alias entries exist for it's project name or user name)
 	 * @param rtmlIdentitySource The name of the source for document project and usernames.
-	 * @return The re-written document (or the original document if no alias entry was found)
+	 * @return The re-written document (a deep clone of the original document, which is not modified), or the
+	 *         original document itself if neither it's user nor it's project is aliased.
 	 * @throws Exception Thrown if a problem occurs.
+	 * @see org.estar.node_agent2.storage.PersistenceController#getUserAliasIndex
+	 * @see org.estar.node_agent2.storage.PersistenceController#getProjectAliasIndex
 	 */
 	public static RTMLDocument rewriteDocumentIfAliased(RTMLDocument rtmlDocument, String rtmlIdentitySource) throws Exception 
+	{
+		if (PersistenceController.getInstance().getUserAliasMapStore() == null) 
+		{
+			throw new Exception("Serverside error: user alias map store is null");
+		}
+		if (PersistenceController.getInstance().getProjectAliasMapStore() == null) 
+		{
+			throw new Exception("Serverside error: project alias map store is null");
+		}
+		// the alias indexes are immutable snapshots, so lookups need no locking and see a consistent set of aliases
+		return rewriteDocumentIfAliased(rtmlDocument,rtmlIdentitySource,
+						PersistenceController.getInstance().getUserAliasIndex(),
+						PersistenceController.getInstance().getProjectAliasIndex());
+	}
+
+	/**
+	 * Use the specified project and user alias index snapshots (e.g. those of the sending user's 
+	 * AuthorizationContext) to look for alias entries, and rewrite the document if any are found.
+	 * The document is only deep-cloned when an alias entry is found (copy-on-write): most documents have no
+	 * aliases, and are returned as they are. Callers must therefore not modify the returned document on the
+	 * assumption that it is a copy.
+	 * @param rtmlDocument The document to rewrite (if an alias entries exist for it's project name or user name)
+	 * @param rtmlIdentitySource The name of the source for document project and usernames.
+	 * @param userAliasIndex The user alias index to use.
+	 * @param projectAliasIndex The project alias index to use.
+	 * @return The re-written document (a deep clone of the original document, which is not modified), or the
+	 *         original document itself if neither it's user nor it's project is aliased.
+	 * @throws Exception Thrown if a problem occurs.
+	 * @see #rewriteDocumentIfAliased(org.estar.rtml.RTMLDocument,java.lang.String)
+	 * @see org.estar.node_agent2.storage.AuthorizationContext
+	 */
+	public static RTMLDocument rewriteDocumentIfAliased(RTMLDocument rtmlDocument, String rtmlIdentitySource,
+							    AliasIndex userAliasIndex, AliasIndex projectAliasIndex) throws Exception 
 	{
 		RTMLDocument rewrittenDocument = null;
 		 
 		traceLogger.log(5, RTMLUtil.class.getName(),"... rewriteDocumentIfAliased(document) invoked");
 		
-		rewrittenDocument = (RTMLDocument)rtmlDocument.deepClone();
-		if (rewrittenDocument == null) 
-		{
-			throw new Exception("Serverside error: failed to deep-clone document");
-		}
-		
-		String nodeAgentName = NodeAgentProperties.getInstance().getProperty(NodeAgentProperties.NODE_AGENT_NAME);
-		
-		
 		RTMLContact contact = rtmlDocument.getContact();
 		RTMLProject project = rtmlDocument.getProject();
 		if (contact == null) 
@@ -95,76 +144,43 @@ public class RTMLUtil
 			throw new Exception("No Project in Project in received document");
 		}
 		
-		PersistentMap userAliasMapStore = PersistenceController.getInstance().getUserAliasMapStore();
-		PersistentMap projectAliasMapStore = PersistenceController.getInstance().getProjectAliasMapStore();
-		
-		if (userAliasMapStore == null) 
-		{
-			throw new Exception("Serverside error: user alias map store is null");
-		}
-		if (projectAliasMapStore == null) 
-		{
-			throw new Exception("Serverside error: project alias map store is null");
-		}
-		
 		String userAlias = null;
 		String projectAlias = null;
 		
 		if (rtmlIdentitySource.equals(RTML_IDENT_SOURCE_ESTAR)) 
 		{
-			if (userAliasMapStore.containsKey(contact.getUser())) 
-			{
-				traceLogger.log(5, RTMLUtil.class.getName(),"... userAliasMapStore.containsKey(" + contact.getUser() + ") = true");
-				userAlias = userAliasMapStore.getProperty(contact.getUser());
-			} 
-			else 
-			{
-				traceLogger.log(5, RTMLUtil.class.getName(),"... userAliasMapStore.containsKey(" + contact.getUser() + ") = false");
-				traceLogger.log(5, RTMLUtil.class.getName(),userAliasMapStore.toString());
-			}
-			
-			if (projectAliasMapStore.containsKey(project.getProject())) 
-			{
-				traceLogger.log(5, RTMLUtil.class.getName(),"... projectAliasMapStore.containsKey(" + project.getProject() + ") = true");
-				projectAlias = projectAliasMapStore.getProperty(project.getProject());
-			} 
-			else 
-			{
-				traceLogger.log(5, RTMLUtil.class.getName(),"... projectAliasMapStore.containsKey(" + project.getProject() + ") = false");
-				traceLogger.log(5, RTMLUtil.class.getName(),projectAliasMapStore.toString());
-			}
+			userAlias = userAliasIndex.getAlias(contact.getUser());
+			projectAlias = projectAliasIndex.getAlias(project.getProject());
 		} 
 		else if (rtmlIdentitySource.equals(RTML_IDENT_SOURCE_NGAT)) 
 		{
-			if (userAliasMapStore.containsValue(contact.getUser())) 
-			{
-				traceLogger.log(5, RTMLUtil.class.getName(),"... userAliasMapStore.containsValue(" + contact.getUser() + ") = true");
-				userAlias = userAliasMapStore.getKey(contact.getUser());
-			} 
-			else 
-			{
-				traceLogger.log(5, RTMLUtil.class.getName(),"... userAliasMapStore.containsKey(" + contact.getUser() + ") = false");
-				traceLogger.log(5, RTMLUtil.class.getName(),userAliasMapStore.toString());
-			}
-			
-			if (projectAliasMapStore.containsValue(project.getProject())) 
-			{
-				traceLogger.log(5, RTMLUtil.class.getName(),"... projectAliasMapStore.containsValue(" + project.getProject() + ") = true");
-				projectAlias = projectAliasMapStore.getKey(project.getProject());
-			} 
-			else 
-			{
-				traceLogger.log(5, RTMLUtil.class.getName(),"... projectAliasMapStore.containsKey(" + project.getProject() + ") = false");
-				traceLogger.log(5, RTMLUtil.class.getName(),projectAliasMapStore.toString());
-			}
+			userAlias = userAliasIndex.getKey(contact.getUser());
+			projectAlias = projectAliasIndex.getKey(project.getProject());
 		} 
 		else 
 		{
 			throw new Exception("Unknown RTML document identifiers source");
 		}
+		traceLogger.log(5, RTMLUtil.class.getName(),"... user "+contact.getUser()+" alias = "+userAlias+
+				", project "+project.getProject()+" alias = "+projectAlias+" ("+rtmlIdentitySource+")");
+		// nothing to rewrite, so there is no need to clone the document
+		if ((userAlias == null) && (projectAlias == null))
+		{
+			traceLogger.log(5, RTMLUtil.class.getName(),"... no aliases, document not rewritten");
+			return rtmlDocument;
+		}
+		rewrittenDocument = (RTMLDocument)rtmlDocument.deepClone();
+		if (rewrittenDocument == null) 
+		{
+			throw new Exception("Serverside error: failed to deep-clone document");
+		}
+		
+		String nodeAgentName = NodeAgentProperties.getInstance().getProperty(NodeAgentProperties.NODE_AGENT_NAME);
 		
+		// rewrite the clone's contact and project, so the original document is left unchanged
 		if (userAlias != null) 
 		{
+			contact = rewrittenDocument.getContact();
 			contact.setUser(userAlias);
 			rewrittenDocument.setContact(contact);
 			rewrittenDocument.addHistoryEntry(nodeAgentName, "urn:/node_agent", "rewritten contact to " + userAlias);
@@ -172,6 +188,7 @@ public class RTMLUtil
 		}
 		if (projectAlias != null) 
 		{
+			project = rewrittenDocument.getProject();
 			project.setProject(projectAlias);
 			rewrittenDocument.setProject(project);
 			rewrittenDocument.addHistoryEntry(nodeAgentName, "urn:/node_agent", "rewritten project to " + projectAlias);
@@ -181,50 +198,78 @@ public class RTMLUtil
 	}
 	
 	/**
-	 * attempts to create an RTML error document from the received rtmlDocumentString.
-	 * If it fails to do so, it creates an RTML error document from scratch.
-	 * If it fails to do that, it returns null.
-	 * @param exception
-	 * @param nodeAgentName
-	 * @param rtmlDocumentString
-	 * @return
+	 * Create an RTML error document from an already parsed RTML document. This is used once the received document
+	 * has been parsed, so that the received document does not have to be parsed a second time.
+	 * The supplied document is turned into a reject document (with a score of 0 if it was a score request),
+	 * and it's error string and history set from the exception. If the document is null, or cannot be
+	 * turned into an error document, an error document is created from scratch.
+	 * @param exception The exception describing the error.
+	 * @param nodeAgentName The name of this node agent, used in the history entry.
+	 * @param rtmlDocument The parsed document to turn into an error document. This document is modified.
+	 * @return The error document, or null if no error document could be created.
+	 * @see #createErrorDocument(Exception,String)
 	 */
-	public static RTMLDocument createErrorDocument(Exception exception, String nodeAgentName, String rtmlDocumentString)
+	public static RTMLDocument createErrorDocument(Exception exception, String nodeAgentName, RTMLDocument rtmlDocument)
 	{
-		
-		traceLogger.log(5, RTMLUtil.class.getName(),"creating error document");
-		RTMLDocument rtmlErrorDocument = null;
-		try 
-		{
-			RTMLParser parser = new RTMLParser();
-			parser.init(true);
-			//get the error document from the old document
-			rtmlErrorDocument = parser.parse(rtmlDocumentString.trim());
-			if (rtmlErrorDocument.isScoreRequest()) 
+		traceLogger.log(5, RTMLUtil.class.getName(),"creating error document from parsed document");
+		if (rtmlDocument != null)
+		{
+			try 
 			{
-				rtmlErrorDocument.setScore(0.0);
+				if (rtmlDocument.isScoreRequest()) 
+				{
+					rtmlDocument.setScore(0.0);
+				}
+				rtmlDocument.setReject();
+				rtmlDocument.setErrorString(exception.toString());
+				rtmlDocument.addHistoryError(nodeAgentName, REJECT_HISTORY_URI, exception.toString(), exception.getMessage());
+				return rtmlDocument;
+			} 
+			catch (Exception e) 
+			{
+				traceLogger.log(5, RTMLUtil.class.getName(),"failed to create error document from parsed document.");
+				e.printStackTrace();
 			}
-			rtmlErrorDocument.setReject();
-			rtmlErrorDocument.setErrorString(exception.toString());
-			rtmlErrorDocument.addHistoryError(nodeAgentName, "urn:/node_agent", exception.toString(), exception.getMessage());
-			return rtmlErrorDocument;
-		} 
-		catch (Exception e) 
-		{
-			// TODO Auto-generated catch block
-			traceLogger.log(5, RTMLUtil.class.getName(),"failed to create error document from supplied document.");
-			e.printStackTrace();
-		} 
-		
-		//not managed to make an error document yet, make the error document from scratch
+		}
+		return createErrorDocument(exception, nodeAgentName);
+	}
+	
+	/**
+	 * Create an RTML error document from scratch. This is used when the received document could not be parsed.
+	 * @param exception The exception describing the error.
+	 * @param nodeAgentName The name of this node agent, used in the history entry.
+	 * @return The error document, or null if it could not be created.
+	 */
+	public static RTMLDocument createErrorDocument(Exception exception, String nodeAgentName)
+	{
+		return createRejectDocument(exception, nodeAgentName, RTMLDocument.RTML_VERSION_22, "badly formatted rtml received");
+	}
+	
+	/**
+	 * Create an RTML reject document from scratch. This is used when the received document could not be parsed,
+	 * or is rejected before it is parsed.
+	 * @param exception The exception describing the error.
+	 * @param nodeAgentName The name of this node agent, used in the history entry.
+	 * @param version The RTML version of the reject document, RTMLDocument.RTML_VERSION_22 or RTMLDocument.RTML_VERSION_31.
+	 * @param description A description of why the document was rejected, appended to the error string and
+	 *        used as the history entry description.
+	 * @return The reject document (an RTMLRejectDocument, so it can be serialized from a template), 
+	 *         or null if it could not be created.
+	 * @see RTMLRejectDocument
+	 * @see #REJECT_HISTORY_URI
+	 */
+	public static RTMLDocument createRejectDocument(Exception exception, String nodeAgentName, String version, String description)
+	{
+		RTMLRejectDocument rtmlErrorDocument = null;
+
 		traceLogger.log(5, RTMLUtil.class.getName(),"trying to create error document from scratch.");
-		rtmlErrorDocument = new RTMLDocument();
-		rtmlErrorDocument.setVersion(RTMLDocument.RTML_VERSION_22);
+		rtmlErrorDocument = new RTMLRejectDocument(nodeAgentName, exception.toString(), description);
+		rtmlErrorDocument.setVersion(version);
 		rtmlErrorDocument.setReject();
 		try
 		{
-			rtmlErrorDocument.setErrorString(exception.toString() + " : badly formatted rtml received");
-			rtmlErrorDocument.addHistoryError(nodeAgentName, "urn:/node_agent", exception.toString(), "badly formatted rtml received");
+			rtmlErrorDocument.setErrorString(rtmlErrorDocument.getRejectErrorString());
+			rtmlErrorDocument.addHistoryError(nodeAgentName, REJECT_HISTORY_URI, rtmlErrorDocument.getError(), description);
 			return rtmlErrorDocument;
 		} 
 		catch (Exception e) 
@@ -235,6 +280,33 @@ public class RTMLUtil
 		}
 	}
 	
+	/**
+	 * Was the specified reply document rejected by this node agent (rather than by the TEA)? Reject documents
+	 * created by this node agent (by createErrorDocument or createRejectDocument) end with the history error
+	 * entry added by the node agent, whereas TEA replies are never built from a document the node agent rejected.
+	 * @param rtmlDocument The reply document.
+	 * @param nodeAgentName The name of this node agent.
+	 * @return true if the document is a reject, and it's last history entry is an error added by this node agent.
+	 * @see #createErrorDocument(Exception,String,RTMLDocument)
+	 * @see #createRejectDocument
+	 * @see #REJECT_HISTORY_URI
+	 */
+	public static boolean isNodeAgentReject(RTMLDocument rtmlDocument, String nodeAgentName)
+	{
+		RTMLHistory history = null;
+		RTMLHistoryEntry entry = null;
+
+		if ((rtmlDocument == null) || (rtmlDocument.isReject() == false))
+			return false;
+		history = rtmlDocument.getHistory();
+		if ((history == null) || (history.getEntryCount() == 0))
+			return false;
+		entry = history.getEntry(history.getEntryCount()-1);
+		return (entry.getError() != null) && (entry.getAgent() != null) &&
+			REJECT_HISTORY_URI.equals(entry.getAgent().getUri()) &&
+			((nodeAgentName == null) || nodeAgentName.equals(entry.getAgent().getId()));
+	}
+	
 	/**
 	 * Create a last ditch hard-coded RTML 2.2 document to return if we cannot create a 
 	 * "proper" return document.
@@ -0,0 +1,266 @@
+package org.estar.node_agent2.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.configuration.NodeAgentProperties;
+import org.estar.node_agent2.storage.PersistenceController;
+import org.estar.node_agent2.storage.PersistentMap;
+
+/**
+ * Class deciding, per user, whether a received RTML document is fully validated, or only checked for
+ * well-formedness, when it is parsed. The policy for each user is held in the validation policy store
+ * (uservalidation.map, kept next to userpassword.map), mapping an RTML User name to one of:
+ * <ul>
+ * <li><b>full</b> Every document is fully validated. This is the policy for any user not in the store.
+ * <li><b>wellformed</b> Documents are only checked for well-formedness.
+ * <li><b>sampled</b> or <b>sampled:N</b> One in N documents is fully validated, the rest are only checked
+ *     for well-formedness. If N is not specified the validation.sample.rate property is used.
+ *     Any document from the user that fails further down the processing chain causes the user's next
+ *     document to be fully validated.
+ * </ul>
+ * Counters of how often each tier is used are kept, and logged on each ping.
+ * @author cjm
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#VALIDATION_POLICY_MAP_LOCATION
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#VALIDATION_SAMPLE_RATE
+ */
+public class RTMLValidationPolicy
+{
+	/**
+	 * Validation policy: every document is fully validated.
+	 */
+	public static final String POLICY_FULL = "full";
+	/**
+	 * Validation policy: documents are only checked for well-formedness.
+	 */
+	public static final String POLICY_WELL_FORMED = "wellformed";
+	/**
+	 * Validation policy: one in N documents is fully validated.
+	 */
+	public static final String POLICY_SAMPLED = "sampled";
+	/**
+	 * The default number of documents per fully validated document, for the sampled policy,
+	 * if the validation.sample.rate property is not set.
+	 */
+	public static final int DEFAULT_SAMPLE_RATE = 100;
+	/**
+	 * The singleton instance of this class.
+	 */
+	private static RTMLValidationPolicy instance = null;
+	/**
+	 * The trace logger.
+	 */
+	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+	/**
+	 * The error logger.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+	/**
+	 * The default sample rate, for users with the sampled policy without an explicit rate.
+	 */
+	private int defaultSampleRate = DEFAULT_SAMPLE_RATE;
+	/**
+	 * Per-user count of documents received from users with the sampled policy.
+	 */
+	private ConcurrentMap<String,AtomicLong> sampleCounterMap = new ConcurrentHashMap<String,AtomicLong>();
+	/**
+	 * The set of users (with a policy other than full) whose next document must be fully validated,
+	 * because one of their documents failed further down the processing chain.
+	 */
+	private ConcurrentMap<String,Boolean> revalidateUserMap = new ConcurrentHashMap<String,Boolean>();
+	/**
+	 * The number of documents fully validated because of the full policy.
+	 */
+	private AtomicLong fullCount = new AtomicLong(0);
+	/**
+	 * The number of documents only checked for well-formedness because of the wellformed policy.
+	 */
+	private AtomicLong wellFormedCount = new AtomicLong(0);
+	/**
+	 * The number of documents fully validated because they were sampled (sampled policy).
+	 */
+	private AtomicLong sampledFullCount = new AtomicLong(0);
+	/**
+	 * The number of documents only checked for well-formedness because they were not sampled (sampled policy).
+	 */
+	private AtomicLong sampledSkippedCount = new AtomicLong(0);
+	/**
+	 * The number of documents fully validated because a previous document from the same user failed.
+	 */
+	private AtomicLong revalidatedCount = new AtomicLong(0);
+
+	/**
+	 * Get the singleton instance of this class. Construct it if required.
+	 * @return The singleton instance of this class.
+	 */
+	public static synchronized RTMLValidationPolicy getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new RTMLValidationPolicy();
+		}
+		return instance;
+	}
+
+	/**
+	 * Internal constructor used by getInstance. Retrieves the default sample rate from NodeAgentProperties.
+	 * @see #defaultSampleRate
+	 */
+	private RTMLValidationPolicy()
+	{
+		NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
+
+		if (nodeAgentProperties != null)
+		{
+			try
+			{
+				defaultSampleRate = nodeAgentProperties.getIntProperty(NodeAgentProperties.VALIDATION_SAMPLE_RATE,
+						DEFAULT_SAMPLE_RATE);
+			}
+			catch (NumberFormatException e)
+			{
+				errorLogger.log(1, RTMLValidationPolicy.class.getName(),
+						"Illegal validation sample rate, using default:"+e);
+			}
+		}
+		if (defaultSampleRate < 1)
+			defaultSampleRate = 1;
+	}
+
+	/**
+	 * Decide whether the next document received from the specified user should be fully validated.
+	 * @param username The (SOAP header) username the document was received from.
+	 * @return true if the document should be fully validated, false if it should only be checked for
+	 *         well-formedness.
+	 * @see #getPolicy
+	 * @see #revalidateUserMap
+	 * @see #sampleCounterMap
+	 */
+	public boolean shouldValidate(String username)
+	{
+		String policy = getPolicy(username);
+
+		if (policy.equals(POLICY_FULL))
+		{
+			fullCount.incrementAndGet();
+			return true;
+		}
+		if (revalidateUserMap.remove(username) != null)
+		{
+			traceLogger.log(5, RTMLValidationPolicy.class.getName(),
+					"... fully validating document from "+username+" after a previous failure.");
+			revalidatedCount.incrementAndGet();
+			return true;
+		}
+		if (policy.equals(POLICY_WELL_FORMED))
+		{
+			wellFormedCount.incrementAndGet();
+			return false;
+		}
+		// sampled policy
+		int sampleRate = getSampleRate(policy);
+		AtomicLong counter = sampleCounterMap.get(username);
+		if (counter == null)
+		{
+			AtomicLong newCounter = new AtomicLong(0);
+
+			counter = sampleCounterMap.putIfAbsent(username, newCounter);
+			if (counter == null)
+				counter = newCounter;
+		}
+		if ((counter.getAndIncrement() % sampleRate) == 0)
+		{
+			sampledFullCount.incrementAndGet();
+			return true;
+		}
+		sampledSkippedCount.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Report that a document received from the specified user failed after it was parsed
+	 * (or failed to parse). If the user does not have the full policy, their next document is fully validated.
+	 * @param username The (SOAP header) username the document was received from.
+	 * @see #revalidateUserMap
+	 */
+	public void reportFailure(String username)
+	{
+		if (username == null)
+			return;
+		if (getPolicy(username).equals(POLICY_FULL) == false)
+			revalidateUserMap.put(username, Boolean.TRUE);
+	}
+
+	/**
+	 * Get the validation policy for the specified user, from the validation policy store.
+	 * Unknown users, and users with an unrecognised policy, get the full policy.
+	 * @param username The username.
+	 * @return The policy string, one of POLICY_FULL, POLICY_WELL_FORMED or POLICY_SAMPLED (optionally followed
+	 *         by ':' and the sample rate).
+	 * @see #POLICY_FULL
+	 * @see #POLICY_WELL_FORMED
+	 * @see #POLICY_SAMPLED
+	 * @see org.estar.node_agent2.storage.PersistenceController#getValidationPolicyMapStore
+	 */
+	public String getPolicy(String username)
+	{
+		PersistentMap validationPolicyMapStore = null;
+		String policy = null;
+
+		if (username == null)
+			return POLICY_FULL;
+		validationPolicyMapStore = PersistenceController.getInstance().getValidationPolicyMapStore();
+		if (validationPolicyMapStore == null)
+			return POLICY_FULL;
+		policy = validationPolicyMapStore.getProperty(username);
+		if (policy == null)
+			return POLICY_FULL;
+		policy = policy.trim();
+		if (policy.equals(POLICY_WELL_FORMED) || policy.equals(POLICY_SAMPLED) ||
+		    policy.startsWith(POLICY_SAMPLED+":"))
+			return policy;
+		return POLICY_FULL;
+	}
+
+	/**
+	 * Get the sample rate from a sampled policy string.
+	 * @param policy The policy string, either "sampled" or "sampled:N".
+	 * @return The sample rate N, or the default sample rate if it was not specified or was not legal.
+	 * @see #defaultSampleRate
+	 */
+	private int getSampleRate(String policy)
+	{
+		int index = policy.indexOf(':');
+		int sampleRate;
+
+		if (index < 0)
+			return defaultSampleRate;
+		try
+		{
+			sampleRate = Integer.parseInt(policy.substring(index+1).trim());
+		}
+		catch (NumberFormatException e)
+		{
+			errorLogger.log(1, RTMLValidationPolicy.class.getName(),
+					"Illegal sample rate in validation policy "+policy+", using default:"+e);
+			return defaultSampleRate;
+		}
+		if (sampleRate < 1)
+			return defaultSampleRate;
+		return sampleRate;
+	}
+
+	/**
+	 * Return a string describing how often each validation tier has been used.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+"[full="+fullCount.get()+",wellformed="+wellFormedCount.get()+
+			",sampledFull="+sampledFullCount.get()+",sampledSkipped="+sampledSkippedCount.get()+
+			",revalidated="+revalidatedCount.get()+"]";
+	}
+}
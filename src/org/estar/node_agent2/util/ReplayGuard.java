@@ -0,0 +1,460 @@
+package org.estar.node_agent2.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.configuration.NodeAgentProperties;
+
+/**
+ * Replay protection, using the (optional) Timestamp and Nonce request headers. A client sends the time it made
+ * the request (milliseconds since the epoch) and a random nonce, unique to the request. An authenticated request
+ * is rejected if it's timestamp is more than the replay window from the Node Agent's clock, or if the nonce
+ * has already been seen (from the same user) within the window, i.e. it is a re-sent copy of an earlier request.
+ * <p>
+ * Seen nonces are kept in Bloom filters, so the memory used is fixed however many requests are received,
+ * and each check is O(1) (a fixed number of bit probes). Each filter covers one window long time bucket
+ * (of the request timestamps). The timestamps accepted span at most three buckets (the current one, and
+ * the ones either side), so a ring of three filters is kept, and when a bucket comes round again it's filter
+ * is cleared (rotated) and reused. A Bloom filter can have false positives (an unseen nonce reported as seen,
+ * so a genuine request is rejected as a replay), but never false negatives. The false positive rate is about
+ * (1-e^(-kn/m))^k, for m bits, k hashes and n nonces per window. Unless authentication.replay.filter.bits is set,
+ * m is derived from the window, the expected request rate and the target false positive rate at that rate
+ * (getFilterBitCount); the defaults (5 minute window, 10000 requests per second, 1 in 10^6, 7 hashes) give about
+ * 2^27 bits (17MB) per filter. (A fixed 2^25 bits would reject about 1 in 200 genuine requests at 10000 requests
+ * per second.)
+ * <p>
+ * The headers are not signed, so this stops captured requests being re-sent as they were (by anything that
+ * saw them, e.g. a proxy or log), not an attacker who changes the headers; that needs HTTPS.
+ * @author cjm
+ * @see org.estar.node_agent2.util.NodeAgentAuthenticator#checkCredentials
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#AUTHENTICATION_REPLAY_USE
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#AUTHENTICATION_REPLAY_REQUIRED
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#AUTHENTICATION_REPLAY_WINDOW
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#AUTHENTICATION_REPLAY_EXPECTED_RATE
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#AUTHENTICATION_REPLAY_FALSE_POSITIVE_RATE
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#AUTHENTICATION_REPLAY_FILTER_BITS
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#AUTHENTICATION_REPLAY_FILTER_HASHES
+ */
+public class ReplayGuard
+{
+	/**
+	 * The request header containing the request timestamp, in milliseconds since the epoch.
+	 */
+	public static final String HEADER_TIMESTAMP = "Timestamp";
+	/**
+	 * The request header containing the request nonce.
+	 */
+	public static final String HEADER_NONCE = "Nonce";
+	/**
+	 * The default replay window, in milliseconds.
+	 */
+	public static final long DEFAULT_WINDOW = 300000;
+	/**
+	 * The default expected peak request rate, in requests per second, used to size the Bloom filters.
+	 */
+	public static final long DEFAULT_EXPECTED_RATE = 10000;
+	/**
+	 * The default target false positive rate at the expected rate, used to size the Bloom filters.
+	 */
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 1.0e-6;
+	/**
+	 * The largest number of bits in a Bloom filter (the largest multiple of 64 that fits an int).
+	 */
+	public static final int MAX_FILTER_BITS = Integer.MAX_VALUE-63;
+	/**
+	 * The default number of hashes (bit probes) per nonce.
+	 */
+	public static final int DEFAULT_FILTER_HASHES = 7;
+	/**
+	 * The number of time bucketed filters kept.
+	 */
+	public static final int FILTER_COUNT = 3;
+	/**
+	 * The maximum length of a nonce.
+	 */
+	public static final int MAX_NONCE_LENGTH = 128;
+	/**
+	 * The singleton instance of this class.
+	 */
+	private static ReplayGuard instance = null;
+	/**
+	 * The trace logger.
+	 */
+	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+	/**
+	 * The error logger.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+	/**
+	 * Whether the Timestamp and Nonce headers are checked (when present).
+	 */
+	private boolean use = false;
+	/**
+	 * Whether requests without the Timestamp and Nonce headers are rejected.
+	 */
+	private boolean required = false;
+	/**
+	 * The replay window (and bucket length), in milliseconds.
+	 */
+	private long window = DEFAULT_WINDOW;
+	/**
+	 * The number of hashes (bit probes) per nonce.
+	 */
+	private int hashCount = DEFAULT_FILTER_HASHES;
+	/**
+	 * The ring of time bucketed Bloom filters, or null if replay protection is not in use.
+	 */
+	private NonceFilter filters[] = null;
+	/**
+	 * The number of requests whose timestamp and nonce were checked and accepted.
+	 */
+	private AtomicLong acceptedCount = new AtomicLong(0);
+	/**
+	 * The number of requests without the Timestamp and Nonce headers.
+	 */
+	private AtomicLong missingCount = new AtomicLong(0);
+	/**
+	 * The number of requests rejected because their timestamp was outside the window (or malformed).
+	 */
+	private AtomicLong staleCount = new AtomicLong(0);
+	/**
+	 * The number of requests rejected because their nonce had been seen.
+	 */
+	private AtomicLong replayCount = new AtomicLong(0);
+	/**
+	 * The number of filter rotations (clears).
+	 */
+	private AtomicLong rotationCount = new AtomicLong(0);
+	/**
+	 * The target false positive rate the filters were sized for, or 0 if authentication.replay.filter.bits was set.
+	 */
+	private double falsePositiveRate = 0.0;
+
+	/**
+	 * A Bloom filter of the nonces seen in one time bucket. Synchronized on itself, the critical section
+	 * being a few bit probes.
+	 */
+	protected static class NonceFilter
+	{
+		/**
+		 * The bucket (timestamp divided by the window) this filter currently holds nonces for.
+		 */
+		long bucket = Long.MIN_VALUE;
+		/**
+		 * The filter bits.
+		 */
+		long bits[] = null;
+
+		/**
+		 * Constructor.
+		 * @param bitCount The number of bits in the filter (a multiple of 64).
+		 */
+		NonceFilter(int bitCount)
+		{
+			bits = new long[bitCount/64];
+		}
+	}
+
+	/**
+	 * Get the singleton instance of this class. Construct it if required.
+	 * @return The singleton instance of this class.
+	 */
+	public static synchronized ReplayGuard getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new ReplayGuard();
+		}
+		return instance;
+	}
+
+	/**
+	 * Internal constructor used by getInstance. Retrieves the configuration from NodeAgentProperties,
+	 * and if replay protection is in use, allocates the filters. Unless authentication.replay.filter.bits is set,
+	 * the filter size is derived from the window, expected rate and target false positive rate.
+	 * @see #getFilterBitCount(long,long,double,int)
+	 * @see #use
+	 * @see #required
+	 * @see #window
+	 * @see #hashCount
+	 * @see #filters
+	 */
+	private ReplayGuard()
+	{
+		super();
+		NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
+		long expectedRate = DEFAULT_EXPECTED_RATE;
+		int bitCount = 0;
+
+		falsePositiveRate = DEFAULT_FALSE_POSITIVE_RATE;
+
+		if (nodeAgentProperties != null)
+		{
+			use = nodeAgentProperties.getBooleanProperty(NodeAgentProperties.AUTHENTICATION_REPLAY_USE,false);
+			required = nodeAgentProperties.getBooleanProperty(NodeAgentProperties.AUTHENTICATION_REPLAY_REQUIRED,
+									  false);
+			try
+			{
+				window = nodeAgentProperties.getLongProperty(NodeAgentProperties.AUTHENTICATION_REPLAY_WINDOW,
+									     DEFAULT_WINDOW);
+				expectedRate = nodeAgentProperties.getLongProperty(
+							NodeAgentProperties.AUTHENTICATION_REPLAY_EXPECTED_RATE,DEFAULT_EXPECTED_RATE);
+				falsePositiveRate = nodeAgentProperties.getDoubleProperty(
+							NodeAgentProperties.AUTHENTICATION_REPLAY_FALSE_POSITIVE_RATE,DEFAULT_FALSE_POSITIVE_RATE);
+				bitCount = nodeAgentProperties.getIntProperty(NodeAgentProperties.AUTHENTICATION_REPLAY_FILTER_BITS,0);
+				hashCount = nodeAgentProperties.getIntProperty(
+							NodeAgentProperties.AUTHENTICATION_REPLAY_FILTER_HASHES,DEFAULT_FILTER_HASHES);
+			}
+			catch (NumberFormatException e)
+			{
+				errorLogger.log(1, ReplayGuard.class.getName(), "Illegal replay protection configuration, "+
+						"using defaults:"+e);
+			}
+		}
+		if (window < 1000)
+			window = 1000;
+		if (hashCount < 1)
+			hashCount = 1;
+		if (bitCount > 0)
+			falsePositiveRate = 0.0;
+		else
+			bitCount = getFilterBitCount(window,expectedRate,falsePositiveRate,hashCount);
+		initialise(bitCount);
+	}
+
+	/**
+	 * Constructor for a replay guard that is in use (but does not require the headers), with the specified
+	 * configuration rather than that in NodeAgentProperties. Used by the replay benchmark.
+	 * The filter size can be derived using getFilterBitCount.
+	 * @param window The replay window (and bucket length), in milliseconds.
+	 * @param bitCount The number of bits in each Bloom filter.
+	 * @param hashCount The number of hashes (bit probes) per nonce.
+	 * @see org.estar.node_agent2.benchmark.ReplayGuardBenchmark
+	 * @see #getFilterBitCount(long,long,double,int)
+	 */
+	public ReplayGuard(long window,int bitCount,int hashCount)
+	{
+		super();
+		this.use = true;
+		this.window = window;
+		this.hashCount = hashCount;
+		initialise(bitCount);
+	}
+
+	/**
+	 * Get the number of bits each Bloom filter needs, so that with the specified number of hashes it's false positive
+	 * rate stays below the target once it holds a whole window of nonces at the expected rate (a bucket is one window
+	 * long). From (1-e^(-kn/m))^k = p, m = -kn/ln(1-p^(1/k)).
+	 * @param window The replay window (and bucket length), in milliseconds.
+	 * @param expectedRate The expected peak request rate, in requests per second.
+	 * @param falsePositiveRate The target false positive rate, between 0 and 1.
+	 * @param hashCount The number of hashes (bit probes) per nonce.
+	 * @return The number of bits, a multiple of 64, at most MAX_FILTER_BITS.
+	 * @see #MAX_FILTER_BITS
+	 */
+	public static int getFilterBitCount(long window,long expectedRate,double falsePositiveRate,int hashCount)
+	{
+		double nonceCount = Math.max(1.0,(((double)expectedRate)*window)/1000.0);
+		double p = Math.min(Math.max(falsePositiveRate,Double.MIN_NORMAL),0.5);
+		int k = Math.max(1,hashCount);
+		double bitCount = -(k*nonceCount)/Math.log(1.0-Math.pow(p,1.0/k));
+
+		if (bitCount >= MAX_FILTER_BITS)
+		{
+			errorLogger.log(1, ReplayGuard.class.getName(), "getFilterBitCount:"+expectedRate+
+					" requests/s over "+window+" ms needs "+((long)bitCount)+" bits per filter, using "+
+					MAX_FILTER_BITS+".");
+			return MAX_FILTER_BITS;
+		}
+		return (int)(((long)Math.ceil(bitCount/64.0))*64L);
+	}
+
+	/**
+	 * Bound the configuration, and if replay protection is in use, allocate the filters.
+	 * @param bitCount The number of bits in each Bloom filter, rounded down to a multiple of 64.
+	 * @see #filters
+	 */
+	private void initialise(int bitCount)
+	{
+		if (window < 1000)
+			window = 1000;
+		if (bitCount < 64)
+			bitCount = 64;
+		bitCount -= bitCount%64;
+		if (hashCount < 1)
+			hashCount = 1;
+		if (use)
+		{
+			filters = new NonceFilter[FILTER_COUNT];
+			for (int i = 0; i < FILTER_COUNT; i++)
+				filters[i] = new NonceFilter(bitCount);
+			traceLogger.log(1, ReplayGuard.class.getName(), "Replay protection in use:window="+window+
+					" ms,filter bits="+bitCount+",hashes="+hashCount+",target false positive rate="+
+					falsePositiveRate+",required="+required+".");
+		}
+	}
+
+	/**
+	 * Check the Timestamp and Nonce headers of an authenticated request. Does nothing if replay protection
+	 * is not in use.
+	 * @param username The (authenticated) username.
+	 * @param headerTimestamp The Timestamp header, or null if none was supplied.
+	 * @param headerNonce The Nonce header, or null if none was supplied.
+	 * @exception RuntimeException Thrown if the headers are missing (and required), the timestamp is outside the
+	 *            replay window, or the nonce has been seen before (the request is a replay).
+	 * @see #checkNonce
+	 */
+	public void check(String username,String headerTimestamp,String headerNonce) throws RuntimeException
+	{
+		long timestamp;
+		long now;
+
+		if (use == false)
+			return;
+		if ((headerTimestamp == null) || (headerNonce == null))
+		{
+			missingCount.incrementAndGet();
+			if (required)
+			{
+				errorLogger.log(1, this.getClass().getName(),"check:Missing Timestamp/Nonce headers for username:"+
+						username);
+				throw new RuntimeException(this.getClass().getName()+
+							   ":check:Timestamp and Nonce headers required for User:"+username);
+			}
+			return;
+		}
+		now = System.currentTimeMillis();
+		try
+		{
+			timestamp = Long.parseLong(headerTimestamp.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			timestamp = Long.MIN_VALUE;
+		}
+		if ((timestamp < (now-window)) || (timestamp > (now+window)) || (headerNonce.length() == 0) ||
+		    (headerNonce.length() > MAX_NONCE_LENGTH))
+		{
+			staleCount.incrementAndGet();
+			errorLogger.log(1, this.getClass().getName(),"check:Request from username "+username+
+					" has an illegal or stale timestamp ("+headerTimestamp+") or nonce.");
+			throw new RuntimeException(this.getClass().getName()+
+				   ":check:Request timestamp is not within "+window+" ms of the current time, or illegal nonce.");
+		}
+		if (checkNonce(username,headerNonce,timestamp/window))
+		{
+			replayCount.incrementAndGet();
+			errorLogger.log(1, this.getClass().getName(),"check:Replayed request from username "+username+
+					" (nonce "+headerNonce+").");
+			throw new RuntimeException(this.getClass().getName()+":check:Replayed request for User:"+username);
+		}
+		acceptedCount.incrementAndGet();
+	}
+
+	/**
+	 * Add the nonce to the filter for the specified bucket, returning whether it was already there.
+	 * If the filter in the bucket's ring slot holds an older bucket, it is cleared first.
+	 * The probe positions come from two 64 bit hashes of the username and nonce (double hashing).
+	 * @param username The username.
+	 * @param nonce The nonce.
+	 * @param bucket The time bucket of the request's timestamp.
+	 * @return true if the nonce was (probably) already in the filter, i.e. the request is a replay.
+	 * @see #hash
+	 */
+	protected boolean checkNonce(String username,String nonce,long bucket)
+	{
+		NonceFilter filter = filters[(int)(bucket%FILTER_COUNT)];
+		long h1 = hash(username,nonce,0x9E3779B97F4A7C15L);
+		long h2 = hash(username,nonce,0xC2B2AE3D27D4EB4FL)|1L;
+		boolean seen = true;
+
+		synchronized (filter)
+		{
+			long bitCount;
+
+			if (filter.bucket != bucket)
+			{
+				if (bucket < filter.bucket)
+				{
+					// the slot has already moved on to a newer bucket, so this timestamp is too old to check
+					return true;
+				}
+				Arrays.fill(filter.bits,0L);
+				filter.bucket = bucket;
+				rotationCount.incrementAndGet();
+			}
+			bitCount = ((long)filter.bits.length)*64L;
+			for (int i = 0; i < hashCount; i++)
+			{
+				long bit = ((h1+(i*h2))&Long.MAX_VALUE)%bitCount;
+				int word = (int)(bit>>>6);
+				long mask = 1L<<(bit&63);
+
+				if ((filter.bits[word]&mask) == 0)
+				{
+					seen = false;
+					filter.bits[word] |= mask;
+				}
+			}
+		}
+		return seen;
+	}
+
+	/**
+	 * A seeded 64 bit hash (FNV-1a style, with a final avalanche mix) of the username and nonce.
+	 * @param username The username.
+	 * @param nonce The nonce.
+	 * @param seed The seed.
+	 * @return The hash.
+	 */
+	protected static long hash(String username,String nonce,long seed)
+	{
+		long h = seed^0xCBF29CE484222325L;
+
+		for (int i = 0; i < username.length(); i++)
+			h = (h^username.charAt(i))*0x100000001B3L;
+		h = (h^0xFFFF)*0x100000001B3L;
+		for (int i = 0; i < nonce.length(); i++)
+			h = (h^nonce.charAt(i))*0x100000001B3L;
+		h ^= h>>>33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h>>>33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h>>>33;
+		return h;
+	}
+
+	/**
+	 * Get the number of bits in each Bloom filter. FILTER_COUNT filters are kept, so the memory used is
+	 * FILTER_COUNT*bits/8 bytes, however many requests are checked.
+	 * @return The number of bits, or 0 if replay protection is not in use.
+	 */
+	public long getFilterBitCount()
+	{
+		if (filters == null)
+			return 0;
+		return ((long)filters[0].bits.length)*64L;
+	}
+
+	/**
+	 * Get the number of filter rotations (clears), as time moved on to a new bucket.
+	 * @return The number of rotations.
+	 */
+	public long getRotationCount()
+	{
+		return rotationCount.get();
+	}
+
+	/**
+	 * Return a string describing the replay protection statistics.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+"[use="+use+",required="+required+",window="+window+" ms,accepted="+
+			acceptedCount.get()+",missing="+missingCount.get()+",stale="+staleCount.get()+",replayed="+
+			replayCount.get()+",rotations="+rotationCount.get()+"]";
+	}
+}
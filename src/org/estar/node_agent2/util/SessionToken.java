@@ -0,0 +1,253 @@
+package org.estar.node_agent2.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import ngat.util.logging.LogManager;
+import ngat.util.logging.Logger;
+
+import org.estar.node_agent2.configuration.NodeAgentProperties;
+
+/**
+ * Signed, expiring session tokens, returned by the login web-service method. A client presents the token
+ * (in the Token request header) instead of it's password, and the token is checked by recomputing it's HMAC,
+ * without looking up the password store (or re-hashing the password). A token has the form:
+ * <pre>
+ * &lt;base64url username&gt;.&lt;expiry time, milliseconds since the epoch&gt;.&lt;base64url HMAC-SHA256&gt;
+ * </pre>
+ * The HMAC covers the username and expiry time, so neither can be changed by the client. Tokens are stateless, so
+ * Node Agent instances configured with the same authentication.token.secret accept each other's tokens. If no
+ * secret is configured, a random one is generated at startup, and tokens are only accepted by this instance until
+ * it restarts. Tokens are not stored, so a token stays valid until it expires, even if the user's password is
+ * changed; authentication.token.ttl bounds this. A token whose user has been removed from the password store is
+ * rejected at once (NodeAgentAuthenticator checks the user's authorization context, a single map lookup).
+ * @author cjm
+ * @see org.estar.node_agent2.util.NodeAgentAuthenticator#checkCredentials
+ * @see org.estar.node_agent2.NodeAgentWebServiceImpl#login
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#AUTHENTICATION_TOKEN_SECRET
+ * @see org.estar.node_agent2.configuration.NodeAgentProperties#AUTHENTICATION_TOKEN_TTL
+ */
+public class SessionToken
+{
+	/**
+	 * The HMAC algorithm used to sign tokens.
+	 */
+	public static final String ALGORITHM = "HmacSHA256";
+	/**
+	 * The separator between the fields of a token.
+	 */
+	public static final String SEPARATOR = ".";
+	/**
+	 * The default time (in milliseconds) a token is valid for.
+	 */
+	public static final long DEFAULT_TOKEN_TTL = 3600000;
+	/**
+	 * The length (in bytes) of the randomly generated secret, used if no secret is configured.
+	 */
+	public static final int RANDOM_SECRET_LENGTH = 32;
+	/**
+	 * The singleton instance of this class.
+	 */
+	private static SessionToken instance = null;
+	/**
+	 * The trace logger.
+	 */
+	static Logger traceLogger = LogManager.getLogger(LoggerUtil.TRACE_LOGGER_NAME);
+	/**
+	 * The error logger.
+	 */
+	static Logger errorLogger = LogManager.getLogger(LoggerUtil.ERROR_LOGGER_NAME);
+	/**
+	 * The key used to sign tokens.
+	 */
+	private SecretKeySpec secretKey = null;
+	/**
+	 * The time (in milliseconds) a token is valid for.
+	 */
+	private long tokenTTL = DEFAULT_TOKEN_TTL;
+	/**
+	 * A Mac per thread, as Mac instances are not thread safe, and are relatively expensive to create.
+	 */
+	private ThreadLocal<Mac> macThreadLocal = null;
+	/**
+	 * The number of tokens issued.
+	 */
+	private AtomicLong issuedCount = new AtomicLong(0);
+	/**
+	 * The number of tokens accepted.
+	 */
+	private AtomicLong acceptedCount = new AtomicLong(0);
+	/**
+	 * The number of tokens rejected because they had expired.
+	 */
+	private AtomicLong expiredCount = new AtomicLong(0);
+	/**
+	 * The number of tokens rejected because they were malformed, or their signature was wrong.
+	 */
+	private AtomicLong illegalCount = new AtomicLong(0);
+
+	/**
+	 * Get the singleton instance of this class. Construct it if required.
+	 * @return The singleton instance of this class.
+	 */
+	public static synchronized SessionToken getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new SessionToken();
+		}
+		return instance;
+	}
+
+	/**
+	 * Internal constructor used by getInstance. Retrieves the token secret and expiry time from NodeAgentProperties.
+	 * If no secret is configured, a random one is generated.
+	 * @see #secretKey
+	 * @see #tokenTTL
+	 */
+	private SessionToken()
+	{
+		super();
+		NodeAgentProperties nodeAgentProperties = NodeAgentProperties.getInstance();
+		String secret = null;
+		byte secretBytes[] = null;
+
+		if (nodeAgentProperties != null)
+		{
+			secret = nodeAgentProperties.getProperty(NodeAgentProperties.AUTHENTICATION_TOKEN_SECRET);
+			try
+			{
+				tokenTTL = nodeAgentProperties.getLongProperty(NodeAgentProperties.AUTHENTICATION_TOKEN_TTL,
+									       DEFAULT_TOKEN_TTL);
+			}
+			catch (NumberFormatException e)
+			{
+				errorLogger.log(1, SessionToken.class.getName(), "Illegal token expiry time, using default:"+e);
+			}
+		}
+		if ((secret != null) && (secret.trim().length() > 0))
+		{
+			secretBytes = secret.trim().getBytes(StandardCharsets.UTF_8);
+		}
+		else
+		{
+			secretBytes = new byte[RANDOM_SECRET_LENGTH];
+			new SecureRandom().nextBytes(secretBytes);
+			traceLogger.log(1, SessionToken.class.getName(), "No token secret configured, "+
+					"tokens are only valid for this instance until it restarts.");
+		}
+		secretKey = new SecretKeySpec(secretBytes,ALGORITHM);
+		macThreadLocal = new ThreadLocal<Mac>()
+		{
+			protected Mac initialValue()
+			{
+				try
+				{
+					Mac mac = Mac.getInstance(ALGORITHM);
+
+					mac.init(secretKey);
+					return mac;
+				}
+				catch (GeneralSecurityException e)
+				{
+					throw new RuntimeException(SessionToken.class.getName()+":"+ALGORITHM+" not available.",e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Get the time tokens are valid for.
+	 * @return The time, in milliseconds.
+	 * @see #tokenTTL
+	 */
+	public long getTokenTTL()
+	{
+		return tokenTTL;
+	}
+
+	/**
+	 * Create a token for the specified (authenticated) username, valid for tokenTTL milliseconds.
+	 * @param username The username.
+	 * @return The token.
+	 * @see #tokenTTL
+	 * @see #sign
+	 */
+	public String createToken(String username)
+	{
+		String payload = null;
+
+		payload = Base64.getUrlEncoder().withoutPadding().encodeToString(username.getBytes(StandardCharsets.UTF_8))+
+			SEPARATOR+(System.currentTimeMillis()+tokenTTL);
+		issuedCount.incrementAndGet();
+		return payload+SEPARATOR+Base64.getUrlEncoder().withoutPadding().encodeToString(sign(payload));
+	}
+
+	/**
+	 * Check the specified token, and return the username it was issued to.
+	 * @param token The token.
+	 * @return The username.
+	 * @exception RuntimeException Thrown if the token is malformed, it's signature is not correct,
+	 *            or it has expired.
+	 * @see #sign
+	 */
+	public String checkToken(String token) throws RuntimeException
+	{
+		String fields[] = null;
+		String username = null;
+		long expiryTime;
+
+		fields = token.split("\\"+SEPARATOR);
+		try
+		{
+			if (fields.length != 3)
+				throw new IllegalArgumentException("Token has "+fields.length+" fields, 3 expected.");
+			expiryTime = Long.parseLong(fields[1]);
+			if (MessageDigest.isEqual(sign(fields[0]+SEPARATOR+fields[1]),
+						  Base64.getUrlDecoder().decode(fields[2])) == false)
+				throw new IllegalArgumentException("Token signature is not correct.");
+			username = new String(Base64.getUrlDecoder().decode(fields[0]),StandardCharsets.UTF_8);
+		}
+		catch (IllegalArgumentException e)
+		{
+			illegalCount.incrementAndGet();
+			errorLogger.log(1, this.getClass().getName(), "checkToken:Illegal token:"+e);
+			throw new RuntimeException(this.getClass().getName()+":checkToken:Illegal token.");
+		}
+		if (System.currentTimeMillis() > expiryTime)
+		{
+			expiredCount.incrementAndGet();
+			traceLogger.log(2, this.getClass().getName(), "checkToken:Token for username "+username+" has expired.");
+			throw new RuntimeException(this.getClass().getName()+":checkToken:Expired token for User:"+username);
+		}
+		acceptedCount.incrementAndGet();
+		return username;
+	}
+
+	/**
+	 * Compute the HMAC of the specified token payload.
+	 * @param payload The token payload (username and expiry time fields).
+	 * @return The HMAC.
+	 * @see #macThreadLocal
+	 */
+	protected byte[] sign(String payload)
+	{
+		return macThreadLocal.get().doFinal(payload.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Return a string describing the token statistics.
+	 */
+	public String toString()
+	{
+		return this.getClass().getName()+"[ttl="+tokenTTL+" ms,issued="+issuedCount.get()+",accepted="+
+			acceptedCount.get()+",expired="+expiredCount.get()+",illegal="+illegalCount.get()+"]";
+	}
+}
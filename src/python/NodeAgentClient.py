@@ -2,22 +2,115 @@
 from suds.client import Client
 import logging
 import argparse
+import os
+import time
+import uuid
 
 class NodeAgentClient:
 
-    def initialise_web_service(self,hostname,port_number,username,password):
-        """Initialise the web service client object."""
+    # How long (in seconds) before a session token expires that a new one is requested.
+    TOKEN_RENEWAL_MARGIN = 60.0
+
+    def initialise_web_service(self,hostname,port_number,username,password,use_token=True,token_filename=None):
+        """Initialise the web service client object.
+        Unless use_token is False, the client logs in and sends a session token instead of the password,
+        renewing it before it expires. With token_filename, the token is cached in that file between invocations."""
+        self.username = username
+        self.password = password
+        self.use_token = use_token
+        self.token_filename = token_filename
+        self.token = None
         # With authentication
         authenticationHeader = {"Username" : username,"Password" : password}
         self.client = Client(url="http://"+hostname+":"+port_number+"/node_agent2/node_agent?wsdl", headers=authenticationHeader)
 
+    def token_expiry(self,token):
+        """Return the expiry time (seconds since the epoch) of a session token, or 0 if it is malformed."""
+        fields = token.split('.')
+        if len(fields) != 3:
+            return 0
+        try:
+            return int(fields[1])/1000.0
+        except ValueError:
+            return 0
+
+    def login(self):
+        """Invoke the Node agent web service login with the username and password, and cache the returned
+        session token. If the login fails (e.g. an older web service without login), the password is used."""
+        self.client.set_options(headers=self.request_headers({"Username" : self.username,"Password" : self.password}))
+        try:
+            self.token = self.client.service.login()
+        except Exception as e:
+            logging.warning("Login failed, using password instead:"+str(e))
+            self.token = None
+            self.use_token = False
+            return
+        if self.token_filename:
+            self.save_file(self.token_filename,self.token)
+
+    def set_token(self):
+        """Use a session token instead of the password, logging in if there is no cached token,
+        or it expires within TOKEN_RENEWAL_MARGIN."""
+        if not self.use_token:
+            return
+        if self.token is None and self.token_filename and os.path.exists(self.token_filename):
+            token_file = open(self.token_filename,'r')
+            self.token = token_file.read().strip()
+            token_file.close()
+        if self.token is None or (self.token_expiry(self.token)-time.time()) < self.TOKEN_RENEWAL_MARGIN:
+            self.login()
+
+    def request_headers(self,authentication_headers):
+        """Return the authentication headers, plus the Timestamp (the current time, in milliseconds) and
+        Nonce (a new random UUID) headers, used by the web service to reject replayed requests."""
+        headers = dict(authentication_headers)
+        headers["Timestamp"] = str(int(time.time()*1000))
+        headers["Nonce"] = str(uuid.uuid4())
+        return headers
+
+    def set_headers(self):
+        """Set the request headers for the next call: the session token if we have one, otherwise the password,
+        with a new Timestamp and Nonce."""
+        if self.token is not None:
+            self.client.set_options(headers=self.request_headers({"Username" : self.username,"Token" : self.token}))
+        else:
+            self.client.set_options(headers=self.request_headers({"Username" : self.username,"Password" : self.password}))
+
+    def invoke(self,method,*args):
+        """Invoke the specified web service method, using a session token if possible. If the token is rejected
+        (e.g. the web service was restarted with a new token secret), login again and retry once."""
+        self.set_token()
+        self.set_headers()
+        try:
+            return getattr(self.client.service,method)(*args)
+        except Exception as e:
+            if self.token is None or "Token" not in str(e):
+                raise
+            logging.warning("Token rejected, logging in again:"+str(e))
+            self.token = None
+            if self.token_filename and os.path.exists(self.token_filename):
+                os.remove(self.token_filename)
+            self.set_token()
+            self.set_headers()
+            return getattr(self.client.service,method)(*args)
+
     def ping(self):
         """Invoke the Node agent web service ping."""
-        return self.client.service.ping()
+        return self.invoke('ping')
 
     def handle_rtml(self,rtml_document_string):
         """Invoke the Node agent web service handle_rtml."""
-        return self.client.service.handle_rtml(rtml_document_string)
+        return self.invoke('handle_rtml',rtml_document_string)
+
+    def handle_rtml_batch(self,rtml_document_strings):
+        """Invoke the Node agent web service handle_rtml_batch, with a list of RTML document strings.
+        Returns a list of reply RTML document strings, in the same order."""
+        string_array = self.client.factory.create('{http://jaxb.dev.java.net/array}stringArray')
+        string_array.item = rtml_document_strings
+        reply = self.invoke('handle_rtml_batch',string_array)
+        if reply is None:
+            return []
+        return reply.item
 
     def add_arguments(self,parser):
         """Add command line arguments to an optparse parser."""
@@ -37,6 +130,14 @@ class NodeAgentClient:
             '--password',
             default='none',
             help='Specify the password to authenticate the web service call with.')
+        parser.add_argument(
+            '--no_token',
+            action="store_true",
+            help='Send the password with every call, rather than logging in and sending a session token.')
+        parser.add_argument(
+            '--token_file',
+            type=str,
+            help='Cache the session token in the specified filename, so later invocations reuse it until it expires.')
         parser.add_argument(
             '--ping',
             action="store_true",
@@ -44,10 +145,15 @@ class NodeAgentClient:
         parser.add_argument(
             '--handle_rtml',
             type=argparse.FileType('r'),
-            help='Call the handle_rtml web service with the specified RTML filename as input.')
+            nargs='+',
+            help='Call the handle_rtml web service with the specified RTML filename as input. With --batch, more than one filename can be specified.')
+        parser.add_argument(
+            '--batch',
+            action="store_true",
+            help='Send all the --handle_rtml files in one call to the handle_rtml_batch web service. Each returned document is saved to the --output filename with the document index appended.')
         parser.add_argument(
             '--output',
-            type=argparse.FileType('w'),
+            type=str,
             help='Save the returned RTML from the handle_rtml web service in the specified filename..')
 
     def load_file(self,filename):
@@ -58,8 +164,9 @@ class NodeAgentClient:
 
     def save_file(self,filename,content_string):
         '''Save the specified content_string into the specified filename'''
-        filename.write(content_string)
-        filename.close()
+        output_file = open(filename,'w')
+        output_file.write(content_string)
+        output_file.close()
 
 if(__name__ == "__main__"):
     # arguments parser
@@ -69,20 +176,35 @@ if(__name__ == "__main__"):
     args = parser.parse_args()
     print ("Initialising web service to host "+args.hostname+":"+args.port_number+".")
     print ("Using username "+args.username+" and password "+args.password+".")
-    client.initialise_web_service(args.hostname,args.port_number,args.username,args.password)
+    client.initialise_web_service(args.hostname,args.port_number,args.username,args.password,
+                                  not args.no_token,args.token_file)
     logging.basicConfig(filename='nodelog.txt', level=logging.DEBUG)
     if args.ping:
         print ("Invoking NodeAgent ping() method.")
         return_string = client.ping()
         print ("Returned message from NodeAgent ping() method was:" + return_string + ".\n")
+    elif args.handle_rtml and args.batch:
+        rtml_strings = []
+        for rtml_file in args.handle_rtml:
+            print ("Loading RTML from file:"+ rtml_file.name)
+            rtml_strings.append(client.load_file(rtml_file))
+        print ("Invoking NodeAgent handle_rtml_batch() method with "+str(len(rtml_strings))+" documents.")
+        return_strings = client.handle_rtml_batch(rtml_strings)
+        for index, return_string in enumerate(return_strings):
+            if args.output:
+                output_filename = args.output+"."+str(index)
+                print ("Saving returned RTML document "+str(index)+" to file:"+ output_filename)
+                client.save_file(output_filename,return_string)
+            else:
+                print ("Returned RTML "+str(index)+" from handle_rtml_batch method was:" + return_string + "\n")
     elif args.handle_rtml:
-        print ("Loading RTML from file:"+ args.handle_rtml.name)
-        rtml_string = client.load_file(args.handle_rtml)
+        print ("Loading RTML from file:"+ args.handle_rtml[0].name)
+        rtml_string = client.load_file(args.handle_rtml[0])
         #print "Invoking NodeAgent handle_rtml() method with RTML document:"+ rtml_string
         print ("Invoking NodeAgent handle_rtml() method.")
         return_string = client.handle_rtml(rtml_string)
         if args.output:
-            print ("Saving returned RTML document to file:"+ args.output.name)
+            print ("Saving returned RTML document to file:"+ args.output)
             client.save_file(args.output,return_string)
         else:
             print ("Returned RTML from handle_rtml method was:" + return_string + "\n")